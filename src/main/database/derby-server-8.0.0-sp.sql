@@ -51,6 +51,15 @@ DYNAMIC RESULT SETS 1
 EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.getMessagesByIds';
 -- QUERY END:
 
+-- QUERY START:
+CREATE procedure Tig_OfflineMessages_GetMessagesPage("to" varchar(2049), "after_id" bigint, "limit" int)
+PARAMETER STYLE JAVA
+LANGUAGE JAVA
+READS SQL DATA
+DYNAMIC RESULT SETS 1
+EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.getMessagesPage';
+-- QUERY END:
+
 -- QUERY START:
 CREATE procedure Tig_OfflineMessages_GetMessagesCount("to" varchar(2049))
 PARAMETER STYLE JAVA
@@ -78,6 +87,15 @@ DYNAMIC RESULT SETS 1
 EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.deleteMessages';
 -- QUERY END:
 
+-- QUERY START:
+CREATE procedure Tig_OfflineMessages_DeleteMessagesRange("to" varchar(2049), "after_id" bigint, "last_id" bigint)
+PARAMETER STYLE JAVA
+LANGUAGE JAVA
+MODIFIES SQL DATA
+DYNAMIC RESULT SETS 1
+EXTERNAL NAME 'tigase.db.derby.MsgRepositoryStoredProcedures.deleteMessagesRange';
+-- QUERY END:
+
 -- QUERY START:
 CREATE procedure Tig_OfflineMessages_DeleteMessagesByIds("to" varchar(2049), "msg_id1" varchar(50), "_msg_id2" varchar(50), "_msg_id3" varchar(50), "_msg_id4" varchar(50))
 PARAMETER STYLE JAVA
@@ -68,6 +68,9 @@ drop procedure if exists Tig_OfflineMessages_GetMessages;
 drop procedure if exists Tig_OfflineMessages_GetMessagesByIds;
 -- QUERY END:
 -- QUERY START:
+drop procedure if exists Tig_OfflineMessages_GetMessagesPage;
+-- QUERY END:
+-- QUERY START:
 drop procedure if exists Tig_OfflineMessages_GetMessagesCount;
 -- QUERY END:
 -- QUERY START:
@@ -80,6 +83,9 @@ drop procedure if exists Tig_OfflineMessages_DeleteMessages;
 drop procedure if exists Tig_OfflineMessages_DeleteMessagesByIds;
 -- QUERY END:
 -- QUERY START:
+drop procedure if exists Tig_OfflineMessages_DeleteMessagesRange;
+-- QUERY END:
+-- QUERY START:
 drop procedure if exists Tig_OfflineMessages_DeleteMessage;
 -- QUERY END:
 -- QUERY START:
@@ -136,6 +142,18 @@ begin
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_OfflineMessages_GetMessagesPage(_to varchar(2049) charset utf8, _after_id bigint, _limit int)
+begin
+    select message, msg_id
+    from tig_offline_messages
+    where receiver_sha1 = sha1(lower(_to))
+        and msg_id > _after_id
+    order by msg_id
+    limit _limit;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_OfflineMessages_GetMessagesCount(_to varchar(2049) charset utf8)
 begin
@@ -163,6 +181,17 @@ begin
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_OfflineMessages_DeleteMessagesRange(_to varchar(2049) charset utf8, _after_id bigint, _last_id bigint)
+begin
+    delete from tig_offline_messages
+    where receiver_sha1 = sha1(lower(_to))
+        and msg_id > _after_id
+        and msg_id <= _last_id;
+    select row_count() as deleted_rows;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_OfflineMessages_DeleteMessagesByIds(_to varchar(2049) charset utf8, _msg_id1 varchar(50) charset utf8, _msg_id2 varchar(50) charset utf8, _msg_id3  varchar(50) charset utf8, _msg_id4 varchar(50) charset utf8)
 begin
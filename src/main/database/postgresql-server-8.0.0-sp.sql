@@ -116,6 +116,21 @@ end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- QUERY START:
+create or replace function  Tig_OfflineMessages_GetMessagesPage(_to varchar(2049), _after_id bigint, _limit int) returns table(
+    "message" text, "msg_id" bigint
+) as $$
+begin
+    return query select om.message, om.msg_id
+        from tig_offline_messages om
+        where lower(om.receiver) = lower(_to)
+            and om.msg_id > _after_id
+        order by om.msg_id
+        limit _limit;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- QUERY START:
 create or replace function Tig_OfflineMessages_GetMessagesCount(_to varchar(2049)) returns table(
     "msg_type" int, "count" bigint
@@ -155,6 +170,23 @@ end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- QUERY START:
+create or replace function Tig_OfflineMessages_DeleteMessagesRange(_to varchar(2049), _after_id bigint, _last_id bigint) returns bigint as $$
+declare _deleted bigint;
+begin
+    with deleted as (
+        delete from tig_offline_messages
+        where lower(receiver) = lower(_to)
+            and msg_id > _after_id
+            and msg_id <= _last_id
+        returning msg_id
+    )
+    select count(msg_id) into _deleted from deleted;
+    return _deleted;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- QUERY START:
 create or replace function Tig_OfflineMessages_DeleteMessagesByIds(_to varchar(2049), _msg_id1 varchar(50), _msg_id2 varchar(50), _msg_id3 varchar(50), _msg_id4 varchar(50)) returns bigint as $$
 declare _deleted bigint;
@@ -152,6 +152,28 @@ end
 -- QUERY END:
 GO
 
+-- QUERY START:
+if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_GetMessagesPage')
+    drop procedure [dbo].[Tig_OfflineMessages_GetMessagesPage];
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_OfflineMessages_GetMessagesPage]
+    @_to nvarchar(2049),
+    @_after_id bigint,
+    @_limit int
+as
+begin
+    select top (@_limit) om.message, om.msg_id
+    from tig_offline_messages om
+    where om.receiver_sha1 = HASHBYTES('SHA1', lower(@_to))
+        and om.msg_id > @_after_id
+    order by om.msg_id;
+end
+-- QUERY END:
+GO
+
 -- QUERY START:
 if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_GetMessagesByIds')
     drop procedure [dbo].[Tig_OfflineMessages_GetMessagesByIds];
@@ -236,6 +258,30 @@ end
 -- QUERY END:
 GO
 
+-- QUERY START:
+if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_DeleteMessagesRange')
+    drop procedure [dbo].[Tig_OfflineMessages_DeleteMessagesRange];
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_OfflineMessages_DeleteMessagesRange]
+    @_to nvarchar(2049),
+    @_after_id bigint,
+    @_last_id bigint
+as
+begin
+    set nocount on;
+    delete from tig_offline_messages
+    where receiver_sha1 = HASHBYTES('SHA1', lower(@_to))
+        and msg_id > @_after_id
+        and msg_id <= @_last_id;
+    select @@ROWCOUNT as affected_rows;
+    set nocount off;
+end
+-- QUERY END:
+GO
+
 -- QUERY START:
 if exists (select 1 from sys.objects where type = 'P' and name = 'Tig_OfflineMessages_DeleteMessagesByIds')
     drop procedure [dbo].[Tig_OfflineMessages_DeleteMessagesByIds];
@@ -44,6 +44,8 @@ def SHOW_AS_TABLE = "Present roster in table (required for UI)";
 
 def p = (Packet) packet
 def repository = (UserRepository) userRepository
+def rosterImpl = RosterFactory.getRosterImplementation(true)
+def rosterData = (rosterImpl instanceof RosterFlat) ? (RosterFlat) rosterImpl : new RosterFlat()
 def sessions = (Map<BareJID, XMPPSession>) userSessions
 def vhost_man = (VHostManagerIfc) vhostMan
 def admins = (Set) adminsSet
@@ -79,8 +81,7 @@ if (isAllowedForDomain.apply(bareJID.getDomain())) {
 		Element query = new Element("query");
 		query.setXMLNS("jabber:iq:roster");
 		if (session == null) {
-			String rosterStr = repository.getData(bareJID, null,
-												  RosterAbstract.ROSTER, null) ?: ""
+			String rosterStr = rosterData.getRosterData(repository, bareJID) ?: ""
 			Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 			RosterFlat.parseRosterUtil(rosterStr, roster, null)
 			roster.values().each {
@@ -96,8 +97,7 @@ if (isAllowedForDomain.apply(bareJID.getDomain())) {
 	} else {
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 		if (session == null) {
-			String rosterStr = repository.getData(bareJID, null,
-												  RosterAbstract.ROSTER, null) ?: ""
+			String rosterStr = rosterData.getRosterData(repository, bareJID) ?: ""
 			RosterFlat.parseRosterUtil(rosterStr, roster, null)
 		} else {
 			def conn = session.getActiveResources().get(0)
@@ -136,8 +136,9 @@ def updateRoster = { sess, online, jid, i_jid, i_name, i_subscr ->
 //		}
 	} else {
 		// Update offline
-		String rosterStr = repository.getData(jid.getBareJID(), null,
-											  RosterAbstract.ROSTER, null) ?: ""
+		RosterAbstract rosterImpl = RosterFactory.getRosterImplementation(true)
+		RosterFlat rosterData = (rosterImpl instanceof RosterFlat) ? (RosterFlat) rosterImpl : new RosterFlat()
+		String rosterStr = rosterData.getRosterData(repository, jid.getBareJID()) ?: ""
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 		RosterFlat.parseRosterUtil(rosterStr, roster, null)
 		if (remove_item) {
@@ -153,11 +154,7 @@ def updateRoster = { sess, online, jid, i_jid, i_name, i_subscr ->
 				res_report += "Buddy: " + i_jid + " already in the roster, skipping"
 			}
 		}
-		StringBuilder sb = new StringBuilder(200)
-		for (RosterElement relem : roster.values()) {
-			sb.append(relem.getRosterElement().toString())
-		}
-		repository.setData(jid.getBareJID(), null, RosterAbstract.ROSTER, sb.toString());
+		rosterData.setRosterData(repository, jid.getBareJID(), roster.values())
 	}
 }
 
@@ -45,6 +45,7 @@ import tigase.xmpp.StanzaType
 import tigase.xmpp.XMPPSession
 import tigase.xmpp.impl.roster.RosterAbstract
 import tigase.xmpp.impl.roster.RosterElement
+import tigase.xmpp.impl.roster.RosterFactory
 import tigase.xmpp.impl.roster.RosterFlat
 import tigase.xmpp.jid.BareJID
 import tigase.xmpp.jid.JID
@@ -172,8 +173,9 @@ sleep(2000)
 def updateRoster = { sess, online, jid, i_jid, i_name, i_subscr ->
 
 	// Update offline
-	String rosterStr = repository.getData(jid.getBareJID(), null,
-										  RosterAbstract.ROSTER, null) ?: ""
+	RosterAbstract rosterImpl = RosterFactory.getRosterImplementation(true)
+	RosterFlat rosterData = (rosterImpl instanceof RosterFlat) ? (RosterFlat) rosterImpl : new RosterFlat()
+	String rosterStr = rosterData.getRosterData(repository, jid.getBareJID()) ?: ""
 	Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 	RosterFlat.parseRosterUtil(rosterStr, roster, null)
 	if (remove_item) {
@@ -189,11 +191,7 @@ def updateRoster = { sess, online, jid, i_jid, i_name, i_subscr ->
 			res_report += "Buddy: " + i_jid + " already in the roster, skipping"
 		}
 	}
-	StringBuilder sb = new StringBuilder(200)
-	for (RosterElement relem : roster.values()) {
-		sb.append(relem.getRosterElement().toString())
-	}
-	repository.setData(jid.getBareJID(), null, RosterAbstract.ROSTER, sb.toString());
+	rosterData.setRosterData(repository, jid.getBareJID(), roster.values())
 
 }
 
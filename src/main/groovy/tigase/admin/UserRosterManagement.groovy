@@ -182,17 +182,15 @@ class RosterChangesControler {
 
 	def modifyDbRoster(String ownerJid, modifyFunc) {
 		BareJID ownerBareJID = BareJID.bareJIDInstance(ownerJid)
-		String rosterStr = repository.getData(ownerBareJID, null, RosterAbstract.ROSTER, null)
+		RosterAbstract rosterImpl = RosterFactory.getRosterImplementation(true)
+		RosterFlat rosterData = (rosterImpl instanceof RosterFlat) ? (RosterFlat) rosterImpl : new RosterFlat()
+		String rosterStr = rosterData.getRosterData(repository, ownerBareJID)
 		rosterStr = (rosterStr == null) ? "" : rosterStr
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 
 		RosterFlat.parseRosterUtil(rosterStr, roster, null)
 		modifyFunc(roster)
-		StringBuilder sb = new StringBuilder()
-		for (RosterElement relem : roster.values()) {
-			sb.append(relem.getRosterElement().toString())
-		}
-		repository.setData(ownerBareJID, null, RosterAbstract.ROSTER, sb.toString());
+		rosterData.setRosterData(repository, ownerBareJID, roster.values())
 	}
 
 	Queue<Packet> addJidToRoster(ownerJid, jidToAdd, groups, subscriptionType) {
@@ -146,7 +146,9 @@ try {
 			// Is there a better object to use for synchronization?
 			synchronized (repository) {
 				// Update offline and only on original node
-				String rosterStr = repository.getData(jid.getBareJID(), null, RosterAbstract.ROSTER, null) ?: ""
+				RosterAbstract rosterImpl = RosterFactory.getRosterImplementation(true)
+				RosterFlat rosterData = (rosterImpl instanceof RosterFlat) ? (RosterFlat) rosterImpl : new RosterFlat()
+				String rosterStr = rosterData.getRosterData(repository, jid.getBareJID()) ?: ""
 				Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 				RosterFlat.parseRosterUtil(rosterStr, roster, null)
 				if (remove_item) {
@@ -157,11 +159,7 @@ try {
 					rel.setPersistent(true);
 					roster.put(i_jid, rel)
 				}
-				StringBuilder sb = new StringBuilder(200)
-				for (RosterElement relem : roster.values()) {
-					sb.append(relem.getRosterElement().toString())
-				}
-				repository.setData(jid.getBareJID(), null, RosterAbstract.ROSTER, sb.toString());
+				rosterData.setRosterData(repository, jid.getBareJID(), roster.values())
 			}
 		}
 	}
@@ -0,0 +1,263 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth;
+
+import tigase.auth.BruteForceLockerBean.Key;
+import tigase.auth.BruteForceLockerBean.Value;
+import tigase.kernel.TypesConverter;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Local counters of invalid logins used by {@link BruteForceLockerBean}.
+ * <br>
+ * Counters are kept in a concurrent map, so they are updated under lock of a single bin of the map only and reading
+ * them is lock-free. Expired counters are found using buckets of keys ordered by time of expiration, so only keys which
+ * could have expired are checked. Invalid logins counted on the local node are remembered as a pending delta, which is
+ * collected periodically and sent to other cluster nodes, but only for counters which reached the threshold.
+ */
+public class BruteForceCounters {
+
+	private static final long BUCKET_SIZE = 1000;
+
+	private final ConcurrentHashMap<Key, Value> counters = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Long, Set<Key>> expirations = new ConcurrentSkipListMap<>();
+	private final LongAdder receivedDeltas = new LongAdder();
+	private final LongAdder sentDeltas = new LongAdder();
+
+	/**
+	 * Increases counter of invalid logins and sets its expiration time.
+	 *
+	 * @param key key of the counter
+	 * @param domain domain of the user
+	 * @param ip address from which invalid login was made
+	 * @param jid JID of the user
+	 * @param currentTime current time in milliseconds
+	 * @param lockAfterFails number of invalid logins after which login is locked
+	 * @param periodTime time in milliseconds for which invalid logins are counted
+	 * @param lockTime time in milliseconds for which login is locked
+	 *
+	 * @return current value of the counter
+	 */
+	public Value addInvalidLogin(Key key, String domain, String ip, BareJID jid, long currentTime, long lockAfterFails,
+								 long periodTime, long lockTime) {
+		final Value result = counters.compute(key, (k, value) -> {
+			if (value == null || value.getInvalidateAtTime() < currentTime) {
+				value = new Value(domain, ip, jid);
+			}
+			value.setBadLoginCounter(value.getBadLoginCounter() + 1);
+			value.pendingDelta++;
+			if (value.getBadLoginCounter() <= lockAfterFails) {
+				value.setInvalidateAtTime(currentTime + periodTime);
+			} else {
+				value.setInvalidateAtTime(currentTime + lockTime);
+			}
+			return value;
+		});
+		scheduleExpiration(key, result.getInvalidateAtTime());
+		return result;
+	}
+
+	/**
+	 * Applies changes of counters received from other cluster node. If merged counter exceeds number of allowed invalid
+	 * logins, login is locked for the lock time, as it is done for invalid logins made on the local node.
+	 *
+	 * @param deltas changes of counters
+	 * @param currentTime current time in milliseconds
+	 * @param lockAfterFails function returning number of invalid logins after which login is locked for a domain
+	 * @param lockTime function returning time in milliseconds for which login is locked for a domain
+	 */
+	public void applyDeltas(Deltas deltas, long currentTime, ToLongFunction<String> lockAfterFails,
+							ToLongFunction<String> lockTime) {
+		for (Delta delta : deltas.getDeltas()) {
+			if (delta.invalidateAtTime < currentTime) {
+				continue;
+			}
+
+			final Key key = delta.key;
+			final long domainLockAfterFails = lockAfterFails.applyAsLong(key.getDomain());
+			final long lockedUntil = currentTime + lockTime.applyAsLong(key.getDomain());
+			final Value result = counters.compute(key, (k, value) -> {
+				if (value == null || value.getInvalidateAtTime() < currentTime) {
+					value = new Value(key.getDomain(), key.getIp(),
+									  key.isJIDPresent() ? BareJID.bareJIDInstanceNS(key.getJid()) : null);
+				}
+				value.setBadLoginCounter(value.getBadLoginCounter() + delta.delta);
+				value.setInvalidateAtTime(Math.max(value.getInvalidateAtTime(), delta.invalidateAtTime));
+				if (value.getBadLoginCounter() > domainLockAfterFails) {
+					value.setInvalidateAtTime(Math.max(value.getInvalidateAtTime(), lockedUntil));
+				}
+				return value;
+			});
+			scheduleExpiration(key, result.getInvalidateAtTime());
+			receivedDeltas.increment();
+		}
+	}
+
+	public void clear() {
+		counters.clear();
+		expirations.clear();
+	}
+
+	/**
+	 * Removes counters which expired.
+	 *
+	 * @param currentTime current time in milliseconds
+	 */
+	public void clearOutdated(final long currentTime) {
+		Map.Entry<Long, Set<Key>> bucket;
+		while ((bucket = expirations.firstEntry()) != null && (bucket.getKey() + 1) * BUCKET_SIZE <= currentTime) {
+			if (!expirations.remove(bucket.getKey(), bucket.getValue())) {
+				continue;
+			}
+			for (Key key : bucket.getValue()) {
+				// counters which were updated later are in later buckets as well
+				counters.computeIfPresent(key, (k, value) -> value.getInvalidateAtTime() < currentTime ? null : value);
+			}
+		}
+	}
+
+	/**
+	 * Collects local changes of counters, which reached the threshold, since last call of this method.
+	 *
+	 * @param threshold minimal value of the counter
+	 *
+	 * @return changes of counters
+	 */
+	public Deltas collectDeltas(int threshold) {
+		final Deltas result = new Deltas();
+
+		for (Map.Entry<Key, Value> entry : counters.entrySet()) {
+			final Value current = entry.getValue();
+			if (current.pendingDelta == 0 || current.getBadLoginCounter() < threshold) {
+				continue;
+			}
+			counters.computeIfPresent(entry.getKey(), (key, value) -> {
+				if (value.pendingDelta > 0) {
+					result.deltas.add(new Delta(key, value.pendingDelta, value.getInvalidateAtTime()));
+					value.pendingDelta = 0;
+				}
+				return value;
+			});
+		}
+		sentDeltas.add(result.deltas.size());
+		return result;
+	}
+
+	public Value get(Key key) {
+		return counters.get(key);
+	}
+
+	public long getReceivedDeltas() {
+		return receivedDeltas.sum();
+	}
+
+	public long getSentDeltas() {
+		return sentDeltas.sum();
+	}
+
+	public int size() {
+		return counters.size();
+	}
+
+	public Collection<Value> values() {
+		return counters.values();
+	}
+
+	private void scheduleExpiration(Key key, long invalidateAtTime) {
+		expirations.computeIfAbsent(invalidateAtTime / BUCKET_SIZE, bucket -> ConcurrentHashMap.newKeySet())
+				.add(key);
+	}
+
+	public static class Delta {
+
+		private final int delta;
+		private final long invalidateAtTime;
+		private final Key key;
+
+		public Delta(Key key, int delta, long invalidateAtTime) {
+			this.key = key;
+			this.delta = delta;
+			this.invalidateAtTime = invalidateAtTime;
+		}
+
+		public int getDelta() {
+			return delta;
+		}
+
+		public long getInvalidateAtTime() {
+			return invalidateAtTime;
+		}
+
+		public Key getKey() {
+			return key;
+		}
+	}
+
+	public static class Deltas
+			implements TypesConverter.Parcelable {
+
+		private final List<Delta> deltas = new ArrayList<>();
+
+		@Override
+		public String[] encodeToStrings() {
+			String[] r = new String[1 + deltas.size() * 5];
+			r[0] = String.valueOf(deltas.size());
+
+			int idx = 1;
+			for (Delta delta : deltas) {
+				String[] key = delta.key.encodeToStrings();
+				System.arraycopy(key, 0, r, idx, 3);
+				r[idx + 3] = String.valueOf(delta.delta);
+				r[idx + 4] = String.valueOf(delta.invalidateAtTime);
+				idx = idx + 5;
+			}
+			return r;
+		}
+
+		@Override
+		public void fillFromString(String[] encoded) {
+			try {
+				final int len = Integer.parseInt(encoded[0]);
+
+				deltas.clear();
+				for (int i = 0; i < len; i++) {
+					final int idx = 1 + i * 5;
+					Key key = new Key();
+					key.fillFromString(Arrays.copyOfRange(encoded, idx, idx + 3));
+					deltas.add(new Delta(key, Integer.parseInt(encoded[idx + 3]), Long.parseLong(encoded[idx + 4])));
+				}
+			} catch (Exception e) {
+				throw new RuntimeException("Cannot decode parcel: " + Arrays.toString(encoded), e);
+			}
+		}
+
+		public List<Delta> getDeltas() {
+			return deltas;
+		}
+
+		public boolean isEmpty() {
+			return deltas.isEmpty();
+		}
+	}
+}
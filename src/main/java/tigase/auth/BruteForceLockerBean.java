@@ -25,7 +25,7 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
-import tigase.map.ClusterMapFactory;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.xmppsession.SessionManager;
 import tigase.stats.ComponentStatisticsProvider;
 import tigase.stats.StatisticsList;
@@ -35,6 +35,7 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
@@ -56,7 +57,6 @@ public class BruteForceLockerBean
 	private static final String LOCK_TIME_KEY = "brute-force-lock-time";
 	private static final String LOCK_PERIOD_TIME_KEY = "brute-force-period-time";
 	private static final String LOCK_MODE_KEY = "brute-force-mode";
-	private static final String MAP_TYPE = "brute-force-invalid-logins";
 
 	public enum Mode {
 		Ip,
@@ -79,14 +79,19 @@ public class BruteForceLockerBean
 		VHostItem.registerData(types);
 	}
 
+	private final BruteForceCounters counters = new BruteForceCounters();
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final Map<String, StatHolder> otherStatHolders = new ConcurrentHashMap<>();
 	private final StatHolder statHolder = new StatHolder();
 	@Inject
 	private EventBus eventBus;
-	private Map<Key, Value> map;
+	private long lastSyncTime = 0;
 	@Inject
 	private SessionManager sessionManager;
+	@ConfigField(desc = "Interval of sending changed counters to cluster nodes", alias = "sync-interval")
+	private Duration syncInterval = Duration.ofSeconds(5);
+	@ConfigField(desc = "Number of invalid logins before counter is sent to cluster nodes", alias = "sync-threshold")
+	private int syncThreshold = 2;
 
 	public static String getClientIp(XMPPResourceConnection session) {
 		try {
@@ -110,41 +115,15 @@ public class BruteForceLockerBean
 			}
 			return;
 		}
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
-		}
-
 		final Key key = createKey(session, ip, jid);
-		Value value = map.get(key);
-
-		if (value == null) {
-			value = new Value(session != null ? session.getDomain().getVhost().toString() : null, ip, jid);
-			value.setBadLoginCounter(0);
-
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Entry didn't exists. Create new one.");
-			}
-		}
-
-		if (value.getInvalidateAtTime() < currentTime) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Entry exists and is old, reset counter.");
-			}
-			value.setBadLoginCounter(0);
-		}
-
-		value.setBadLoginCounter(value.getBadLoginCounter() + 1);
-
 		final long lockAfterFails = session == null ? 3 : (long) session.getDomain().getData(LOCK_AFTER_FAILS_KEY);
-		if (value.getBadLoginCounter() <= lockAfterFails) {
-			final long periodTime =
-					(session == null ? 10 : (long) session.getDomain().getData(LOCK_PERIOD_TIME_KEY)) * 1000;
-			value.setInvalidateAtTime(currentTime + periodTime);
-		} else {
-			final long lockTime = (session == null ? 10 : (long) session.getDomain().getData(LOCK_TIME_KEY)) * 1000;
-			value.setInvalidateAtTime(currentTime + lockTime);
-		}
+		final long periodTime =
+				(session == null ? 10 : (long) session.getDomain().getData(LOCK_PERIOD_TIME_KEY)) * 1000;
+		final long lockTime = (session == null ? 10 : (long) session.getDomain().getData(LOCK_TIME_KEY)) * 1000;
+
+		final Value value = counters.addInvalidLogin(key,
+													 session != null ? session.getDomain().getVhost().toString() : null,
+													 ip, jid, currentTime, lockAfterFails, periodTime, lockTime);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest(
@@ -152,8 +131,6 @@ public class BruteForceLockerBean
 							"== " + value.getBadLoginCounter());
 		}
 
-		map.put(key, value);
-
 		addToStatistic(value);
 	}
 
@@ -164,7 +141,7 @@ public class BruteForceLockerBean
 			return false;
 		}
 
-		Value value = map.get(key);
+		Value value = counters.get(key);
 
 		if (value == null) {
 			return false;
@@ -181,11 +158,7 @@ public class BruteForceLockerBean
 	}
 
 	public void clearAll() {
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
-		}
-		map.clear();
+		counters.clear();
 	}
 
 	public void clearOutdated() {
@@ -193,27 +166,21 @@ public class BruteForceLockerBean
 	}
 
 	public void clearOutdated(final long currentTime) {
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return;
-		}
-
-		final HashSet<Key> toRemove = new HashSet<>();
+		counters.clearOutdated(currentTime);
+	}
 
-		map.forEach((key, value) -> {
-			if (value.getInvalidateAtTime() < currentTime) {
-				toRemove.add(key);
-			}
-		});
-		toRemove.forEach(key -> map.remove(key));
+	public BruteForceCounters getCounters() {
+		return counters;
 	}
 
 	@Override
 	public void getStatistics(String compName, StatisticsList list) {
 		clearOutdated();
 		final String keyName = compName + "/BruteForceLocker";
-		ArrayList<Value> l = new ArrayList<>(this.map.values());
-		for (Value value : l) {
+		list.add(keyName, "Invalid logins counters", counters.size(), Level.FINE);
+		list.add(keyName, "Sent counters changes", counters.getSentDeltas(), Level.FINE);
+		list.add(keyName, "Received counters changes", counters.getReceivedDeltas(), Level.FINE);
+		for (Value value : counters.values()) {
 			list.add(keyName, "Present locks: " + value.jid + " from " + value.ip, value.badLoginCounter, Level.FINER);
 		}
 
@@ -233,8 +200,6 @@ public class BruteForceLockerBean
 
 	@Override
 	public void initialize() {
-		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
-		assert this.map != null : "Distributed Map is NULL!";
 		assert this.sessionManager != null : "SessionManager is NULL!";
 
 		if (eventBus != null) {
@@ -255,6 +220,20 @@ public class BruteForceLockerBean
 		this.otherStatHolders.put(event.getNodeName(), event.getStatHolder());
 	}
 
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	public void handleInvalidLoginsChangedEvent(InvalidLoginsChangedEvent event) {
+		if (event.getDeltas() == null) {
+			return;
+		}
+
+		applyDeltas(event.getDeltas(), System.currentTimeMillis());
+	}
+
+	public void applyDeltas(BruteForceCounters.Deltas deltas, final long currentTime) {
+		counters.applyDeltas(deltas, currentTime, domain -> getDomainSetting(domain, LOCK_AFTER_FAILS_KEY, 3),
+							 domain -> getDomainSetting(domain, LOCK_TIME_KEY, 10) * 1000);
+	}
+
 	public boolean isLoginAllowed(XMPPResourceConnection session, final String ip, final BareJID jid) {
 		return isLoginAllowed(session, ip, jid, System.currentTimeMillis());
 	}
@@ -267,13 +246,8 @@ public class BruteForceLockerBean
 			}
 			return true;
 		}
-		if (map == null) {
-			log.warning("Brute Force Locker is no initialized yet!");
-			return false;
-		}
-
 		final Key key = createKey(session, ip, jid);
-		Value value = map.get(key);
+		Value value = counters.get(key);
 
 		if (value == null) {
 			if (log.isLoggable(Level.FINEST)) {
@@ -304,11 +278,24 @@ public class BruteForceLockerBean
 
 	@Override
 	public void everySecond() {
+		final long currentTime = System.currentTimeMillis();
 
+		clearOutdated(currentTime);
+		if (eventBus != null && sessionManager != null && lastSyncTime + syncInterval.toMillis() <= currentTime) {
+			lastSyncTime = currentTime;
+			syncCounters();
+		}
 	}
 
-	void setMap(HashMap<Key, Value> map) {
-		this.map = map;
+	/**
+	 * Sends changes of local counters, which reached the threshold, to other cluster nodes.
+	 */
+	public void syncCounters() {
+		final BruteForceCounters.Deltas deltas = counters.collectDeltas(syncThreshold);
+
+		if (!deltas.isEmpty()) {
+			eventBus.fire(new InvalidLoginsChangedEvent(sessionManager.getComponentId().getDomain(), deltas));
+		}
 	}
 
 	final Key createKey(XMPPResourceConnection session, String ip, BareJID jid) {
@@ -335,12 +322,19 @@ public class BruteForceLockerBean
 		this.statHolder.addJID(v.jid);
 	}
 
+	private long getDomainSetting(String domain, String key, long defValue) {
+		// counters of logins without session use the same values as addInvalidLogin()
+		VHostItem item = (sessionManager == null || ANY.equals(domain)) ? null : sessionManager.getVHostItem(domain);
+
+		return item == null ? defValue : (long) item.getData(key);
+	}
+
 	private boolean isLoginAllowed(final XMPPResourceConnection session, final Key key, final Value value,
 								   final long currentTime) {
 		if (value.getInvalidateAtTime() < currentTime) {
-			map.remove(key);
+			// outdated entries are removed by clearOutdated(), so this check has no side effects
 			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Entry existed, but was too old. Entry removed. Return true.");
+				log.finest("Entry existed, but was too old. Return true.");
 			}
 			return true;
 		} else {
@@ -402,6 +396,10 @@ public class BruteForceLockerBean
 			this.domain = encoded[2];
 		}
 
+		public String getDomain() {
+			return domain;
+		}
+
 		public String getIp() {
 			return ip;
 		}
@@ -437,6 +435,38 @@ public class BruteForceLockerBean
 
 	}
 
+	public static class InvalidLoginsChangedEvent
+			implements Serializable {
+
+		private BruteForceCounters.Deltas deltas;
+
+		private String nodeName;
+
+		public InvalidLoginsChangedEvent() {
+		}
+
+		public InvalidLoginsChangedEvent(String nodeName, BruteForceCounters.Deltas deltas) {
+			this.nodeName = nodeName;
+			this.deltas = deltas;
+		}
+
+		public BruteForceCounters.Deltas getDeltas() {
+			return deltas;
+		}
+
+		public void setDeltas(BruteForceCounters.Deltas deltas) {
+			this.deltas = deltas;
+		}
+
+		public String getNodeName() {
+			return nodeName;
+		}
+
+		public void setNodeName(String nodeName) {
+			this.nodeName = nodeName;
+		}
+	}
+
 	public static class LoginLockedException
 			extends Exception {
 
@@ -573,12 +603,15 @@ public class BruteForceLockerBean
 	public static class Value
 			implements TypesConverter.Parcelable {
 
-		private int badLoginCounter;
+		// counters are modified only inside of compute() of the map and read without locking
+		private volatile int badLoginCounter;
 		private String domain;
 		/** Invalidate this value at specific time */
-		private long invalidateAtTime;
+		private volatile long invalidateAtTime;
 		private String ip;
 		private BareJID jid;
+		/** Number of local invalid logins not sent to other cluster nodes yet */
+		int pendingDelta = 0;
 
 		public Value() {
 		}
@@ -52,7 +52,12 @@ import static tigase.auth.credentials.Credentials.DEFAULT_USERNAME;
 public class ScramCallbackHandler
 		implements CallbackHandler, AuthRepositoryAware, SessionAware, DomainAware, MechanismNameAware {
 
+	public static final String PLAIN_CREDENTIALS_CACHE_SIZE_PROP_KEY = "scram-plain-credentials-cache-size";
+	public static final String PLAIN_CREDENTIALS_CACHE_TTL_PROP_KEY = "scram-plain-credentials-cache-ttl";
 	private static final Logger log = Logger.getLogger(ScramCallbackHandler.class.getCanonicalName());
+	private static final ScramPlainCredentialsCache plainCredentialsCache = new ScramPlainCredentialsCache(
+			Integer.getInteger(PLAIN_CREDENTIALS_CACHE_SIZE_PROP_KEY, 10000),
+			Long.getLong(PLAIN_CREDENTIALS_CACHE_TTL_PROP_KEY, 5 * 60) * 1000);
 	private boolean accountDisabled = false;
 	private ScramCredentialsEntry credentialsEntry;
 	private boolean credentialsFetched;
@@ -63,6 +68,15 @@ public class ScramCallbackHandler
 	private XMPPResourceConnection session;
 	private String username = null;
 
+	/**
+	 * Removes cached SCRAM credentials derived from PLAIN password of the user.
+	 *
+	 * @param user user bare JID
+	 */
+	public static void invalidatePlainCredentials(BareJID user) {
+		plainCredentialsCache.invalidate(user);
+	}
+
 	public ScramCallbackHandler() {
 	}
 
@@ -253,8 +267,8 @@ public class ScramCallbackHandler
 				if (entry instanceof ScramCredentialsEntry) {
 					credentialsEntry = (ScramCredentialsEntry) entry;
 				} else if (entry instanceof PlainCredentialsEntry) {
-					credentialsEntry = new ScramCredentialsEntry(mech.replace("SCRAM-", ""),
-																 (PlainCredentialsEntry) entry);
+					credentialsEntry = plainCredentialsCache.get(jid, username, mech.replace("SCRAM-", ""),
+																 (PlainCredentialsEntry) entry, System.currentTimeMillis());
 				}
 
 				accountDisabled = credentials.isAccountDisabled();
@@ -0,0 +1,157 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth.impl;
+
+import tigase.auth.credentials.entries.PlainCredentialsEntry;
+import tigase.auth.credentials.entries.ScramCredentialsEntry;
+import tigase.xmpp.jid.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded cache of SCRAM credentials derived from passwords stored in PLAIN form.
+ * <br>
+ * Without it every SCRAM authentication of a user with PLAIN password requires a new salt and calculation of salted
+ * password with all PBKDF2 iterations. Cached entry is reused (with the same salt) until it expires or until password
+ * of the user changes, which is detected by comparing digest of the password, so passwords are not kept in the
+ * cache. When the cache is full, least recently used entry is evicted.
+ */
+public class ScramPlainCredentialsCache {
+
+	private final LinkedHashMap<Key, CachedEntry> cache;
+	private final long ttl;
+
+	private static byte[] digest(String password) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxSize maximal number of cached entries
+	 * @param ttl time in milliseconds after which entries expire
+	 */
+	public ScramPlainCredentialsCache(int maxSize, long ttl) {
+		this.ttl = ttl;
+		this.cache = new LinkedHashMap<Key, CachedEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns SCRAM credentials for the PLAIN password, from the cache if possible.
+	 *
+	 * @param user user bare JID
+	 * @param username name of credentials of the user
+	 * @param algorithm hash algorithm of SCRAM mechanism
+	 * @param entry PLAIN credentials of the user
+	 * @param now current time in milliseconds
+	 *
+	 * @return SCRAM credentials
+	 */
+	public ScramCredentialsEntry get(BareJID user, String username, String algorithm, PlainCredentialsEntry entry,
+									 long now) throws NoSuchAlgorithmException, InvalidKeyException {
+		Key key = new Key(user, username, algorithm);
+		byte[] passwordDigest = digest(entry.getPassword());
+		CachedEntry cached;
+
+		synchronized (cache) {
+			cached = cache.get(key);
+		}
+		if (cached != null && cached.expiresAt > now && MessageDigest.isEqual(cached.passwordDigest, passwordDigest)) {
+			return cached.entry;
+		}
+
+		// salted password is calculated outside of the lock, as it is expensive
+		ScramCredentialsEntry result = new ScramCredentialsEntry(algorithm, entry);
+
+		synchronized (cache) {
+			cache.put(key, new CachedEntry(passwordDigest, result, now + ttl));
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all cached entries of the user. Should be called when credentials of the user are changed or removed.
+	 *
+	 * @param user user bare JID
+	 */
+	public void invalidate(BareJID user) {
+		synchronized (cache) {
+			cache.keySet().removeIf(key -> key.user.equals(user));
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	private static class CachedEntry {
+
+		private final ScramCredentialsEntry entry;
+		private final long expiresAt;
+		private final byte[] passwordDigest;
+
+		private CachedEntry(byte[] passwordDigest, ScramCredentialsEntry entry, long expiresAt) {
+			this.passwordDigest = passwordDigest;
+			this.entry = entry;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class Key {
+
+		private final String algorithm;
+		private final BareJID user;
+		private final String username;
+
+		private Key(BareJID user, String username, String algorithm) {
+			this.user = user;
+			this.username = username;
+			this.algorithm = algorithm;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return user.equals(key.user) && Objects.equals(username, key.username) && algorithm.equals(key.algorithm);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(user, username, algorithm);
+		}
+	}
+}
@@ -37,6 +37,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.logging.Level;
@@ -52,6 +53,11 @@ public abstract class AbstractSaslSCRAM
 	protected final static byte[] DEFAULT_SERVER_KEY = "Server Key".getBytes();
 	private final static String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
 	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/**
+	 * Instances of <code>Mac</code> are reused by a thread, as looking up the provider for every HMAC calculation
+	 * dominates time of key derivation with thousands of iterations.
+	 */
+	private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
 	private final static Pattern CLIENT_FIRST_MESSAGE = Pattern.compile(
 			"^(?<gs2Header>(?:y|n|p=(?<cbName>[a-zA-z0-9.-]+))," +
 					"(?:a=(?<authzid>(?:[\\x21-\\x2B\\x2D-\\x7E]|=2C|=3D)+))?,)(?<clientFirstBare>(?<mext>m=[^\\000=]+,)" +
@@ -110,13 +116,17 @@ public abstract class AbstractSaslSCRAM
 		System.arraycopy(salt, 0, z, 0, salt.length);
 		System.arraycopy(new byte[]{0, 0, 0, 1}, 0, z, salt.length, 4);
 
-		byte[] u = hmac(k, z);
+		// key is the same for all iterations, so Mac is initialized only once
+		final Mac mac = mac(k.getAlgorithm());
+		mac.init(k);
+
+		byte[] u = mac.doFinal(z);
 		byte[] result = new byte[u.length];
 		System.arraycopy(u, 0, result, 0, result.length);
 
 		int i = 1;
 		while (i < iterations) {
-			u = hmac(k, u);
+			u = mac.doFinal(u);
 			for (int j = 0; j < u.length; j++) {
 				result[j] ^= u[j];
 			}
@@ -128,7 +138,7 @@ public abstract class AbstractSaslSCRAM
 
 	protected static byte[] hmac(final SecretKey key, byte[] data)
 			throws NoSuchAlgorithmException, InvalidKeyException {
-		Mac mac = Mac.getInstance(key.getAlgorithm());
+		Mac mac = mac(key.getAlgorithm());
 		mac.init(key);
 		return mac.doFinal(data);
 	}
@@ -137,6 +147,17 @@ public abstract class AbstractSaslSCRAM
 		return str.getBytes(CHARSET);
 	}
 
+	private static Mac mac(String algorithm) throws NoSuchAlgorithmException {
+		Map<String, Mac> macs = MACS.get();
+		Mac mac = macs.get(algorithm);
+
+		if (mac == null) {
+			mac = Mac.getInstance(algorithm);
+			macs.put(algorithm, mac);
+		}
+		return mac;
+	}
+
 	protected AbstractSaslSCRAM(String mechanismName, String algorithm, byte[] clientKey, byte[] serverKey,
 								Map<? super String, ?> props, CallbackHandler callbackHandler) {
 		super(props, callbackHandler);
@@ -50,7 +50,7 @@ import tigase.xmpp.jid.JID;
 
 import javax.script.Bindings;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -354,12 +354,12 @@ public class SessionManagerClustered
 	}
 
 	@Override
-	public ConcurrentHashMap<JID, XMPPResourceConnection> getXMPPResourceConnections() {
+	public ConcurrentMap<JID, XMPPResourceConnection> getXMPPResourceConnections() {
 		return connectionsByFrom;
 	}
 
 	@Override
-	public ConcurrentHashMap<BareJID, XMPPSession> getXMPPSessions() {
+	public ConcurrentMap<BareJID, XMPPSession> getXMPPSessions() {
 		return sessionsByNodeId;
 	}
 
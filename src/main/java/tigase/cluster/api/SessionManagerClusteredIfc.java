@@ -30,7 +30,7 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author kobit
@@ -48,9 +48,9 @@ public interface SessionManagerClusteredIfc
 
 	XMPPResourceConnection getXMPPResourceConnection(Packet el_packet);
 
-	ConcurrentHashMap<JID, XMPPResourceConnection> getXMPPResourceConnections();
+	ConcurrentMap<JID, XMPPResourceConnection> getXMPPResourceConnections();
 
-	ConcurrentHashMap<BareJID, XMPPSession> getXMPPSessions();
+	ConcurrentMap<BareJID, XMPPSession> getXMPPSessions();
 
 	/**
 	 * Method to check if there is XMPPResourceConnection instance for connection JID.
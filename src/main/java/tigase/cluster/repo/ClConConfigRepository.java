@@ -21,6 +21,7 @@ import tigase.annotations.TigaseDeprecated;
 import tigase.cluster.ClusterConnectionManager;
 import tigase.db.DBInitException;
 import tigase.db.comp.ConfigRepository;
+import tigase.db.comp.RepositoryChanges;
 import tigase.eventbus.EventBus;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
@@ -163,20 +164,28 @@ public class ClConConfigRepository
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Item loaded: {0}", item);
 		}
-		if (System.currentTimeMillis() - item.getLastUpdate() <= 5000 * autoReloadInterval &&
-				clusterRecordValid(item)) {
+		if (isItemValid(item)) {
 			addItem(item);
 		} else {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST,
-						"Removing stale item: {0}; current time: {1}, last update: {2} ({3}), diff: {4}, autoreload {5}",
-						new Object[]{item, System.currentTimeMillis(), item.getLastUpdate(),
-									 new Date(item.getLastUpdate()), System.currentTimeMillis() - item.getLastUpdate(),
-									 5000 * autoReloadInterval});
-			}
-			if (auto_remove_obsolete_items) {
-				removeItem(item.getHostname());
-			}
+			staleItemLoaded(item);
+		}
+	}
+
+	/**
+	 * Adds item loaded from the storage to the changes, if it is not stale.
+	 *
+	 * @param item loaded item
+	 * @param changes changes to which item is added
+	 */
+	public void itemLoaded(ClusterRepoItem item, RepositoryChanges<ClusterRepoItem> changes) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Item loaded: {0}", item);
+		}
+		changes.setWatermark(Math.max(changes.getWatermark(), item.getLastUpdate()));
+		if (isItemValid(item)) {
+			changes.addChanged(item);
+		} else {
+			staleItemLoaded(item);
 		}
 	}
 
@@ -219,6 +228,19 @@ public class ClConConfigRepository
 		}
 	}
 
+	/**
+	 * Returns time in milliseconds after which item, which was not updated, is considered stale.
+	 *
+	 * @return time in milliseconds
+	 */
+	protected long getStaleItemTime() {
+		return 5000 * autoReloadInterval;
+	}
+
+	protected boolean isItemValid(ClusterRepoItem item) {
+		return System.currentTimeMillis() - item.getLastUpdate() <= getStaleItemTime() && clusterRecordValid(item);
+	}
+
 	private boolean clusterRecordValid(ClusterRepoItem item) {
 
 		// we ignore faulty addresses
@@ -230,4 +252,17 @@ public class ClConConfigRepository
 		return isCorrect;
 	}
 
+	private void staleItemLoaded(ClusterRepoItem item) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST,
+					"Removing stale item: {0}; current time: {1}, last update: {2} ({3}), diff: {4}, autoreload {5}",
+					new Object[]{item, System.currentTimeMillis(), item.getLastUpdate(),
+								 new Date(item.getLastUpdate()), System.currentTimeMillis() - item.getLastUpdate(),
+								 getStaleItemTime()});
+		}
+		if (auto_remove_obsolete_items) {
+			removeItem(item.getHostname());
+		}
+	}
+
 }
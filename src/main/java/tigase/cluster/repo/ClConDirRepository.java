@@ -24,6 +24,7 @@ package tigase.cluster.repo;
 import tigase.annotations.TigaseDeprecated;
 import tigase.db.DBInitException;
 import tigase.db.Repository;
+import tigase.db.comp.RepositoryChanges;
 
 import java.io.*;
 import java.util.Map;
@@ -90,10 +91,24 @@ public class ClConDirRepository
 	@Override
 	public void reload() {
 		super.reload();
+		if (auto_remove_obsolete_items) {
+			removeObsoloteItems(5000);
+		}
+	}
+
+	@Override
+	protected RepositoryChanges<ClusterRepoItem> loadChanges(long watermark) {
+		RepositoryChanges<ClusterRepoItem> changes = new RepositoryChanges<>(watermark);
+
 		try {
 			File[] files = repo_dir.listFiles(dirFilter);
 
 			for (File file : files) {
+				// files which were not modified recently contain stale items, so they are not read again
+				if (watermark >= 0 && file.lastModified() <= watermark - getStaleItemTime()) {
+					continue;
+				}
+
 				BufferedReader br = new BufferedReader(new FileReader(file));
 				String data = br.readLine();
 
@@ -102,14 +117,12 @@ public class ClConDirRepository
 				ClusterRepoItem item = getItemInstance();
 
 				item.initFromPropertyString(data);
-				itemLoaded(item);
+				itemLoaded(item, changes);
 			}
 		} catch (IOException e) {
 			log.log(Level.WARNING, "Problem getting elements from DB: ", e);
 		}
-		if (auto_remove_obsolete_items) {
-			removeObsoloteItems(5000);
-		}
+		return changes;
 	}
 
 	private class DirFilter
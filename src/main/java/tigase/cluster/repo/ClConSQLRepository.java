@@ -20,6 +20,7 @@ package tigase.cluster.repo;
 import tigase.annotations.TigaseDeprecated;
 import tigase.db.*;
 import tigase.db.comp.ComponentRepositoryDataSourceAware;
+import tigase.db.comp.RepositoryChanges;
 import tigase.db.util.RepositoryVersionAware;
 import tigase.sys.TigaseRuntime;
 
@@ -55,6 +56,8 @@ public class ClConSQLRepository
 			"select " + HOSTNAME_COLUMN + ", " + SECONDARY_HOSTNAME_COLUMN + ", " + PASSWORD_COLUMN + ", " +
 					LASTUPDATE_COLUMN + ", " + PORT_COLUMN + ", " + CPU_USAGE_COLUMN + ", " + MEM_USAGE_COLUMN +
 					" from " + TABLE_NAME;
+	private static final String GET_CHANGED_ITEMS_QUERY =
+			GET_ALL_ITEMS_QUERY + " where " + LASTUPDATE_COLUMN + " > ?";
 	private static final String DELETE_ITEM_QUERY =
 			"delete from " + TABLE_NAME + " where (" + HOSTNAME_COLUMN + " = ?)";
 	private static final String INSERT_ITEM_QUERY =
@@ -100,6 +103,7 @@ public class ClConSQLRepository
 
 			data_repo.initPreparedStatement(GET_ITEM_QUERY, GET_ITEM_QUERY);
 			data_repo.initPreparedStatement(GET_ALL_ITEMS_QUERY, GET_ALL_ITEMS_QUERY);
+			data_repo.initPreparedStatement(GET_CHANGED_ITEMS_QUERY, GET_CHANGED_ITEMS_QUERY);
 			data_repo.initPreparedStatement(INSERT_ITEM_QUERY, INSERT_ITEM_QUERY);
 			data_repo.initPreparedStatement(UPDATE_ITEM_QUERY, UPDATE_ITEM_QUERY);
 			data_repo.initPreparedStatement(DELETE_ITEM_QUERY, DELETE_ITEM_QUERY);
@@ -201,13 +205,48 @@ public class ClConSQLRepository
 
 		super.reload();
 
+		// make sure we remove items which are gone from the database after timeout (those have last update not updated)
+		// and are not removed from in-memory cache by above query
+		if (auto_remove_obsolete_items) {
+			removeObsoloteItems(5000);
+		}
+	}
+
+	@Deprecated
+	@TigaseDeprecated(since = "8.0.0")
+	@Override
+	public void setProperties(Map<String, Object> properties) {
+		super.setProperties(properties);
+	}
+
+	@Override
+	public void store() {
+
+		// Do nothing everything is written on demand to DB
+	}
+
+	@Override
+	protected RepositoryChanges<ClusterRepoItem> loadChanges(long watermark) throws TigaseDBException {
+		RepositoryChanges<ClusterRepoItem> changes = new RepositoryChanges<>(watermark);
+
 		try {
 			ResultSet rs = null;
-			PreparedStatement getAllItemsSt = data_repo.getPreparedStatement(null, GET_ALL_ITEMS_QUERY);
+			PreparedStatement getItemsSt;
 
-			synchronized (getAllItemsSt) {
+			if (watermark < 0) {
+				getItemsSt = data_repo.getPreparedStatement(null, GET_ALL_ITEMS_QUERY);
+			} else {
+				getItemsSt = data_repo.getPreparedStatement(null, GET_CHANGED_ITEMS_QUERY);
+			}
+
+			synchronized (getItemsSt) {
 				try {
-					rs = getAllItemsSt.executeQuery();
+					if (watermark >= 0) {
+						// records are updated using clocks of other nodes, so only records which are already stale
+						// are skipped; they would be ignored anyway
+						data_repo.setTimestamp(getItemsSt, 1, new Timestamp(watermark - getStaleItemTime()));
+					}
+					rs = getItemsSt.executeQuery();
 					while (rs.next()) {
 						ClusterRepoItem item = getItemInstance();
 
@@ -218,7 +257,7 @@ public class ClConSQLRepository
 						item.setPort(rs.getInt(PORT_COLUMN));
 						item.setCpuUsage(rs.getFloat(CPU_USAGE_COLUMN));
 						item.setMemUsage(rs.getFloat(MEM_USAGE_COLUMN));
-						itemLoaded(item);
+						itemLoaded(item, changes);
 					}
 				} finally {
 					data_repo.release(null, rs);
@@ -227,24 +266,7 @@ public class ClConSQLRepository
 		} catch (SQLException e) {
 			log.log(Level.WARNING, "Problem getting elements from DB: ", e);
 		}
-		// make sure we remove items which are gone from the database after timeout (those have last update not updated)
-		// and are not removed from in-memory cache by above query
-		if (auto_remove_obsolete_items) {
-			removeObsoloteItems(5000);
-		}
-	}
-
-	@Deprecated
-	@TigaseDeprecated(since = "8.0.0")
-	@Override
-	public void setProperties(Map<String, Object> properties) {
-		super.setProperties(properties);
-	}
-
-	@Override
-	public void store() {
-
-		// Do nothing everything is written on demand to DB
+		return changes;
 	}
 
 	/**
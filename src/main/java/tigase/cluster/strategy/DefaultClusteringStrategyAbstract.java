@@ -55,8 +55,9 @@ public abstract class DefaultClusteringStrategyAbstract<E extends ConnectionReco
 
 	private static final String ERROR_FORWARDING_KEY = "error-forwarding";
 
+	protected static final String PACKET_FORWARD_CMD = "packet-forward-sm-cmd";
+
 	private static final Logger log = Logger.getLogger(DefaultClusteringStrategyAbstract.class.getName());
-	private static final String PACKET_FORWARD_CMD = "packet-forward-sm-cmd";
 	@Inject
 	protected ClusterControllerIfc cluster = null;
 	protected String comp = "sess-man";
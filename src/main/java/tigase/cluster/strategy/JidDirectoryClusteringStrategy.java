@@ -0,0 +1,544 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.cluster.api.ClusterCommandException;
+import tigase.cluster.api.CommandListenerAbstract;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.server.Packet;
+import tigase.server.Priority;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tigase.cluster.api.SessionManagerClusteredIfc.SESSION_FOUND_KEY;
+
+/**
+ * Clustering strategy routing packets using a cluster wide directory of user locations instead of forwarding them
+ * through all cluster nodes.
+ * <br>
+ * Each user bare JID is owned by one of the cluster nodes (see {@link JidLocationDirectory}). Nodes report logins and
+ * logouts of local users to the owner and the owner knows on which nodes user has sessions. Packet for a user is sent
+ * directly to nodes with user sessions if this node is the owner or has a valid cached location, otherwise it is sent
+ * to the owner which forwards it to the right nodes and sends the location back to be cached. Owner remembers nodes to
+ * which it sent the location and invalidates their cache entries as soon as user sessions change, so packets are not
+ * routed to a stale set of nodes. Packet for a user without sessions is returned to the first node to be processed as
+ * a packet for an offline user.
+ * <br>
+ * To enable it set class of <code>strategy</code> bean of <code>sess-man</code> to this class.
+ *
+ * @param <E>
+ */
+public class JidDirectoryClusteringStrategy<E extends ConnectionRecordIfc>
+		extends DefaultClusteringStrategy<E> {
+
+	private static final String ACTION_ADD = "add";
+	private static final String ACTION_ATTR = "action";
+	private static final String ACTION_REMOVE = "remove";
+	private static final String CONNECTION_ID_ATTR = "conn-id";
+	private static final String ITEM_ELEM = "item";
+	private static final String JID_ATTR = "jid";
+	private static final String JID_DIR_INVALIDATE_CMD = "jid-dir-invalidate-sm-cmd";
+	private static final String JID_DIR_LOCATION_CMD = "jid-dir-location-sm-cmd";
+	private static final String JID_DIR_UPDATE_CMD = "jid-dir-update-sm-cmd";
+	private static final String NODES = "nodes";
+	private static final int UPDATE_MAX_BATCH_SIZE = 1000;
+
+	private static final Logger log = Logger.getLogger(JidDirectoryClusteringStrategy.class.getName());
+
+	private final AtomicLong broadcastRoutes = new AtomicLong(0);
+	private final AtomicLong cacheHits = new AtomicLong(0);
+	@ConfigField(desc = "Number of user locations cached locally", alias = "directory-cache-size")
+	private int cacheMaxSize = 100000;
+	private final AtomicLong cacheMisses = new AtomicLong(0);
+	@ConfigField(desc = "Time in milliseconds after which cached user location expires", alias = "directory-cache-ttl")
+	private long cacheTtl = 30 * 1000;
+	private final AtomicLong deliveredHops = new AtomicLong(0);
+	private final AtomicLong deliveredPackets = new AtomicLong(0);
+	private final AtomicLong directRoutes = new AtomicLong(0);
+	private volatile JidLocationDirectory directory = null;
+	private final AtomicLong invalidations = new AtomicLong(0);
+	private final AtomicLong offlineReturns = new AtomicLong(0);
+	private final AtomicLong ownerRoutes = new AtomicLong(0);
+	private final AtomicLong staleRoutes = new AtomicLong(0);
+	@ConfigField(desc = "Number of points on the hash ring for each cluster node", alias = "directory-virtual-nodes")
+	private int virtualNodes = 64;
+
+	public JidDirectoryClusteringStrategy() {
+		super();
+		addCommandListener(new JidDirectoryUpdateCommand(JID_DIR_UPDATE_CMD));
+		addCommandListener(new JidDirectoryLocationCommand(JID_DIR_LOCATION_CMD));
+		addCommandListener(new JidDirectoryInvalidateCommand(JID_DIR_INVALIDATE_CMD));
+	}
+
+	@Override
+	public String getInfo() {
+		return "jid directory strategy";
+	}
+
+	@Override
+	public List<JID> getNodesForPacketForward(JID fromNode, Set<JID> visitedNodes, Packet packet) {
+		if (visitedNodes != null) {
+			// packets already forwarded are handled by sendToNextNode()
+			return null;
+		}
+
+		// Presence status change set by the user needs to reach only other sessions of the user
+		if ((packet.getElemName() == "presence") && (packet.getType() != StanzaType.error) &&
+				(packet.getStanzaFrom() != null) && (packet.getStanzaTo() == null)) {
+			BareJID userId = packet.getStanzaFrom().getBareJID();
+			Set<JID> nodes = getKnownLocations(userId);
+
+			if (nodes == null) {
+				broadcastRoutes.incrementAndGet();
+				return getNodesConnected();
+			}
+
+			directRoutes.incrementAndGet();
+			return withoutNodes(nodes, null, sm.getComponentId());
+		}
+		if (!isSuitableForForward(packet)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Packet not suitable for forwarding: {0}", new Object[]{packet});
+			}
+			return null;
+		}
+
+		BareJID userId = packet.getStanzaTo().getBareJID();
+		Set<JID> nodes = getKnownLocations(userId);
+		List<JID> result;
+
+		if (nodes != null) {
+			result = withoutNodes(nodes, null, sm.getComponentId());
+			if (result != null) {
+				directRoutes.incrementAndGet();
+			}
+		} else {
+			result = Collections.singletonList(getDirectory().getOwner(userId));
+			ownerRoutes.incrementAndGet();
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Selected nodes: {0}, for packet: {1}", new Object[]{result, packet});
+		}
+
+		return result;
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+
+		long delivered = deliveredPackets.get();
+
+		list.add(comp, "Directory users owned", getDirectory().getLocationsSize(), Level.FINE);
+		list.add(comp, "Directory cached locations", getDirectory().getCacheSize(), Level.FINE);
+		list.add(comp, "Directory cache hits", cacheHits.get(), Level.FINER);
+		list.add(comp, "Directory cache misses", cacheMisses.get(), Level.FINER);
+		list.add(comp, "Directory cache invalidations sent", invalidations.get(), Level.FINER);
+		list.add(comp, "Directory direct routes", directRoutes.get(), Level.FINER);
+		list.add(comp, "Directory routes via owner", ownerRoutes.get(), Level.FINER);
+		list.add(comp, "Directory stale routes", staleRoutes.get(), Level.FINER);
+		list.add(comp, "Directory broadcast routes", broadcastRoutes.get(), Level.FINER);
+		list.add(comp, "Directory returned for offline", offlineReturns.get(), Level.FINER);
+		list.add(comp, "Directory delivered packets", delivered, Level.FINER);
+		list.add(comp, "Directory average hops",
+				 (delivered == 0) ? 0f : ((float) deliveredHops.get() / (float) delivered), Level.FINE);
+	}
+
+	@Override
+	public void handleLocalUserChangedConnId(BareJID userId, XMPPResourceConnection conn, JID oldConnId,
+											 JID newConnId) {
+		super.handleLocalUserChangedConnId(userId, conn, oldConnId, newConnId);
+		updateLocation(userId, oldConnId, ACTION_REMOVE);
+		updateLocation(userId, newConnId, ACTION_ADD);
+	}
+
+	@Override
+	public void handleLocalUserLogin(BareJID userId, XMPPResourceConnection conn) {
+		super.handleLocalUserLogin(userId, conn);
+		try {
+			getDirectory().invalidateCache(userId);
+			updateLocation(userId, conn.getConnectionId(), ACTION_ADD);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Problem with updating user location for: " + conn, e);
+		}
+	}
+
+	@Override
+	public void handleLocalUserLogout(BareJID userId, XMPPResourceConnection conn) {
+		super.handleLocalUserLogout(userId, conn);
+		try {
+			updateLocation(userId, conn.getConnectionId(), ACTION_REMOVE);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Problem with updating user location for: " + conn, e);
+		}
+	}
+
+	@Override
+	public void nodeConnected(JID node) {
+		super.nodeConnected(node);
+		nodesChanged();
+	}
+
+	@Override
+	public void nodeDisconnected(JID node) {
+		super.nodeDisconnected(node);
+		getDirectory().removeNode(node);
+		nodesChanged();
+	}
+
+	@Override
+	public boolean sendToNextNode(JID fromNode, Set<JID> visitedNodes, Map<String, String> data, Packet packet) {
+		JID localNode = sm.getComponentId();
+
+		if (localNode.equals(fromNode)) {
+			// packet returned to the first node
+			return false;
+		}
+
+		boolean sessionFound = (data != null) && (data.get(SESSION_FOUND_KEY) != null);
+
+		if (sessionFound && localNode.toString().equals(data.get(SESSION_FOUND_KEY))) {
+			deliveredPackets.incrementAndGet();
+			deliveredHops.addAndGet((visitedNodes != null) ? visitedNodes.size() : 1);
+		}
+		if (packet.getStanzaTo() == null) {
+			return false;
+		}
+
+		BareJID userId = packet.getStanzaTo().getBareJID();
+		JID owner = getDirectory().getOwner(userId);
+		Set<JID> visited = new LinkedHashSet<JID>();
+
+		if (visitedNodes != null) {
+			visited.addAll(visitedNodes);
+		}
+		visited.add(localNode);
+
+		List<JID> nextNodes = null;
+
+		if (localNode.equals(owner)) {
+			Set<JID> nodes = getDirectory().getLocations(userId);
+
+			if ((visitedNodes == null || visitedNodes.size() <= 1) && !nodes.isEmpty()) {
+				// packet was sent to the owner because of missing location in the cache of the first node
+				Map<String, String> params = new LinkedHashMap<String, String>();
+
+				params.put(USER_ID, userId.toString());
+				params.put(NODES, joinNodes(nodes));
+				getDirectory().addSubscriber(userId, fromNode, System.currentTimeMillis());
+				cluster.sendToNodes(JID_DIR_LOCATION_CMD, params, localNode, fromNode);
+			}
+			nextNodes = withoutNodes(nodes, visited, fromNode);
+		} else if (!sessionFound && owner != null && !visited.contains(owner) && !owner.equals(fromNode)) {
+			// location cached by the first node was not valid any more
+			staleRoutes.incrementAndGet();
+			nextNodes = Collections.singletonList(owner);
+		}
+		if (nextNodes == null && !sessionFound) {
+			offlineReturns.incrementAndGet();
+			nextNodes = Collections.singletonList(fromNode);
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Called for packet: {0}, visitedNodes: {1}, next nodes: {2}",
+					new Object[]{packet, visitedNodes, nextNodes});
+		}
+		if (nextNodes == null) {
+			return false;
+		}
+		cluster.sendToNodes(PACKET_FORWARD_CMD, data, packet.getElement(), fromNode, visited,
+							nextNodes.toArray(new JID[nextNodes.size()]));
+		return true;
+	}
+
+	protected JidLocationDirectory getDirectory() {
+		JidLocationDirectory result = directory;
+
+		if (result == null) {
+			synchronized (this) {
+				if (directory == null) {
+					directory = new JidLocationDirectory(virtualNodes, cacheTtl, cacheMaxSize);
+					directory.setNodes(getAllNodes());
+				}
+				result = directory;
+			}
+		}
+
+		return result;
+	}
+
+	private Element createItem(BareJID userId, JID connectionId, String action) {
+		return new Element(ITEM_ELEM, new String[]{JID_ATTR, CONNECTION_ID_ATTR, ACTION_ATTR},
+						   new String[]{userId.toString(), connectionId.toString(), action});
+	}
+
+	/**
+	 * Adds invalidation of cache entries for the user on all nodes which received locations of the user from this node.
+	 *
+	 * @param userId user bare JID, which locations changed
+	 * @param result map of invalidations to send to cluster nodes
+	 */
+	private void collectInvalidations(BareJID userId, Map<JID, Queue<Element>> result) {
+		JID localNode = sm.getComponentId();
+
+		for (JID node : getDirectory().removeSubscribers(userId, System.currentTimeMillis())) {
+			if (node.equals(localNode)) {
+				continue;
+			}
+			result.computeIfAbsent(node, key -> new ArrayDeque<Element>())
+					.offer(new Element(ITEM_ELEM, new String[]{JID_ATTR}, new String[]{userId.toString()}));
+		}
+	}
+
+	private List<JID> getAllNodes() {
+		List<JID> nodes = new ArrayList<JID>(getNodesConnected());
+
+		nodes.add(sm.getComponentId());
+		return nodes;
+	}
+
+	/**
+	 * Returns locations of user sessions known to this node, from the directory if this node is the owner of the user
+	 * JID or from the cache.
+	 *
+	 * @param userId user bare JID
+	 *
+	 * @return set of cluster nodes or <code>null</code> if locations are not known
+	 */
+	private Set<JID> getKnownLocations(BareJID userId) {
+		JidLocationDirectory dir = getDirectory();
+
+		if (sm.getComponentId().equals(dir.getOwner(userId))) {
+			return dir.getLocations(userId);
+		}
+
+		Set<JID> nodes = dir.getCachedLocations(userId, System.currentTimeMillis());
+
+		if (nodes != null) {
+			cacheHits.incrementAndGet();
+		} else {
+			cacheMisses.incrementAndGet();
+		}
+
+		return nodes;
+	}
+
+	private String joinNodes(Set<JID> nodes) {
+		StringBuilder sb = new StringBuilder();
+
+		for (JID node : nodes) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(node);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Updates hash ring after cluster node was connected or disconnected and sends locations of local user sessions to
+	 * the new owners.
+	 */
+	private void nodesChanged() {
+		JidLocationDirectory dir = getDirectory();
+		JidLocationDirectory.HashRing previous = dir.setNodes(getAllNodes());
+		JID localNode = sm.getComponentId();
+		Map<JID, Queue<Element>> updates = new HashMap<JID, Queue<Element>>();
+
+		for (XMPPResourceConnection conn : sm.getXMPPResourceConnections().values()) {
+			try {
+				if (!conn.isAuthorized()) {
+					continue;
+				}
+
+				BareJID userId = conn.getBareJID();
+				JID owner = dir.getOwner(userId);
+
+				if (owner == null || owner.equals(previous.getOwner(userId))) {
+					continue;
+				}
+				if (owner.equals(localNode)) {
+					dir.addLocation(userId, conn.getConnectionId(), localNode);
+				} else {
+					Queue<Element> items = updates.computeIfAbsent(owner, key -> new ArrayDeque<Element>());
+
+					items.offer(createItem(userId, conn.getConnectionId(), ACTION_ADD));
+					if (items.size() >= UPDATE_MAX_BATCH_SIZE) {
+						cluster.sendToNodes(JID_DIR_UPDATE_CMD, null, items, localNode, null, owner);
+						updates.remove(owner);
+					}
+				}
+			} catch (Exception e) {
+				log.log(Level.FINE, "Problem with sending user location for: " + conn, e);
+			}
+		}
+		for (Map.Entry<JID, Queue<Element>> entry : updates.entrySet()) {
+			cluster.sendToNodes(JID_DIR_UPDATE_CMD, null, entry.getValue(), localNode, null, entry.getKey());
+		}
+		dir.retainOwned(localNode);
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Cluster nodes changed to {0}, sent locations to {1} nodes",
+					new Object[]{dir.getRing().getNodes(), updates.size()});
+		}
+	}
+
+	private void updateLocation(BareJID userId, JID connectionId, String action) {
+		JidLocationDirectory dir = getDirectory();
+		JID localNode = sm.getComponentId();
+		JID owner = dir.getOwner(userId);
+
+		if (localNode.equals(owner)) {
+			if (ACTION_ADD.equals(action)) {
+				dir.addLocation(userId, connectionId, localNode);
+			} else {
+				dir.removeLocation(userId, connectionId);
+			}
+
+			Map<JID, Queue<Element>> invalidations = new HashMap<JID, Queue<Element>>();
+
+			collectInvalidations(userId, invalidations);
+			sendInvalidations(invalidations);
+		} else if (owner != null) {
+			Queue<Element> items = new ArrayDeque<Element>(1);
+
+			items.offer(createItem(userId, connectionId, action));
+			cluster.sendToNodes(JID_DIR_UPDATE_CMD, null, items, localNode, null, owner);
+		}
+	}
+
+	private void sendInvalidations(Map<JID, Queue<Element>> items) {
+		JID localNode = sm.getComponentId();
+
+		for (Map.Entry<JID, Queue<Element>> entry : items.entrySet()) {
+			invalidations.addAndGet(entry.getValue().size());
+			cluster.sendToNodes(JID_DIR_INVALIDATE_CMD, null, entry.getValue(), localNode, null, entry.getKey());
+		}
+	}
+
+	private List<JID> withoutNodes(Set<JID> nodes, Set<JID> visited, JID excluded) {
+		List<JID> result = null;
+
+		for (JID node : nodes) {
+			if (node.equals(excluded) || (visited != null && visited.contains(node))) {
+				continue;
+			}
+			if (result == null) {
+				result = new ArrayList<JID>(nodes.size());
+			}
+			result.add(node);
+		}
+
+		return result;
+	}
+
+	private class JidDirectoryInvalidateCommand
+			extends CommandListenerAbstract {
+
+		public JidDirectoryInvalidateCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Called fromNode: {0}, packets: {1}", new Object[]{fromNode, packets});
+			}
+			if (packets == null) {
+				return;
+			}
+
+			JidLocationDirectory dir = getDirectory();
+
+			for (Element item : packets) {
+				dir.invalidateCache(BareJID.bareJIDInstanceNS(item.getAttributeStaticStr(JID_ATTR)));
+			}
+		}
+	}
+
+	private class JidDirectoryLocationCommand
+			extends CommandListenerAbstract {
+
+		public JidDirectoryLocationCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Called fromNode: {0}, data: {1}", new Object[]{fromNode, data});
+			}
+			if (data == null || data.get(USER_ID) == null || data.get(NODES) == null) {
+				return;
+			}
+
+			Set<JID> nodes = new HashSet<JID>();
+
+			for (String node : data.get(NODES).split(",")) {
+				nodes.add(JID.jidInstanceNS(node));
+			}
+			getDirectory().cacheLocations(BareJID.bareJIDInstanceNS(data.get(USER_ID)), nodes,
+										  System.currentTimeMillis());
+		}
+	}
+
+	private class JidDirectoryUpdateCommand
+			extends CommandListenerAbstract {
+
+		public JidDirectoryUpdateCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Called fromNode: {0}, packets: {1}", new Object[]{fromNode, packets});
+			}
+			if (packets == null) {
+				return;
+			}
+
+			JidLocationDirectory dir = getDirectory();
+			Map<JID, Queue<Element>> invalidations = new HashMap<JID, Queue<Element>>();
+
+			for (Element item : packets) {
+				BareJID userId = BareJID.bareJIDInstanceNS(item.getAttributeStaticStr(JID_ATTR));
+				JID connectionId = JID.jidInstanceNS(item.getAttributeStaticStr(CONNECTION_ID_ATTR));
+
+				if (ACTION_REMOVE.equals(item.getAttributeStaticStr(ACTION_ATTR))) {
+					dir.removeLocation(userId, connectionId);
+				} else {
+					dir.addLocation(userId, connectionId, fromNode);
+				}
+				collectInvalidations(userId, invalidations);
+			}
+			sendInvalidations(invalidations);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Partitioned directory of cluster nodes on which users have their sessions.
+ * <br>
+ * Each user bare JID is owned by a single cluster node selected using consistent hashing of the JID over all cluster
+ * nodes, so every node computes the same owner without any communication and only a small part of the directory
+ * changes owner when a node joins or leaves the cluster. Owner keeps locations (connection id and cluster node) of all
+ * sessions of users it owns. Other nodes keep locations received from owners in a local cache, which entries expire
+ * after configured time. Owner remembers which nodes cache locations of its users, so it is able to invalidate their
+ * entries as soon as locations change.
+ * <br>
+ * Hashes are calculated from string representation of JIDs, so they are the same on every cluster node.
+ */
+public class JidLocationDirectory {
+
+	private final ConcurrentHashMap<BareJID, CachedLocation> cache = new ConcurrentHashMap<BareJID, CachedLocation>();
+	private final int cacheMaxSize;
+	private final long cacheTtl;
+	private final ConcurrentHashMap<BareJID, Map<JID, JID>> locations = new ConcurrentHashMap<BareJID, Map<JID, JID>>();
+	// user JID -> {caching node -> expiration time of the cached entry}
+	private final ConcurrentHashMap<BareJID, Map<JID, Long>> subscribers =
+			new ConcurrentHashMap<BareJID, Map<JID, Long>>();
+	private final int virtualNodes;
+	private volatile HashRing ring = new HashRing(Collections.<JID>emptyList(), 1);
+
+	private static int hash(String value) {
+		// String.hashCode() is the same on every JVM, it only needs better distribution of bits
+		int h = value.hashCode();
+
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	/**
+	 * Creates a new directory.
+	 *
+	 * @param virtualNodes number of points on the hash ring for each cluster node
+	 * @param cacheTtl time in milliseconds after which cached locations expire
+	 * @param cacheMaxSize maximal number of cached locations
+	 */
+	public JidLocationDirectory(int virtualNodes, long cacheTtl, int cacheMaxSize) {
+		this.virtualNodes = virtualNodes;
+		this.cacheTtl = cacheTtl;
+		this.cacheMaxSize = cacheMaxSize;
+	}
+
+	/**
+	 * Adds location of the user session to the directory. Should be called only on the owner of the user JID.
+	 *
+	 * @param userId user bare JID
+	 * @param connectionId id of the user connection
+	 * @param node cluster node on which user session exists
+	 */
+	public void addLocation(BareJID userId, JID connectionId, JID node) {
+		locations.compute(userId, (key, current) -> {
+			// maps are never modified after they are stored, so they can be read without locking
+			Map<JID, JID> result = (current == null) ? new HashMap<JID, JID>(4) : new HashMap<JID, JID>(current);
+
+			result.put(connectionId, node);
+			return result;
+		});
+	}
+
+	/**
+	 * Records that locations of the user were sent to the cluster node to be cached. Should be called only on the owner
+	 * of the user JID.
+	 *
+	 * @param userId user bare JID
+	 * @param node cluster node which caches locations
+	 * @param now current time in milliseconds
+	 */
+	public void addSubscriber(BareJID userId, JID node, long now) {
+		subscribers.compute(userId, (key, current) -> {
+			Map<JID, Long> result = (current == null) ? new HashMap<JID, Long>(4) : current;
+
+			result.values().removeIf(expiresAt -> expiresAt <= now);
+			result.put(node, now + cacheTtl);
+			return result;
+		});
+	}
+
+	/**
+	 * Stores locations received from the owner of the user JID in the local cache.
+	 *
+	 * @param userId user bare JID
+	 * @param nodes cluster nodes on which user has sessions
+	 * @param now current time in milliseconds
+	 *
+	 * @return <code>true</code> if locations were cached
+	 */
+	public boolean cacheLocations(BareJID userId, Set<JID> nodes, long now) {
+		if (nodes.isEmpty()) {
+			return false;
+		}
+		if (cache.size() >= cacheMaxSize) {
+			cache.values().removeIf(location -> location.expiresAt <= now);
+			if (cache.size() >= cacheMaxSize) {
+				return false;
+			}
+		}
+		cache.put(userId, new CachedLocation(nodes, now + cacheTtl));
+		return true;
+	}
+
+	/**
+	 * Returns cached locations of user sessions.
+	 *
+	 * @param userId user bare JID
+	 * @param now current time in milliseconds
+	 *
+	 * @return set of cluster nodes or <code>null</code> if there is no valid cache entry
+	 */
+	public Set<JID> getCachedLocations(BareJID userId, long now) {
+		CachedLocation location = cache.get(userId);
+
+		if (location == null) {
+			return null;
+		}
+		if (location.expiresAt <= now) {
+			cache.remove(userId, location);
+			return null;
+		}
+		return location.nodes;
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	/**
+	 * Returns cluster nodes on which user has sessions. Result is complete only on the owner of the user JID.
+	 *
+	 * @param userId user bare JID
+	 *
+	 * @return set of cluster nodes, empty if user has no sessions
+	 */
+	public Set<JID> getLocations(BareJID userId) {
+		Map<JID, JID> userLocations = locations.get(userId);
+
+		if (userLocations == null) {
+			return Collections.emptySet();
+		}
+		if (userLocations.size() == 1) {
+			return Collections.singleton(userLocations.values().iterator().next());
+		}
+		return new HashSet<JID>(userLocations.values());
+	}
+
+	/**
+	 * Returns number of users with sessions kept in this part of the directory.
+	 *
+	 * @return number of users
+	 */
+	public int getLocationsSize() {
+		return locations.size();
+	}
+
+	/**
+	 * Returns cluster node owning the user JID.
+	 *
+	 * @param userId user bare JID
+	 *
+	 * @return cluster node or <code>null</code> if there are no nodes
+	 */
+	public JID getOwner(BareJID userId) {
+		return ring.getOwner(userId);
+	}
+
+	public HashRing getRing() {
+		return ring;
+	}
+
+	public void invalidateCache(BareJID userId) {
+		cache.remove(userId);
+	}
+
+	/**
+	 * Removes and returns cluster nodes which may still cache locations of the user. Should be called on the owner of
+	 * the user JID after locations of the user changed, to invalidate cache entries on returned nodes.
+	 *
+	 * @param userId user bare JID
+	 * @param now current time in milliseconds
+	 *
+	 * @return set of cluster nodes, empty if locations of the user are not cached anywhere
+	 */
+	public Set<JID> removeSubscribers(BareJID userId, long now) {
+		Set<JID> result = new HashSet<JID>();
+
+		subscribers.computeIfPresent(userId, (key, current) -> {
+			current.forEach((node, expiresAt) -> {
+				if (expiresAt > now) {
+					result.add(node);
+				}
+			});
+			return null;
+		});
+		return result;
+	}
+
+	/**
+	 * Removes location of the user session from the directory.
+	 *
+	 * @param userId user bare JID
+	 * @param connectionId id of the user connection
+	 */
+	public void removeLocation(BareJID userId, JID connectionId) {
+		locations.computeIfPresent(userId, (key, current) -> {
+			if (!current.containsKey(connectionId)) {
+				return current;
+			}
+			if (current.size() == 1) {
+				return null;
+			}
+
+			Map<JID, JID> result = new HashMap<JID, JID>(current);
+
+			result.remove(connectionId);
+			return result;
+		});
+	}
+
+	/**
+	 * Removes all locations pointing to the cluster node, from the directory and from the cache.
+	 *
+	 * @param node cluster node which was disconnected
+	 */
+	public void removeNode(JID node) {
+		for (BareJID userId : locations.keySet()) {
+			locations.computeIfPresent(userId, (key, current) -> {
+				if (!current.containsValue(node)) {
+					return current;
+				}
+
+				Map<JID, JID> result = new HashMap<JID, JID>(current);
+
+				result.values().removeIf(node::equals);
+				return result.isEmpty() ? null : result;
+			});
+		}
+		cache.values().removeIf(location -> location.nodes.contains(node));
+		for (BareJID userId : subscribers.keySet()) {
+			subscribers.computeIfPresent(userId, (key, current) -> {
+				current.remove(node);
+				return current.isEmpty() ? null : current;
+			});
+		}
+	}
+
+	/**
+	 * Removes locations of users, which are not owned by the cluster node, after the set of cluster nodes changed.
+	 *
+	 * @param node local cluster node
+	 */
+	public void retainOwned(JID node) {
+		locations.keySet().removeIf(userId -> !node.equals(ring.getOwner(userId)));
+		subscribers.keySet().removeIf(userId -> !node.equals(ring.getOwner(userId)));
+	}
+
+	/**
+	 * Sets cluster nodes over which user JIDs are distributed.
+	 *
+	 * @param nodes all cluster nodes including the local one
+	 *
+	 * @return previous hash ring
+	 */
+	public HashRing setNodes(Collection<JID> nodes) {
+		HashRing previous = ring;
+
+		ring = new HashRing(nodes, virtualNodes);
+		return previous;
+	}
+
+	/**
+	 * Immutable consistent hashing ring of cluster nodes.
+	 */
+	public static class HashRing {
+
+		private final Set<JID> nodes;
+		private final NavigableMap<Integer, JID> points = new TreeMap<Integer, JID>();
+
+		private HashRing(Collection<JID> nodes, int virtualNodes) {
+			this.nodes = Collections.unmodifiableSet(new HashSet<JID>(nodes));
+			for (JID node : this.nodes) {
+				String nodeStr = node.toString();
+
+				for (int i = 0; i < virtualNodes; i++) {
+					int point = hash(nodeStr + "#" + i);
+					JID current = points.get(point);
+
+					// on collision the same node must win on every cluster node
+					if (current == null || current.toString().compareTo(nodeStr) > 0) {
+						points.put(point, node);
+					}
+				}
+			}
+		}
+
+		public Set<JID> getNodes() {
+			return nodes;
+		}
+
+		public JID getOwner(BareJID userId) {
+			if (points.isEmpty()) {
+				return null;
+			}
+
+			Map.Entry<Integer, JID> entry = points.ceilingEntry(hash(userId.toString()));
+
+			return (entry != null) ? entry.getValue() : points.firstEntry().getValue();
+		}
+	}
+
+	private static class CachedLocation {
+
+		private final long expiresAt;
+		private final Set<JID> nodes;
+
+		private CachedLocation(Set<JID> nodes, long expiresAt) {
+			this.nodes = nodes;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -18,6 +18,7 @@
 package tigase.db;
 
 import tigase.auth.credentials.Credentials;
+import tigase.auth.impl.ScramCallbackHandler;
 import tigase.db.beans.AuthRepositoryMDPoolBean;
 import tigase.db.beans.MDPoolBeanWithStatistics;
 import tigase.eventbus.EventBus;
@@ -221,6 +222,7 @@ public abstract class AuthRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeCredential(user, username);
+			ScramCallbackHandler.invalidatePlainCredentials(user);
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -233,6 +235,7 @@ public abstract class AuthRepositoryMDImpl
 
 		if (repo != null) {
 			repo.removeUser(user);
+			ScramCallbackHandler.invalidatePlainCredentials(user);
 
 			eventBus.fire(new UserRepository.UserRemovedEvent(user));
 		} else {
@@ -271,6 +274,7 @@ public abstract class AuthRepositoryMDImpl
 
 		if (repo != null) {
 			repo.updateCredential(user, username, password);
+			ScramCallbackHandler.invalidatePlainCredentials(user);
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
@@ -283,6 +287,7 @@ public abstract class AuthRepositoryMDImpl
 
 		if (repo != null) {
 			repo.updatePassword(user, password);
+			ScramCallbackHandler.invalidatePlainCredentials(user);
 		} else {
 			log.log(Level.WARNING,
 					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
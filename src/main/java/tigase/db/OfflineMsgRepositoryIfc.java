@@ -34,6 +34,22 @@ import java.util.Queue;
 public interface OfflineMsgRepositoryIfc
 		extends Repository {
 
+	/**
+	 * Removes payloads of the page loaded by {@link #loadMessagesPage(XMPPResourceConnection, long, int, Queue)} for
+	 * the given user's {@link JID}, after they were delivered. Default implementation does nothing as payloads are
+	 * removed when they are loaded.
+	 *
+	 * @param session user session which keeps all the user session data and also gives an access to the user's
+	 * repository data.
+	 * @param afterId id of the last payload of the previous page, payloads with greater ids are removed
+	 * @param lastId id of the last payload of the page
+	 *
+	 * @throws UserNotFoundException
+	 */
+	default void deleteMessagesPage(XMPPResourceConnection session, long afterId, long lastId)
+			throws UserNotFoundException {
+	}
+
 	/**
 	 * Loads head of the payloads queue which holds items that would be expired after stated time with an option to
 	 * delete them from repository after being retrieved. This is blocking method, which means if there is not data to
@@ -62,6 +78,35 @@ public interface OfflineMsgRepositoryIfc
 	 */
 	Queue<Element> loadMessagesToJID(XMPPResourceConnection session, boolean delete) throws UserNotFoundException;
 
+	/**
+	 * Loads a page of payloads for the given user's {@link JID} from repository, in the order in which they were
+	 * stored. Payloads are not removed, they should be removed with {@link #deleteMessagesPage(XMPPResourceConnection,
+	 * long, long)} after they were delivered.
+	 * <br>
+	 * Default implementation does not support paging and loads and removes all payloads at once.
+	 *
+	 * @param session user session which keeps all the user session data and also gives an access to the user's
+	 * repository data.
+	 * @param afterId id of the last payload of the previous page or {@code 0} to load the first page
+	 * @param limit maximal number of payloads to load
+	 * @param result queue to which loaded payloads are added
+	 *
+	 * @return id of the last loaded payload or {@code -1} if there is nothing more to load or remove
+	 *
+	 * @throws UserNotFoundException
+	 */
+	default long loadMessagesPage(XMPPResourceConnection session, long afterId, int limit, Queue<Element> result)
+			throws UserNotFoundException {
+		if (afterId == 0) {
+			Queue<Element> elems = loadMessagesToJID(session, true);
+
+			if (elems != null) {
+				result.addAll(elems);
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Saves the massage to the repository
 	 *
@@ -20,7 +20,9 @@ package tigase.db;
 import tigase.annotations.TigaseDeprecated;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <code>UserRepository</code> interface defines all functionalities required to store user data. It contains adding,
@@ -142,6 +144,40 @@ public interface UserRepository
 	 */
 	String[] getDataList(BareJID user, String subnode, String key) throws UserNotFoundException, TigaseDBException;
 
+	/**
+	 * <code>getDataMap</code> method returns all keys stored in given subnode with values associated with them. It
+	 * allows to load many entries stored under separate keys at once. Default implementation retrieves each value
+	 * separately, so repositories should override it if they are able to retrieve all values with a single request.
+	 *
+	 * @param user a <code>BareJID</code> value of user ID for which data must be retrieved. User ID consists of user
+	 * name and domain name.
+	 * @param subnode a <code>String</code> value is a node path where data is stored. Node path has the same form as
+	 * directory path on file system:
+	 * <pre>/root/subnode1/subnode2</pre>.
+	 *
+	 * @return a <code>Map</code> of keys and values found in given subnode, empty if there is no data
+	 *
+	 * @throws UserNotFoundException if user id hasn't been found in repository.
+	 * @throws TigaseDBException if database backend error occurs.
+	 */
+	default Map<String, String> getDataMap(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		Map<String, String> result = new LinkedHashMap<>();
+		String[] keys = getKeys(user, subnode);
+
+		if (keys != null) {
+			for (String key : keys) {
+				String value = getData(user, subnode, key);
+
+				if (value != null) {
+					result.put(key, value);
+				}
+			}
+		}
+
+		return result;
+	}
+
 	/**
 	 * <code>getKeys</code> method returns list of all keys stored in given subnode in user repository. There is a value
 	 * (or list of values) associated with each key. It is up to user (developer) to know what key keeps one value and
@@ -23,6 +23,7 @@ import tigase.eventbus.EventBus;
 import tigase.kernel.beans.Inject;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -131,6 +132,21 @@ public abstract class UserRepositoryMDImpl
 		return null;
 	}
 
+	@Override
+	public Map<String, String> getDataMap(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = getRepo(user.getDomain());
+
+		if (repo != null) {
+			return repo.getDataMap(user, subnode);
+		} else {
+			log.log(Level.WARNING,
+					"Couldn't obtain user repository for domain: " + user.getDomain() + ", not even default one!");
+		}
+
+		return Collections.emptyMap();
+	}
+
 	@Override
 	public String[] getKeys(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
 		UserRepository repo = getRepo(user.getDomain());
@@ -169,6 +169,24 @@ public class UserRepositoryPool
 		return null;
 	}
 
+	@Override
+	public Map<String, String> getDataMap(BareJID user, String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		UserRepository repo = takeRepo();
+
+		if (repo != null) {
+			try {
+				return repo.getDataMap(user, subnode);
+			} finally {
+				addRepo(repo);
+			}
+		} else {
+			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		}
+
+		return Collections.emptyMap();
+	}
+
 	@Override
 	public String[] getKeys(BareJID user, String subnode) throws UserNotFoundException, TigaseDBException {
 		UserRepository repo = takeRepo();
@@ -18,6 +18,7 @@
 package tigase.db.comp;
 
 import tigase.annotations.TigaseDeprecated;
+import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
@@ -42,6 +43,8 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 
 	@ConfigField(desc = "Automatic items load interval", alias = "repo-autoreload-interval")
 	protected long autoReloadInterval = 0;
+	// watermark of the last loaded changes, -1 if nothing was loaded yet
+	protected long changesWatermark = -1;
 	protected Map<String, Item> items = new ConcurrentSkipListMap<String, Item>(String.CASE_INSENSITIVE_ORDER);
 	protected int itemsHash = 0;
 
@@ -226,7 +229,7 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 				Item item = getItemInstance();
 
 				item.initFromPropertyString(it);
-				if (!items.containsKey(item.getKey())) {
+				if (!contains(item.getKey())) {
 					addItem(item);
 					log.log(Level.CONFIG, "Loaded config item: {0}", item);
 				} else {
@@ -241,8 +244,23 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 		return items.values().iterator();
 	}
 
+	/**
+	 * Loads changes made in the storage since the last reload and notifies listeners only about items which were
+	 * added, updated or removed. Repositories supporting it need to implement {@link #loadChanges(long)}.
+	 */
 	@Override
 	public void reload() {
+		RepositoryChanges<Item> changes;
+
+		try {
+			changes = loadChanges(changesWatermark);
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Problem with loading changes of items from the repository", ex);
+			return;
+		}
+		if (changes != null) {
+			applyChanges(changes);
+		}
 	}
 
 	@Override
@@ -309,7 +327,7 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 	@Override
 	public void initialize() {
 		this.initialized = true;
-		if (items.isEmpty()) {
+		if (size() == 0) {
 			String[] itemsStr = getDefaultPropetyItems();
 			if (itemsStr != null) {
 				setItemsOld(itemsStr);
@@ -322,6 +340,36 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 		setAutoReloadInterval(autoReloadInterval);
 	}
 
+	/**
+	 * Applies changes loaded from the storage to the items in memory and notifies listeners.
+	 *
+	 * @param changes changes of items
+	 */
+	protected void applyChanges(RepositoryChanges<Item> changes) {
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Applying changes: {0}", changes);
+		}
+		for (Item item : changes.getChanged()) {
+			addItemNoStore(item);
+		}
+		for (String key : changes.getRemoved()) {
+			removeItemNoStore(key);
+		}
+		changesWatermark = changes.getWatermark();
+	}
+
+	/**
+	 * Loads items changed in the storage since the watermark. If the watermark is <code>-1</code> all items should be
+	 * returned.
+	 *
+	 * @param watermark watermark returned with previously loaded changes
+	 *
+	 * @return changes or <code>null</code> if there are no changes or repository does not support loading them
+	 */
+	protected RepositoryChanges<Item> loadChanges(long watermark) throws TigaseDBException {
+		return null;
+	}
+
 	/**
 	 * Method create instance of items Map. By overriding it it's possible to change implementation and it's settings.
 	 */
@@ -331,6 +379,10 @@ public abstract class ConfigRepository<Item extends RepositoryItem>
 		}
 	}
 
+	protected RepositoryChangeListenerIfc<Item> getRepoChangeListener() {
+		return repoChangeList;
+	}
+
 	protected boolean isInitialized() {
 		return initialized;
 	}
@@ -0,0 +1,92 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.comp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Changes of items of {@link ConfigRepository} made since the given watermark, loaded from the storage by {@link
+ * ConfigRepository#loadChanges(long)}.
+ * <br>
+ * Watermark is a version or a timestamp of the last change known to the repository. Its meaning depends on the
+ * implementation, it is only passed back to the next call of {@link ConfigRepository#loadChanges(long)}.
+ *
+ * @param <Item>
+ */
+public class RepositoryChanges<Item extends RepositoryItem> {
+
+	private final List<Item> changed = new ArrayList<>();
+	private final List<String> removed = new ArrayList<>();
+	private long watermark;
+
+	public RepositoryChanges(long watermark) {
+		this.watermark = watermark;
+	}
+
+	public RepositoryChanges(Collection<Item> changed, Collection<String> removed, long watermark) {
+		this.changed.addAll(changed);
+		this.removed.addAll(removed);
+		this.watermark = watermark;
+	}
+
+	public void addChanged(Item item) {
+		changed.add(item);
+	}
+
+	public void addRemoved(String key) {
+		removed.add(key);
+	}
+
+	/**
+	 * Returns items added or modified since the watermark.
+	 *
+	 * @return list of items
+	 */
+	public List<Item> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Returns keys of items removed since the watermark.
+	 *
+	 * @return list of keys
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	public long getWatermark() {
+		return watermark;
+	}
+
+	public void setWatermark(long watermark) {
+		this.watermark = watermark;
+	}
+
+	public boolean isEmpty() {
+		return changed.isEmpty() && removed.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "RepositoryChanges[watermark=" + watermark + ", changed=" + changed.size() + ", removed=" +
+				removed.size() + "]";
+	}
+}
@@ -55,61 +55,70 @@ public abstract class UserRepoRepository<Item extends RepositoryItem>
 
 	public abstract BareJID getRepoUser();
 
+	public UserRepository getRepo() {
+		return repo;
+	}
+
 	public String getItemsListPKey() {
 		return items_list_pkey;
 	}
 
 	@Override
-	public void reload() {
-		int hashCode = 0;
-		super.reload();
-		try {
+	protected RepositoryChanges<Item> loadChanges(long watermark) throws TigaseDBException {
+		// It is now time to load all Items' settings from the database:
+		if (repo == null) {
+			log.log(Level.SEVERE, "Repository is not initialised - skipping reload");
+			return null;
+		}
 
-			// It is now time to load all Items' settings from the database:
-			if (repo == null) {
-				log.log(Level.SEVERE, "Repository is not initialised - skipping reload");
-				return;
-			}
-			String items_list = repo.getData(getRepoUser(), getItemsListPKey());
+		String items_list = repo.getData(getRepoUser(), getItemsListPKey());
 
-			if (items_list != null) {
-				hashCode = items_list.hashCode();
+		if (items_list == null) {
+			return null;
+		}
 
-				if (hashCode != itemsHash) {
-					Set<String> oldKeys = new HashSet<>(super.items.keySet());
+		// all items are stored in a single value, so its hash is used as the watermark
+		int hashCode = items_list.hashCode();
 
-					if (!items_list.isEmpty()) {
-						DomBuilderHandler domHandler = new DomBuilderHandler();
-						SimpleParser parser = SingletonFactory.getParserInstance();
+		if (hashCode == itemsHash) {
+			return null;
+		}
 
-						parser.parse(domHandler, items_list.toCharArray(), 0, items_list.length());
+		RepositoryChanges<Item> changes = new RepositoryChanges<>(hashCode);
+		Set<String> oldKeys = new HashSet<>(super.items.keySet());
 
-						Queue<Element> elems = domHandler.getParsedElements();
+		if (!items_list.isEmpty()) {
+			DomBuilderHandler domHandler = new DomBuilderHandler();
+			SimpleParser parser = SingletonFactory.getParserInstance();
 
-						if ((elems != null) && (elems.size() > 0)) {
-							for (Element elem : elems) {
-								Item item = getItemInstance();
+			parser.parse(domHandler, items_list.toCharArray(), 0, items_list.length());
 
-								item.initFromElement(elem);
-								addItemNoStore(item);
-								oldKeys.remove(item.getKey());
-							}
-						}
-						log.log(Level.CONFIG, "All loaded items: {0}", items);
-					}
-					itemsHash = hashCode;
+			Queue<Element> elems = domHandler.getParsedElements();
 
-					for (String key : oldKeys) {
-						removeItemNoStore(key);
-					}
-				}
+			if ((elems != null) && (elems.size() > 0)) {
+				for (Element elem : elems) {
+					Item item = getItemInstance();
 
-				if (hashCode != itemsHash) {
+					item.initFromElement(elem);
+					oldKeys.remove(item.getKey());
+
+					// only items which differ from the loaded ones are reported to listeners
+					Item current = super.items.get(item.getKey());
+					if (current == null || !current.toElement().toString().equals(item.toElement().toString())) {
+						changes.addChanged(item);
+					}
 				}
 			}
-		} catch (TigaseDBException ex) {
-			log.log(Level.SEVERE, "Problem with loading items list from the database.", ex);
 		}
+		itemsHash = hashCode;
+		for (String key : oldKeys) {
+			changes.addRemoved(key);
+		}
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Loaded items, changed: {0}, removed: {1}",
+					new Object[]{changes.getChanged().size(), changes.getRemoved().size()});
+		}
+		return changes;
 	}
 
 	public void setRepo(UserRepository userRepository) {
@@ -141,7 +150,12 @@ public abstract class UserRepoRepository<Item extends RepositoryItem>
 				sb.append(item.toElement().toString());
 			}
 			try {
-				repo.setData(getRepoUser(), getItemsListPKey(), sb.toString());
+				String items_list = sb.toString();
+
+				repo.setData(getRepoUser(), getItemsListPKey(), items_list);
+				// items in memory are the same as stored, so there is no need to load them again
+				itemsHash = items_list.hashCode();
+				changesWatermark = itemsHash;
 			} catch (Exception e) {
 				log.log(Level.SEVERE, "Error storing items list in the repository", e);
 			}
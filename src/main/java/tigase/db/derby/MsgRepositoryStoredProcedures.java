@@ -122,6 +122,32 @@ public class MsgRepositoryStoredProcedures {
 		}
 	}
 
+	public static void deleteMessagesRange(String receiver, Long afterId, Long lastId, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
+			PreparedStatement stmt = conn.prepareStatement(
+					"delete from tig_offline_messages" + " where receiver_sha1 = ?" + " and msg_id > ?" +
+							" and msg_id <= ?");
+			stmt.setString(1, receiverSha1);
+			stmt.setLong(2, afterId);
+			stmt.setLong(3, lastId);
+
+			int affectedRows = stmt.executeUpdate();
+
+			Statement stmt1 = conn.createStatement();
+			data[0] = stmt1.executeQuery("select " + affectedRows + " from sysibm.sysdummy1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException(e);
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void deleteMessagesByIds(String receiver, String msgId1, String msgId2, String msgId3, String msgId4,
 										   ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -214,6 +240,29 @@ public class MsgRepositoryStoredProcedures {
 		}
 	}
 
+	public static void getMessagesPage(String receiver, Long afterId, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			String receiverSha1 = Algorithms.hexDigest(receiver.toString(), "", "SHA");
+			PreparedStatement stmt = conn.prepareStatement(
+					"select om.message, om.msg_id" + " from tig_offline_messages om" + " where om.receiver_sha1 = ?" +
+							" and om.msg_id > ?" + " order by om.msg_id");
+			stmt.setString(1, receiverSha1);
+			stmt.setLong(2, afterId);
+			stmt.setMaxRows(limit);
+
+			data[0] = stmt.executeQuery();
+		} catch (NoSuchAlgorithmException e) {
+			throw new SQLException(e);
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getMessagesByIds(String receiver, String msgId1, String msgId2, String msgId3, String msgId4,
 										ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -85,6 +85,7 @@ public class JDBCRepository
 			"insert into " + DEF_PAIRS_TBL + " (nid, uid, pkey, pval) " + " values (?, ?, ?, ?)";
 	private static final String DATA_FOR_NODE_QUERY =
 			"select pval from " + DEF_PAIRS_TBL + " where (nid = ?) AND (pkey = ?)";
+	private static final String DATA_MAP_FOR_NODE_QUERY = "select pkey, pval from " + DEF_PAIRS_TBL + " where (nid = ?)";
 
 	private static final String UPDATE_LAST_LOGIN_QUERY =
 			"update " + DEF_USERS_TBL + " set last_login=? where user_id=?";
@@ -229,6 +230,39 @@ public class JDBCRepository
 		}
 	}
 
+	@Override
+	public Map<String, String> getDataMap(BareJID user_id, final String subnode)
+			throws UserNotFoundException, TigaseDBException {
+		try {
+			long nid = getNodeNID(null, user_id, subnode);
+
+			if (nid > 0) {
+				ResultSet rs = null;
+				Map<String, String> results = new LinkedHashMap<String, String>();
+				PreparedStatement data_map_for_node_st = data_repo.getPreparedStatement(user_id,
+																						 DATA_MAP_FOR_NODE_QUERY);
+
+				synchronized (data_map_for_node_st) {
+					try {
+						data_map_for_node_st.setLong(1, nid);
+						rs = data_map_for_node_st.executeQuery();
+						while (rs.next()) {
+							results.put(rs.getString(1), rs.getString(2));
+						}
+
+						return results;
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+			} else {
+				return Collections.emptyMap();
+			}    // end of if (nid > 0) else
+		} catch (SQLException e) {
+			throw new TigaseDBException("Error getting data for: " + user_id + "/" + subnode, e);
+		}
+	}
+
 	@Override
 	public String[] getKeys(BareJID user_id, final String subnode) throws UserNotFoundException, TigaseDBException {
 
@@ -435,6 +469,7 @@ public class JDBCRepository
 			data_repo.initPreparedStatement(ADD_NODE_QUERY, ADD_NODE_QUERY);
 			data_repo.initPreparedStatement(COUNT_USERS_FOR_DOMAIN_QUERY, COUNT_USERS_FOR_DOMAIN_QUERY);
 			data_repo.initPreparedStatement(DATA_FOR_NODE_QUERY, DATA_FOR_NODE_QUERY);
+			data_repo.initPreparedStatement(DATA_MAP_FOR_NODE_QUERY, DATA_MAP_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(KEYS_FOR_NODE_QUERY, KEYS_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(NODES_FOR_NODE_QUERY, NODES_FOR_NODE_QUERY);
 			data_repo.initPreparedStatement(INSERT_KEY_VAL_QUERY, INSERT_KEY_VAL_QUERY);
@@ -52,4 +52,10 @@ public @interface HandleEvent {
 	}
 
 	Type filter() default Type.all;
+
+	/**
+	 * Handler marked as synchronous is called by the thread firing the event, before it returns from
+	 * <code>fire()</code>. It should be used only for handlers which are fast and never block.
+	 */
+	boolean synchronous() default false;
 }
@@ -27,7 +27,9 @@ import tigase.component.modules.impl.XmppPingModule;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.component.stores.Affiliation;
 import tigase.eventbus.component.stores.AffiliationStore;
+import tigase.eventbus.impl.EventBusImplementation;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
@@ -44,6 +46,9 @@ public class EventBusComponent
 		extends AbstractKernelBasedComponent
 		implements ClusteredComponentIfc {
 
+	@ConfigField(desc = "Mode of dispatching events to local handlers", alias = "dispatch-mode")
+	private EventBusImplementation.DispatchMode dispatchMode = EventBusImplementation.DispatchMode.threadPerHandler;
+
 	public EventBusComponent() {
 	}
 
@@ -62,9 +67,19 @@ public class EventBusComponent
 		return "Distributed EventBus";
 	}
 
+	public EventBusImplementation.DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	public void setDispatchMode(EventBusImplementation.DispatchMode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+		((EventBusImplementation) EventBusFactory.getInstance()).setDispatchMode(dispatchMode);
+	}
+
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
+		((EventBusImplementation) EventBusFactory.getInstance()).getStatistics(getName(), list);
 	}
 
 	@Override
@@ -30,6 +30,7 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.server.Permissions;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -37,7 +38,9 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 
 @Bean(name = EventPublisherModule.ID, active = true)
@@ -46,6 +49,8 @@ public class EventPublisherModule
 		implements Initializable, UnregisterAware {
 
 	public final static String ID = "publisher";
+	@ConfigField(desc = "Send events to cluster nodes in compact binary form", alias = "cluster-compact-encoding")
+	private boolean clusterCompactEncoding = false;
 	@Inject
 	private EventBusComponent component;
 	@Inject(nullAllowed = false, bean = "localEventBus")
@@ -166,9 +171,26 @@ public class EventPublisherModule
 			return;
 		}
 
-		Element eventElement = serializer.serialize(event);
+		if (!clusterCompactEncoding) {
+			publishEvent(packageName, eventName, serializer.serialize(event), subscribers);
+			return;
+		}
 
-		publishEvent(packageName, eventName, eventElement, subscribers);
+		final List<Subscription> clusterSubscribers = new ArrayList<>();
+		final List<Subscription> otherSubscribers = new ArrayList<>();
+		for (Subscription subscriber : subscribers) {
+			if (subscriber.isInClusterSubscription()) {
+				clusterSubscribers.add(subscriber);
+			} else {
+				otherSubscribers.add(subscriber);
+			}
+		}
+		if (!clusterSubscribers.isEmpty()) {
+			publishEvent(packageName, eventName, serializer.serialize(event, true), clusterSubscribers);
+		}
+		if (!otherSubscribers.isEmpty()) {
+			publishEvent(packageName, eventName, serializer.serialize(event), otherSubscribers);
+		}
 	}
 
 	protected Collection<Subscription> getSubscribers(String packageName, String eventName, Object event) {
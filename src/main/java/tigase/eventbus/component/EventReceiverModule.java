@@ -105,7 +105,16 @@ public class EventReceiverModule
 					log.finer("Received event " + eventName + ": " + event);
 				}
 
-				fireEventLocally(eventName, event);
+				Object obj = serializer.deserialize(event);
+
+				// compact form is understood only by cluster nodes, so it is expanded before forwarding
+				Element forwardedEvent = event;
+				if (obj != null && EventBusSerializer.isCompact(event)) {
+					forwardedEvent = serializer.serialize(obj);
+					forwardedEvent.setAttribute("remote", "true");
+				}
+
+				fireEventLocally(eventName, event, obj);
 
 				// forwarding event to _non cluster_ subscribers.
 				final Collection<Subscription> subscribers = subscriptionStore.getSubscribersJIDs(
@@ -117,14 +126,14 @@ public class EventReceiverModule
 						it.remove();
 					}
 				}
-				eventPublisherModule.publishEvent(eventName.getPackage(), eventName.getName(), event, subscribers);
+				eventPublisherModule.publishEvent(eventName.getPackage(), eventName.getName(), forwardedEvent,
+												  subscribers);
 			}
 		}
 
 	}
 
-	private void fireEventLocally(final EventName name, final Element event) {
-		Object obj = serializer.deserialize(event);
+	private void fireEventLocally(final EventName name, final Element event, Object obj) {
 		if (obj == null) {
 			obj = event;
 		} else {
@@ -38,6 +38,7 @@ public abstract class AbstractHandler {
 	}
 	private final String eventName;
 	private final String packageName;
+	private boolean synchronous = false;
 
 	public AbstractHandler(String packageName, String eventName) {
 		this.packageName = packageName;
@@ -56,4 +57,17 @@ public abstract class AbstractHandler {
 
 	public abstract Type getRequiredEventType();
 
+	/**
+	 * Returns <code>true</code> if handler should be called by the thread firing the event.
+	 *
+	 * @return <code>true</code> if handler is synchronous
+	 */
+	public boolean isSynchronous() {
+		return synchronous;
+	}
+
+	public void setSynchronous(boolean synchronous) {
+		this.synchronous = synchronous;
+	}
+
 }
@@ -18,6 +18,7 @@
 package tigase.eventbus.impl;
 
 import tigase.eventbus.*;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 
 import java.util.*;
@@ -25,6 +26,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,6 +35,9 @@ public class EventBusImplementation
 		implements EventBus {
 
 	private static final Logger log = Logger.getLogger(EventBusImplementation.class.getName());
+	private static final AbstractHandler[] NO_HANDLERS = new AbstractHandler[0];
+	private final ConcurrentHashMap<String, EventStatistics> eventsStatistics = new ConcurrentHashMap<>();
+	private final AtomicLong handlersGeneration = new AtomicLong(0);
 	private final EventsNameMap<AbstractHandler> listeners = new EventsNameMap<>();
 	private final ReflectEventListenerHandlerFactory reflectEventListenerFactory = new ReflectEventListenerHandlerFactory();
 	private final ReflectEventRoutedTransientFillerFactory reflectEventRoutedTransientFillerFactory = new ReflectEventRoutedTransientFillerFactory();
@@ -39,12 +45,16 @@ public class EventBusImplementation
 	private final EventsRegistrar registrar = new EventsRegistrar();
 	private final Map<Class<?>, Set<EventRoutedTransientFiller>> routedTransientFillers = new ConcurrentHashMap<>();
 	private final Map<Class<?>, EventRoutingSelector> routingSelectors = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Class<?>, ResolvedHandlers> resolvedHandlersByClass = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ResolvedHandlers> resolvedHandlersByName = new ConcurrentHashMap<>();
 	private final Serializer serializer = new EventBusSerializer();
 	private boolean acceptOnlyRegisteredEvents = false;
+	private DispatchMode dispatchMode = DispatchMode.threadPerHandler;
 	private Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
 
 	public void addHandler(AbstractHandler listenerHandler) {
 		listeners.put(listenerHandler.getPackageName(), listenerHandler.getEventName(), listenerHandler);
+		invalidateResolvedHandlers();
 	}
 
 	public <T> void addListener(Class<T> eventClass, tigase.eventbus.EventListener<T> listener) {
@@ -88,20 +98,30 @@ public class EventBusImplementation
 
 	public void fire(Object event, Object source, boolean remotelyGeneratedEvent) {
 		try {
-			HashSet<AbstractHandler> listeners;
+			final long fireTime = System.nanoTime();
+			final String eventFullName;
+			final AbstractHandler[] handlers;
 			if (event instanceof Element) {
-				String eventFullName = ((Element) event).getName();
-				int i = eventFullName.lastIndexOf(".");
-				final String packageName = i >= 0 ? eventFullName.substring(0, i) : "";
-				final String eventName = eventFullName.substring(i + 1);
+				eventFullName = ((Element) event).getName();
 				checkIfEventIsRegistered(eventFullName);
-				listeners = getListenersForEvent(packageName, eventName);
+				handlers = getResolvedHandlers(eventFullName);
 			} else {
-				checkIfEventIsRegistered(event.getClass().getName());
-				listeners = getListenersForEvent(event.getClass());
+				eventFullName = event.getClass().getName();
+				checkIfEventIsRegistered(eventFullName);
+				handlers = getResolvedHandlers(event.getClass());
+			}
+
+			EventStatistics statistics = eventsStatistics.get(eventFullName);
+			if (statistics == null) {
+				statistics = eventsStatistics.computeIfAbsent(eventFullName, name -> new EventStatistics());
 			}
+			statistics.fired.increment();
 
-			doFireThreadPerHandler(event, source, remotelyGeneratedEvent, listeners);
+			if (dispatchMode == DispatchMode.taskPerEvent) {
+				doFireTaskPerEvent(event, source, remotelyGeneratedEvent, handlers, statistics, fireTime);
+			} else {
+				doFireThreadPerHandler(event, source, remotelyGeneratedEvent, handlers, statistics, fireTime);
+			}
 		} catch (Exception e) {
 			log.log(Level.WARNING, "Problem on firing event", e);
 		}
@@ -143,6 +163,26 @@ public class EventBusImplementation
 		return handler;
 	}
 
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	public void setDispatchMode(DispatchMode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+	}
+
+	/**
+	 * Returns number of times event with the name was fired.
+	 *
+	 * @param eventFullName full name of event (class name or name of element)
+	 *
+	 * @return number of fired events
+	 */
+	public long getEventFiredCount(String eventFullName) {
+		EventStatistics statistics = eventsStatistics.get(eventFullName);
+		return statistics == null ? 0 : statistics.fired.sum();
+	}
+
 	public Executor getExecutor() {
 		return executor;
 	}
@@ -159,6 +199,21 @@ public class EventBusImplementation
 		return serializer;
 	}
 
+	public void getStatistics(String compName, StatisticsList list) {
+		long fired = 0;
+		for (EventStatistics statistics : eventsStatistics.values()) {
+			fired += statistics.fired.sum();
+		}
+		list.add(compName, "Fired local events", fired, Level.FINE);
+		if (list.checkLevel(Level.FINER)) {
+			for (Map.Entry<String, EventStatistics> e : eventsStatistics.entrySet()) {
+				list.add(compName, "Fired local events: " + e.getKey(), e.getValue().fired.sum(), Level.FINER);
+				list.add(compName, "Average dispatch latency [us]: " + e.getKey(),
+						 e.getValue().averageDispatchLatency / 1000, Level.FINEST);
+			}
+		}
+	}
+
 	public boolean isAcceptOnlyRegisteredEvents() {
 		return acceptOnlyRegisteredEvents;
 	}
@@ -200,6 +255,7 @@ public class EventBusImplementation
 
 	public void removeHandler(AbstractHandler listenerHandler) {
 		listeners.delete(listenerHandler);
+		invalidateResolvedHandlers();
 	}
 
 	public <T> void removeListener(EventSourceListener<T> listener) {
@@ -273,37 +329,82 @@ public class EventBusImplementation
 		return result;
 	}
 
-	protected void doFireThreadPerHandler(final Object event, final Object source, boolean remotelyGeneratedEvent,
-										  HashSet<AbstractHandler> handlers) {
-		Element eventConverted = null;
+	/**
+	 * Returns handlers of the event class, resolved from handlers registered for the class, its superclasses and its
+	 * interfaces. Result is cached until handlers are added or removed.
+	 */
+	AbstractHandler[] getResolvedHandlers(final Class<?> eventClass) {
+		final long generation = handlersGeneration.get();
+		ResolvedHandlers resolved = resolvedHandlersByClass.get(eventClass);
+		if (resolved == null || resolved.generation != generation) {
+			resolved = new ResolvedHandlers(generation, getListenersForEvent(eventClass));
+			resolvedHandlersByClass.put(eventClass, resolved);
+		}
+		return resolved.handlers;
+	}
+
+	AbstractHandler[] getResolvedHandlers(final String eventFullName) {
+		final long generation = handlersGeneration.get();
+		ResolvedHandlers resolved = resolvedHandlersByName.get(eventFullName);
+		if (resolved == null || resolved.generation != generation) {
+			int i = eventFullName.lastIndexOf(".");
+			final String packageName = i >= 0 ? eventFullName.substring(0, i) : "";
+			final String eventName = eventFullName.substring(i + 1);
+			resolved = new ResolvedHandlers(generation, getListenersForEvent(packageName, eventName));
+			resolvedHandlersByName.put(eventFullName, resolved);
+		}
+		return resolved.handlers;
+	}
+
+	/**
+	 * Dispatches event to all handlers using a single task of the executor. Synchronous handlers are called by the
+	 * current thread.
+	 */
+	protected void doFireTaskPerEvent(final Object event, final Object source, boolean remotelyGeneratedEvent,
+									  AbstractHandler[] handlers, EventStatistics statistics, long fireTime) {
+		final Element[] eventConverted = new Element[1];
+		boolean asynchronous = false;
 		for (AbstractHandler listenerHandler : handlers) {
-			Object eventObject;
-
-			if (listenerHandler.getRequiredEventType() == AbstractListenerHandler.Type.asIs) {
-				eventObject = event;
-			} else if (listenerHandler.getRequiredEventType() == AbstractListenerHandler.Type.element &&
-					!(event instanceof Element)) {
-				if (eventConverted == null) {
-					eventConverted = serializer.serialize(event);
-				}
-				eventObject = eventConverted;
-			} else if (listenerHandler.getRequiredEventType() != AbstractListenerHandler.Type.element &&
-					event instanceof Element) {
-				continue;
+			if (listenerHandler.isSynchronous()) {
+				dispatch(listenerHandler, event, eventConverted, source, remotelyGeneratedEvent, statistics, fireTime);
 			} else {
-				eventObject = event;
+				asynchronous = true;
 			}
+		}
+		if (!asynchronous) {
+			return;
+		}
 
-			Runnable task = () -> {
-				try {
-					listenerHandler.dispatch(eventObject, source, remotelyGeneratedEvent);
-				} catch (Throwable e) {
-					log.log(Level.WARNING,
-							"Exception during execution of event: " + event.getClass().getCanonicalName(), e);
+		executor.execute(() -> {
+			for (AbstractHandler listenerHandler : handlers) {
+				if (!listenerHandler.isSynchronous()) {
+					dispatch(listenerHandler, event, eventConverted, source, remotelyGeneratedEvent, statistics,
+							 fireTime);
 				}
-			};
+			}
+		});
+	}
+
+	/**
+	 * Dispatches event to each handler using separate task of the executor. Synchronous handlers are called by the
+	 * current thread.
+	 */
+	protected void doFireThreadPerHandler(final Object event, final Object source, boolean remotelyGeneratedEvent,
+										  AbstractHandler[] handlers, EventStatistics statistics, long fireTime) {
+		final Element[] eventConverted = new Element[1];
+		for (AbstractHandler listenerHandler : handlers) {
+			Object eventObject = getEventObject(listenerHandler, event, eventConverted);
+			if (eventObject == null) {
+				continue;
+			}
 
-			executor.execute(task);
+			if (listenerHandler.isSynchronous()) {
+				dispatch(listenerHandler, eventObject, source, remotelyGeneratedEvent, statistics, fireTime);
+			} else {
+				executor.execute(
+						() -> dispatch(listenerHandler, eventObject, source, remotelyGeneratedEvent, statistics,
+									   fireTime));
+			}
 		}
 	}
 
@@ -317,6 +418,28 @@ public class EventBusImplementation
 		}
 	}
 
+	private void dispatch(AbstractHandler listenerHandler, Object event, Element[] eventConverted, Object source,
+						  boolean remotelyGeneratedEvent, EventStatistics statistics, long fireTime) {
+		Object eventObject = getEventObject(listenerHandler, event, eventConverted);
+		if (eventObject != null) {
+			dispatch(listenerHandler, eventObject, source, remotelyGeneratedEvent, statistics, fireTime);
+		}
+	}
+
+	private void dispatch(AbstractHandler listenerHandler, Object eventObject, Object source,
+						  boolean remotelyGeneratedEvent, EventStatistics statistics, long fireTime) {
+		long latency = System.nanoTime() - fireTime;
+		if (latency > 0) {
+			statistics.averageDispatchLatency = (statistics.averageDispatchLatency + latency) / 2;
+		}
+		try {
+			listenerHandler.dispatch(eventObject, source, remotelyGeneratedEvent);
+		} catch (Throwable e) {
+			log.log(Level.WARNING, "Exception during execution of event: " + eventObject.getClass().getCanonicalName(),
+					e);
+		}
+	}
+
 	private void fillListenersForEvent(HashSet<AbstractHandler> result, Class<?> cls) {
 		final String packageName = cls.getPackage().getName();
 		final String eventName = cls.getSimpleName();
@@ -325,6 +448,32 @@ public class EventBusImplementation
 		result.addAll(listeners.get(packageName, null));
 	}
 
+	/**
+	 * Returns event in a form required by the handler or <code>null</code> if handler does not accept the event.
+	 */
+	private Object getEventObject(AbstractHandler listenerHandler, Object event, Element[] eventConverted) {
+		if (listenerHandler.getRequiredEventType() == AbstractListenerHandler.Type.asIs) {
+			return event;
+		} else if (listenerHandler.getRequiredEventType() == AbstractListenerHandler.Type.element &&
+				!(event instanceof Element)) {
+			if (eventConverted[0] == null) {
+				eventConverted[0] = serializer.serialize(event);
+			}
+			return eventConverted[0];
+		} else if (listenerHandler.getRequiredEventType() != AbstractListenerHandler.Type.element &&
+				event instanceof Element) {
+			return null;
+		} else {
+			return event;
+		}
+	}
+
+	private void invalidateResolvedHandlers() {
+		handlersGeneration.incrementAndGet();
+		resolvedHandlersByClass.clear();
+		resolvedHandlersByName.clear();
+	}
+
 	private void fireListenerAddedEvent(String packageName, String eventName) {
 		ListenerAddedEvent event = new ListenerAddedEvent();
 		event.setEventName(eventName);
@@ -333,10 +482,31 @@ public class EventBusImplementation
 		fire(event);
 	}
 
+	/**
+	 * Defines how events are dispatched to handlers.
+	 */
+	public enum DispatchMode {
+		/**
+		 * Each handler is called by a separate task of the executor.
+		 */
+		threadPerHandler,
+		/**
+		 * All handlers of the event are called one after another by a single task of the executor.
+		 */
+		taskPerEvent
+	}
+
 	public interface InternalEventbusEvent {
 
 	}
 
+	protected static class EventStatistics {
+
+		private final LongAdder fired = new LongAdder();
+		private volatile long averageDispatchLatency = 0;
+
+	}
+
 	public static class ListenerAddedEvent
 			implements InternalEventbusEvent {
 
@@ -382,4 +552,15 @@ public class EventBusImplementation
 			this.packageName = packageName;
 		}
 	}
+
+	private static class ResolvedHandlers {
+
+		private final long generation;
+		private final AbstractHandler[] handlers;
+
+		private ResolvedHandlers(long generation, Collection<AbstractHandler> handlers) {
+			this.generation = generation;
+			this.handlers = handlers.isEmpty() ? NO_HANDLERS : handlers.toArray(new AbstractHandler[handlers.size()]);
+		}
+	}
 }
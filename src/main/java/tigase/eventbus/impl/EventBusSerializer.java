@@ -20,28 +20,119 @@ package tigase.eventbus.impl;
 import tigase.kernel.BeanUtils;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xml.XMLUtils;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
 
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Serializes events to XML elements used by cluster and external event bus subscribers.
+ * <br>
+ * Accessors of fields of every event class are resolved once, on first use of the class, and kept as {@link
+ * MethodHandle}s together with converter selected for type of the field, so no reflection lookups are done while
+ * events are (de)serialized. Values of fields of common types (strings, numbers, booleans and JIDs) are converted
+ * without {@link TypesConverter}.
+ * <br>
+ * Event may be serialized in compact form, in which values of all fields except fields of {@link Element} type are
+ * written in binary form and stored base64 encoded in <code>compact</code> attribute of the event element. Compact form
+ * is understood only by nodes with this version of serializer, so it should be used only for cluster subscribers.
+ * {@link #deserialize(Element)} accepts both forms.
+ */
 public class EventBusSerializer
 		implements Serializer {
 
+	public static final String COMPACT_ATTR = "compact";
+
+	private static final byte TAG_BOOLEAN = 'Z';
+	private static final byte TAG_INT = 'I';
+	private static final byte TAG_LONG = 'J';
+	private static final byte TAG_STRING = 'S';
+	private static final byte TAG_TEXT = 'T';
 	private static final Logger log = Logger.getLogger(EventBusSerializer.class.getName());
+	private final ConcurrentHashMap<Class<?>, ClassSerializer> serializers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ClassSerializer> serializersByName = new ConcurrentHashMap<>();
 	private TypesConverter typesConverter = new DefaultTypesConverter();
 
+	public static boolean isCompact(Element element) {
+		return element.getAttributeStaticStr(COMPACT_ATTR) != null;
+	}
+
 	public <T> T deserialize(final Element element) {
 		try {
-			final Class<?> cls = Class.forName(element.getName());
-			final Object result = cls.newInstance();
+			ClassSerializer serializer = serializersByName.get(element.getName());
+			if (serializer == null) {
+				serializer = getClassSerializer(Class.forName(element.getName()));
+				serializersByName.putIfAbsent(element.getName(), serializer);
+			}
+			return (T) serializer.deserialize(element);
+		} catch (ClassNotFoundException | IOException | RuntimeException e) {
+			log.log(Level.WARNING, "Error while deserializing", e);
+			return null;
+		}
+	}
+
+	public Element serialize(final Object object) {
+		return serialize(object, false);
+	}
 
-			Field[] fields = BeanUtils.getAllFields(cls);
-			for (final Field f : fields) {
+	/**
+	 * Serializes event to XML element.
+	 *
+	 * @param object event to serialize
+	 * @param compact if <code>true</code> values of fields are written in compact binary form
+	 *
+	 * @return element representing the event
+	 */
+	public Element serialize(final Object object, boolean compact) {
+		ClassSerializer serializer = getClassSerializer(object.getClass());
+		if (compact) {
+			try {
+				return serializer.serializeCompact(object);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Error while serializing to compact form, using XML form", e);
+			}
+		}
+		return serializer.serialize(object);
+	}
+
+	private ClassSerializer getClassSerializer(Class<?> cls) {
+		ClassSerializer serializer = serializers.get(cls);
+		if (serializer == null) {
+			serializer = serializers.computeIfAbsent(cls, ClassSerializer::new);
+		}
+		return serializer;
+	}
+
+	private class ClassSerializer {
+
+		private final Class<?> cls;
+		private final MethodHandle constructor;
+		private final FieldAccessor[] fields;
+		private final ConcurrentHashMap<String, FieldAccessor> fieldsByName = new ConcurrentHashMap<>();
+
+		private ClassSerializer(Class<?> cls) {
+			this.cls = cls;
+			this.constructor = findConstructor(cls);
+
+			List<FieldAccessor> accessors = new ArrayList<>();
+			for (final Field f : BeanUtils.getAllFields(cls)) {
 				if (Modifier.isTransient(f.getModifiers())) {
 					continue;
 				}
@@ -51,73 +142,310 @@ public class EventBusSerializer
 				if (Modifier.isStatic(f.getModifiers())) {
 					continue;
 				}
+				FieldAccessor accessor = new FieldAccessor(f);
+				accessors.add(accessor);
+				fieldsByName.putIfAbsent(f.getName(), accessor);
+			}
+			this.fields = accessors.toArray(new FieldAccessor[accessors.size()]);
+		}
 
-				try {
-					Object value;
-					Element v = element.getChild(f.getName());
-					if (v == null) {
-						continue;
-					}
+		private Object deserialize(Element element) throws IOException {
+			if (constructor == null) {
+				log.log(Level.WARNING, "Error while deserializing, class {0} has no accessible no-arg constructor",
+						cls.getName());
+				return null;
+			}
+
+			final Object result;
+			try {
+				result = constructor.invoke();
+			} catch (Throwable caught) {
+				log.log(Level.WARNING, "Error while deserializing", caught);
+				return null;
+			}
 
-					if (Element.class.isAssignableFrom(f.getType())) {
-						if (v.getChildren().size() > 0) {
-							value = v.getChildren().get(0);
-						} else {
-							value = null;
-						}
+			final String compact = element.getAttributeStaticStr(COMPACT_ATTR);
+			if (compact != null) {
+				readCompact(result, compact);
+			}
+			for (final FieldAccessor f : fields) {
+				if (compact != null && f.kind != Kind.ELEMENT) {
+					continue;
+				}
+				Element v = element.getChild(f.name);
+				if (v == null) {
+					continue;
+				}
+				try {
+					if (f.kind == Kind.ELEMENT) {
+						f.set(result, v.getChildren().size() > 0 ? v.getChildren().get(0) : null);
 					} else {
-						value = typesConverter.convert(XMLUtils.unescape(v.getCData()), f.getType(),
-													   f.getGenericType());
+						f.set(result, f.fromString(XMLUtils.unescape(v.getCData())));
 					}
-					BeanUtils.setValue(result, f, value);
-				} catch (IllegalAccessException | InvocationTargetException caught) {
+				} catch (Throwable caught) {
 					log.log(Level.WARNING, "Error while deserializing", caught);
 				}
 			}
-			return (T) result;
-		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-			log.log(Level.WARNING, "Error while deserializing", e);
-			return null;
+			return result;
 		}
-	}
 
-	public Element serialize(final Object object) {
-		final Class<?> cls = object.getClass();
-		Element e = new Element(cls.getName());
-
-		Field[] fields = BeanUtils.getAllFields(cls);
-		for (final Field f : fields) {
-			if (Modifier.isTransient(f.getModifiers())) {
-				continue;
+		private MethodHandle findConstructor(Class<?> cls) {
+			try {
+				Constructor<?> c = cls.getDeclaredConstructor();
+				c.setAccessible(true);
+				return MethodHandles.lookup().unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+			} catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+				return null;
 			}
-			if (Modifier.isFinal(f.getModifiers())) {
-				continue;
+		}
+
+		private void readCompact(Object result, String compact) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(compact)));
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte tag = in.readByte();
+				Object value;
+				switch (tag) {
+					case TAG_BOOLEAN:
+						value = in.readBoolean();
+						break;
+					case TAG_INT:
+						value = in.readInt();
+						break;
+					case TAG_LONG:
+						value = in.readLong();
+						break;
+					case TAG_STRING:
+					case TAG_TEXT:
+						byte[] data = new byte[in.readInt()];
+						in.readFully(data);
+						value = new String(data, StandardCharsets.UTF_8);
+						break;
+					default:
+						throw new IOException("Unknown type tag " + tag + " of field " + name);
+				}
+				FieldAccessor f = fieldsByName.get(name);
+				if (f == null) {
+					continue;
+				}
+				try {
+					// strings are normalized in the same way as values of XML form
+					f.set(result, (tag == TAG_STRING || tag == TAG_TEXT) ? f.fromString((String) value) : value);
+				} catch (Throwable caught) {
+					log.log(Level.WARNING, "Error while deserializing", caught);
+				}
 			}
-			if (Modifier.isStatic(f.getModifiers())) {
-				continue;
+		}
+
+		private Element serialize(Object object) {
+			Element e = new Element(cls.getName());
+			for (final FieldAccessor f : fields) {
+				try {
+					final Object value = f.get(object);
+					if (value == null) {
+						continue;
+					}
+
+					Element v = new Element(f.name);
+					if (f.kind == Kind.ELEMENT) {
+						v.addChild((Element) value);
+					} else {
+						v.setCData(XMLUtils.escape(f.toString(value)));
+					}
+					e.addChild(v);
+				} catch (Throwable caught) {
+					log.log(Level.WARNING, "Error while serializing", caught);
+				}
 			}
+			return e;
+		}
 
-			try {
-				final Object value = BeanUtils.getValue(object, f);
+		private Element serializeCompact(Object object) throws IOException {
+			Element e = new Element(cls.getName());
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(buf);
+			int count = 0;
 
+			out.writeShort(0);
+			for (final FieldAccessor f : fields) {
+				final Object value;
+				try {
+					value = f.get(object);
+				} catch (Throwable caught) {
+					log.log(Level.WARNING, "Error while serializing", caught);
+					continue;
+				}
 				if (value == null) {
 					continue;
 				}
-
-				Element v = new Element(f.getName());
-				if (Element.class.isAssignableFrom(f.getType())) {
+				if (f.kind == Kind.ELEMENT) {
+					Element v = new Element(f.name);
 					v.addChild((Element) value);
+					e.addChild(v);
+					continue;
+				}
+
+				out.writeUTF(f.name);
+				switch (f.kind) {
+					case BOOLEAN:
+						out.writeByte(TAG_BOOLEAN);
+						out.writeBoolean((Boolean) value);
+						break;
+					case INT:
+						out.writeByte(TAG_INT);
+						out.writeInt((Integer) value);
+						break;
+					case LONG:
+						out.writeByte(TAG_LONG);
+						out.writeLong((Long) value);
+						break;
+					default:
+						byte[] data = f.toString(value).getBytes(StandardCharsets.UTF_8);
+						out.writeByte(f.kind == Kind.STRING ? TAG_STRING : TAG_TEXT);
+						out.writeInt(data.length);
+						out.write(data);
+						break;
+				}
+				count++;
+			}
+			out.flush();
+
+			byte[] data = buf.toByteArray();
+			data[0] = (byte) (count >>> 8);
+			data[1] = (byte) count;
+			e.setAttribute(COMPACT_ATTR, Base64.getEncoder().encodeToString(data));
+			return e;
+		}
+	}
+
+	private class FieldAccessor {
+
+		private final Field field;
+		private final MethodHandle getter;
+		private final Kind kind;
+		private final String name;
+		private final boolean primitive;
+		// null if value has to be set by BeanUtils as there are setters accepting other types
+		private final MethodHandle setter;
+
+		private FieldAccessor(Field field) {
+			this.field = field;
+			this.name = field.getName();
+			this.kind = Kind.of(field.getType());
+			this.primitive = field.getType().isPrimitive();
+
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			final MethodType getterType = MethodType.methodType(Object.class, Object.class);
+			final MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+			try {
+				Method getterMethod = BeanUtils.prepareGetterMethod(field);
+				if (getterMethod != null) {
+					getterMethod.setAccessible(true);
+					this.getter = lookup.unreflect(getterMethod).asType(getterType);
 				} else {
-					String x = typesConverter.toString(value);
-					v.setCData(XMLUtils.escape(x));
+					field.setAccessible(true);
+					this.getter = lookup.unreflectGetter(field).asType(getterType);
+				}
+
+				Method setterMethod = BeanUtils.prepareSetterMethod(field);
+				if (setterMethod != null) {
+					setterMethod.setAccessible(true);
+					this.setter = lookup.unreflect(setterMethod).asType(setterType);
+				} else if (hasNoSetters(field)) {
+					field.setAccessible(true);
+					this.setter = lookup.unreflectSetter(field).asType(setterType);
+				} else {
+					this.setter = null;
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Cannot access field " + field + " of event", e);
+			}
+		}
+
+		private boolean hasNoSetters(Field field) {
+			List<Method> setters = BeanUtils.prepareSetterMethods(field.getDeclaringClass(), field.getName());
+			return setters == null || setters.isEmpty();
+		}
+
+		private Object fromString(String value) {
+			if (value == null || "null".equals(value)) {
+				return null;
+			}
+			// conversions are the same as done by DefaultTypesConverter
+			try {
+				switch (kind) {
+					case STRING:
+						return value.trim();
+					case INT:
+						return Integer.valueOf(value.trim());
+					case LONG:
+						return Long.valueOf(value.trim());
+					case BOOLEAN:
+						String val = value.trim();
+						return val.equalsIgnoreCase("yes") || val.equalsIgnoreCase("true") ||
+								val.equalsIgnoreCase("on") || val.equals("1");
+					case FULL_JID:
+						return JID.jidInstance(value.trim());
+					case BARE_JID:
+						return BareJID.bareJIDInstance(value.trim());
+					default:
+						return typesConverter.convert(value, field.getType(), field.getGenericType());
 				}
-				e.addChild(v);
-			} catch (IllegalAccessException | InvocationTargetException caught) {
-				log.log(Level.WARNING, "Error while serializing", e);
+			} catch (TigaseStringprepException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		private Object get(Object object) throws Throwable {
+			return (Object) getter.invokeExact(object);
+		}
+
+		private void set(Object object, Object value) throws Throwable {
+			if (value == null && primitive) {
+				return;
+			}
+			if (setter != null) {
+				setter.invokeExact(object, value);
+			} else {
+				BeanUtils.setValue(object, field, value);
 			}
 		}
 
-		return e;
+		private String toString(Object value) {
+			return kind == Kind.OTHER ? typesConverter.toString(value) : value.toString();
+		}
+	}
+
+	private enum Kind {
+		STRING,
+		INT,
+		LONG,
+		BOOLEAN,
+		FULL_JID,
+		BARE_JID,
+		ELEMENT,
+		OTHER;
+
+		private static Kind of(Class<?> type) {
+			if (type == String.class) {
+				return STRING;
+			} else if (type == int.class || type == Integer.class) {
+				return INT;
+			} else if (type == long.class || type == Long.class) {
+				return LONG;
+			} else if (type == boolean.class || type == Boolean.class) {
+				return BOOLEAN;
+			} else if (type == JID.class) {
+				return FULL_JID;
+			} else if (type == BareJID.class) {
+				return BARE_JID;
+			} else if (Element.class.isAssignableFrom(type)) {
+				return ELEMENT;
+			} else {
+				return OTHER;
+			}
+		}
 	}
 
 }
@@ -56,6 +56,7 @@ public class ReflectEventListenerHandlerFactory {
 				throw new RegistrationException("Handler method must have exactly one parameter!");
 		}
 
+		handler.setSynchronous(annotation.synchronous());
 		method.setAccessible(true);
 
 		return handler;
@@ -66,6 +66,13 @@ public interface IOInterface {
 
 	int waitingToSendSize();
 
+	/**
+	 * Returns number of bytes waiting to be written to the socket.
+	 *
+	 * @return number of bytes
+	 */
+	long waitingToSendBytes();
+
 	int write(final ByteBuffer buff) throws IOException;
 
 	void setLogId(String logId);
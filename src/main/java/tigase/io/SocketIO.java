@@ -27,6 +27,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +54,7 @@ public class SocketIO
 	private long bytesSent = 0;
 	private SocketChannel channel = null;
 	private Queue<ByteBuffer> dataToSend = null;
+	private final AtomicLong dataToSendBytes = new AtomicLong(0);
 	private String logId = null;
 	private String remoteAddress = null;
 	private long totalBuffOverflow = 0;
@@ -228,6 +230,11 @@ public class SocketIO
 		return isConnected() && (dataToSend.size() > 0);
 	}
 
+	@Override
+	public long waitingToSendBytes() {
+		return dataToSendBytes.get();
+	}
+
 	@Override
 	public int waitingToSendSize() {
 		return dataToSend.size();
@@ -251,7 +258,11 @@ public class SocketIO
 				log.log(Level.FINER, "SOCKET - Writing data, remaining: {0}, {1}",
 						new Object[]{buff.remaining(), toString()});
 			}
-			if (!dataToSend.offer(buff)) {
+			int remaining = buff.remaining();
+
+			if (dataToSend.offer(buff)) {
+				dataToSendBytes.addAndGet(remaining);
+			} else {
 				++buffOverflow;
 				++totalBuffOverflow;
 			}
@@ -277,6 +288,7 @@ public class SocketIO
 				res = channel.write(tmp);
 				if (res > 0) {
 					dataBuffer.position(pos + res);
+					dataToSendBytes.addAndGet(-res);
 				}
 			} finally {
 				IOUtil.returnDirectBuffer(tmp);
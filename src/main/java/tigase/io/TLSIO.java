@@ -207,6 +207,11 @@ public class TLSIO
 		return io.waitingToSend();
 	}
 
+	@Override
+	public long waitingToSendBytes() {
+		return io.waitingToSendBytes();
+	}
+
 	@Override
 	public int waitingToSendSize() {
 		return io.waitingToSendSize();
@@ -158,6 +158,11 @@ public class ZLibIO
 		return io.waitingToSend();
 	}
 
+	@Override
+	public long waitingToSendBytes() {
+		return io.waitingToSendBytes();
+	}
+
 	@Override
 	public int waitingToSendSize() {
 		return io.waitingToSendSize();
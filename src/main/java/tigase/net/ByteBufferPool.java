@@ -0,0 +1,172 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of heap byte buffers shared by many connections, which need a buffer only for a short time (ie. while data read
+ * from the socket is decoded).
+ * <br>
+ * Buffers are grouped by capacity, which is always a power of 2, so buffers requested with similar sizes may be
+ * reused. Number of idle buffers kept in the pool for each capacity is limited, buffers released when the limit is
+ * reached or buffers bigger than maximal pooled capacity are left for the garbage collector.
+ */
+public class ByteBufferPool {
+
+	private static final int MIN_CAPACITY = 512;
+
+	private final AtomicLong allocated = new AtomicLong(0);
+	private final AtomicInteger borrowed = new AtomicInteger(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicInteger idle = new AtomicInteger(0);
+	private final ConcurrentMap<Integer, Bucket> buckets = new ConcurrentHashMap<>();
+	private final int maxIdlePerCapacity;
+	private final int maxPooledCapacity;
+
+	/**
+	 * Returns capacity of a buffer which will be returned for requested size.
+	 *
+	 * @param size minimal requested size
+	 *
+	 * @return capacity of the buffer
+	 */
+	public static int capacityFor(int size) {
+		if (size <= MIN_CAPACITY) {
+			return MIN_CAPACITY;
+		}
+		int capacity = Integer.highestOneBit(size);
+		return capacity == size ? capacity : capacity << 1;
+	}
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param maxIdlePerCapacity maximal number of idle buffers kept for each capacity
+	 * @param maxPooledCapacity maximal capacity of a buffer which may be kept in the pool
+	 */
+	public ByteBufferPool(int maxIdlePerCapacity, int maxPooledCapacity) {
+		this.maxIdlePerCapacity = maxIdlePerCapacity;
+		this.maxPooledCapacity = maxPooledCapacity;
+	}
+
+	/**
+	 * Borrows a cleared buffer with capacity at least of the requested size. Buffer should be returned to the pool with
+	 * {@link #release(ByteBuffer)} when it is no longer needed.
+	 *
+	 * @param size minimal requested size
+	 *
+	 * @return borrowed buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		int capacity = capacityFor(size);
+		ByteBuffer buffer = null;
+
+		borrowed.incrementAndGet();
+		if (capacity <= maxPooledCapacity) {
+			Bucket bucket = buckets.get(capacity);
+
+			if (bucket != null && (buffer = bucket.buffers.poll()) != null) {
+				bucket.size.decrementAndGet();
+				idle.decrementAndGet();
+				hits.incrementAndGet();
+				return buffer;
+			}
+		}
+
+		allocated.incrementAndGet();
+		return ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Returns number of buffers which were allocated, because there was no idle buffer in the pool.
+	 *
+	 * @return number of allocated buffers
+	 */
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * Returns number of buffers which are currently borrowed from the pool.
+	 *
+	 * @return number of borrowed buffers
+	 */
+	public int getBorrowed() {
+		return borrowed.get();
+	}
+
+	/**
+	 * Returns number of requests served with an idle buffer from the pool.
+	 *
+	 * @return number of reused buffers
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns number of idle buffers kept in the pool.
+	 *
+	 * @return number of idle buffers
+	 */
+	public int getIdle() {
+		return idle.get();
+	}
+
+	/**
+	 * Returns buffer borrowed from the pool. Buffer must not be used by the caller after it is released.
+	 *
+	 * @param buffer buffer to release
+	 *
+	 * @return <code>true</code> if buffer was put back to the pool for reuse
+	 */
+	public boolean release(ByteBuffer buffer) {
+		borrowed.decrementAndGet();
+
+		int capacity = buffer.capacity();
+		if (capacity > maxPooledCapacity || capacity != capacityFor(capacity) || buffer.isDirect() ||
+				buffer.isReadOnly()) {
+			return false;
+		}
+
+		Bucket bucket = buckets.computeIfAbsent(capacity, key -> new Bucket());
+		if (bucket.size.incrementAndGet() > maxIdlePerCapacity) {
+			bucket.size.decrementAndGet();
+			return false;
+		}
+
+		buffer.clear();
+		bucket.buffers.offer(buffer);
+		idle.incrementAndGet();
+		return true;
+	}
+
+	private static class Bucket {
+
+		private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger(0);
+
+	}
+
+}
@@ -22,6 +22,7 @@ import tigase.cert.CertificateUtil;
 import tigase.io.*;
 import tigase.stats.StatisticsList;
 import tigase.util.IOListener;
+import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -36,6 +37,7 @@ import java.nio.channels.SocketChannel;
 import java.nio.charset.*;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -84,10 +86,41 @@ public abstract class IOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(IOService.class.getName());
 	private static final long MAX_ALLOWED_EMPTY_CALLS = 1000;
+	/**
+	 * Maximal number of bytes left in <code>socketInput</code> after decoding (ie. a part of TLS record) which are copied
+	 * to the connection carry-over, so the buffer may be returned to the pool.
+	 */
+	private static final int SOCKET_INPUT_MAX_CARRY_OVER = 256;
+	private static final String SOCKET_INPUT_POOL_MAX_IDLE_PROP_KEY = "socket-input-pool-max-idle";
+	private static final String SOCKET_INPUT_POOL_MAX_SIZE_PROP_KEY = "socket-input-pool-max-buffer-size";
+	/**
+	 * Pool of buffers for data read from sockets. Connection borrows a buffer only while it is reading and decoding
+	 * data, so memory used by idle connections is not wasted.
+	 */
+	private static final ByteBufferPool socketInputPool = new ByteBufferPool(
+			Integer.getInteger(SOCKET_INPUT_POOL_MAX_IDLE_PROP_KEY, Runtime.getRuntime().availableProcessors() * 8),
+			Integer.getInteger(SOCKET_INPUT_POOL_MAX_SIZE_PROP_KEY, 1024 * 1024));
+	/**
+	 * Buffers used for decoding characters, kept per thread as they are needed only during a single read call.
+	 */
+	private static final ThreadLocal<CharBuffer> decodeBuffers = ThreadLocal.withInitial(
+			() -> CharBuffer.allocate(2048));
+	/**
+	 * Initial size of buffer used for serializing elements written in batches.
+	 */
+	private static final int WRITE_BUFFER_INITIAL_SIZE = 8 * 1024;
+	/**
+	 * Buffers grown above this size are not reused, so a single burst of data does not keep large buffer per thread.
+	 */
+	private static final int WRITE_BUFFER_MAX_REUSED_SIZE = 256 * 1024;
+	/**
+	 * Buffer used for serializing elements written in batches. Buffer is kept per thread (not per connection) as it is
+	 * needed only during a single write call and number of writing threads is much lower than number of connections.
+	 */
+	private static final ThreadLocal<ByteBuffer> writeBuffers = new ThreadLocal<>();
 
 	private final ReentrantLock readInProgress = new ReentrantLock();
 	private final ReentrantLock writeInProgress = new ReentrantLock();
-	protected CharBuffer cb = CharBuffer.allocate(2048);
 	protected CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
 	protected CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
 	/**
@@ -121,6 +154,10 @@ public abstract class IOService<RefObject>
 	 * <code>socketInput</code> buffer keeps data read from socket.
 	 */
 	private ByteBuffer socketInput = null;
+	/**
+	 * Bytes left in <code>socketInput</code> after the last read, kept while buffer is returned to the pool.
+	 */
+	private byte[] socketInputCarryOver = null;
 	private int socketInputSize = 2048;
 	private boolean socketServiceReady = false;
 	private SSLContextContainerIfc sslContextContainer;
@@ -130,6 +167,15 @@ public abstract class IOService<RefObject>
 
 	private TrustManager[] x509TrustManagers;
 
+	/**
+	 * Returns pool of buffers used for reading data from sockets, shared by all connections.
+	 *
+	 * @return pool of socket input buffers
+	 */
+	public static ByteBufferPool getSocketInputPool() {
+		return socketInputPool;
+	}
+
 	public void accept(final SocketChannel socketChannel) throws IOException {
 		try {
 			if (socketChannel.isConnectionPending()) {
@@ -157,8 +203,6 @@ public abstract class IOService<RefObject>
 			throw e;
 		}
 		socketInputSize = socketIO.getSocketChannel().socket().getReceiveBufferSize();
-		socketInput = ByteBuffer.allocate(socketInputSize);
-		socketInput.order(byteOrder());
 
 		Socket sock = socketIO.getSocketChannel().socket();
 
@@ -185,6 +229,7 @@ public abstract class IOService<RefObject>
 						serviceListener.packetsReady(this);
 					}    // end of if (receivedPackets.size() > 0)
 				} finally {
+					releaseSocketInput(isConnected());
 					readInProgress.unlock();
 					if (!isConnected()) {
 						// added to sooner detect disconnection of peer - ie. client
@@ -215,6 +260,14 @@ public abstract class IOService<RefObject>
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "Socket: {0}, Force stop called...", socketIO);
 		}
+		// if called during read, buffer is released when reading is finished
+		if (!readInProgress.isHeldByCurrentThread() && readInProgress.tryLock()) {
+			try {
+				releaseSocketInput(false);
+			} finally {
+				readInProgress.unlock();
+			}
+		}
 		try {
 			if ((socketIO != null) && socketIO.isConnected()) {
 				synchronized (socketIO) {
@@ -445,6 +498,10 @@ public abstract class IOService<RefObject>
 		return socketIO.waitingToSend();
 	}
 
+	public long waitingToSendBytes() {
+		return (socketIO == null) ? 0 : socketIO.waitingToSendBytes();
+	}
+
 	public int waitingToSendSize() {
 		return socketIO.waitingToSendSize();
 	}
@@ -659,6 +716,8 @@ public abstract class IOService<RefObject>
 			log.log(Level.FINEST, "Socket: " + socketIO, thr);
 		}
 		try {
+			acquireSocketInput();
+
 			ByteBuffer tmpBuffer = socketIO.read(socketInput);
 
 			if (socketIO.bytesRead() > 0) {
@@ -706,19 +765,7 @@ public abstract class IOService<RefObject>
 		// synchronized (socketIO) {
 		try {
 
-			// resizeInputBuffer();
-			// Maybe we can shrink the input buffer??
-			if ((socketInput.capacity() > socketInputSize) && (socketInput.remaining() == socketInput.capacity())) {
-
-				// Yes, looks like we can
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Socket: {0}, Resizing socketInput down to {1} bytes.",
-							new Object[]{socketIO, socketInputSize});
-				}
-				socketInput = ByteBuffer.allocate(socketInputSize);
-				socketInput.order(byteOrder());
-				cb = CharBuffer.allocate(socketInputSize * 4);
-			}
+			acquireSocketInput();
 
 			// if (log.isLoggable(Level.FINEST)) {
 			// log.finer("Before read from socket.");
@@ -776,13 +823,7 @@ public abstract class IOService<RefObject>
 					// log.finer("cb.position()=" + cb.position());
 					// }
 					// tmpBuffer.flip();
-					if (cb.capacity() < tmpBuffer.remaining() * 4) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-						cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-					}
+					CharBuffer cb = getDecodeBuffer(tmpBuffer.remaining());
 
 					CoderResult cr = decoder.decode(tmpBuffer, cb, false);
 
@@ -1002,6 +1043,59 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	/**
+	 * Method serializes all passed elements directly to UTF-8 into a single buffer and writes it to the socket with a
+	 * single call, so in case of TLS or compression the whole batch is encrypted or compressed at once. Serialization
+	 * buffer is reused if it was fully written to the socket.
+	 *
+	 * @param data list of elements to write
+	 */
+	protected void writeElements(final List<Element> data) {
+		if (data == null || data.isEmpty()) {
+			writeData(null);
+			return;
+		}
+
+		writeInProgress.lock();
+		try {
+			ByteBuffer dataBuffer = writeBuffers.get();
+
+			// buffer is removed, so it is not reused if socket keeps it in its own queue of data to send
+			writeBuffers.remove();
+			if (dataBuffer == null) {
+				dataBuffer = ByteBuffer.allocate(WRITE_BUFFER_INITIAL_SIZE);
+			}
+			for (Element element : data) {
+				dataBuffer = UTF8ElementSerializer.serialize(element, dataBuffer);
+			}
+			dataBuffer.flip();
+
+			int length = dataBuffer.remaining();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, Writing batch of {1} items, {2} bytes",
+						new Object[]{socketIO, data.size(), length});
+			}
+			socketIO.write(dataBuffer);
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, wrote: {1}", new Object[]{socketIO, length});
+			}
+			if (!dataBuffer.hasRemaining() && dataBuffer.capacity() <= WRITE_BUFFER_MAX_REUSED_SIZE) {
+				dataBuffer.clear();
+				writeBuffers.set(dataBuffer);
+			}
+			setLastTransferTime();
+			empty_read_call_count = 0;
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data writing exception " + connectionId, e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
 	protected boolean isSocketServiceReady() {
 		return socketServiceReady;
 	}
@@ -1010,12 +1104,82 @@ public abstract class IOService<RefObject>
 		this.socketServiceReady = value;
 	}
 
+	/**
+	 * Returns cleared buffer for characters decoded from <code>size</code> bytes. Buffer is shared by all connections
+	 * handled by the current thread, so it must not be used after data is read from it.
+	 *
+	 * @param size number of bytes to decode
+	 *
+	 * @return character buffer
+	 */
+	protected CharBuffer getDecodeBuffer(int size) {
+		CharBuffer cb = decodeBuffers.get();
+
+		// UTF-8 decoder produces at most one character for each byte
+		if (cb.capacity() < size) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Socket: {0}, resizing character buffer to: {1}", new Object[]{socketIO, size});
+			}
+			cb = CharBuffer.allocate(size);
+			decodeBuffers.set(cb);
+		}
+		cb.clear();
+
+		return cb;
+	}
+
 	protected boolean handleMalformedInput(ByteBuffer buffer, CharBuffer cb) {
 		return false;
 	}
 
 	protected boolean isInputBufferEmpty() {
-		return (socketInput != null) && (socketInput.remaining() == socketInput.capacity());
+		if (socketInput == null) {
+			return socketInputCarryOver == null;
+		}
+		return socketInput.remaining() == socketInput.capacity();
+	}
+
+	private void acquireSocketInput() {
+		if (socketInput != null) {
+			return;
+		}
+		socketInput = socketInputPool.acquire(socketInputSize);
+		socketInput.order(byteOrder());
+		if (socketInputCarryOver != null) {
+			socketInput.put(socketInputCarryOver);
+			socketInputCarryOver = null;
+		}
+	}
+
+	/**
+	 * Returns <code>socketInput</code> buffer to the pool, if all data from it were decoded or if only a few bytes are
+	 * left, which are then moved to the carry-over. Buffer with more data left (ie. a part of a big TLS record) is kept
+	 * until next read.
+	 *
+	 * @param keepData <code>false</code> if data left in the buffer should be discarded, ie. when connection is closed
+	 */
+	private void releaseSocketInput(boolean keepData) {
+		ByteBuffer buffer = socketInput;
+
+		if (buffer == null) {
+			return;
+		}
+
+		boolean empty = buffer.position() == 0 && buffer.limit() == buffer.capacity();
+
+		if (keepData && !empty) {
+			if (buffer.limit() != buffer.capacity() || buffer.position() > SOCKET_INPUT_MAX_CARRY_OVER) {
+				return;
+			}
+			socketInputCarryOver = new byte[buffer.position()];
+			buffer.flip();
+			buffer.get(socketInputCarryOver);
+		} else if (!keepData) {
+			socketInputCarryOver = null;
+		}
+
+		socketInput = null;
+		socketInputPool.release(buffer);
 	}
 
 	private void resizeInputBuffer() throws IOException {
@@ -1038,10 +1202,11 @@ public abstract class IOService<RefObject>
 				log.log(Level.FINE, "Socket: {0}, Resizing socketInput to {1} bytes.", new Object[]{socketIO, newSize});
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(newSize);
+			ByteBuffer b = socketInputPool.acquire(newSize);
 
 			b.order(byteOrder());
 			b.put(socketInput);
+			socketInputPool.release(socketInput);
 			socketInput = b;
 		} else {
 
@@ -0,0 +1,193 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer writing {@link Element} trees as UTF-8 bytes directly to a {@link ByteBuffer}, without creating
+ * intermediate <code>String</code> representation of the whole element and without a separate encoding step.
+ * <br>
+ * Output is the same as bytes of {@link Element#toString()} encoded in UTF-8. Attribute values and character data are
+ * kept by {@link Element} already escaped, so they are written as they are. Elements with mixed content (character
+ * data interleaved with child elements) are written using {@link Element#toString()} as order of text and child
+ * elements is not exposed by {@link Element}.
+ * <br>
+ * Buffers are grown when needed, so each method returns buffer which should be used for further writes.
+ */
+public class UTF8ElementSerializer {
+
+	/**
+	 * Maximal number of bytes which may be needed to encode a single <code>char</code>.
+	 */
+	private static final int MAX_BYTES_PER_CHAR = 3;
+
+	/**
+	 * Writes element serialized as UTF-8 to the buffer.
+	 *
+	 * @param element element to serialize
+	 * @param buffer buffer to write to
+	 *
+	 * @return buffer containing written data, it is a new buffer if passed buffer was too small
+	 */
+	public static ByteBuffer serialize(Element element, ByteBuffer buffer) {
+		List<Element> children = element.getChildren();
+		String cdata = element.getCData();
+		boolean hasChildren = (children != null) && !children.isEmpty();
+		// empty character data is written as by Element#toString(), with a closing tag
+		boolean hasCData = cdata != null;
+
+		if (hasChildren && hasCData) {
+			return write(element.toString(), buffer);
+		}
+
+		String name = element.getName();
+
+		buffer = write('<', buffer);
+		buffer = write(name, buffer);
+
+		Map<String, String> attributes = element.getAttributes();
+
+		if (attributes != null) {
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				buffer = write(' ', buffer);
+				buffer = write(attr.getKey(), buffer);
+				buffer = write('=', buffer);
+				buffer = write('"', buffer);
+				buffer = write(attr.getValue(), buffer);
+				buffer = write('"', buffer);
+			}
+		}
+
+		if (!hasChildren && !hasCData) {
+			buffer = write('/', buffer);
+			return write('>', buffer);
+		}
+
+		buffer = write('>', buffer);
+		if (hasCData) {
+			buffer = write(cdata, buffer);
+		} else {
+			for (Element child : children) {
+				buffer = serialize(child, buffer);
+			}
+		}
+		buffer = write('<', buffer);
+		buffer = write('/', buffer);
+		buffer = write(name, buffer);
+		return write('>', buffer);
+	}
+
+	/**
+	 * Writes string encoded as UTF-8 to the buffer. Unpaired surrogate characters are replaced with <code>?</code>.
+	 *
+	 * @param data string to write
+	 * @param buffer buffer to write to
+	 *
+	 * @return buffer containing written data, it is a new buffer if passed buffer was too small
+	 */
+	public static ByteBuffer write(String data, ByteBuffer buffer) {
+		if (data == null) {
+			return buffer;
+		}
+
+		int length = data.length();
+
+		buffer = ensureCapacity(buffer, length * MAX_BYTES_PER_CHAR);
+		if (!buffer.hasArray()) {
+			for (int i = 0; i < length; i++) {
+				i = putChar(data, i, buffer);
+			}
+			return buffer;
+		}
+
+		byte[] array = buffer.array();
+		int pos = buffer.arrayOffset() + buffer.position();
+		int i = 0;
+
+		// fast path for ASCII, which is most of XMPP traffic
+		for (; i < length; i++) {
+			char c = data.charAt(i);
+
+			if (c >= 0x80) {
+				break;
+			}
+			array[pos++] = (byte) c;
+		}
+		buffer.position(pos - buffer.arrayOffset());
+		for (; i < length; i++) {
+			i = putChar(data, i, buffer);
+		}
+
+		return buffer;
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+		if (buffer.remaining() >= required) {
+			return buffer;
+		}
+
+		ByteBuffer newBuffer = buffer.isDirect()
+							   ? ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + required))
+							   : ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + required));
+
+		buffer.flip();
+		newBuffer.put(buffer);
+		return newBuffer;
+	}
+
+	private static int putChar(String data, int i, ByteBuffer buffer) {
+		char c = data.charAt(i);
+
+		if (c < 0x80) {
+			buffer.put((byte) c);
+		} else if (c < 0x800) {
+			buffer.put((byte) (0xC0 | (c >> 6)));
+			buffer.put((byte) (0x80 | (c & 0x3F)));
+		} else if (Character.isHighSurrogate(c) && (i + 1 < data.length()) &&
+				Character.isLowSurrogate(data.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, data.charAt(++i));
+
+			buffer.put((byte) (0xF0 | (cp >> 18)));
+			buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+			buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+			buffer.put((byte) (0x80 | (cp & 0x3F)));
+		} else if (Character.isSurrogate(c)) {
+			buffer.put((byte) '?');
+		} else {
+			buffer.put((byte) (0xE0 | (c >> 12)));
+			buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+			buffer.put((byte) (0x80 | (c & 0x3F)));
+		}
+
+		return i;
+	}
+
+	private static ByteBuffer write(char c, ByteBuffer buffer) {
+		buffer = ensureCapacity(buffer, 1);
+		buffer.put((byte) c);
+		return buffer;
+	}
+
+	private UTF8ElementSerializer() {
+	}
+}
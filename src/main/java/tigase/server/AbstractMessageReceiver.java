@@ -26,10 +26,12 @@ import tigase.stats.StatisticType;
 import tigase.stats.StatisticsContainer;
 import tigase.stats.StatisticsList;
 import tigase.sys.TigaseRuntime;
+import tigase.util.common.TimingWheel;
 import tigase.util.routing.PatternComparator;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.workqueue.PriorityQueueAbstract;
 import tigase.util.workqueue.PriorityQueueRelaxed;
+import tigase.xmpp.jid.JID;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -99,6 +101,12 @@ public abstract class AbstractMessageReceiver
 
 	public static final String PACKET_DELIVERY_RETRY_COUNT_PROP_KEY = "packet-delivery-retry-count";
 
+	/**
+	 * Configuration property key for setting maximal number of packets which processing thread takes from its queue
+	 * after a single wakeup and processes as a batch. Default value of <code>1</code> disables batching.
+	 */
+	public static final String PROCESSING_BATCH_SIZE_PROP_KEY = "processing-batch-size";
+
 	/**
 	 * Configuration property key for setting number of threads used by component ScheduledExecutorService.
 	 */
@@ -124,6 +132,18 @@ public abstract class AbstractMessageReceiver
 
 	private static final Logger log = Logger.getLogger("tigase.debug.AbstractMessageReceiver");
 
+	/**
+	 * Precision in milliseconds with which timeouts of packets sent by
+	 * {@link #addOutPacketWithTimeout(Packet, ReceiverTimeoutHandler, long, TimeUnit)} are fired.
+	 */
+	private static final long WAITING_TASKS_TICK = 100;
+
+	/**
+	 * Number of buckets of the timing wheel for packets sent with timeout, with default tick it covers 51.2 seconds in
+	 * a single rotation.
+	 */
+	private static final int WAITING_TASKS_WHEEL_SIZE = 512;
+
 	// PriorityQueueAbstract.getPriorityQueue(pr_cache.length, maxQueueSize);
 	@ConfigField(desc = "Incoming filters", alias = INCOMING_FILTERS_PROP_KEY)
 	private final CopyOnWriteArrayList<PacketFilterIfc> incoming_filters = new CopyOnWriteArrayList<>();
@@ -148,7 +168,9 @@ public abstract class AbstractMessageReceiver
 		}
 
 	};
-	private final ConcurrentHashMap<String, PacketReceiverTask> waitingTasks = new ConcurrentHashMap<String, PacketReceiverTask>(
+	private final TimingWheel waitingTasksTimeouts = new TimingWheel(WAITING_TASKS_TICK, TimeUnit.MILLISECONDS,
+																	  WAITING_TASKS_WHEEL_SIZE);
+	private final ConcurrentHashMap<PacketCorrelationKey, PacketReceiverTask> waitingTasks = new ConcurrentHashMap<>(
 			16, 0.75f, 4);
 	protected int maxInQueueSize = MAX_QUEUE_SIZE_PROP_VAL;
 	protected int maxOutQueueSize = MAX_QUEUE_SIZE_PROP_VAL;
@@ -175,6 +197,9 @@ public abstract class AbstractMessageReceiver
 	private long packets_per_second = 0;
 	private MessageReceiver parent = null;
 	private int pptIdx = 0;
+	@ConfigField(desc = "Maximal number of packets taken from the queue by processing thread at once", alias =
+			PROCESSING_BATCH_SIZE_PROP_KEY)
+	private int processingBatchSize = 1;
 	@ConfigField(desc = "Priority queue class", alias = "priority-queue-implementation")
 	private Class<? extends PriorityQueueAbstract> priorityQueueClass = PriorityQueueRelaxed.class;
 	private ScheduledExecutorService receiverScheduler = null;
@@ -405,6 +430,7 @@ public abstract class AbstractMessageReceiver
 			log.log(Level.FINE, "{0} - attempt to add regex routing: {1}", new Object[]{getName(), address});
 		}
 		regexRoutings.add(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		RoutingTable.regexRoutingsChanged();
 		if (log.isLoggable(Level.FINE)) {
 			log.log(Level.FINE, "{0} - success adding regex routing: {1}", new Object[]{getName(), address});
 		}
@@ -526,6 +552,7 @@ public abstract class AbstractMessageReceiver
 	 */
 	public void clearRegexRoutings() {
 		regexRoutings.clear();
+		RoutingTable.regexRoutingsChanged();
 	}
 
 	/**
@@ -687,7 +714,9 @@ public abstract class AbstractMessageReceiver
 	}
 
 	public boolean removeRegexRouting(String address) {
-		return regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		boolean result = regexRoutings.remove(Pattern.compile(address, Pattern.CASE_INSENSITIVE));
+		RoutingTable.regexRoutingsChanged();
+		return result;
 	}
 
 	/**
@@ -755,6 +784,7 @@ public abstract class AbstractMessageReceiver
 		list.add(getName(), "Last minute packets", packets_per_minute, Level.FINE);
 		list.add(getName(), "Last hour packets", packets_per_hour, Level.FINE);
 		list.add(getName(), "Processing threads", processingInThreads(), Level.FINER);
+		list.add(getName(), "Packets awaiting response", waitingTasks.size(), Level.FINER);
 		list.add(getName(), StatisticType.MSG_RECEIVED_OK.getDescription(), statReceivedPacketsOk, Level.FINE);
 		list.add(getName(), StatisticType.MSG_SENT_OK.getDescription(), statSentPacketsOk, Level.FINE);
 		if (list.checkLevel(Level.FINEST)) {
@@ -1149,6 +1179,12 @@ public abstract class AbstractMessageReceiver
 				everySecond();
 			}
 		}, SECOND, SECOND);
+		receiverTasks.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				waitingTasksTimeouts.advance(AbstractMessageReceiver.this::runWaitingTaskTimeout);
+			}
+		}, WAITING_TASKS_TICK, WAITING_TASKS_TICK);
 		receiverTasks.scheduleAtFixedRate(new TimerTask() {
 			@Override
 			public void run() {
@@ -1168,6 +1204,21 @@ public abstract class AbstractMessageReceiver
 		}
 	}
 
+	private void runWaitingTaskTimeout(Runnable task) {
+		// timeout handlers are executed by the scheduler, so the timer thread is not blocked by them
+		ScheduledExecutorService scheduler = receiverScheduler;
+
+		if (scheduler != null) {
+			try {
+				scheduler.execute(task);
+				return;
+			} catch (RejectedExecutionException ex) {
+				log.log(Level.FINEST, "[{0}] scheduler rejected timeout task, running it directly", getName());
+			}
+		}
+		task.run();
+	}
+
 	private void stopThreads() {
 		// stopped = true;
 		try {
@@ -1210,19 +1261,71 @@ public abstract class AbstractMessageReceiver
 		}
 	}
 
+	/**
+	 * Key identifying response to a packet sent with timeout: JID of the sender of the request and ID of the stanza.
+	 * <br>
+	 * Instances used for lookups are mutable and reused by each processing thread, so checking if the incoming packet
+	 * is a response does not allocate any objects.
+	 */
+	private static final class PacketCorrelationKey {
+
+		private int hash;
+		private JID jid;
+		private String stanzaId;
+
+		private PacketCorrelationKey() {
+		}
+
+		private PacketCorrelationKey(JID jid, String stanzaId) {
+			set(jid, stanzaId);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof PacketCorrelationKey)) {
+				return false;
+			}
+
+			PacketCorrelationKey other = (PacketCorrelationKey) obj;
+
+			return hash == other.hash && jid.equals(other.jid) && Objects.equals(stanzaId, other.stanzaId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return jid + ":" + stanzaId;
+		}
+
+		private PacketCorrelationKey set(JID jid, String stanzaId) {
+			this.jid = jid;
+			this.stanzaId = stanzaId;
+			this.hash = 31 * jid.hashCode() + (stanzaId == null ? 0 : stanzaId.hashCode());
+			return this;
+		}
+	}
+
 	private class PacketReceiverTask
-			extends tigase.util.common.TimerTask {
+			implements Runnable {
 
 		private ReceiverTimeoutHandler handler = null;
-		private String id = null;
+		private PacketCorrelationKey id = null;
 		private Packet packet = null;
 		private int retryCount = packetDeliveryRetryCount;
+		private TimingWheel.Timeout timeout = null;
 
 		private PacketReceiverTask(ReceiverTimeoutHandler handler, long delay, TimeUnit unit, Packet packet) {
 			super();
 			this.handler = handler;
 			this.packet = packet;
-			this.id = packet.getFrom().toString() + packet.getStanzaId();
+			this.id = new PacketCorrelationKey(packet.getFrom(), packet.getStanzaId());
 
 			String countStr = packet.getElement().getAttributeStaticStr("retryCount");
 			if (countStr != null) {
@@ -1238,7 +1341,9 @@ public abstract class AbstractMessageReceiver
 							new Object[]{id, retryCount, this.packet});
 				}
 				PacketReceiverTask remove = waitingTasks.remove(id);
-				remove.cancel();
+				if (remove != null) {
+					remove.cancel();
+				}
 				return;
 			}
 
@@ -1251,7 +1356,7 @@ public abstract class AbstractMessageReceiver
 
 			waitingTasks.put(id, this);
 
-			addTimerTask(this, delay, unit);
+			timeout = waitingTasksTimeouts.schedule(this, delay, unit);
 
 			try {
 				this.packet.initVars();
@@ -1265,6 +1370,13 @@ public abstract class AbstractMessageReceiver
 			}
 		}
 
+		public void cancel() {
+			TimingWheel.Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+
 		public void handleResponse(Packet response) {
 			this.cancel();
 
@@ -1279,7 +1391,8 @@ public abstract class AbstractMessageReceiver
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "[{0}] Fired timeout for id: {1}", new Object[]{getName(), id});
 			}
-			waitingTasks.remove(id);
+			// task for the same ID might have been already replaced by a retry, which must not be removed
+			waitingTasks.remove(id, this);
 			handler.timeOutExpired(packet);
 		}
 
@@ -1292,6 +1405,7 @@ public abstract class AbstractMessageReceiver
 	private class QueueListener
 			extends Thread {
 
+		private final PacketCorrelationKey correlationKey = new PacketCorrelationKey();
 		private String compName = null;
 		private long packetCounter = 0;
 		private PriorityQueueAbstract<Packet> queue;
@@ -1312,64 +1426,35 @@ public abstract class AbstractMessageReceiver
 
 			Packet packet = null;
 			Queue<Packet> results = new ArrayDeque<Packet>(2);
+			ArrayDeque<Packet> batch = new ArrayDeque<Packet>(Math.max(processingBatchSize, 1));
 
 			while (!threadStopped) {
 				try {
 
-					// Now process next waiting packet
-					// log.finest("[" + getName() + "] before take... " + type);
-					// packet = queue.take(getName() + ":" + type);
-					packet = queue.take();
-					++packetCounter;
+					// Now process next waiting packets, if processing of the previous batch
+					// was interrupted by an exception we need to finish it first
+					if (batch.isEmpty()) {
+						packetCounter += queue.drainTo(batch, Math.max(processingBatchSize, 1));
+					}
 
-					// if (log.isLoggable(Level.INFO)) {
-					// log.info("[" + getName() + "] packet from " + type + " queue: " +
-					// packet);
-					// }
 					switch (type) {
 						case IN_QUEUE:
 							long startPPT = System.currentTimeMillis();
+							int processed = 0;
 
-							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
-							// packet.getFrom(), getName(), type.name(), null, packet);
-							PacketReceiverTask task = null;
-
-							if (packet.getTo() != null) {
-								String id = packet.getTo().toString() + packet.getStanzaId();
-
-								task = waitingTasks.remove(id);
-							}
-							if (task != null) {
-								task.handleResponse(packet);
-							} else {
-
-								// log.finest("[" + getName() + "]  " +
-								// "No task found for id: " + id);
-								// Maybe this is a command for local processing...
-								boolean processed = false;
-
-								if (packet.isCommand() && (packet.getStanzaTo() != null) &&
-										compName.equals(packet.getStanzaTo().getLocalpart()) &&
-										isLocalDomain(packet.getStanzaTo().getDomain())) {
-									processed = processScriptCommand(packet, results);
-									if (processed) {
-										Packet result = null;
-
-										while ((result = results.poll()) != null) {
-											addOutPacket(result);
-										}
-									}
-								}
-								if (!processed && ((packet = filterPacket(packet, incoming_filters)) != null)) {
-									processPacket(packet);
+							while ((packet = batch.poll()) != null) {
+								if (processInPacket(packet, results)) {
+									++processed;
 								}
+							}
 
+							if (processed > 0) {
 								// It is all concurrent so we have to use a local index variable
 								int idx = pptIdx;
 
 								pptIdx = (pptIdx + 1) % processPacketTimings.length;
 
-								long timing = System.currentTimeMillis() - startPPT;
+								long timing = (System.currentTimeMillis() - startPPT) / processed;
 
 								processPacketTimings[idx] = timing;
 							}
@@ -1377,17 +1462,19 @@ public abstract class AbstractMessageReceiver
 							break;
 
 						case OUT_QUEUE:
-
-							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
-							// packet.getTo(), getName(), type.name(), null, packet);
-							if ((packet = filterPacket(packet, outgoing_filters)) != null) {
-								processOutPacket(packet);
+							while ((packet = batch.poll()) != null) {
+								// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
+								// packet.getTo(), getName(), type.name(), null, packet);
+								if ((packet = filterPacket(packet, outgoing_filters)) != null) {
+									processOutPacket(packet);
+								}
 							}
 
 							break;
 
 						default:
 							log.log(Level.SEVERE, "Unknown queue element type: {0}", type);
+							batch.clear();
 
 							break;
 					}    // end of switch (qel.type)
@@ -1405,6 +1492,50 @@ public abstract class AbstractMessageReceiver
 			}      // end of while (! threadStopped)
 		}
 
+		/**
+		 * Method processes single packet taken from the incoming queue.
+		 *
+		 * @return <code>true</code> if packet was passed for processing, <code>false</code> if it was a response to a
+		 * packet sent with timeout
+		 */
+		private boolean processInPacket(Packet packet, Queue<Packet> results) {
+			// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
+			// packet.getFrom(), getName(), type.name(), null, packet);
+			PacketReceiverTask task = null;
+
+			// most components never send packets with timeout, so lookup is skipped if nothing is awaited
+			if (!waitingTasks.isEmpty() && packet.getTo() != null) {
+				task = waitingTasks.remove(correlationKey.set(packet.getTo(), packet.getStanzaId()));
+			}
+			if (task != null) {
+				task.handleResponse(packet);
+				return false;
+			}
+
+			// log.finest("[" + getName() + "]  " +
+			// "No task found for id: " + id);
+			// Maybe this is a command for local processing...
+			boolean processed = false;
+
+			if (packet.isCommand() && (packet.getStanzaTo() != null) &&
+					compName.equals(packet.getStanzaTo().getLocalpart()) &&
+					isLocalDomain(packet.getStanzaTo().getDomain())) {
+				processed = processScriptCommand(packet, results);
+				if (processed) {
+					Packet result = null;
+
+					while ((result = results.poll()) != null) {
+						addOutPacket(result);
+					}
+				}
+			}
+			if (!processed && ((packet = filterPacket(packet, incoming_filters)) != null)) {
+				processPacket(packet);
+			}
+
+			return true;
+		}
+
 		@Override
 		public String toString() {
 			return String.valueOf(packetCounter);
@@ -152,6 +152,12 @@ public enum Command {
 	 */
 	STREAM_MOVED(Priority.NORMAL),
 
+	/**
+	 * Command sent from a connection manager to the session manager when the client connection becomes congested, as
+	 * the client does not read data sent to it, or when it is no longer congested.
+	 */
+	STREAM_BACKPRESSURE(Priority.SYSTEM),
+
 	/**
 	 * Identifies all other, not predefined commands.
 	 */
@@ -33,6 +33,7 @@ import tigase.util.common.TimerTask;
 import tigase.util.repository.DataTypes;
 import tigase.xml.Element;
 import tigase.xmpp.StreamError;
+import tigase.xmpp.WriteBackpressure;
 import tigase.xmpp.XMPPDomBuilderHandler;
 import tigase.xmpp.XMPPIOService;
 import tigase.xmpp.XMPPIOServiceListener;
@@ -162,6 +163,14 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	protected WATCHDOG_PING_TYPE watchdogPingType = WATCHDOG_PING_TYPE.WHITESPACE;
 	@ConfigField(desc = "Watchdog timeout", alias = "watchdog-timeout")
 	protected long watchdogTimeout = 29 * MINUTE; // 1 740 000
+	@ConfigField(desc = "Bytes waiting to be sent when connection is congested", alias = "write-queue-high-bytes")
+	protected long writeQueueHighBytes = 0;
+	@ConfigField(desc = "Packets waiting to be sent when connection is congested", alias = "write-queue-high-packets")
+	protected int writeQueueHighPackets = 0;
+	@ConfigField(desc = "Bytes waiting to be sent when congestion ends", alias = "write-queue-low-bytes")
+	protected long writeQueueLowBytes = 0;
+	@ConfigField(desc = "Packets waiting to be sent when congestion ends", alias = "write-queue-low-packets")
+	protected int writeQueueLowPackets = 0;
 	private long bytesReceived = 0;
 	private long bytesSent = 0;
 	@Inject
@@ -198,6 +207,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	private long watchdogStopped = 0;
 	private long watchdogTests = 0;
 	private boolean white_char_ack = WHITE_CHAR_ACK_PROP_VAL;
+	private WriteBackpressure writeBackpressure = null;
 
 	@ConfigField(desc = "Action taken if XMPP limit is exceeded")
 	private LIMIT_ACTION xmppLimitAction = LIMIT_ACTION.DISCONNECT;
@@ -206,6 +216,11 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	@Override
 	public void beanConfigurationChanged(Collection<String> changedFields) {
 		super.beanConfigurationChanged(changedFields);
+		if (writeBackpressure == null || changedFields.stream().anyMatch(field -> field.startsWith("writeQueue"))) {
+			// new limits are used only by new connections
+			writeBackpressure = new WriteBackpressure(writeQueueHighPackets, writeQueueLowPackets, writeQueueHighBytes,
+													  writeQueueLowBytes);
+		}
 	}
 
 	public boolean checkTrafficLimits(IO serv) {
@@ -468,6 +483,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 			if (result) {
 				--services_size;
+				service.setWriteBackpressure(null);
 
 				Queue<Packet> undeliveredPackets = service.getWaitingPackets();
 				Packet p = null;
@@ -604,6 +620,22 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		return false;
 	}
 
+	/**
+	 * Method called when connection becomes congested, because too much data is waiting to be sent over it, or when it
+	 * is no longer congested. Reading from the connection is paused while it is congested.
+	 *
+	 * @param serv connection
+	 * @param congested <code>true</code> if connection is congested
+	 */
+	@Override
+	public void writeBackpressureChanged(IO serv, boolean congested) {
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "[[{0}]] Connection {1}: {2}, waiting packets: {3}, waiting bytes: {4}",
+					new Object[]{getName(), congested ? "congested" : "no longer congested", serv,
+								 serv.getWaitingPacketsSize(), serv.waitingToSendBytes()});
+		}
+	}
+
 	@Override
 	public String xmppStreamError(IO serv, List<Element> err_el) {
 		StreamError streamError = StreamError.getByCondition(err_el.get(0).getName());
@@ -629,9 +661,19 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Bytes sent", bytesSent, Level.FINE);
 		list.add(getName(), "Bytes received", bytesReceived, Level.FINE);
 		list.add(getName(), "Socket overflow", socketOverflow, Level.FINE);
+
+		ByteBufferPool socketInputPool = IOService.getSocketInputPool();
+
+		list.add(getName(), "Socket input buffers borrowed", socketInputPool.getBorrowed(), Level.FINE);
+		list.add(getName(), "Socket input buffers idle", socketInputPool.getIdle(), Level.FINE);
+		list.add(getName(), "Socket input buffers allocated", socketInputPool.getAllocated(), Level.FINER);
+		list.add(getName(), "Socket input buffers reused", socketInputPool.getHits(), Level.FINER);
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		if (writeBackpressure != null && writeBackpressure.isEnabled()) {
+			writeBackpressure.getStatistics(getName(), list);
+		}
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
@@ -1169,6 +1211,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			IO serv = getXMPPIOServiceInstance();
 			serv.setSslContextContainer(sslContextContainer);
 			serv.setBufferLimit(net_buffer_limit);
+			serv.setWriteBackpressure(writeBackpressure);
 			serv.setCertificateContainer(certificateContainer);
 
 			((XMPPDomBuilderHandler) serv.getSessionData().get(DOM_HANDLER)).setElementsLimit(elements_number_limit);
@@ -20,6 +20,7 @@ package tigase.server;
 import tigase.conf.ConfigurationException;
 import tigase.conf.ConfiguratorAbstract;
 import tigase.conf.MonitoringBeanIfc;
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.disco.XMPPService;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
@@ -31,10 +32,13 @@ import tigase.stats.StatisticsList;
 import tigase.sys.TigaseRuntime;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.updater.UpdatesChecker;
+import tigase.vhosts.VHostItem;
+import tigase.vhosts.VHostManagerIfc;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.StanzaType;
+import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import javax.script.Bindings;
@@ -95,6 +99,43 @@ public class MessageRouter
 	private MonitoringBeanIfc monitoringBean;
 	private Map<String, MessageReceiver> receivers = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, ComponentRegistrator> registrators = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Maximal number of cached routes for domains and regex routings", alias = "routing-cache-size")
+	private int routingCacheSize = 10000;
+	private final RoutingTable.RoutingStatistics routingStatistics = new RoutingTable.RoutingStatistics();
+	private volatile RoutingTable routingTable = null;
+	private final RoutingTable.RouteResolver routeResolver = new RoutingTable.RouteResolver() {
+		@Override
+		public ServerComponent[] getComponentsForLocalDomain(String domain) {
+			return MessageRouter.this.getComponentsForLocalDomain(domain);
+		}
+
+		@Override
+		public ServerComponent[] getComponentsForNonLocalDomain(String domain) {
+			return MessageRouter.this.getComponentsForNonLocalDomain(domain);
+		}
+
+		@Override
+		public boolean isLocalDomain(String domain) {
+			return MessageRouter.this.isLocalDomain(domain);
+		}
+	};
+	private final RepositoryChangeListenerIfc<VHostItem> vhostChangeListener =
+			new RepositoryChangeListenerIfc<VHostItem>() {
+		@Override
+		public void itemAdded(VHostItem item) {
+			rebuildRoutingTable();
+		}
+
+		@Override
+		public void itemUpdated(VHostItem item) {
+			rebuildRoutingTable();
+		}
+
+		@Override
+		public void itemRemoved(VHostItem item) {
+			rebuildRoutingTable();
+		}
+	};
 	@Inject
 	private UpdatesChecker updates_checker = null;
 	private Map<String, XMPPService> xmppServices = new ConcurrentHashMap<>();
@@ -172,6 +213,7 @@ public class MessageRouter
 				registr.addComponent(component);
 			}    // end of if (reg != component)
 		}      // end of for ()
+		rebuildRoutingTable();
 	}
 
 	public void addRegistrator(ComponentRegistrator registr) throws ConfigurationException {
@@ -191,6 +233,7 @@ public class MessageRouter
 		log.info("Adding receiver: " + receiver.getClass().getSimpleName());
 		addComponent(receiver);
 		receivers.put(receiver.getName(), receiver);
+		rebuildRoutingTable();
 	}
 
 	@Override
@@ -200,6 +243,9 @@ public class MessageRouter
 				(changedFields.contains("disco_name") || changedFields.contains("disco_show_version"))) {
 			updateServiceDiscoveryItem(getName(), null, getDiscoDescription(), "server", "im", false);
 		}
+		if (changedFields.contains("routingCacheSize")) {
+			rebuildRoutingTable();
+		}
 	}
 
 	@Override
@@ -385,21 +431,22 @@ public class MessageRouter
 		// The code below finds all components which handle packets addressed
 		// to a virtual domains (implement VHostListener and return 'true' from
 		// handlesLocalDomains() method call)
-		String host = packet.getTo().getDomain();
-		ServerComponent[] comps = getComponentsForLocalDomain(host);
+		RoutingTable table = getRoutingTable();
+		RoutingTable.DomainRoute route = table.getDomainRoute(packet.getTo().getDomain(), routingStatistics);
+		ServerComponent[] comps = route.localDomainComponents;
 
 		if (comps == null) {
 
 			// Still no component found, now the most expensive lookup.
 			// Checking regex routings provided by the component.
-			comps = getServerComponentsForRegex(packet.getTo().getBareJID().toString());
+			comps = table.getComponentsForRegex(packet.getTo().getBareJID().toString(), routingStatistics);
 		}
-		if ((comps == null) && !isLocalDomain(host)) {
+		if ((comps == null) && !route.localDomain) {
 
 			// None of the component want to process the packet.
 			// If the packet is addressed to non-local domain then it is processed by
 			// all components dealing with external world, like s2s
-			comps = getComponentsForNonLocalDomain(host);
+			comps = route.nonLocalDomainComponents;
 		}
 
 		// Ok, if any component has been found then process the packet in a standard
@@ -491,6 +538,7 @@ public class MessageRouter
 		if (component instanceof XMPPService) {
 			xmppServices.remove(component.getName());
 		}
+		rebuildRoutingTable();
 	}
 
 	public void removeRegistrator(ComponentRegistrator registr) {
@@ -546,6 +594,12 @@ public class MessageRouter
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(getName(), "Local hostname", getDefHostName().getDomain(), Level.INFO);
+		list.add(getName(), "Routing table rebuilds", routingStatistics.rebuilds, Level.FINE);
+		list.add(getName(), "Routing table domain hits", routingStatistics.domainHits, Level.FINE);
+		list.add(getName(), "Routing table domain misses", routingStatistics.domainMisses, Level.FINE);
+		list.add(getName(), "Routing table regex hits", routingStatistics.regexHits, Level.FINE);
+		list.add(getName(), "Routing table regex misses", routingStatistics.regexMisses, Level.FINE);
+		list.add(getName(), "Routing table cache evictions", routingStatistics.cacheEvictions, Level.FINER);
 
 		TigaseRuntime runtime = TigaseRuntime.getTigaseRuntime();
 
@@ -629,6 +683,18 @@ public class MessageRouter
 		}
 	}
 
+	@Override
+	public void setVHostManager(VHostManagerIfc manager) {
+		if (vHostManager != null) {
+			vHostManager.removeVHostChangeListener(vhostChangeListener);
+		}
+		super.setVHostManager(manager);
+		if (manager != null) {
+			manager.addVHostChangeListener(vhostChangeListener);
+		}
+		rebuildRoutingTable();
+	}
+
 	@Override
 	public void setConfig(ConfiguratorAbstract config) throws ConfigurationException {
 		components.put(getName(), this);
@@ -767,20 +833,20 @@ public class MessageRouter
 			log.log(Level.FINEST, "Called for : {0}", jid);
 		}
 
+		RoutingTable table = getRoutingTable();
+
 		// Fast lookup in the server components to find a candidate
 		// by the component ID (JID). If the packet is addressed directly
 		// to the component ID then this is where the processing must happen.
 		// Normally the component id is: component name + "@" + default hostname
 		// However the component may "choose" to have any ID.
-		ServerComponent comp = components_byId.get(jid);
+		ServerComponent comp = table.getComponentById(jid);
 
 		if (comp != null) {
 			return comp;
 		}
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "No componentID matches (fast lookup against exact address): " +
-					"{0}, for map: {1}; trying VHost lookup", new Object[]{jid, components_byId.keySet()});
-		}
+
+		RoutingTable.DomainRoute route = table.getDomainRoute(jid.getDomain(), routingStatistics);
 
 		// Note, component ID consists of the component name + default hostname
 		// which can be different from a virtual host. There might be many
@@ -789,69 +855,54 @@ public class MessageRouter
 		// Code below, tries to find a destination by the component name + any
 		// active virtual hostname.
 		if (jid.getLocalpart() != null) {
-			comp = components.get(jid.getLocalpart());
-			if ((comp != null) &&
-					(isLocalDomain(jid.getDomain()) || jid.getDomain().equals(getDefHostName().getDomain()))) {
+			comp = table.getComponentByName(jid.getLocalpart());
+			if ((comp != null) && route.localOrDefaultDomain) {
 				return comp;
 			}
 		}
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "No component name matches (VHost lookup against component name): " +
-							"{0}, for map: {1}, for all VHosts: {2}; trying other forms of addressing",
-					new Object[]{jid, components.keySet(), vHostManager.getAllVHosts().size() > 20 ? "[hosts count: " +
-							vHostManager.getAllVHosts().size() + "]" : String.valueOf(vHostManager.getAllVHosts())});
-		}
 
 		// Instead of a component ID built of: component name + "@" domain name
 		// Some components have an ID of: component name + "." domain name
-		// Code below tries to find a packet receiver if the address have the other
-		// type of form.
-		int idx = jid.getDomain().indexOf('.');
+		// Routing table resolves such component for the domain once and caches it.
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Component for: {0} found by component name as subdomain: {1}",
+					new Object[]{jid, route.subdomainComponent});
+		}
 
-		if (idx > 0) {
-			String cmpName = jid.getDomain().substring(0, idx);
-			String basename = jid.getDomain().substring(idx + 1);
+		return route.subdomainComponent;
+	}
 
-			comp = components.get(cmpName);
-			if ((comp != null) && (isLocalDomain(basename) || basename.equals(getDefHostName().getDomain()))) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Component matched: {0}, for comp: {1}, basename: {3}",
-							new Object[]{jid, components.keySet(), comp, basename});
-				}
-				return comp;
-			}
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Component match failed: {0}, for comp: {1}, basename: {3}",
-						new Object[]{jid, components.keySet(), comp, basename});
-			}
+	private RoutingTable getRoutingTable() {
+		RoutingTable table = routingTable;
+
+		if (table == null || table.isOutdated()) {
+			table = rebuildRoutingTable();
 		}
 
-		return null;
+		return table;
 	}
 
-	private ServerComponent[] getServerComponentsForRegex(String id) {
-		LinkedHashSet<ServerComponent> comps = new LinkedHashSet<ServerComponent>();
+	private synchronized RoutingTable rebuildRoutingTable() {
+		BareJID defHostname = getDefHostName();
+		RoutingTable table = new RoutingTable(components_byId, components, receivers.values(),
+											  defHostname == null ? null : defHostname.getDomain(), routeResolver,
+											  routingCacheSize);
 
-		for (MessageReceiver mr : receivers.values()) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Checking routings for: " + mr.getName());
-			}
-			if (mr.isInRegexRoutings(id)) {
-				comps.add(mr);
-			}
-		}
-		if (comps.size() > 0) {
-			return comps.toArray(new ServerComponent[comps.size()]);
-		} else {
-			return null;
+		++routingStatistics.rebuilds;
+		routingTable = table;
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Routing table rebuilt for components: {0}", components.keySet());
 		}
+
+		return table;
 	}
 
 	private boolean isDiscoDisabled(ServerComponent comp, JID to) {
 		if (comp != null) {
 			return (comp instanceof DisableDisco);
 		} else {
-			ServerComponent[] comps = getComponentsForLocalDomain(to.getDomain());
+			ServerComponent[] comps = getRoutingTable().getDomainRoute(to.getDomain(),
+																	   routingStatistics).localDomainComponents;
 
 			if (comps != null) {
 				for (ServerComponent c : comps) {
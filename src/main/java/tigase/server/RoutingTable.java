@@ -0,0 +1,224 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of routing information used by {@link MessageRouter} to find destination components for packets.
+ * <br>
+ * Components are indexed by component ID and by name when the snapshot is created. Routes for domains and regex
+ * routings are resolved lazily on first use and stored in bounded caches, so on the hot path finding a destination
+ * is just one or two hash lookups. When a cache is full, a single cached route is evicted to make room for a new one.
+ * A new snapshot is created whenever components, virtual hosts or regex routings change, which also drops all cached
+ * routes.
+ */
+class RoutingTable {
+
+	private static final ServerComponent[] NO_COMPONENTS = new ServerComponent[0];
+
+	private static final AtomicLong regexRoutingsVersion = new AtomicLong(0);
+
+	private final Map<String, ServerComponent> componentsByName;
+	private final Map<JID, ServerComponent> componentsById;
+	private final String defHostname;
+	private final Map<String, DomainRoute> domainRoutes = new ConcurrentHashMap<>();
+	private final int maxCacheSize;
+	private final MessageReceiver[] regexReceivers;
+	private final Map<String, ServerComponent[]> regexRoutes = new ConcurrentHashMap<>();
+	private final long regexVersion;
+	private final RouteResolver resolver;
+
+	/**
+	 * Method needs to be called whenever any regex routing of any component changes. It makes all routing tables
+	 * created before the call outdated.
+	 */
+	static void regexRoutingsChanged() {
+		regexRoutingsVersion.incrementAndGet();
+	}
+
+	RoutingTable(Map<JID, ServerComponent> componentsById, Map<String, ServerComponent> componentsByName,
+				 Collection<MessageReceiver> receivers, String defHostname, RouteResolver resolver, int maxCacheSize) {
+		// version needs to be read before routings are, so any concurrent change will make the table outdated
+		this.regexVersion = regexRoutingsVersion.get();
+		this.componentsById = new HashMap<>(componentsById);
+		this.componentsByName = new HashMap<>(componentsByName);
+		this.defHostname = defHostname;
+		this.resolver = resolver;
+		this.maxCacheSize = maxCacheSize;
+
+		List<MessageReceiver> withRegex = new ArrayList<>();
+		for (MessageReceiver receiver : receivers) {
+			// receivers which are known not to have any regex routing do not need to be checked at all
+			if (!(receiver instanceof AbstractMessageReceiver) ||
+					!((AbstractMessageReceiver) receiver).getRegexRoutings().isEmpty()) {
+				withRegex.add(receiver);
+			}
+		}
+		this.regexReceivers = withRegex.toArray(new MessageReceiver[withRegex.size()]);
+	}
+
+	boolean isOutdated() {
+		return regexVersion != regexRoutingsVersion.get();
+	}
+
+	int getCachedRoutesCount() {
+		return domainRoutes.size() + regexRoutes.size();
+	}
+
+	ServerComponent getComponentById(JID jid) {
+		return componentsById.get(jid);
+	}
+
+	ServerComponent getComponentByName(String name) {
+		return componentsByName.get(name);
+	}
+
+	DomainRoute getDomainRoute(String domain, RoutingStatistics stats) {
+		DomainRoute route = domainRoutes.get(domain);
+
+		if (route != null) {
+			++stats.domainHits;
+			return route;
+		}
+		++stats.domainMisses;
+
+		boolean local = resolver.isLocalDomain(domain);
+		ServerComponent subdomainComponent = null;
+		int idx = domain.indexOf('.');
+
+		if (idx > 0) {
+			String cmpName = domain.substring(0, idx);
+			String basename = domain.substring(idx + 1);
+			ServerComponent comp = componentsByName.get(cmpName);
+
+			if ((comp != null) && (resolver.isLocalDomain(basename) || basename.equals(defHostname))) {
+				subdomainComponent = comp;
+			}
+		}
+
+		route = new DomainRoute(local, local || domain.equals(defHostname), subdomainComponent,
+								resolver.getComponentsForLocalDomain(domain),
+								local ? null : resolver.getComponentsForNonLocalDomain(domain));
+		put(domainRoutes, domain, route, stats);
+
+		return route;
+	}
+
+	ServerComponent[] getComponentsForRegex(String id, RoutingStatistics stats) {
+		if (regexReceivers.length == 0) {
+			return null;
+		}
+
+		ServerComponent[] comps = regexRoutes.get(id);
+
+		if (comps != null) {
+			++stats.regexHits;
+			return comps.length == 0 ? null : comps;
+		}
+		++stats.regexMisses;
+
+		LinkedHashSet<ServerComponent> result = new LinkedHashSet<ServerComponent>();
+
+		for (MessageReceiver mr : regexReceivers) {
+			if (mr.isInRegexRoutings(id)) {
+				result.add(mr);
+			}
+		}
+		comps = result.isEmpty() ? NO_COMPONENTS : result.toArray(new ServerComponent[result.size()]);
+		put(regexRoutes, id, comps, stats);
+
+		return comps.length == 0 ? null : comps;
+	}
+
+	private <V> void put(Map<String, V> cache, String key, V value, RoutingStatistics stats) {
+		if (cache.size() >= maxCacheSize) {
+			// protection against unbounded growth, ie. for regex routings checked for every remote JID, a single
+			// entry is evicted, so routes of other domains are still cached
+			Iterator<String> it = cache.keySet().iterator();
+
+			if (it.hasNext()) {
+				cache.remove(it.next());
+				++stats.cacheEvictions;
+			}
+		}
+		cache.put(key, value);
+	}
+
+	/**
+	 * Source of routing information which is not kept by {@link MessageRouter} itself.
+	 */
+	interface RouteResolver {
+
+		ServerComponent[] getComponentsForLocalDomain(String domain);
+
+		ServerComponent[] getComponentsForNonLocalDomain(String domain);
+
+		boolean isLocalDomain(String domain);
+
+	}
+
+	/**
+	 * Counters of routing table cache usage, kept outside of the table so they survive table rebuilds.
+	 */
+	static class RoutingStatistics {
+
+		long cacheEvictions = 0;
+		long domainHits = 0;
+		long domainMisses = 0;
+		long rebuilds = 0;
+		long regexHits = 0;
+		long regexMisses = 0;
+
+	}
+
+	/**
+	 * Resolved routing information for a single destination domain.
+	 */
+	static class DomainRoute {
+
+		/**
+		 * Components handling packets addressed to the domain as a local virtual host.
+		 */
+		final ServerComponent[] localDomainComponents;
+		/**
+		 * Components handling packets addressed to the domain if it is not a local domain, ie. s2s.
+		 */
+		final ServerComponent[] nonLocalDomainComponents;
+		/**
+		 * Component addressed as a subdomain of a local domain, ie. <code>muc.example.com</code>.
+		 */
+		final ServerComponent subdomainComponent;
+		final boolean localDomain;
+		final boolean localOrDefaultDomain;
+
+		DomainRoute(boolean localDomain, boolean localOrDefaultDomain, ServerComponent subdomainComponent,
+					ServerComponent[] localDomainComponents, ServerComponent[] nonLocalDomainComponents) {
+			this.localDomain = localDomain;
+			this.localOrDefaultDomain = localOrDefaultDomain;
+			this.subdomainComponent = subdomainComponent;
+			this.localDomainComponents = localDomainComponents;
+			this.nonLocalDomainComponents = nonLocalDomainComponents;
+		}
+
+	}
+}
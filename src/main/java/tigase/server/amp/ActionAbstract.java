@@ -29,6 +29,7 @@ import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.impl.roster.RosterFactory;
 import tigase.xmpp.impl.roster.RosterFlat;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -142,7 +143,10 @@ public abstract class ActionAbstract
 		}
 
 		try {
-			String roster_str = user_repository.getData(user.getBareJID(), RosterAbstract.ROSTER);
+			RosterAbstract rosterImpl = RosterFactory.getRosterImplementation(true);
+			String roster_str = (rosterImpl instanceof RosterFlat)
+								? ((RosterFlat) rosterImpl).getRosterData(user_repository, user.getBareJID())
+								: rosterUtil.getRosterData(user_repository, user.getBareJID());
 
 			if (roster_str != null) {
 				Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>();
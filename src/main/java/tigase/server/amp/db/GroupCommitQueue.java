@@ -0,0 +1,223 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.amp.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of items written to the database in batches by a single thread.
+ * <br>
+ * Items submitted by many threads in the same time are written together, so cost of a transaction commit is shared by
+ * all of them. Writer should use a database connection which is not shared with other threads, as the whole batch is
+ * committed or rolled back at once. Thread submitting an item is blocked until the batch containing the item is
+ * written and receives the result of writing of its item, so it is still known that the item was stored when
+ * {@link #submit(Object, long)} returns. When the queue is full, submitting thread waits for a free space, which
+ * slows down producers to the speed of the database.
+ *
+ * @param <E> type of queued items
+ */
+public class GroupCommitQueue<E> {
+
+	private static final Logger log = Logger.getLogger(GroupCommitQueue.class.getName());
+
+	private final AtomicLong batches = new AtomicLong(0);
+	private final AtomicLong items = new AtomicLong(0);
+	private final int maxBatchSize;
+	private final long maxDelay;
+	private final BlockingQueue<Entry<E>> queue;
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final Thread thread;
+	private final Writer<E> writer;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a new queue. Queue has to be started by calling {@link #start()}.
+	 *
+	 * @param name name of the writer thread
+	 * @param capacity maximal number of items waiting to be written
+	 * @param maxBatchSize maximal number of items written in a single batch
+	 * @param maxDelay time in milliseconds for which writer waits for more items before writing a batch, if
+	 * <code>0</code> only items which are already waiting are written together
+	 * @param writer writer of batches
+	 */
+	public GroupCommitQueue(String name, int capacity, int maxBatchSize, long maxDelay, Writer<E> writer) {
+		this.queue = new ArrayBlockingQueue<Entry<E>>(capacity);
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelay = maxDelay;
+		this.writer = writer;
+		this.thread = new Thread(this::run, name);
+		this.thread.setDaemon(true);
+	}
+
+	public long getBatchesCount() {
+		return batches.get();
+	}
+
+	public long getItemsCount() {
+		return items.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops the writer thread. Items which are already queued are written before the thread exits.
+	 */
+	public void stop() {
+		// thread is not interrupted as it could break a pending database call
+		stopped = true;
+	}
+
+	/**
+	 * Adds item to the queue and waits until it is written.
+	 *
+	 * @param item item to write
+	 * @param timeout time in milliseconds to wait for free space in the queue
+	 *
+	 * @return result of writing the item or <code>null</code> if item was not queued because the queue was full or
+	 * stopped and it has to be written by the caller
+	 *
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public Boolean submit(E item, long timeout) throws InterruptedException {
+		if (stopped) {
+			return null;
+		}
+
+		Entry<E> entry = new Entry<E>(item);
+
+		if (!queue.offer(entry, timeout, TimeUnit.MILLISECONDS)) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		// writer thread may have already exited, in such case the entry is still in the queue
+		if (stopped && queue.remove(entry)) {
+			return null;
+		}
+		entry.done.await();
+		return entry.result;
+	}
+
+	private void run() {
+		List<Entry<E>> batch = new ArrayList<Entry<E>>(maxBatchSize);
+
+		while (!stopped) {
+			try {
+				Entry<E> first = queue.poll(1, TimeUnit.SECONDS);
+
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+
+				long deadline = System.currentTimeMillis() + maxDelay;
+
+				while (batch.size() < maxBatchSize) {
+					long wait = deadline - System.currentTimeMillis();
+					Entry<E> next = (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException ex) {
+				log.log(Level.FINE, "Writer thread interrupted, stopping", ex);
+				stopped = true;
+			}
+			write(batch);
+		}
+		while (queue.drainTo(batch, maxBatchSize) > 0) {
+			write(batch);
+		}
+	}
+
+	private void write(List<Entry<E>> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		boolean[] results = null;
+
+		try {
+			List<E> values = new ArrayList<E>(batch.size());
+
+			for (Entry<E> entry : batch) {
+				values.add(entry.item);
+			}
+			results = writer.write(values);
+		} catch (RuntimeException ex) {
+			log.log(Level.WARNING, "Could not write batch of " + batch.size() + " items", ex);
+		} finally {
+			batches.incrementAndGet();
+			items.addAndGet(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				Entry<E> entry = batch.get(i);
+
+				entry.result = results != null && results[i];
+				entry.done.countDown();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes batches of items, called only by the thread of the queue.
+	 *
+	 * @param <E> type of items
+	 */
+	public interface Writer<E> {
+
+		/**
+		 * Writes items to the database.
+		 *
+		 * @param items list of items to write
+		 *
+		 * @return array with result of writing of each item
+		 */
+		boolean[] write(List<E> items);
+	}
+
+	private static class Entry<E> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final E item;
+		private volatile boolean result = false;
+
+		private Entry(E item) {
+			this.item = item;
+		}
+	}
+}
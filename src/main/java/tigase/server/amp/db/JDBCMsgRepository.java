@@ -17,8 +17,11 @@
  */
 package tigase.server.amp.db;
 
+import tigase.component.exceptions.RepositoryException;
 import tigase.db.*;
+import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.db.util.RepositoryVersionAware;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.util.ExceptionUtilities;
@@ -45,7 +48,7 @@ import java.util.logging.Logger;
 @Repository.SchemaId(id = Schema.SERVER_SCHEMA_ID, name = Schema.SERVER_SCHEMA_NAME)
 public class JDBCMsgRepository
 		extends MsgRepository<Long, DataRepository>
-		implements RepositoryVersionAware {
+		implements RepositoryVersionAware, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(JDBCMsgRepository.class.getName());
 	protected DataRepository data_repo = null;
@@ -59,6 +62,8 @@ public class JDBCMsgRepository
 	private String MSGS_DELETE_MESSAGES = "{ call Tig_OfflineMessages_DeleteMessages(?) }";
 	@ConfigField(desc = "Query to delete messages by ids", alias = "delete-messages-by-ids-query")
 	private String MSGS_DELETE_MESSAGES_BY_IDS = "{ call Tig_OfflineMessages_DeleteMessagesByIds(?,?,?,?,?) }";
+	@ConfigField(desc = "Query to delete range of messages", alias = "delete-messages-range-query")
+	private String MSGS_DELETE_MESSAGES_RANGE = "{ call Tig_OfflineMessages_DeleteMessagesRange(?,?,?) }";
 	@ConfigField(desc = "Query to select expired messages", alias = "get-expired-messages-query")
 	private String MSGS_GET_EXPIRED_MESSAGES = "{ call Tig_OfflineMessages_GetExpiredMessages(?) }";
 	@ConfigField(desc = "Query to select expired messages before passed time", alias = "get-expired-messages-before-query")
@@ -67,6 +72,8 @@ public class JDBCMsgRepository
 	private String MSGS_GET_MESSAGES = "{ call Tig_OfflineMessages_GetMessages(?) }";
 	@ConfigField(desc = "Query to load messages by ids", alias = "get-messages-by-ids-query")
 	private String MSGS_GET_MESSAGES_BY_IDS = "{ call Tig_OfflineMessages_GetMessagesByIds(?,?,?,?,?) }";
+	@ConfigField(desc = "Query to load page of messages", alias = "get-messages-page-query")
+	private String MSGS_GET_MESSAGES_PAGE = "{ call Tig_OfflineMessages_GetMessagesPage(?,?,?) }";
 
 //	private static final Map<String, JDBCMsgRepository> repos =
 //			new ConcurrentSkipListMap<String, JDBCMsgRepository>();
@@ -75,6 +82,23 @@ public class JDBCMsgRepository
 	@ConfigField(desc = "Query to list messages", alias = "list-messages-query")
 	private String MSGS_LIST_MESSAGES = "{ call Tig_OfflineMessages_ListMessages(?) }";
 	private boolean initialized = false;
+	@ConfigField(desc = "Time in ms to wait for more messages to store in a transaction", alias = "store-batch-delay")
+	private long storeBatchDelay = 0;
+	@ConfigField(desc = "Maximal number of messages stored in a single transaction", alias = "store-batch-size")
+	private int storeBatchSize = 100;
+	private GroupCommitQueue<PendingMessage> storeQueue = null;
+	@ConfigField(desc = "Maximal number of messages waiting to be stored", alias = "store-queue-size")
+	private int storeQueueSize = 1000;
+	@ConfigField(desc = "Time in ms to wait for free space in the store queue", alias = "store-queue-timeout")
+	private long storeQueueTimeout = 1000;
+
+	@Override
+	public void beforeUnregister() {
+		if (storeQueue != null) {
+			storeQueue.stop();
+			storeQueue = null;
+		}
+	}
 
 	@Override
 	public void setDataSource(DataRepository data_repo) {
@@ -84,9 +108,11 @@ public class JDBCMsgRepository
 			data_repo.initPreparedStatement(MSGS_LIST_MESSAGES, MSGS_LIST_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_MESSAGES, MSGS_GET_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_MESSAGES_BY_IDS, MSGS_GET_MESSAGES_BY_IDS);
+			data_repo.initPreparedStatement(MSGS_GET_MESSAGES_PAGE, MSGS_GET_MESSAGES_PAGE);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGE, MSGS_DELETE_MESSAGE);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES, MSGS_DELETE_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES_BY_IDS, MSGS_DELETE_MESSAGES_BY_IDS);
+			data_repo.initPreparedStatement(MSGS_DELETE_MESSAGES_RANGE, MSGS_DELETE_MESSAGES_RANGE);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES, MSGS_GET_EXPIRED_MESSAGES);
 			data_repo.initPreparedStatement(MSGS_GET_EXPIRED_MESSAGES_BEFORE, MSGS_GET_EXPIRED_MESSAGES_BEFORE);
 		} catch (SQLException ex) {
@@ -97,6 +123,23 @@ public class JDBCMsgRepository
 		}
 
 		this.data_repo = data_repo;
+
+		GroupCommitQueue<PendingMessage> oldQueue = storeQueue;
+
+		// batch size of 1 disables grouping, messages are stored by threads calling storeMessage()
+		DataRepository writerRepo = storeBatchSize > 1 ? createWriterRepository(data_repo) : null;
+
+		if (writerRepo != null) {
+			storeQueue = new GroupCommitQueue<PendingMessage>("offline-msgs-writer", storeQueueSize, storeBatchSize,
+															  storeBatchDelay,
+															  messages -> storeMessages(writerRepo, messages));
+			storeQueue.start();
+		} else {
+			storeQueue = null;
+		}
+		if (oldQueue != null) {
+			oldQueue.stop();
+		}
 	}
 
 	@Override
@@ -300,6 +343,77 @@ public class JDBCMsgRepository
 		return affectedRows;
 	}
 
+	@Override
+	public void deleteMessagesPage(XMPPResourceConnection session, long afterId, long lastId)
+			throws UserNotFoundException {
+		BareJID to = null;
+		ResultSet rs = null;
+
+		try {
+			to = session.getBareJID();
+
+			PreparedStatement delete_range_st = data_repo.getPreparedStatement(to, MSGS_DELETE_MESSAGES_RANGE);
+
+			synchronized (delete_range_st) {
+				try {
+					delete_range_st.setString(1, to.toString());
+					delete_range_st.setLong(2, afterId);
+					delete_range_st.setLong(3, lastId);
+					rs = delete_range_st.executeQuery();
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem removing offline messages for user: " + to, e);
+		} catch (NotAuthorizedException ex) {
+			log.log(Level.WARNING, "Session not authorized yet!", ex);
+		}
+	}
+
+	@Override
+	public long loadMessagesPage(XMPPResourceConnection session, long afterId, int limit, Queue<Element> result)
+			throws UserNotFoundException {
+		BareJID to = null;
+		long lastId = -1;
+
+		try {
+			to = session.getBareJID();
+
+			ResultSet rs = null;
+			PreparedStatement select_page_st = data_repo.getPreparedStatement(to, MSGS_GET_MESSAGES_PAGE);
+
+			synchronized (select_page_st) {
+				try {
+					select_page_st.setString(1, to.toString());
+					select_page_st.setLong(2, afterId);
+					select_page_st.setInt(3, limit);
+					rs = select_page_st.executeQuery();
+
+					while (rs.next()) {
+						String msg = rs.getString(1);
+
+						lastId = rs.getLong(2);
+						if (msg != null) {
+							DomBuilderHandler domHandler = new DomBuilderHandler();
+
+							parser.parse(domHandler, msg.toCharArray(), 0, msg.length());
+							result.addAll(domHandler.getParsedElements());
+						}
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem getting offline messages for user: " + to, e);
+		} catch (NotAuthorizedException ex) {
+			log.log(Level.WARNING, "Session not authorized yet!", ex);
+		}
+
+		return lastId;
+	}
+
 	@Override
 	public Queue<Element> loadMessagesToJID(XMPPResourceConnection session, boolean delete)
 			throws UserNotFoundException {
@@ -358,58 +472,33 @@ public class JDBCMsgRepository
 					new Object[]{expired, Packet.elemToString(msg)});
 		}
 
-		boolean result = false;
-
-		try {
-			long msgs_store_limit = getMsgsStoreLimit(to.getBareJID(), userRepo);
-
-			PreparedStatement insert_msg_st = data_repo.getPreparedStatement(to.getBareJID(), MSGS_ADD_MESSAGE);
-
-			synchronized (insert_msg_st) {
-				insert_msg_st.setString(1, to.getBareJID().toString());
-				insert_msg_st.setString(2, from.getBareJID().toString());
-				int msg_type;
-				try {
-					final String name = msg.getName();
-					final MSG_TYPES valueOf = MSG_TYPES.valueOf(name);
-					msg_type = valueOf.ordinal();
-				} catch (IllegalArgumentException e) {
-					msg_type = Integer.MAX_VALUE;
-				}
-
-				insert_msg_st.setInt(3, msg_type);
-				data_repo.setTimestamp(insert_msg_st, 4, new Timestamp(System.currentTimeMillis()));
-				insert_msg_st.setString(5, msg.toString());
-
-				if (expired == null) {
-					insert_msg_st.setNull(6, Types.TIMESTAMP);
-				} else {
-					Timestamp time = new Timestamp(expired.getTime());
-
-					data_repo.setTimestamp(insert_msg_st, 6, time);
-				}
-				insert_msg_st.setLong(7, msgs_store_limit);
-
-				try (ResultSet rs = insert_msg_st.executeQuery()) {
-					if (rs.next()) {
-						result = rs.getLong(1) != 0;
-					}
-				}
+		PendingMessage message = new PendingMessage(from, to, expired, msg,
+													getMsgsStoreLimit(to.getBareJID(), userRepo));
+		GroupCommitQueue<PendingMessage> queue = storeQueue;
+		Boolean result = null;
+
+		if (queue != null) {
+			try {
+				// returns after the transaction containing the message is committed
+				result = queue.submit(message, storeQueueTimeout);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				log.log(Level.FINE, "Interrupted while storing message from {0} to {1}", new Object[]{from, to});
+				return false;
 			}
+		}
+		if (result == null) {
+			result = storeMessage(message);
+		}
 
-			if (expired != null) {
-				if (expired.getTime() < earliestOffline) {
-					earliestOffline = expired.getTime();
-				}
+		if (expired != null) {
+			if (expired.getTime() < earliestOffline) {
+				earliestOffline = expired.getTime();
+			}
 
-				if (expiredQueue.size() == 0) {
-					loadExpiredQueue(1);
-				}
+			if (expiredQueue.size() == 0) {
+				loadExpiredQueue(1);
 			}
-		} catch (DataTruncation dte) {
-			log.log(Level.FINE, "Data truncated for message from {0} to {1}", new Object[]{from, to});
-		} catch (SQLException e) {
-			log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
 		}
 		return result;
 	}
@@ -551,4 +640,140 @@ public class JDBCMsgRepository
 		}
 	}
 
+	private void insertMessage(DataRepository repo, PreparedStatement insert_msg_st, PendingMessage message)
+			throws SQLException {
+		insert_msg_st.setString(1, message.to.getBareJID().toString());
+		insert_msg_st.setString(2, message.from.getBareJID().toString());
+		int msg_type;
+		try {
+			final String name = message.msg.getName();
+			final MSG_TYPES valueOf = MSG_TYPES.valueOf(name);
+			msg_type = valueOf.ordinal();
+		} catch (IllegalArgumentException e) {
+			msg_type = Integer.MAX_VALUE;
+		}
+
+		insert_msg_st.setInt(3, msg_type);
+		repo.setTimestamp(insert_msg_st, 4, new Timestamp(message.timestamp));
+		insert_msg_st.setString(5, message.msg.toString());
+
+		if (message.expired == null) {
+			insert_msg_st.setNull(6, Types.TIMESTAMP);
+		} else {
+			Timestamp time = new Timestamp(message.expired.getTime());
+
+			repo.setTimestamp(insert_msg_st, 6, time);
+		}
+		insert_msg_st.setLong(7, message.storeLimit);
+
+		try (ResultSet rs = insert_msg_st.executeQuery()) {
+			message.stored = rs.next() && rs.getLong(1) != 0;
+		}
+	}
+
+	private boolean storeMessage(PendingMessage message) {
+		try {
+			PreparedStatement insert_msg_st = data_repo.getPreparedStatement(message.to.getBareJID(),
+																			 MSGS_ADD_MESSAGE);
+
+			synchronized (insert_msg_st) {
+				insertMessage(data_repo, insert_msg_st, message);
+			}
+			return message.stored;
+		} catch (DataTruncation dte) {
+			log.log(Level.FINE, "Data truncated for message from {0} to {1}",
+					new Object[]{message.from, message.to});
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Problem adding new entry to DB: ", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Opens a connection used only by the thread storing messages in batches. Handles of <code>data_repo</code> may be
+	 * shared with other threads, so a transaction started on them could commit or roll back their statements as well.
+	 *
+	 * @param data_repo data source of this repository
+	 *
+	 * @return dedicated data repository or <code>null</code> if it could not be opened
+	 */
+	private DataRepository createWriterRepository(DataRepository data_repo) {
+		try {
+			DataRepository repo = new DataRepositoryImpl();
+
+			repo.initialize(data_repo.getResourceUri());
+			repo.initPreparedStatement(MSGS_ADD_MESSAGE, MSGS_ADD_MESSAGE);
+			return repo;
+		} catch (RepositoryException | SQLException ex) {
+			log.log(Level.WARNING, "Could not open connection for storing offline messages in batches, messages will " +
+					"be stored one by one", ex);
+			return null;
+		}
+	}
+
+	private boolean[] storeMessages(DataRepository repo, List<PendingMessage> messages) {
+		boolean[] results = new boolean[messages.size()];
+
+		if (messages.size() > 1) {
+			boolean committed = false;
+
+			// repository is used only by the writer thread, so the whole batch is committed at once
+			try {
+				repo.startTransaction();
+
+				PreparedStatement insert_msg_st = repo.getPreparedStatement(messages.get(0).to.getBareJID(),
+																			MSGS_ADD_MESSAGE);
+
+				for (PendingMessage message : messages) {
+					insertMessage(repo, insert_msg_st, message);
+				}
+				repo.commit();
+				committed = true;
+			} catch (SQLException ex) {
+				log.log(Level.FINE, "Could not store batch of " + messages.size() +
+						" messages, storing them one by one", ex);
+				try {
+					repo.rollback();
+				} catch (SQLException e) {
+					log.log(Level.WARNING, "Could not rollback transaction", e);
+				}
+			} finally {
+				try {
+					repo.endTransaction();
+				} catch (SQLException e) {
+					log.log(Level.WARNING, "Could not end transaction", e);
+				}
+			}
+			if (committed) {
+				for (int i = 0; i < results.length; i++) {
+					results[i] = messages.get(i).stored;
+				}
+				return results;
+			}
+		}
+		// single message or the batch failed, ie. due to data truncation of one of messages
+		for (int i = 0; i < results.length; i++) {
+			results[i] = storeMessage(messages.get(i));
+		}
+		return results;
+	}
+
+	private static class PendingMessage {
+
+		private final Date expired;
+		private final JID from;
+		private final Element msg;
+		private final long storeLimit;
+		private final long timestamp = System.currentTimeMillis();
+		private final JID to;
+		private boolean stored = false;
+
+		private PendingMessage(JID from, JID to, Date expired, Element msg, long storeLimit) {
+			this.from = from;
+			this.to = to;
+			this.expired = expired;
+			this.msg = msg;
+			this.storeLimit = storeLimit;
+		}
+	}
 }
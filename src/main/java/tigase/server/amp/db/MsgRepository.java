@@ -36,7 +36,9 @@ import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -115,6 +117,18 @@ public abstract class MsgRepository<T, S extends DataSource>
 	};
 	@ConfigField(desc = "Limit of offline messages", alias = "store-limit")
 	private long msgs_store_limit = MSGS_STORE_LIMIT_VAL;
+	@ConfigField(desc = "Maximal number of cached store limits of users", alias = "store-limit-cache-size")
+	private int msgs_store_limit_cache_size = 10000;
+	@ConfigField(desc = "Time in seconds for which store limit of user is cached", alias = "store-limit-cache-ttl")
+	private long msgs_store_limit_cache_ttl = 60;
+	// user JID -> {store limit, expiration time}, least recently used entries are evicted when the cache is full
+	private final Map<BareJID, long[]> msgs_store_limits = Collections.synchronizedMap(
+			new LinkedHashMap<BareJID, long[]>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<BareJID, long[]> eldest) {
+					return size() > msgs_store_limit_cache_size;
+				}
+			});
 	@ConfigField(desc = "Support limits of offline messages set by users", alias = "user-store-limit-enable")
 	private boolean msgs_user_store_limit = false;
 	@Inject
@@ -214,6 +228,25 @@ public abstract class MsgRepository<T, S extends DataSource>
 	protected abstract void deleteMessage(T db_id);
 
 	protected long getMsgsStoreLimit(BareJID userJid, NonAuthUserRepository userRepo) throws UserNotFoundException {
+		if (msgs_store_limit_cache_ttl <= 0) {
+			return loadMsgsStoreLimit(userJid, userRepo);
+		}
+
+		long now = System.currentTimeMillis();
+		long[] cached = msgs_store_limits.get(userJid);
+
+		if (cached != null && cached[1] > now) {
+			return cached[0];
+		}
+
+		// only existing users are cached, so messages to removed accounts are rejected after the entry expires
+		long limit = loadMsgsStoreLimit(userJid, userRepo);
+
+		msgs_store_limits.put(userJid, new long[]{limit, now + msgs_store_limit_cache_ttl * 1000});
+		return limit;
+	}
+
+	private long loadMsgsStoreLimit(BareJID userJid, NonAuthUserRepository userRepo) throws UserNotFoundException {
 		if (msgs_user_store_limit) {
 			String limitStr = userRepo.getPublicData(userJid, OFFLINE_MSGS_KEY, MSGS_STORE_LIMIT_KEY, NULL_STR);
 			if (limitStr == null) {
@@ -319,6 +352,29 @@ public abstract class MsgRepository<T, S extends DataSource>
 			return result;
 		}
 
+		@Override
+		public long loadMessagesPage(XMPPResourceConnection session, long afterId, int limit, Queue<Element> result)
+				throws UserNotFoundException {
+			try {
+				MsgRepositoryIfc repo = getRepository(session.getBareJID().getDomain());
+				return repo.loadMessagesPage(session, afterId, limit, result);
+			} catch (NotAuthorizedException ex) {
+				log.log(Level.WARNING, "Session not authorized yet!", ex);
+			}
+			return -1;
+		}
+
+		@Override
+		public void deleteMessagesPage(XMPPResourceConnection session, long afterId, long lastId)
+				throws UserNotFoundException {
+			try {
+				MsgRepositoryIfc repo = getRepository(session.getBareJID().getDomain());
+				repo.deleteMessagesPage(session, afterId, lastId);
+			} catch (NotAuthorizedException ex) {
+				log.log(Level.WARNING, "Session not authorized yet!", ex);
+			}
+		}
+
 		@Override
 		public boolean storeMessage(JID from, JID to, Date expired, Element msg, NonAuthUserRepository userRepo)
 				throws UserNotFoundException {
@@ -217,6 +217,12 @@ public class BoshIOService
 		return false;
 	}
 
+	@Override
+	protected boolean isBatchWriteSupported() {
+		// each write is wrapped with HTTP headers separately
+		return false;
+	}
+
 	public interface ConfigProvider {
 
 		boolean isCloseConnections();
@@ -143,6 +143,12 @@ public class WebSocketXMPPIOService<RefObject>
 		return webSocketXMPPSpec;
 	}
 
+	@Override
+	protected boolean isBatchWriteSupported() {
+		// each stanza needs to be sent in a separate WebSocket frame
+		return false;
+	}
+
 	@Override
 	protected String prepareStreamClose() {
 		if (webSocketXMPPSpec == WebSocketXMPPSpec.hybi) {
@@ -440,10 +446,7 @@ public class WebSocketXMPPIOService<RefObject>
 			oldTmpBuffer.clear();
 			partialCharacterBytes = null;
 		}
-		if (cb.capacity() < tmpBuffer.remaining() * 4) {
-			cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-		}
-
+		CharBuffer cb = getDecodeBuffer(tmpBuffer.remaining());
 		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
 
 		if (cr.isMalformed()) {
@@ -107,7 +107,11 @@ public class ClientConnectionManager
 	private long socket_close_wait_time = SOCKET_CLOSE_WAIT_PROP_DEF;
 
 	public ClientConnectionManager() {
-
+		// reading from client which does not read data sent to it is paused
+		writeQueueHighBytes = 4 * 1024 * 1024;
+		writeQueueLowBytes = 1024 * 1024;
+		writeQueueHighPackets = 10000;
+		writeQueueLowPackets = 1000;
 	}
 
 	@Override
@@ -334,6 +338,18 @@ public class ClientConnectionManager
 		sendTlsHandshakeCompletedToSessionManager(serv);
 	}
 
+	@Override
+	public void writeBackpressureChanged(XMPPIOService<Object> serv, boolean congested) {
+		super.writeBackpressureChanged(serv, congested);
+		if (serv.getDataReceiver() != null) {
+			Packet command = Command.STREAM_BACKPRESSURE.getPacket(serv.getConnectionId(), serv.getDataReceiver(),
+																   StanzaType.set, UUID.randomUUID().toString());
+
+			Command.addFieldValue(command, "congested", String.valueOf(congested));
+			addOutPacket(command);
+		}
+	}
+
 	@Override
 	public void xmppStreamClosed(XMPPIOService<Object> serv) {
 		if (log.isLoggable(Level.FINER)) {
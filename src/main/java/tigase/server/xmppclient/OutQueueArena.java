@@ -0,0 +1,168 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Arena of off-heap memory used to keep serialized packets waiting for acknowledgement.
+ * <br>
+ * Memory is allocated in slabs of direct buffers, which are divided into blocks of the same size. Data of a single
+ * packet is stored in as many blocks as needed and blocks do not have to be adjacent, so the arena never needs to be
+ * compacted. Released blocks are reused for new packets, while slabs are kept allocated until the arena is discarded.
+ */
+public class OutQueueArena {
+
+	private final int blockSize;
+	private final int blocksPerSlab;
+	private final int maxSlabs;
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private int[] freeBlocks = new int[0];
+	private int freeCount = 0;
+	private long rejected = 0;
+	private int segments = 0;
+	private long usedBytes = 0;
+
+	/**
+	 * Creates a new arena.
+	 *
+	 * @param blockSize size of a single block in bytes
+	 * @param slabSize size of a single direct buffer in bytes
+	 * @param maxSize maximal number of bytes allocated by the arena
+	 */
+	public OutQueueArena(int blockSize, int slabSize, long maxSize) {
+		this.blockSize = blockSize;
+		this.blocksPerSlab = Math.max(1, slabSize / blockSize);
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE / blocksPerSlab,
+									   maxSize / ((long) blocksPerSlab * blockSize));
+	}
+
+	public synchronized long getAllocatedBytes() {
+		return (long) slabs.size() * blocksPerSlab * blockSize;
+	}
+
+	/**
+	 * Returns number of packets which were not stored as there was no free space in the arena.
+	 *
+	 * @return number of rejected packets
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	public synchronized int getSegments() {
+		return segments;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * Reads data stored in blocks.
+	 *
+	 * @param blocks blocks returned by {@link #store(byte[], int, int)}
+	 * @param length number of stored bytes
+	 *
+	 * @return stored data
+	 */
+	public synchronized byte[] read(int[] blocks, int length) {
+		byte[] data = new byte[length];
+		int offset = 0;
+
+		for (int block : blocks) {
+			ByteBuffer slab = slabs.get(block / blocksPerSlab);
+			int len = Math.min(blockSize, length - offset);
+
+			slab.position((block % blocksPerSlab) * blockSize);
+			slab.get(data, offset, len);
+			offset += len;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Releases blocks, so they may be reused for other data.
+	 *
+	 * @param blocks blocks returned by {@link #store(byte[], int, int)}
+	 * @param length number of stored bytes
+	 */
+	public synchronized void release(int[] blocks, int length) {
+		if (freeCount + blocks.length > freeBlocks.length) {
+			freeBlocks = Arrays.copyOf(freeBlocks, freeCount + blocks.length);
+		}
+		for (int i = blocks.length - 1; i >= 0; i--) {
+			freeBlocks[freeCount++] = blocks[i];
+		}
+		segments--;
+		usedBytes -= length;
+	}
+
+	/**
+	 * Stores data in the arena.
+	 *
+	 * @param data array with data
+	 * @param offset offset of data in the array
+	 * @param length number of bytes to store
+	 *
+	 * @return blocks containing data or <code>null</code> if there is not enough free space in the arena
+	 */
+	public synchronized int[] store(byte[] data, int offset, int length) {
+		int count = Math.max(1, (length + blockSize - 1) / blockSize);
+
+		while (freeCount < count) {
+			if (slabs.size() >= maxSlabs) {
+				rejected++;
+				return null;
+			}
+			addSlab();
+		}
+
+		int[] blocks = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			int block = freeBlocks[--freeCount];
+			ByteBuffer slab = slabs.get(block / blocksPerSlab);
+			int len = Math.min(blockSize, length - i * blockSize);
+
+			slab.position((block % blocksPerSlab) * blockSize);
+			slab.put(data, offset + i * blockSize, len);
+			blocks[i] = block;
+		}
+		segments++;
+		usedBytes += length;
+
+		return blocks;
+	}
+
+	private void addSlab() {
+		int first = slabs.size() * blocksPerSlab;
+
+		slabs.add(ByteBuffer.allocateDirect(blocksPerSlab * blockSize));
+		if (freeCount + blocksPerSlab > freeBlocks.length) {
+			freeBlocks = Arrays.copyOf(freeBlocks, freeCount + blocksPerSlab);
+		}
+		// blocks are taken from the end of the free list, so lower blocks are used first
+		for (int i = first + blocksPerSlab - 1; i >= first; i--) {
+			freeBlocks[freeCount++] = i;
+		}
+	}
+}
@@ -22,16 +22,21 @@ import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.net.IOServiceListener;
 import tigase.net.SocketThread;
+import tigase.net.UTF8ElementSerializer;
 import tigase.server.*;
 import tigase.stats.StatisticsList;
 import tigase.util.common.TimerTask;
+import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
+import tigase.xml.SingletonFactory;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.StreamError;
 import tigase.xmpp.XMPPIOService;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -66,6 +71,10 @@ public class StreamManagementIOProcessor
 
 	// various strings used as key to store data in maps
 	private static final String ACK_REQUEST_COUNT_KEY = "ack-request-count";
+	private static final int COMPACT_QUEUE_BLOCK_SIZE = 256;
+	private static final String COMPACT_QUEUE_MAX_SIZE_PROP_KEY = "compact-queue-max-size";
+	private static final String COMPACT_QUEUE_PROP_KEY = "compact-queue";
+	private static final int COMPACT_QUEUE_SLAB_SIZE = 1024 * 1024;
 	private static final int DEF_ACK_REQUEST_COUNT_VAL = 10;
 	private static final String[] DELAY_PATH = {Message.ELEM_NAME, "delay"};
 	private static final String DELAY_XMLNS = "urn:xmpp:delay";
@@ -91,6 +100,11 @@ public class StreamManagementIOProcessor
 	private final ConcurrentHashMap<String, XMPPIOService> services = new ConcurrentHashMap<String, XMPPIOService>();
 	@ConfigField(desc = "Number of sent packets after should ask for confirmation of delivery", alias = ACK_REQUEST_COUNT_KEY)
 	private int ack_request_count = DEF_ACK_REQUEST_COUNT_VAL;
+	private volatile OutQueueArena[] arenas = null;
+	@ConfigField(desc = "Keep unacked packets serialized in off-heap memory", alias = COMPACT_QUEUE_PROP_KEY)
+	private boolean compactQueue = false;
+	@ConfigField(desc = "Maximal size of off-heap memory for unacked packets", alias = COMPACT_QUEUE_MAX_SIZE_PROP_KEY)
+	private long compactQueueMaxSize = 256L * 1024 * 1024;
 	@Inject(bean = "service")
 	private ConnectionManager connectionManager;
 	@ConfigField(desc = "Ignore undelivered presence packets", alias = IGNORE_UNDELIVERED_PRESENCE_KEY)
@@ -138,7 +152,7 @@ public class StreamManagementIOProcessor
 			if (packet.getXMLNS() != XMLNS) {
 				return false;
 			} else if (packet.getElemName() == ENABLE_NAME) {
-				OutQueue outQueue = newOutQueue();
+				OutQueue outQueue = newOutQueue(service);
 				service.getSessionData().putIfAbsent(OUT_COUNTER_KEY, outQueue);
 				service.getSessionData().putIfAbsent(IN_COUNTER_KEY, newCounter());
 
@@ -453,6 +467,26 @@ public class StreamManagementIOProcessor
 
 	@Override
 	public void getStatistics(StatisticsList list) {
+		OutQueueArena[] arenas = this.arenas;
+
+		if (arenas != null) {
+			String compName = connectionManager.getName();
+			int segments = 0;
+			long usedBytes = 0;
+			long allocatedBytes = 0;
+			long rejected = 0;
+
+			for (OutQueueArena arena : arenas) {
+				segments += arena.getSegments();
+				usedBytes += arena.getUsedBytes();
+				allocatedBytes += arena.getAllocatedBytes();
+				rejected += arena.getRejected();
+			}
+			list.add(compName, "SM queue off-heap packets", segments, Level.FINE);
+			list.add(compName, "SM queue off-heap used bytes", usedBytes, Level.FINE);
+			list.add(compName, "SM queue off-heap allocated bytes", allocatedBytes, Level.FINE);
+			list.add(compName, "SM queue packets kept on heap (arena full)", rejected, Level.FINE);
+		}
 	}
 
 	@Override
@@ -476,6 +510,42 @@ public class StreamManagementIOProcessor
 		return new OutQueue();
 	}
 
+	protected OutQueue newOutQueue(XMPPIOService service) {
+		if (compactQueue) {
+			OutQueueArena[] arenas = getArenas();
+
+			return new CompactOutQueue(arenas[Math.floorMod(System.identityHashCode(service), arenas.length)]);
+		}
+		return newOutQueue();
+	}
+
+	/**
+	 * Arena is striped, each stripe with its own slabs and lock, so connections using different stripes do not
+	 * contend with each other when packets are stored or acked.
+	 */
+	private OutQueueArena[] getArenas() {
+		OutQueueArena[] result = arenas;
+
+		if (result == null) {
+			synchronized (this) {
+				result = arenas;
+				if (result == null) {
+					// each stripe should be able to allocate at least a single slab
+					int stripes = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+															 compactQueueMaxSize / COMPACT_QUEUE_SLAB_SIZE));
+
+					result = new OutQueueArena[stripes];
+					for (int i = 0; i < stripes; i++) {
+						result[i] = new OutQueueArena(COMPACT_QUEUE_BLOCK_SIZE, COMPACT_QUEUE_SLAB_SIZE,
+													  compactQueueMaxSize / stripes);
+					}
+					arenas = result;
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Method responsible for starting process of stream resumption
 	 *
@@ -577,7 +647,11 @@ public class StreamManagementIOProcessor
 			OutQueue.Entry e = null;
 
 			while ((e = outQueue.queue.poll()) != null) {
-				connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.stamp, null);
+				try {
+					connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.stamp, null);
+				} finally {
+					e.release();
+				}
 			}
 		}
 	}
@@ -636,7 +710,7 @@ public class StreamManagementIOProcessor
 			if (!packet.wasProcessedBy(XMLNS)) {
 				packet.processedBy(XMLNS);
 
-				queue.offer(new Entry(packet));
+				queue.offer(newEntry(packet));
 				inc();
 			}
 		}
@@ -654,7 +728,7 @@ public class StreamManagementIOProcessor
 			}
 
 			while (count < queue.size()) {
-				queue.poll();
+				queue.poll().release();
 			}
 		}
 
@@ -676,6 +750,10 @@ public class StreamManagementIOProcessor
 			return queue;
 		}
 
+		protected Entry newEntry(Packet packet) {
+			return new Entry(packet);
+		}
+
 		public class Entry {
 
 			private final Packet packet;
@@ -686,6 +764,7 @@ public class StreamManagementIOProcessor
 			}
 
 			public Packet getPacketWithStamp() {
+				Packet packet = getPacket();
 				if (packet.getElemName() != Iq.ELEM_NAME && !packet.isXMLNSStaticStr(DELAY_PATH, DELAY_XMLNS)) {
 					String stamp = null;
 					synchronized (formatter) {
@@ -700,6 +779,98 @@ public class StreamManagementIOProcessor
 				}
 				return packet;
 			}
+
+			protected Packet getPacket() {
+				return packet;
+			}
+
+			/**
+			 * Called when entry is removed from the queue and will not be used any more.
+			 */
+			protected void release() {
+			}
+		}
+	}
+
+	/**
+	 * CompactOutQueue class keeps packets waiting for ack serialized as UTF-8 in an off-heap arena instead of keeping
+	 * their DOM on the heap. Packets are parsed again only when they need to be resent or bounced. If there is no
+	 * space left in the arena, packet is kept on the heap as in {@link OutQueue}.
+	 */
+	public static class CompactOutQueue
+			extends OutQueue {
+
+		private final OutQueueArena arena;
+
+		public CompactOutQueue(OutQueueArena arena) {
+			this.arena = arena;
+		}
+
+		@Override
+		protected Entry newEntry(Packet packet) {
+			ByteBuffer buffer = UTF8ElementSerializer.serialize(packet.getElement(),
+																ByteBuffer.allocate(COMPACT_QUEUE_BLOCK_SIZE));
+			int[] blocks = arena.store(buffer.array(), buffer.arrayOffset(), buffer.position());
+
+			if (blocks == null) {
+				return super.newEntry(packet);
+			}
+			return new SerializedEntry(packet, blocks, buffer.position());
+		}
+
+		private class SerializedEntry
+				extends Entry {
+
+			private final int length;
+			private final JID packetFrom;
+			private final JID packetTo;
+			private final Priority priority;
+			private final JID stanzaFrom;
+			private final JID stanzaTo;
+			private int[] blocks;
+
+			private SerializedEntry(Packet packet, int[] blocks, int length) {
+				super(null);
+				this.blocks = blocks;
+				this.length = length;
+				// JIDs are shared with other packets, so keeping references does not use additional memory
+				this.packetFrom = packet.getPacketFrom();
+				this.packetTo = packet.getPacketTo();
+				this.priority = packet.getPriority();
+				this.stanzaFrom = packet.getStanzaFrom();
+				this.stanzaTo = packet.getStanzaTo();
+			}
+
+			@Override
+			protected Packet getPacket() {
+				char[] data = new String(arena.read(blocks, length), StandardCharsets.UTF_8).toCharArray();
+				DomBuilderHandler domHandler = new DomBuilderHandler();
+
+				SingletonFactory.getParserInstance().parse(domHandler, data, 0, data.length);
+
+				Element elem = domHandler.getParsedElements().poll();
+
+				if (elem == null) {
+					throw new IllegalStateException("Could not parse serialized packet: " + new String(data));
+				}
+
+				Packet packet = Packet.packetInstance(elem, stanzaFrom, stanzaTo);
+
+				packet.setPacketFrom(packetFrom);
+				packet.setPacketTo(packetTo);
+				packet.setPriority(priority);
+				// packet was already counted, it must not be appended again when it is resent
+				packet.processedBy(XMLNS);
+				return packet;
+			}
+
+			@Override
+			protected void release() {
+				if (blocks != null) {
+					arena.release(blocks, length);
+					blocks = null;
+				}
+			}
 		}
 	}
 
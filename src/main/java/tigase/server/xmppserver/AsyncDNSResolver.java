@@ -0,0 +1,280 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppserver;
+
+import tigase.util.dns.DNSEntry;
+import tigase.util.dns.DNSResolverFactory;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolver of SRV records of remote domains used for opening S2S connections, which does not block the caller.
+ * <br>
+ * Lookups are executed by {@link SRVLookup} on a dedicated pool of threads and only one lookup for a domain is executed
+ * at a time, all callers requesting the same domain while the lookup is in progress receive the same future. Results
+ * are cached for time based on TTL of returned records, limited by minimal and maximal TTL. Failed lookups are cached
+ * as well, for a time which doubles with every consecutive failure for the domain, up to the maximal negative TTL.
+ */
+public class AsyncDNSResolver {
+
+	/**
+	 * Default lookup using resolver provided by {@link DNSResolverFactory}.
+	 */
+	public static final SRVLookup DEFAULT_LOOKUP = hostname -> DNSResolverFactory.getInstance()
+			.getHostSRV_Entries(hostname);
+
+	private static final Logger log = Logger.getLogger(AsyncDNSResolver.class.getName());
+
+	private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final ConcurrentHashMap<String, CompletableFuture<DNSEntry[]>> inFlight = new ConcurrentHashMap<>();
+	private final LongAdder misses = new LongAdder();
+	private long averageLookupTime = 0;
+	private ThreadPoolExecutor executor;
+	private volatile SRVLookup lookup = DEFAULT_LOOKUP;
+	private int maxCacheSize = 10000;
+	private long maxNegativeTtl = TimeUnit.MINUTES.toMillis(15);
+	private long maxTtl = TimeUnit.HOURS.toMillis(1);
+	private long minTtl = TimeUnit.SECONDS.toMillis(30);
+	private long negativeTtl = TimeUnit.SECONDS.toMillis(30);
+
+	public AsyncDNSResolver(int threads) {
+		final AtomicInteger counter = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+										  r -> {
+											  Thread t = new Thread(r, "s2s-dns-resolver-" + counter.incrementAndGet());
+											  t.setDaemon(true);
+											  return t;
+										  });
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public long getAverageLookupTime() {
+		return averageLookupTime;
+	}
+
+	public int getCacheSize() {
+		return cache.size();
+	}
+
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	public long getFailuresCount() {
+		return failures.sum();
+	}
+
+	/**
+	 * Returns percentage of requests which were served from the cache.
+	 *
+	 * @return hit rate
+	 */
+	public float getHitRate() {
+		long hitsCount = hits.sum();
+		long total = hitsCount + misses.sum() + coalesced.sum();
+
+		return total == 0 ? 0 : (hitsCount * 100f) / total;
+	}
+
+	public long getHitsCount() {
+		return hits.sum();
+	}
+
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	public long getMissesCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Removes cached result of lookup for the domain.
+	 *
+	 * @param hostname name of the domain
+	 */
+	public void invalidate(String hostname) {
+		cache.remove(hostname);
+	}
+
+	/**
+	 * Resolves SRV records of the domain.
+	 *
+	 * @param hostname name of the domain
+	 *
+	 * @return future completed with found entries or with {@link UnknownHostException} if domain could not be resolved.
+	 * Future is already completed if result was cached.
+	 */
+	public CompletableFuture<DNSEntry[]> resolve(final String hostname) {
+		final long now = System.currentTimeMillis();
+		final CacheEntry entry = cache.get(hostname);
+
+		if (entry != null && entry.expiresAt > now) {
+			hits.increment();
+			return entry.result;
+		}
+
+		CompletableFuture<DNSEntry[]> future = inFlight.get(hostname);
+		if (future == null) {
+			CompletableFuture<DNSEntry[]> created = new CompletableFuture<DNSEntry[]>();
+
+			future = inFlight.putIfAbsent(hostname, created);
+			if (future == null) {
+				misses.increment();
+				try {
+					executor.execute(() -> lookup(hostname, created, entry));
+				} catch (RejectedExecutionException ex) {
+					inFlight.remove(hostname, created);
+					created.completeExceptionally(ex);
+				}
+				return created;
+			}
+		}
+		coalesced.increment();
+		return future;
+	}
+
+	public void setLookup(SRVLookup lookup) {
+		this.lookup = lookup;
+		cache.clear();
+	}
+
+	public void setMaxCacheSize(int maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	public void setMaxNegativeTtl(long maxNegativeTtl) {
+		this.maxNegativeTtl = maxNegativeTtl;
+	}
+
+	public void setMaxTtl(long maxTtl) {
+		this.maxTtl = maxTtl;
+	}
+
+	public void setMinTtl(long minTtl) {
+		this.minTtl = minTtl;
+	}
+
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	public void setThreads(int threads) {
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private void lookup(String hostname, CompletableFuture<DNSEntry[]> future, CacheEntry previous) {
+		final long start = System.currentTimeMillis();
+		DNSEntry[] entries = null;
+		Exception error = null;
+
+		try {
+			entries = lookup.getHostSRV_Entries(hostname);
+			if (entries == null || entries.length == 0) {
+				throw new UnknownHostException(hostname);
+			}
+		} catch (Exception ex) {
+			error = ex;
+		}
+
+		final long end = System.currentTimeMillis();
+		averageLookupTime = (averageLookupTime + (end - start)) / 2;
+
+		if (error == null) {
+			store(hostname, new CacheEntry(CompletableFuture.completedFuture(entries), end + getTtl(entries), 0), end);
+			inFlight.remove(hostname, future);
+			future.complete(entries);
+		} else {
+			failures.increment();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "DNS lookup for " + hostname + " failed", error);
+			}
+
+			// backoff for domains which fail to resolve repeatedly
+			int failed = (previous == null) ? 0 : previous.failures;
+			long ttl = Math.min(maxNegativeTtl, negativeTtl << Math.min(failed, 20));
+			CompletableFuture<DNSEntry[]> result = new CompletableFuture<DNSEntry[]>();
+
+			result.completeExceptionally(error);
+			store(hostname, new CacheEntry(result, end + ttl, failed + 1), end);
+			inFlight.remove(hostname, future);
+			future.completeExceptionally(error);
+		}
+	}
+
+	private long getTtl(DNSEntry[] entries) {
+		long ttl = maxTtl;
+
+		// TTL of entries is in milliseconds
+		for (DNSEntry entry : entries) {
+			ttl = Math.min(ttl, entry.getTtl());
+		}
+
+		return Math.max(minTtl, ttl);
+	}
+
+	private void store(String hostname, CacheEntry entry, long now) {
+		if (cache.size() >= maxCacheSize && !cache.containsKey(hostname)) {
+			cache.values().removeIf(item -> item.expiresAt <= now);
+			if (cache.size() >= maxCacheSize) {
+				return;
+			}
+		}
+		cache.put(hostname, entry);
+	}
+
+	/**
+	 * Blocking lookup of SRV records, which may be replaced, ie. by a local resolver in tests.
+	 */
+	public interface SRVLookup {
+
+		DNSEntry[] getHostSRV_Entries(String hostname) throws UnknownHostException;
+
+	}
+
+	private static class CacheEntry {
+
+		private final long expiresAt;
+		private final int failures;
+		private final CompletableFuture<DNSEntry[]> result;
+
+		private CacheEntry(CompletableFuture<DNSEntry[]> result, long expiresAt, int failures) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+			this.failures = failures;
+		}
+	}
+}
@@ -22,17 +22,19 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.net.ConnectionType;
 import tigase.net.SocketType;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.util.dns.DNSEntry;
-import tigase.util.dns.DNSResolverFactory;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 
 import java.net.UnknownHostException;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,6 +59,7 @@ public class CIDConnections {
 	 */
 	private Map<String, String> dbKeys = new ConcurrentSkipListMap<String, String>();
 	private long firstWaitingTime = 0;
+	private volatile long openStartTime = 0;
 	private S2SConnectionHandlerIfc<S2SIOService> handler = null;
 	private Set<S2SConnection> incoming = new ConcurrentSkipListSet<S2SConnection>();
 	private int max_in_conns = 4;
@@ -67,7 +70,6 @@ public class CIDConnections {
 	private AtomicBoolean outgoingOpenInProgress = new AtomicBoolean(false);
 	private Set<S2SConnection> outgoing_handshaking = new ConcurrentSkipListSet<S2SConnection>();
 	private ReentrantLock sendInProgress = new ReentrantLock();
-	private boolean testMode = Boolean.getBoolean("test");
 	private ConcurrentLinkedQueue<Packet> waitingPackets = new ConcurrentLinkedQueue<Packet>();
 
 	public CIDConnections(CID cid, S2SConnectionHandlerIfc<S2SIOService> handler, S2SConnectionSelector selector,
@@ -125,6 +127,12 @@ public class CIDConnections {
 			// Release the 'lock'
 			outgoingOpenInProgress.set(false);
 
+			long startTime = openStartTime;
+			if (startTime > 0) {
+				openStartTime = 0;
+				connectionsOpenerService.outgoingOpened(System.currentTimeMillis() - startTime);
+			}
+
 			S2SConnection s2s_conn = serv.getS2SConnection();
 
 			outgoing_handshaking.remove(s2s_conn);
@@ -367,14 +375,15 @@ public class CIDConnections {
 	}
 
 	public void sendHandshakingOnly(final Packet verify_req) {
-		connectionsOpenerService.schedule(new Runnable() {
+		// using additional domain name mapping to allow usage of intermediate server
+		final String serverName = handler.getServerNameForDomain(cid.getRemoteHost());
+		final CompletableFuture<DNSEntry[]> lookup = connectionsOpenerService.resolve(serverName);
+
+		lookup.whenComplete((entries, error) -> scheduleOpenerTask(new Runnable() {
 			@Override
 			public void run() {
 				try {
-					// using additional domain name mapping to allow usage of intermediate server
-					String serverName = handler.getServerNameForDomain(cid.getRemoteHost());
-
-					DNSEntry dns_entry = DNSResolverFactory.getInstance().getHostSRV_Entry(serverName);
+					DNSEntry dns_entry = getDNSEntries(lookup)[0];
 					S2SConnection s2s_conn = new S2SConnection(handler, dns_entry.getIp());
 
 					s2s_conn.addControlPacket(verify_req);
@@ -392,7 +401,7 @@ public class CIDConnections {
 					log.log(Level.INFO, "Remote host not found: " + cid.getRemoteHost(), ex);
 				}
 			}
-		}, 0, TimeUnit.MILLISECONDS);
+		}));
 	}
 
 	public void sendPacket(Packet packet) {
@@ -457,12 +466,28 @@ public class CIDConnections {
 		}
 	}
 
+	private static DNSEntry[] getDNSEntries(CompletableFuture<DNSEntry[]> lookup) throws UnknownHostException {
+		try {
+			return lookup.join();
+		} catch (CompletionException | CancellationException ex) {
+			Throwable cause = (ex.getCause() == null) ? ex : ex.getCause();
+			if (cause instanceof UnknownHostException) {
+				throw (UnknownHostException) cause;
+			}
+
+			UnknownHostException result = new UnknownHostException(cause.getMessage());
+			result.initCause(cause);
+			throw result;
+		}
+	}
+
 	private void checkOpenConnections() {
 		if (outgoingOpenInProgress.compareAndSet(false, true)) {
+			openStartTime = System.currentTimeMillis();
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Scheduling task for openning a new connection for: {0}", cid);
 			}
-			connectionsOpenerService.schedule(new Runnable() {
+			boolean scheduled = scheduleOpenerTask(new Runnable() {
 				@Override
 				public void run() {
 					boolean result = false;
@@ -480,7 +505,11 @@ public class CIDConnections {
 						outgoingOpenInProgress.set(false);
 					}
 				}
-			}, 0, TimeUnit.MILLISECONDS);
+			});
+
+			if (!scheduled) {
+				openerTaskRejected();
+			}
 		} else {
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Outgoing open in progress, skipping for: {0}", cid);
@@ -529,59 +558,101 @@ public class CIDConnections {
 	}
 
 	private boolean openOutgoingConnections() {
-		boolean result = false;
-
-		try {
 
-			// Check whether all active connections are still active
-			for (S2SConnection out_conn : outgoing) {
-				if (!out_conn.isConnected()) {
-					outgoing.remove(out_conn);
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "Removing inactive connection: {0}", out_conn);
-					}
-				}
-			}
-			if (firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
-				sendPacketsBack();
-				firstWaitingTime = 0;
+		// Check whether all active connections are still active
+		for (S2SConnection out_conn : outgoing) {
+			if (!out_conn.isConnected()) {
+				outgoing.remove(out_conn);
 				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "S2S Timeout expired, sending back: {0}", waitingPackets);
+					log.log(Level.FINEST, "Removing inactive connection: {0}", out_conn);
 				}
-
-				return result;
+			}
+		}
+		if (firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
+			sendPacketsBack();
+			firstWaitingTime = 0;
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "S2S Timeout expired, sending back: {0}", waitingPackets);
 			}
 
-			int all_outgoing = outgoing.size() + outgoing_handshaking.size();
+			return false;
+		}
 
-			if (all_outgoing >= max_out_conns) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Exceeded max number of outgoing connections, not doing anything: {0}",
-							all_outgoing);
-				}
+		int all_outgoing = outgoing.size() + outgoing_handshaking.size();
 
-				return result;
-			}
+		if (all_outgoing >= max_out_conns) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Checking DNS for host: {0} for: {1}", new Object[]{cid.getRemoteHost(), cid});
+				log.log(Level.FINEST, "Exceeded max number of outgoing connections, not doing anything: {0}",
+						all_outgoing);
 			}
 
-			// During TTS automated tests we send ping for 200 non-existen domains. On some
-			// configurations DNS check for 200 non-existen domains takes forever, so here we
-			// have a shortcut to speed the test up.
-			// To be sure we do this only for vhosts without a '.' character which are used
-			// during TTS tests.
-			if (testMode) {
-				if (cid.getRemoteHost().startsWith("vhost-") && !cid.getRemoteHost().contains(".")) {
-					throw new UnknownHostException(cid.getRemoteHost());
+			return false;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Checking DNS for host: {0} for: {1}", new Object[]{cid.getRemoteHost(), cid});
+		}
+
+		// using additional domain name mapping to allow usage of intermediate server
+		final String serverName = handler.getServerNameForDomain(cid.getRemoteHost());
+		final CompletableFuture<DNSEntry[]> lookup = connectionsOpenerService.resolve(serverName);
+
+		if (lookup.isDone()) {
+			return openOutgoingConnections(serverName, lookup);
+		}
+
+		// DNS lookup is in progress, connections will be opened by another task when it is completed
+		lookup.whenComplete((entries, error) -> {
+			boolean scheduled = scheduleOpenerTask(new Runnable() {
+				@Override
+				public void run() {
+					boolean result = false;
+
+					try {
+						result = openOutgoingConnections(serverName, lookup);
+					} catch (Exception e) {
+						log.log(Level.WARNING, "uncaughtException in the connection opening thread: ", e);
+					}
+					if (!result) {
+						outgoingOpenInProgress.set(false);
+					}
 				}
+			});
+
+			if (!scheduled) {
+				openerTaskRejected();
 			}
+		});
 
-			// using additional domain name mapping to allow usage of intermediate server
-			String serverName = handler.getServerNameForDomain(cid.getRemoteHost());
+		return true;
+	}
+
+	/**
+	 * Packets waiting for a new connection would stay in the queue forever if a task opening the connection was
+	 * rejected, so they are sent back and the next packet may try to open connection again.
+	 */
+	private void openerTaskRejected() {
+		outgoingOpenInProgress.set(false);
+		firstWaitingTime = 0;
+		sendPacketsBack();
+	}
+
+	private boolean scheduleOpenerTask(Runnable task) {
+		try {
+			connectionsOpenerService.schedule(task, 0, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (RejectedExecutionException ex) {
+			log.log(Level.WARNING, "Could not schedule opening of outgoing connection for: " + cid, ex);
+			return false;
+		}
+	}
+
+	private boolean openOutgoingConnections(String serverName, CompletableFuture<DNSEntry[]> lookup) {
+		boolean result = false;
 
+		try {
 			// Check DNS entries
-			DNSEntry[] dns_entries = DNSResolverFactory.getInstance().getHostSRV_Entries(serverName);
+			DNSEntry[] dns_entries = getDNSEntries(lookup);
+			int all_outgoing = outgoing.size() + outgoing_handshaking.size();
 
 			// Activate 'missing' connections
 			for (DNSEntry dNSEntry : dns_entries) {
@@ -638,12 +709,112 @@ public class CIDConnections {
 	@Bean(name = "cidConnectionsOpenerService", parent = S2SConnectionManager.class, active = true)
 	public static class CIDConnectionsOpenerService {
 
+		private final AsyncDNSResolver dnsResolver;
+		private final LongAdder opened = new LongAdder();
+		private long averageOpenTime = 0;
+		@ConfigField(desc = "Maximal time for which DNS lookup result is cached", alias = "dns-cache-max-ttl")
+		private Duration dnsCacheMaxTtl = Duration.ofHours(1);
+		@ConfigField(desc = "Minimal time for which DNS lookup result is cached", alias = "dns-cache-min-ttl")
+		private Duration dnsCacheMinTtl = Duration.ofSeconds(30);
+		@ConfigField(desc = "Maximal number of cached DNS lookups of remote domains", alias = "dns-cache-size")
+		private int dnsCacheSize = 10000;
+		@ConfigField(desc = "Maximal time for which failed DNS lookup is cached", alias = "dns-negative-cache-max-ttl")
+		private Duration dnsNegativeCacheMaxTtl = Duration.ofMinutes(15);
+		@ConfigField(desc = "Time for which first failed DNS lookup is cached", alias = "dns-negative-cache-ttl")
+		private Duration dnsNegativeCacheTtl = Duration.ofSeconds(30);
+		// lookups block on the network, not on CPU, so twice as many threads as for opening connections are used
+		@ConfigField(desc = "Number of threads for DNS lookups of remote domains", alias = "dns-resolver-threads")
+		private int dnsResolverThreads = Runtime.getRuntime().availableProcessors() * 2;
 		// TODO: #1195 - estimate proper default value
 		@ConfigField(desc = "Numer of threads for opening outgoing connections")
 		private int outgoingOpenThreads = Runtime.getRuntime().availableProcessors();
 
 		private ScheduledExecutorService outgoingOpenTasks = Executors.newScheduledThreadPool(outgoingOpenThreads);
 
+		public CIDConnectionsOpenerService() {
+			dnsResolver = new AsyncDNSResolver(dnsResolverThreads);
+
+			// During TTS automated tests we send ping for 200 non-existen domains. On some
+			// configurations DNS check for 200 non-existen domains takes forever, so here we
+			// have a shortcut to speed the test up.
+			// To be sure we do this only for vhosts without a '.' character which are used
+			// during TTS tests.
+			if (Boolean.getBoolean("test")) {
+				dnsResolver.setLookup(hostname -> {
+					if (hostname.startsWith("vhost-") && !hostname.contains(".")) {
+						throw new UnknownHostException(hostname);
+					}
+					return AsyncDNSResolver.DEFAULT_LOOKUP.getHostSRV_Entries(hostname);
+				});
+			}
+		}
+
+		public AsyncDNSResolver getDNSResolver() {
+			return dnsResolver;
+		}
+
+		public void getStatistics(String compName, StatisticsList list) {
+			list.add(compName, "Opened outgoing connections", opened.sum(), Level.FINE);
+			list.add(compName, "Average outgoing connection open time [ms]", averageOpenTime, Level.FINE);
+			list.add(compName, "DNS cache size", dnsResolver.getCacheSize(), Level.FINE);
+			list.add(compName, "DNS cache hit rate [%]", dnsResolver.getHitRate(), Level.FINE);
+			list.add(compName, "DNS cache hits", dnsResolver.getHitsCount(), Level.FINER);
+			list.add(compName, "DNS cache misses", dnsResolver.getMissesCount(), Level.FINER);
+			list.add(compName, "DNS coalesced lookups", dnsResolver.getCoalescedCount(), Level.FINER);
+			list.add(compName, "DNS failed lookups", dnsResolver.getFailuresCount(), Level.FINER);
+			list.add(compName, "DNS lookups in progress", dnsResolver.getInFlightCount(), Level.FINER);
+			list.add(compName, "Average DNS lookup time [ms]", dnsResolver.getAverageLookupTime(), Level.FINE);
+		}
+
+		/**
+		 * Records time which passed from the moment when opening of outgoing connection was requested until the
+		 * connection was authenticated.
+		 *
+		 * @param time time in milliseconds
+		 */
+		public void outgoingOpened(long time) {
+			opened.increment();
+			averageOpenTime = (averageOpenTime + time) / 2;
+		}
+
+		public CompletableFuture<DNSEntry[]> resolve(String hostname) {
+			return dnsResolver.resolve(hostname);
+		}
+
+		public void schedule(Runnable r, long delay, TimeUnit unit) {
+			outgoingOpenTasks.schedule(r, delay, unit);
+		}
+
+		public void setDnsCacheMaxTtl(Duration ttl) {
+			dnsCacheMaxTtl = ttl;
+			dnsResolver.setMaxTtl(ttl.toMillis());
+		}
+
+		public void setDnsCacheMinTtl(Duration ttl) {
+			dnsCacheMinTtl = ttl;
+			dnsResolver.setMinTtl(ttl.toMillis());
+		}
+
+		public void setDnsCacheSize(int size) {
+			dnsCacheSize = size;
+			dnsResolver.setMaxCacheSize(size);
+		}
+
+		public void setDnsNegativeCacheMaxTtl(Duration ttl) {
+			dnsNegativeCacheMaxTtl = ttl;
+			dnsResolver.setMaxNegativeTtl(ttl.toMillis());
+		}
+
+		public void setDnsNegativeCacheTtl(Duration ttl) {
+			dnsNegativeCacheTtl = ttl;
+			dnsResolver.setNegativeTtl(ttl.toMillis());
+		}
+
+		public void setDnsResolverThreads(int threads) {
+			dnsResolverThreads = threads;
+			dnsResolver.setThreads(threads);
+		}
+
 		public void setOutgoingOpenThreads(int size) {
 			if (outgoingOpenThreads != size) {
 				outgoingOpenThreads = size;
@@ -652,10 +823,5 @@ public class CIDConnections {
 				scheduler.shutdown();
 			}
 		}
-
-		public void schedule(Runnable r, long delay, TimeUnit unit) {
-			outgoingOpenTasks.schedule(r, delay, unit);
-		}
 	}
 }
-
@@ -547,6 +547,9 @@ public class S2SConnectionManager
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(getName(), "CIDs number", cidConnections.size(), Level.INFO);
+		if (cidConnectionsOpenerService != null) {
+			cidConnectionsOpenerService.getStatistics(getName(), list);
+		}
 		if (list.checkLevel(Level.FINEST)) {
 			long total_outgoing = 0;
 			long total_outgoing_tls = 0;
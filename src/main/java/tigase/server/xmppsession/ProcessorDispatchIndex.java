@@ -0,0 +1,249 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of processors by element paths, namespaces and stanza types declared by them, used to find processors which
+ * can handle a packet without calling {@link XMPPProcessorIfc#canHandle(Packet, XMPPResourceConnection)} of every
+ * processor.
+ * <br>
+ * Element paths are kept in a tree keyed by element names, so only paths which exist in the packet are visited and
+ * processors are selected by comparing namespace of the element at each path, in the same way as {@link
+ * XMPPProcessor#canHandle(Packet, XMPPResourceConnection)} does. Processors which override <code>canHandle()</code>,
+ * use old API with {@link XMPPProcessorIfc#supElements()} or declare paths without namespace cannot be indexed and
+ * <code>canHandle()</code> is still called for them for every packet.
+ * <br>
+ * Index is immutable and has to be created again when set of processors changes.
+ */
+public class ProcessorDispatchIndex {
+
+	private static final Logger log = Logger.getLogger(ProcessorDispatchIndex.class.getName());
+
+	private final int indexedCount;
+	private final XMPPProcessorIfc[] processors;
+	private final Map<String, PathNode> roots = new HashMap<String, PathNode>();
+	private final AtomicLong savedChecks = new AtomicLong(0);
+	private final boolean[] slowPath;
+	private final Set<StanzaType>[] types;
+	private final int[] wildcards;
+
+	private static boolean isIndexable(XMPPProcessorIfc proc, String[][] paths, String[] xmlns) {
+		if (!(proc instanceof XMPPProcessor) || paths == null) {
+			return false;
+		}
+		try {
+			if (proc.getClass().getMethod("canHandle", Packet.class, XMPPResourceConnection.class)
+					.getDeclaringClass() != XMPPProcessor.class) {
+				return false;
+			}
+		} catch (NoSuchMethodException ex) {
+			return false;
+		}
+		if (paths == XMPPProcessor.ALL_PATHS) {
+			return true;
+		}
+		if (xmlns == null || xmlns.length < paths.length) {
+			return false;
+		}
+		for (int i = 0; i < paths.length; i++) {
+			// processor matching missing elements (null namespace) has to be checked for every packet
+			if (paths[i] == null || paths[i].length == 0 || xmlns[i] == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Creates index for processors. Order of processors is preserved in results of {@link #getProcessors(Packet,
+	 * XMPPResourceConnection)}.
+	 *
+	 * @param processors collection of processors
+	 */
+	@SuppressWarnings("unchecked")
+	public ProcessorDispatchIndex(Collection<XMPPProcessorIfc> processors) {
+		this.processors = processors.toArray(new XMPPProcessorIfc[processors.size()]);
+		this.types = new Set[this.processors.length];
+		this.slowPath = new boolean[this.processors.length];
+
+		int indexed = 0;
+		List<Integer> all = new ArrayList<Integer>();
+
+		for (int i = 0; i < this.processors.length; i++) {
+			XMPPProcessorIfc proc = this.processors[i];
+			String[][] paths = proc.supElementNamePaths();
+			String[] xmlns = proc.supNamespaces();
+
+			if (!isIndexable(proc, paths, xmlns)) {
+				slowPath[i] = true;
+				continue;
+			}
+			indexed++;
+			types[i] = proc.supTypes();
+			if (paths == XMPPProcessor.ALL_PATHS) {
+				all.add(i);
+				continue;
+			}
+			for (int j = 0; j < paths.length; j++) {
+				PathNode node = roots.computeIfAbsent(paths[j][0], name -> new PathNode(null, name));
+
+				for (int k = 1; k < paths[j].length; k++) {
+					node = node.getOrCreateChild(paths[j][k]);
+				}
+				node.add(xmlns[j], i);
+			}
+		}
+		this.indexedCount = indexed;
+		this.wildcards = toArray(all);
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Created dispatch index for {0} processors, {1} indexed, {2} checked for every packet",
+					new Object[]{this.processors.length, indexed, this.processors.length - indexed});
+		}
+	}
+
+	public int getIndexedCount() {
+		return indexedCount;
+	}
+
+	/**
+	 * Returns processors which are authorized to handle the packet, in the same order as processors were passed to the
+	 * constructor.
+	 *
+	 * @param packet packet to dispatch
+	 * @param conn user session or <code>null</code>
+	 *
+	 * @return list of processors
+	 */
+	public List<XMPPProcessorIfc> getProcessors(Packet packet, XMPPResourceConnection conn) {
+		boolean[] matched = new boolean[processors.length];
+		Element elem = packet.getElement();
+		PathNode root = roots.get(elem.getName());
+
+		if (root != null) {
+			root.match(elem, elem, matched);
+		}
+		for (int idx : wildcards) {
+			matched[idx] = true;
+		}
+
+		StanzaType type = packet.getType();
+		List<XMPPProcessorIfc> result = new ArrayList<XMPPProcessorIfc>(4);
+
+		for (int i = 0; i < processors.length; i++) {
+			if (matched[i]) {
+				if (types[i] == null || types[i].contains(type)) {
+					result.add(processors[i]);
+				}
+			} else if (slowPath[i] && processors[i].canHandle(packet, conn) == Authorization.AUTHORIZED) {
+				result.add(processors[i]);
+			}
+		}
+		savedChecks.addAndGet(indexedCount);
+
+		return result;
+	}
+
+	/**
+	 * Returns number of processors which <code>canHandle()</code> method was not called thanks to the index.
+	 *
+	 * @return number of saved calls
+	 */
+	public long getSavedChecks() {
+		return savedChecks.get();
+	}
+
+	private static class PathNode {
+
+		private final String[] path;
+		private Map<String, PathNode> children = null;
+		private int[] entries = new int[0];
+		private String[] entriesXmlns = new String[0];
+
+		private PathNode(PathNode parent, String name) {
+			if (parent == null) {
+				path = new String[]{name};
+			} else {
+				path = Arrays.copyOf(parent.path, parent.path.length + 1);
+				path[parent.path.length] = name;
+			}
+		}
+
+		private void add(String xmlns, int idx) {
+			entries = Arrays.copyOf(entries, entries.length + 1);
+			entriesXmlns = Arrays.copyOf(entriesXmlns, entriesXmlns.length + 1);
+			entries[entries.length - 1] = idx;
+			entriesXmlns[entriesXmlns.length - 1] = xmlns;
+		}
+
+		private PathNode getOrCreateChild(String name) {
+			if (children == null) {
+				children = new HashMap<String, PathNode>();
+			}
+			return children.computeIfAbsent(name, key -> new PathNode(this, key));
+		}
+
+		private void match(Element root, Element elem, boolean[] matched) {
+			if (entries.length > 0) {
+				// namespace is compared by reference, exactly as Packet.isXMLNSStaticStr() does
+				String xmlns = root.getXMLNSStaticStr(path);
+
+				for (int i = 0; i < entries.length; i++) {
+					if (entriesXmlns[i] == xmlns) {
+						matched[entries[i]] = true;
+					}
+				}
+			}
+			if (children != null) {
+				List<Element> elemChildren = elem.getChildren();
+
+				if (elemChildren != null) {
+					for (Element child : elemChildren) {
+						PathNode node = children.get(child.getName());
+
+						if (node != null) {
+							node.match(root, child, matched);
+						}
+					}
+				}
+			}
+		}
+	}
+}
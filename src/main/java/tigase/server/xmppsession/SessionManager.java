@@ -52,8 +52,10 @@ import tigase.sys.OnlineJidsReporter;
 import tigase.sys.TigaseRuntime;
 import tigase.util.Base64;
 import tigase.util.common.TimerTask;
+import tigase.util.processing.ProcessingMailboxes;
 import tigase.util.processing.ProcessingThreads;
 import tigase.util.processing.QueueItem;
+import tigase.util.processing.SharedProcessingPool;
 import tigase.util.processing.WorkerThread;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.vhosts.VHostItem;
@@ -103,14 +105,20 @@ public class SessionManager
 	/**
 	 * A Map with connectionID as a key and an object with all the user connection data as a value
 	 */
-	protected ConcurrentHashMap<JID, XMPPResourceConnection> connectionsByFrom = new ConcurrentHashMap<JID, XMPPResourceConnection>(
-			100000);
+	protected SessionRegistry<JID, XMPPResourceConnection> connectionsByFrom = new SessionRegistry<JID, XMPPResourceConnection>(
+			processingInThreads(), 100000);
 	/**
 	 * A Map with bare user JID as a key and a user session object as a value.
 	 */
-	protected ConcurrentHashMap<BareJID, XMPPSession> sessionsByNodeId = new ConcurrentHashMap<BareJID, XMPPSession>(
-			100000);
+	protected SessionRegistry<BareJID, XMPPSession> sessionsByNodeId = new SessionRegistry<BareJID, XMPPSession>(
+			processingInThreads(), 100000);
 	private int activeUserNumber = 0;
+	/**
+	 * Number of active user connections in each shard of <code>sessionsByNodeId</code>, shards are recounted
+	 * one by one, so all of them are recounted once per minute.
+	 */
+	private int[] activeUsersPerShard = new int[sessionsByNodeId.getShardsCount()];
+	private int activeUsersSecond = 0;
 	@Inject
 	private AdHocCommandModule adHocCommandModule;
 	@Inject
@@ -157,6 +165,9 @@ public class SessionManager
 	private Map<String, Map<String, Object>> plugin_config = new ConcurrentHashMap<String, Map<String, Object>>(20);
 	@ConfigField(desc = "Factor for number of threads per plugin", alias = SessionManagerConfig.SM_THREADS_FACTOR_PROP_KEY)
 	private int pluginsThreadFactor = 1;
+	private volatile SharedProcessingPool pluginsSharedPool = null;
+	@ConfigField(desc = "Number of threads in shared pool of plugins threads", alias = SessionManagerConfig.SM_SHARED_POOL_SIZE_PROP_KEY)
+	private int pluginsSharedPoolSize = Runtime.getRuntime().availableProcessors() * 4;
 	private Map<String, XMPPPostprocessorIfc> postProcessors = new ConcurrentHashMap<String, XMPPPostprocessorIfc>(10);
 	// private long[] defPrepTime = new long[maxIdx];
 	// private long[] prepTime = new long[maxIdx];
@@ -166,12 +177,17 @@ public class SessionManager
 	private Map<String, long[]> postTimes = new ConcurrentSkipListMap<String, long[]>();
 	private Map<String, XMPPPreprocessorIfc> preProcessors = new ConcurrentHashMap<String, XMPPPreprocessorIfc>(10);
 	private Map<String, XMPPProcessorIfc> processors = new ConcurrentHashMap<String, XMPPProcessorIfc>(32);
+	private volatile ProcessorDispatchIndex processorsIndex = new ProcessorDispatchIndex(
+			Collections.<XMPPProcessorIfc>emptyList());
+	private long processorsIndexSavedChecks = 0;
 	@Inject
 	private SessionCloseProc sessionCloseProc = null;
 	@Inject
 	private SessionOpenProc sessionOpenProc = null;
 	@ConfigField(desc = "Skip privacy check", alias = SessionManagerConfig.SKIP_PRIVACY_PROP_KEY)
 	private boolean skipPrivacy = false;
+	@ConfigField(desc = "Process packets of all plugins using shared pool of threads", alias = SessionManagerConfig.SM_SHARED_POOL_PROP_KEY)
+	private boolean smSharedPool = false;
 	private SMResourceConnection smResourceConnection = null;
 	@ConfigField(desc = "Default processors threads pool size", alias = SessionManagerConfig.SM_THREADS_POOL_PROP_KEY)
 	private String smThreadsPool = SessionManagerConfig.SM_THREADS_POOL_PROP_VAL;
@@ -230,10 +246,26 @@ public class SessionManager
 
 			threadsNo = threadsNo * pluginsThreadFactor;
 
-			// If there is not default processors thread pool or the processor does
-			// have thread pool specific settings create a separate thread pool
-			// for the processor
-			if ((workerThreads.get(defPluginsThreadsPool) == null) || requireNewPool) {
+			if (smSharedPool) {
+
+				// Each plugin has its own mailboxes for statistics and queue limits, but they are processed
+				// by shared pool of threads
+				if (!workerThreads.containsKey(proc.id())) {
+					boolean blocking = (proc instanceof XMPPProcessorConcurrencyAwareIfc) &&
+							((XMPPProcessorConcurrencyAwareIfc) proc).isBlocking();
+					ProcessingThreads<ProcessorWorkerThread> pt = new ProcessingMailboxes<ProcessorWorkerThread>(
+							new ProcessorWorkerThread(), queueSize * threadsNo, proc.id(),
+							getPluginsSharedPool().getExecutor(blocking));
+
+					workerThreads.put(proc.id(), pt);
+					log.log(Level.CONFIG, "Created mailboxes in shared pool, queue size: {0}, blocking: {1} for plugin id: {2}",
+							new Object[]{queueSize * threadsNo, blocking, proc.id()});
+				}
+			} else if ((workerThreads.get(defPluginsThreadsPool) == null) || requireNewPool) {
+
+				// If there is not default processors thread pool or the processor does
+				// have thread pool specific settings create a separate thread pool
+				// for the processor
 
 				// Added to make sure that there will be only one thread pool for plugin
 				// so if one exits we will keep it and not create another one
@@ -250,6 +282,7 @@ public class SessionManager
 				}
 			}
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
+			updateProcessorsIndex();
 			log.log(Level.CONFIG, "Added processor: {0} for plugin id: {1}",
 					new Object[]{proc.getClass().getSimpleName(), proc.id()});
 			loaded = true;
@@ -473,6 +506,7 @@ public class SessionManager
 
 		if (pt != null) {
 			p = processors.remove(plug_id);
+			updateProcessorsIndex();
 			pt.shutdown();
 			if (p != null) {
 				allPlugins.remove(p);
@@ -525,6 +559,12 @@ public class SessionManager
 			}
 
 		}
+		synchronized (this) {
+			if (pluginsSharedPool != null) {
+				pluginsSharedPool.shutdown();
+				pluginsSharedPool = null;
+			}
+		}
 	}
 
 	@Override
@@ -653,7 +693,21 @@ public class SessionManager
 		list.add(getName(), "Maximum user sessions", maxUserSessions, Level.FINE);
 		list.add(getName(), "Total user sessions", totalUserSessions, Level.FINER);
 		list.add(getName(), "Active user connections", activeUserNumber, Level.FINER);
+		if (list.checkLevel(Level.FINER)) {
+			int[] shardsSizes = sessionsByNodeId.getShardsSizes();
+			int maxShardSize = 0;
+
+			for (int shardSize : shardsSizes) {
+				maxShardSize = Math.max(maxShardSize, shardSize);
+			}
+			list.add(getName(), "Largest user sessions shard", maxShardSize, Level.FINER);
+			if (list.checkLevel(Level.FINEST)) {
+				list.add(getName(), "User sessions shards", Arrays.toString(shardsSizes), Level.FINEST);
+			}
+		}
 		list.add(getName(), "Authentication timouts", authTimeouts, Level.INFO);
+		list.add(getName(), "Processors checks saved by dispatch index",
+				 processorsIndexSavedChecks + processorsIndex.getSavedChecks(), Level.FINER);
 		if (list.checkLevel(Level.INFO)) {
 			int totalQueuesWait = list.getValue(getName(), "Total queues wait", 0);
 			long totalQueuesOverflow = list.getValue(getName(), "Total queues overflow", 0l);
@@ -666,13 +720,24 @@ public class SessionManager
 				if (list.checkLevel(Level.INFO, proc.getTotalQueueSize() + proc.getDroppedPackets())) {
 					list.add(getName(), "Processor: " + procent.getKey(),
 							 ", Queue: " + proc.getTotalQueueSize() + ", AvTime: " + proc.getAverageProcessingTime() +
-									 ", Runs: " + proc.getTotalRuns() + ", Lost: " + proc.getDroppedPackets(),
-							 Level.INFO);
+									 ", Runs: " + proc.getTotalRuns() + ", Lost: " + proc.getDroppedPackets() +
+									 ((proc instanceof ProcessingMailboxes)
+									  ? ", AvWait: " + ((ProcessingMailboxes) proc).getAverageWaitTime()
+									  : ""), Level.INFO);
 				}
 			}
 			list.add(getName(), "Total queues wait", totalQueuesWait, Level.INFO);
 			list.add(getName(), "Total queues overflow", totalQueuesOverflow, Level.INFO);
 		}
+
+		SharedProcessingPool sharedPool = pluginsSharedPool;
+
+		if (sharedPool != null) {
+			list.add(getName(), "Shared pool threads", sharedPool.getParallelism(), Level.FINE);
+			list.add(getName(), "Shared pool active threads", sharedPool.getActiveThreadCount(), Level.FINE);
+			list.add(getName(), "Shared pool steals", sharedPool.getStealCount(), Level.FINER);
+			list.add(getName(), "Shared pool virtual threads", String.valueOf(sharedPool.isUsingVirtualThreads()), Level.FINER);
+		}
 		if (list.checkLevel(Level.FINE)) {
 			for (Map.Entry tmEntry : postTimes.entrySet()) {
 
@@ -815,12 +880,12 @@ public class SessionManager
 	@Override
 	public synchronized void everySecond() {
 		super.everySecond();
+		calculateActiveUsers();
 	}
 
 	@Override
 	public synchronized void everyMinute() {
 		super.everyMinute();
-		calculateActiveUsers();
 
 		final Calendar now = Calendar.getInstance();
 		if (now.get(Calendar.YEAR) != lastDailyStatsReset.get(Calendar.YEAR) ||
@@ -836,23 +901,34 @@ public class SessionManager
 	}
 
 	private void calculateActiveUsers() {
-		int count = 0;
-
-		for (BareJID bareJID : sessionsByNodeId.keySet()) {
-			if (!bareJID.toString().startsWith("sess-man")) {
-				XMPPSession session = sessionsByNodeId.get(bareJID);
-				// check if session is still there as it could be closed
-				// if sessionsByNodeId is big collection
-				if (session != null) {
-					for (XMPPResourceConnection xMPPResourceConnection : session.getActiveResources()) {
-						if (System.currentTimeMillis() - xMPPResourceConnection.getLastAccessed() < activeUserTimeframe) {
+		// recounting only shards assigned to the current second of a minute, instead of walking over all sessions at
+		// once, so each shard is recounted exactly once per minute, also when there are fewer than 60 shards
+		int shards = activeUsersPerShard.length;
+		int from = activeUsersSecond * shards / 60;
+		int to = (activeUsersSecond + 1) * shards / 60;
+		long now = System.currentTimeMillis();
+
+		activeUsersSecond = (activeUsersSecond + 1) % 60;
+		for (int shardIdx = from; shardIdx < to; shardIdx++) {
+			int count = 0;
+
+			for (Map.Entry<BareJID, XMPPSession> entry : sessionsByNodeId.getShard(shardIdx).entrySet()) {
+				if (!entry.getKey().toString().startsWith("sess-man")) {
+					for (XMPPResourceConnection xMPPResourceConnection : entry.getValue().getActiveResources()) {
+						if (now - xMPPResourceConnection.getLastAccessed() < activeUserTimeframe) {
 							count++;
 						}
 					}
 				}
 			}
+			activeUsersPerShard[shardIdx] = count;
 		}
 
+		int count = 0;
+
+		for (int shardCount : activeUsersPerShard) {
+			count += shardCount;
+		}
 		activeUserNumber = count;
 	}
 
@@ -1659,6 +1735,18 @@ public class SessionManager
 
 				break;
 
+			case STREAM_BACKPRESSURE:
+				if (connection != null) {
+					if (Boolean.parseBoolean(Command.getFieldValue(pc, "congested"))) {
+						connection.putSessionData(XMPPResourceConnection.WRITE_CONGESTED_KEY, Boolean.TRUE);
+					} else {
+						connection.removeSessionData(XMPPResourceConnection.WRITE_CONGESTED_KEY);
+					}
+				}
+				processing_result = true;
+
+				break;
+
 			case BROADCAST_TO_ONLINE: {
 				try {
 					if ((connection != null && connection.isAuthorized() && isAdmin(connection.getJID())) ||
@@ -2224,39 +2312,43 @@ public class SessionManager
 		return processingTime;
 	}
 
+	private synchronized SharedProcessingPool getPluginsSharedPool() {
+		if (pluginsSharedPool == null) {
+			pluginsSharedPool = new SharedProcessingPool(getName(), pluginsSharedPoolSize, pluginsSharedPoolSize * 4);
+		}
+		return pluginsSharedPool;
+	}
+
+	private synchronized void updateProcessorsIndex() {
+		ProcessorDispatchIndex oldIndex = processorsIndex;
+
+		processorsIndex = new ProcessorDispatchIndex(processors.values());
+		processorsIndexSavedChecks += oldIndex.getSavedChecks();
+	}
+
 	private void walk(final Packet packet, final XMPPResourceConnection connection) {
 
 		// final Element elem, final Queue<Packet> results) {
-		for (XMPPProcessorIfc proc_t : processors.values()) {
-			XMPPProcessorIfc processor = proc_t;
-			Authorization result = processor.canHandle(packet, connection);
-
-			if (result == Authorization.AUTHORIZED) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
-							new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
-				}
+		// index returns only processors authorized to handle the packet
+		for (XMPPProcessorIfc processor : processorsIndex.getProcessors(packet, connection)) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "XMPPProcessorIfc: {0} ({1}" + ")" + "Request: " + "{2}, conn: {3}",
+						new Object[]{processor.getClass().getSimpleName(), processor.id(), packet, connection});
+			}
 
-				ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
+			ProcessingThreads<ProcessorWorkerThread> pt = workerThreads.get(processor.id());
 
-				if (pt == null) {
-					pt = workerThreads.get(defPluginsThreadsPool);
-				}
-				if (pt.addItem(processor, packet, connection)) {
-					packet.processedBy(processor.id());
-				} else {
-					packet.notProcessedBy(processor.id());
-					// proc_t.debugQueue();
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
-								new Object[]{packet.toStringSecure(), pt.getName()});
-					}
-				}
+			if (pt == null) {
+				pt = workerThreads.get(defPluginsThreadsPool);
+			}
+			if (pt.addItem(processor, packet, connection)) {
+				packet.processedBy(processor.id());
 			} else {
-				if (result != null) {
-
-					// TODO: A plugin returned an error, the packet should be bounced back
-					// with an appropriate error
+				packet.notProcessedBy(processor.id());
+				// proc_t.debugQueue();
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Can not add packet: {0} to processor: {1} internal queue full.",
+							new Object[]{packet.toStringSecure(), pt.getName()});
 				}
 			}
 		}    // end of for ()
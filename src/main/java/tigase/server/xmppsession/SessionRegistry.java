@@ -0,0 +1,256 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Registry of user sessions or connections split into shards, each being a separate {@link ConcurrentHashMap}.
+ * <br>
+ * Key is assigned to the shard in the same way as packets are assigned to processing threads of {@link
+ * SessionManager} (<code>Math.abs(hashCode % shards)</code>), so with number of shards equal to the number of
+ * processing threads entries used by a single thread are kept in a single shard. Each shard may be iterated and
+ * measured separately, so periodic tasks may process registry in small steps instead of walking over all entries at
+ * once. Smaller maps also do not need to be rehashed as a whole when the number of sessions grows.
+ * <br>
+ * Registry implements {@link ConcurrentMap}, so it may be used in place of a single map. Iteration over the whole
+ * registry visits shards one by one and is weakly consistent, the same as iteration over {@link ConcurrentHashMap}.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class SessionRegistry<K, V>
+		extends AbstractMap<K, V>
+		implements ConcurrentMap<K, V> {
+
+	private final Set<Entry<K, V>> entrySet = new EntrySet();
+	private final ConcurrentHashMap<K, V>[] shards;
+
+	/**
+	 * Creates a new registry.
+	 *
+	 * @param shardsCount number of shards
+	 * @param initialCapacity expected number of entries in the whole registry
+	 */
+	@SuppressWarnings("unchecked")
+	public SessionRegistry(int shardsCount, int initialCapacity) {
+		if (shardsCount <= 0) {
+			throw new IllegalArgumentException("parameter shardsCount must be greater than 0");
+		}
+		shards = new ConcurrentHashMap[shardsCount];
+		for (int i = 0; i < shardsCount; i++) {
+			shards[i] = new ConcurrentHashMap<K, V>(Math.max(16, initialCapacity / shardsCount));
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (ConcurrentHashMap<K, V> shard : shards) {
+			shard.clear();
+		}
+	}
+
+	@Override
+	public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return shardFor(key).compute(key, remappingFunction);
+	}
+
+	@Override
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+		return shardFor(key).computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		return shardFor(key).computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shardFor(key).containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (ConcurrentHashMap<K, V> shard : shards) {
+			if (shard.containsValue(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return entrySet;
+	}
+
+	@Override
+	public V get(Object key) {
+		return shardFor(key).get(key);
+	}
+
+	/**
+	 * Returns view of the single shard of the registry.
+	 *
+	 * @param idx index of the shard
+	 *
+	 * @return map with entries of the shard
+	 */
+	public ConcurrentMap<K, V> getShard(int idx) {
+		return shards[idx];
+	}
+
+	/**
+	 * Returns index of the shard to which key is assigned.
+	 *
+	 * @param key key of the entry
+	 *
+	 * @return index of the shard
+	 */
+	public int getShardIndex(Object key) {
+		return Math.abs(key.hashCode() % shards.length);
+	}
+
+	public int getShardsCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns sizes of all shards.
+	 *
+	 * @return array with number of entries in each shard
+	 */
+	public int[] getShardsSizes() {
+		int[] sizes = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			sizes[i] = shards[i].size();
+		}
+		return sizes;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (ConcurrentHashMap<K, V> shard : shards) {
+			if (!shard.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		return shardFor(key).merge(key, value, remappingFunction);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return shardFor(key).put(key, value);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		return shardFor(key).putIfAbsent(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return shardFor(key).remove(key);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		return shardFor(key).remove(key, value);
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		return shardFor(key).replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		return shardFor(key).replace(key, value);
+	}
+
+	@Override
+	public int size() {
+		long size = 0;
+		for (ConcurrentHashMap<K, V> shard : shards) {
+			size += shard.size();
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	private ConcurrentHashMap<K, V> shardFor(Object key) {
+		return shards[getShardIndex(key)];
+	}
+
+	private class EntrySet
+			extends AbstractSet<Entry<K, V>> {
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			return new Iterator<Entry<K, V>>() {
+
+				private Iterator<Entry<K, V>> current = shards[0].entrySet().iterator();
+				private int idx = 0;
+				private Iterator<Entry<K, V>> last = null;
+
+				@Override
+				public boolean hasNext() {
+					while (!current.hasNext()) {
+						if (++idx >= shards.length) {
+							return false;
+						}
+						current = shards[idx].entrySet().iterator();
+					}
+					return true;
+				}
+
+				@Override
+				public Entry<K, V> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					last = current;
+					return current.next();
+				}
+
+				@Override
+				public void remove() {
+					if (last == null) {
+						throw new IllegalStateException();
+					}
+					last.remove();
+					last = null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return SessionRegistry.this.size();
+		}
+	}
+}
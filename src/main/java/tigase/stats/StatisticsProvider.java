@@ -19,7 +19,7 @@ package tigase.stats;
 
 import tigase.server.QueueType;
 import tigase.sys.TigaseRuntime;
-import tigase.util.historyCache.AllHistoryCache;
+import tigase.util.historyCache.ColumnarHistoryCache;
 import tigase.util.historyCache.FloatHistoryCache;
 import tigase.util.historyCache.IntHistoryCache;
 import tigase.util.historyCache.LongHistoryCache;
@@ -356,16 +356,8 @@ public class StatisticsProvider
 
 		if (cache.allHistory != null) {
 			result = new LinkedHashMap<String, LinkedList<Object>>();
-			for (StatisticsList stHist : cache.allHistory.getCurrentHistory()) {
-				for (String key : statsKeys) {
-					LinkedList<Object> statsForKey = result.get(key);
-
-					if (statsForKey == null) {
-						statsForKey = new LinkedList<Object>();
-						result.put(key, statsForKey);
-					}
-					statsForKey.add(stHist.getValue(key));
-				}
+			for (String key : statsKeys) {
+				result.put(key, new LinkedList<Object>(Arrays.asList(cache.allHistory.getHistory(key))));
 			}
 		} else {
 			log.log(Level.INFO, "The server does not keep metrics history.");
@@ -536,7 +528,7 @@ public class StatisticsProvider
 		private static final long MINUTE = 60 * SECOND;
 		private static final long HOUR = 60 * MINUTE;
 
-		private AllHistoryCache allHistory = null;
+		private ColumnarHistoryCache allHistory = null;
 		// ~--- fields -------------------------------------------------------------
 		private int clIOQueue = 0;
 		private int clQueue = 0;
@@ -611,7 +603,7 @@ public class StatisticsProvider
 				conns_history = new IntHistoryCache(historySize);
 				clpacks_history = new FloatHistoryCache(historySize);
 				direct_used_history = new LongHistoryCache(historySize);
-				allHistory = new AllHistoryCache(historySize, highMemoryLevel);
+				allHistory = new ColumnarHistoryCache(historySize, highMemoryLevel);
 			}
 			updateTimer = new Timer("stats-cache", true);
 			updateTimer.scheduleAtFixedRate(new TimerTask() {
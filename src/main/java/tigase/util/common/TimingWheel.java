@@ -0,0 +1,235 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for large number of short lived timeouts, ie. for responses to packets sent with a timeout.
+ * <br>
+ * Scheduling and cancelling a timeout is a constant time operation which may be called from any thread and does not
+ * create any scheduler task. Expired timeouts are collected only when {@link #advance(Consumer)} is called, which
+ * should be done periodically (at least once per tick) by a single timer thread. Timeouts are fired with precision
+ * of a single tick.
+ */
+public class TimingWheel {
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER = AtomicIntegerFieldUpdater.newUpdater(
+			Timeout.class, "state");
+
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final int mask;
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final long startTime;
+	private final long tickNanos;
+	private final Timeout[] wheel;
+	private long tick = 0;
+
+	/**
+	 * Creates a new timing wheel.
+	 *
+	 * @param tickDuration duration of a single tick, which is precision of fired timeouts
+	 * @param unit unit of <code>tickDuration</code>
+	 * @param ticksPerWheel number of buckets of the wheel, rounded up to the power of 2
+	 */
+	public TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		this(tickDuration, unit, ticksPerWheel, System.nanoTime());
+	}
+
+	TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, long startTime) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("parameter tickDuration must be greater than 0");
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException("parameter ticksPerWheel must be between 1 and " + (1 << 30));
+		}
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.wheel = new Timeout[size];
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Fires all timeouts which expired since the last call. Expired tasks are passed to <code>runner</code>, which
+	 * may execute them directly or pass them to an executor.
+	 *
+	 * @param runner consumer executing expired tasks
+	 *
+	 * @return number of fired timeouts
+	 */
+	public int advance(Consumer<Runnable> runner) {
+		return advance(System.nanoTime(), runner);
+	}
+
+	/**
+	 * Returns number of scheduled timeouts which were not fired nor cancelled yet.
+	 *
+	 * @return number of pending timeouts
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Schedules a task to be executed after a delay.
+	 *
+	 * @param task task to execute
+	 * @param delay delay after which task should be executed
+	 * @param unit unit of <code>delay</code>
+	 *
+	 * @return handle which may be used to cancel the timeout
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		return schedule(task, unit.toNanos(delay), System.nanoTime());
+	}
+
+	synchronized int advance(long now, Consumer<Runnable> runner) {
+		int fired = 0;
+
+		while (now - startTime >= tick * tickNanos) {
+			transferAdded();
+			fired += expire((int) (tick & mask), runner);
+			++tick;
+		}
+
+		return fired;
+	}
+
+	Timeout schedule(Runnable task, long delayNanos, long now) {
+		Timeout timeout = new Timeout(task, now + Math.max(delayNanos, 0));
+
+		pending.incrementAndGet();
+		added.offer(timeout);
+
+		return timeout;
+	}
+
+	private int expire(int idx, Consumer<Runnable> runner) {
+		int fired = 0;
+		Timeout prev = null;
+		Timeout timeout = wheel[idx];
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean remove = true;
+
+			if (timeout.state != Timeout.PENDING) {
+				// cancelled timeouts are removed lazily, when their bucket is visited
+			} else if (timeout.remainingRounds > 0) {
+				--timeout.remainingRounds;
+				remove = false;
+			} else if (timeout.expire()) {
+				Runnable task = timeout.task;
+
+				timeout.task = null;
+				pending.decrementAndGet();
+				runner.accept(task);
+				++fired;
+			}
+
+			if (remove) {
+				if (prev == null) {
+					wheel[idx] = next;
+				} else {
+					prev.next = next;
+				}
+				timeout.next = null;
+			} else {
+				prev = timeout;
+			}
+			timeout = next;
+		}
+
+		return fired;
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state != Timeout.PENDING) {
+				continue;
+			}
+
+			long deadlineTick = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+			// timeouts which should already be fired are fired in the current tick
+			long targetTick = Math.max(deadlineTick, tick);
+			int idx = (int) (targetTick & mask);
+
+			timeout.remainingRounds = (targetTick - tick) / wheel.length;
+			timeout.next = wheel[idx];
+			wheel[idx] = timeout;
+		}
+	}
+
+	/**
+	 * Handle of a task scheduled in the {@link TimingWheel}.
+	 */
+	public final class Timeout {
+
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final int PENDING = 0;
+
+		private final long deadline;
+		private Timeout next = null;
+		private long remainingRounds = 0;
+		volatile int state = PENDING;
+		private volatile Runnable task;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout, if it was not fired yet.
+		 *
+		 * @return <code>true</code> if timeout was cancelled by this call
+		 */
+		public boolean cancel() {
+			if (!STATE_UPDATER.compareAndSet(this, PENDING, CANCELLED)) {
+				return false;
+			}
+			// releasing task early, as cancelled timeout stays in the wheel until its bucket is visited
+			task = null;
+			pending.decrementAndGet();
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private boolean expire() {
+			return STATE_UPDATER.compareAndSet(this, PENDING, EXPIRED);
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.historyCache;
+
+import tigase.stats.StatRecord;
+import tigase.stats.StatisticsList;
+import tigase.sys.TigaseRuntime;
+import tigase.util.repository.DataTypes;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * History of all statistics kept in columns, one for each metric, instead of keeping every {@link StatisticsList}
+ * snapshot.
+ * <br>
+ * Names of metrics are stored only once per column. Values are kept in chunks of {@value #CHUNK_SIZE} samples.
+ * Numeric values of the column type are kept as primitives and, when chunk is full, they are encoded as variable
+ * length deltas (<code>long</code> and <code>int</code>) or as XOR of bits of subsequent values (<code>float</code>).
+ * Other values (strings, collections and numbers which type is different than type of the column) are kept as
+ * references. Metrics which were not present in a snapshot are returned with default values, exactly like from
+ * {@link StatisticsList#getValue(String)}.
+ */
+public class ColumnarHistoryCache {
+
+	private static final int CHUNK_SIZE = 64;
+	private static final Logger log = Logger.getLogger(ColumnarHistoryCache.class.getName());
+	private final Map<String, Map<String, Column>> columns = new HashMap<String, Map<String, Column>>();
+	private final int limit;
+	private int highMemoryLevel = 95;
+	private int highMemoryUsageCount = 0;
+	private long next = 0;
+	private long start = 0;
+
+	private static Object defaultValue(char type) {
+		switch (type) {
+			case 'L':
+				return 0L;
+			case 'I':
+				return 0;
+			case 'F':
+				return 0f;
+			case 'C':
+				return null;
+			default:
+				return " ";
+		}
+	}
+
+	private static boolean isMinusOne(String value) {
+		return "-1".equals(value) || "-1.0".equals(value);
+	}
+
+	private static char kindOf(StatRecord rec) {
+		if (rec.getLongValue() != -1) {
+			return 'L';
+		}
+		if (rec.getIntValue() != -1) {
+			return 'I';
+		}
+		if (rec.getFloatValue() != -1f) {
+			return 'F';
+		}
+		if (rec.getCollection() != null) {
+			return 'C';
+		}
+		// numeric value of -1 cannot be distinguished from unset values of other types
+		return isMinusOne(rec.getValue()) ? 'N' : 'S';
+	}
+
+	public ColumnarHistoryCache(int limit, int highMemoryLevel) {
+		this.limit = limit;
+		this.highMemoryLevel = highMemoryLevel;
+	}
+
+	public synchronized void addItem(StatisticsList item) {
+		long sample = next++;
+
+		for (StatRecord rec : item) {
+			Map<String, Column> compColumns = columns.get(rec.getComponent());
+
+			if (compColumns == null) {
+				compColumns = new HashMap<String, Column>();
+				columns.put(rec.getComponent(), compColumns);
+			}
+
+			Column column = compColumns.get(rec.getDescription());
+
+			if (column == null) {
+				column = new Column();
+				compColumns.put(rec.getDescription(), column);
+			}
+			column.add(sample, rec);
+		}
+
+		long oldStart = start;
+
+		if (next - start > limit) {
+			start = next - limit;
+		}
+		if (isHighMemoryUsage()) {
+			highMemoryUsageCount++;
+			int count = (int) (next - start);
+			int minimalSize = count / 2;
+			if (minimalSize < 5) {
+				minimalSize = 5;
+			}
+			if (count > minimalSize) {
+				start = next - minimalSize;
+			}
+			log.log(Level.CONFIG, "Shrinking statistics to {0} items for {1} time",
+					new Object[]{minimalSize, highMemoryUsageCount});
+		} else {
+			highMemoryUsageCount = 0;
+		}
+		if (next % CHUNK_SIZE == 0) {
+			seal();
+		}
+		if (oldStart / CHUNK_SIZE != start / CHUNK_SIZE) {
+			evict();
+		}
+	}
+
+	/**
+	 * Returns history of the metric.
+	 *
+	 * @param dataId id of the metric in the same form as for {@link StatisticsList#getValue(String)}
+	 *
+	 * @return array of values from the oldest to the newest one
+	 */
+	public synchronized Object[] getHistory(String dataId) {
+		char type = DataTypes.decodeTypeIdFromName(dataId);
+		String dataName = DataTypes.stripNameFromTypeId(dataId);
+		int idx = dataName.indexOf('/');
+		Object[] result = new Object[(int) (next - start)];
+
+		Arrays.fill(result, defaultValue(type));
+
+		Map<String, Column> compColumns = (idx < 0) ? null : columns.get(dataName.substring(0, idx));
+		Column column = (compColumns == null) ? null : compColumns.get(dataName.substring(idx + 1));
+
+		if (column != null) {
+			column.read(start, next, type, result);
+		}
+
+		return result;
+	}
+
+	public synchronized int getSize() {
+		return (int) (next - start);
+	}
+
+	protected boolean isHighMemoryUsage() {
+		return TigaseRuntime.getTigaseRuntime().getHeapMemUsage() > highMemoryLevel;
+	}
+
+	private void seal() {
+		// chunks of metrics which are not present in every snapshot would be kept unencoded until next value
+		for (Map<String, Column> compColumns : columns.values()) {
+			for (Column column : compColumns.values()) {
+				Chunk chunk = column.chunks.peekLast();
+
+				if (chunk != null && chunk.first + CHUNK_SIZE <= next) {
+					chunk.seal(column.kind);
+				}
+			}
+		}
+	}
+
+	private void evict() {
+		for (Iterator<Map<String, Column>> compIt = columns.values().iterator(); compIt.hasNext(); ) {
+			Map<String, Column> compColumns = compIt.next();
+
+			compColumns.values().removeIf(column -> column.evict(start));
+			if (compColumns.isEmpty()) {
+				compIt.remove();
+			}
+		}
+	}
+
+	private static class Chunk {
+
+		private final long first;
+		private byte[] encoded = null;
+		// bits of samples for which numeric value of column type is kept
+		private long numeric = 0;
+		private Object[] objects = null;
+		private long[] values = new long[CHUNK_SIZE];
+
+		private Chunk(long first) {
+			this.first = first;
+		}
+
+		private long[] decode(char kind) {
+			if (values != null) {
+				return values;
+			}
+
+			long[] result = new long[CHUNK_SIZE];
+			long prev = 0;
+			int pos = 0;
+
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if ((numeric & (1L << i)) == 0) {
+					continue;
+				}
+
+				long encodedValue = 0;
+				int shift = 0;
+				byte b;
+
+				do {
+					b = encoded[pos++];
+					encodedValue |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+
+				if (kind == 'F') {
+					prev ^= encodedValue;
+				} else {
+					prev += (encodedValue >>> 1) ^ -(encodedValue & 1);
+				}
+				result[i] = prev;
+			}
+
+			return result;
+		}
+
+		private void seal(char kind) {
+			if (values == null) {
+				return;
+			}
+
+			byte[] buffer = new byte[CHUNK_SIZE * 10];
+			long prev = 0;
+			int pos = 0;
+
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if ((numeric & (1L << i)) == 0) {
+					continue;
+				}
+
+				long value;
+
+				if (kind == 'F') {
+					// subsequent values of a metric usually differ only in few bits
+					value = prev ^ values[i];
+				} else {
+					long delta = values[i] - prev;
+
+					value = (delta << 1) ^ (delta >> 63);
+				}
+				prev = values[i];
+				while ((value & ~0x7FL) != 0) {
+					buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+					value >>>= 7;
+				}
+				buffer[pos++] = (byte) value;
+			}
+			encoded = Arrays.copyOf(buffer, pos);
+			values = null;
+		}
+	}
+
+	private static class Column {
+
+		private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+		// type of values kept as primitives, set by the first numeric value
+		private char kind = 0;
+
+		private void add(long sample, StatRecord rec) {
+			Chunk chunk = chunks.peekLast();
+
+			if (chunk == null || chunk.first + CHUNK_SIZE <= sample) {
+				if (chunk != null) {
+					chunk.seal(kind);
+				}
+				chunk = new Chunk(sample - (sample % CHUNK_SIZE));
+				chunks.add(chunk);
+			}
+
+			int idx = (int) (sample - chunk.first);
+			char recKind = kindOf(rec);
+
+			if (kind == 0 && (recKind == 'L' || recKind == 'I' || recKind == 'F')) {
+				kind = recKind;
+			}
+			if (recKind == kind) {
+				switch (kind) {
+					case 'L':
+						chunk.values[idx] = rec.getLongValue();
+						break;
+					case 'I':
+						chunk.values[idx] = rec.getIntValue();
+						break;
+					default:
+						chunk.values[idx] = Float.floatToIntBits(rec.getFloatValue()) & 0xFFFFFFFFL;
+						break;
+				}
+				chunk.numeric |= 1L << idx;
+			} else {
+				if (chunk.objects == null) {
+					chunk.objects = new Object[CHUNK_SIZE];
+				}
+				switch (recKind) {
+					case 'L':
+						chunk.objects[idx] = rec.getLongValue();
+						break;
+					case 'I':
+						chunk.objects[idx] = rec.getIntValue();
+						break;
+					case 'F':
+						chunk.objects[idx] = rec.getFloatValue();
+						break;
+					case 'C':
+						chunk.objects[idx] = rec.getCollection();
+						break;
+					default:
+						chunk.objects[idx] = rec.getValue();
+						break;
+				}
+			}
+		}
+
+		/**
+		 * Removes chunks containing only samples older than <code>start</code>.
+		 *
+		 * @return <code>true</code> if column is empty
+		 */
+		private boolean evict(long start) {
+			while (!chunks.isEmpty() && chunks.peekFirst().first + CHUNK_SIZE <= start) {
+				chunks.pollFirst();
+			}
+			return chunks.isEmpty();
+		}
+
+		private void read(long from, long to, char type, Object[] result) {
+			for (Chunk chunk : chunks) {
+				if (chunk.first + CHUNK_SIZE <= from) {
+					continue;
+				}
+
+				long[] values = (chunk.numeric != 0) ? chunk.decode(kind) : null;
+
+				for (int i = 0; i < CHUNK_SIZE; i++) {
+					long sample = chunk.first + i;
+
+					if (sample < from || sample >= to) {
+						continue;
+					}
+					if ((chunk.numeric & (1L << i)) != 0) {
+						result[(int) (sample - from)] = numericValue(values[i], type);
+					} else if (chunk.objects != null && chunk.objects[i] != null) {
+						result[(int) (sample - from)] = objectValue(chunk.objects[i], type);
+					}
+				}
+			}
+		}
+
+		private Object numericValue(long value, char type) {
+			if (type == kind) {
+				switch (kind) {
+					case 'L':
+						return value;
+					case 'I':
+						return (int) value;
+					default:
+						return Float.intBitsToFloat((int) value);
+				}
+			}
+			switch (type) {
+				case 'L':
+					return -1L;
+				case 'I':
+					return -1;
+				case 'F':
+					return -1f;
+				case 'C':
+					return null;
+				default:
+					switch (kind) {
+						case 'L':
+							return String.valueOf(value);
+						case 'I':
+							return String.valueOf((int) value);
+						default:
+							return String.valueOf(Float.intBitsToFloat((int) value));
+					}
+			}
+		}
+
+		private Object objectValue(Object value, char type) {
+			switch (type) {
+				case 'L':
+					return (value instanceof Long) ? value : -1L;
+				case 'I':
+					return (value instanceof Integer) ? value : -1;
+				case 'F':
+					return (value instanceof Float) ? value : -1f;
+				case 'C':
+					return (value instanceof Collection) ? value : null;
+				default:
+					return value.toString();
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link ProcessingThreads} which does not own any threads. Each user (key returned by {@link
+ * ProcessingThreads#getQueueKey(tigase.server.Packet, tigase.xmpp.XMPPResourceConnection)}) gets a lightweight
+ * mailbox, which is created when first item for the user is queued and removed when it is empty. Mailbox is
+ * scheduled for execution on a shared {@link Executor} and processes its items one by one, so items of the same user
+ * are still processed in the order in which they were queued, while items of different users are processed
+ * concurrently by any available thread.
+ *
+ * @param <E>
+ */
+public class ProcessingMailboxes<E extends WorkerThread>
+		extends ProcessingThreads<E> {
+
+	private static final Logger log = Logger.getLogger(ProcessingMailboxes.class.getName());
+
+	/**
+	 * Maximal number of items processed by a mailbox before it is scheduled again, so other mailboxes are not starved
+	 * by a single busy user.
+	 */
+	private static final int MAX_BATCH = 32;
+
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<E> idleWorkers = new ConcurrentLinkedQueue<E>();
+	private final ConcurrentHashMap<Object, Mailbox> mailboxes = new ConcurrentHashMap<Object, Mailbox>();
+	private final int maxQueueSize;
+	private final AtomicInteger queueSize = new AtomicInteger(0);
+	private final AtomicLong rejectedItems = new AtomicLong(0);
+	private final AtomicLong runs = new AtomicLong(0);
+	private final E worker;
+	private long averageProcessingTime = 0;
+	private long averageWaitTime = 0;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param worker worker used to create instances processing items, which are never started as threads
+	 * @param maxQueueSize maximal number of items waiting in all mailboxes
+	 * @param name name of the instance
+	 * @param executor executor on which mailboxes are processed
+	 */
+	public ProcessingMailboxes(E worker, int maxQueueSize, String name, Executor executor) {
+		super(name);
+		this.worker = worker;
+		this.maxQueueSize = maxQueueSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public long getAverageProcessingTime() {
+		return averageProcessingTime;
+	}
+
+	/**
+	 * Returns average time in milliseconds which items waited in mailboxes before being processed.
+	 *
+	 * @return average wait time
+	 */
+	public long getAverageWaitTime() {
+		return averageWaitTime;
+	}
+
+	public int getMailboxesCount() {
+		return mailboxes.size();
+	}
+
+	@Override
+	public long getDroppedPackets() {
+		return super.getDroppedPackets() + rejectedItems.get();
+	}
+
+	@Override
+	public int getTotalQueueSize() {
+		return queueSize.get();
+	}
+
+	@Override
+	public int getTotalRuns() {
+		return (int) runs.get();
+	}
+
+	@Override
+	public void shutdown() {
+		stopped = true;
+	}
+
+	@Override
+	protected boolean offer(Object key, QueueItem item) {
+		if (stopped) {
+			return false;
+		}
+		if (queueSize.incrementAndGet() > maxQueueSize) {
+			queueSize.decrementAndGet();
+			return false;
+		}
+
+		Envelope envelope = new Envelope(item);
+		// item is added while mailbox is locked in the map, so it cannot be removed before it is scheduled
+		Mailbox mailbox = mailboxes.compute(key, (k, current) -> {
+			Mailbox result = (current == null) ? new Mailbox(k) : current;
+
+			result.queue.offer(envelope);
+			return result;
+		});
+
+		mailbox.schedule();
+		return true;
+	}
+
+	@SuppressWarnings({"unchecked"})
+	private E acquireWorker() {
+		E result = idleWorkers.poll();
+
+		return (result != null) ? result : (E) worker.getNewInstance();
+	}
+
+	private void process(Envelope envelope, E worker) {
+		long start = System.currentTimeMillis();
+		long wait = start - envelope.queuedAt;
+
+		if (wait > 0) {
+			averageWaitTime = (averageWaitTime + wait) / 2;
+		}
+		try {
+			worker.process(envelope.item);
+		} catch (Exception e) {
+			log.log(Level.SEVERE, getName() + " exception during packet processing: " + envelope.item.getPacket(), e);
+		}
+
+		long end = System.currentTimeMillis() - start;
+
+		if (end > 0) {
+			averageProcessingTime = (averageProcessingTime + end) / 2;
+		}
+		runs.incrementAndGet();
+	}
+
+	private static class Envelope {
+
+		private final QueueItem item;
+		private final long queuedAt = System.currentTimeMillis();
+
+		private Envelope(QueueItem item) {
+			this.item = item;
+		}
+	}
+
+	private class Mailbox
+			implements Runnable {
+
+		private final Object key;
+		private final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private Mailbox(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			E worker = acquireWorker();
+			Envelope envelope;
+			int processed = 0;
+			int dropped = 0;
+
+			try {
+				while (processed < MAX_BATCH && (envelope = queue.poll()) != null) {
+					queueSize.decrementAndGet();
+					if (!stopped) {
+						process(envelope, worker);
+					} else {
+						++dropped;
+					}
+					++processed;
+				}
+			} finally {
+				idleWorkers.offer(worker);
+				scheduled.set(false);
+			}
+			if (dropped > 0) {
+				rejectedItems.addAndGet(dropped);
+				log.log(Level.WARNING, "{0} is stopped, dropped {1} queued items", new Object[]{getName(), dropped});
+			}
+			if (!queue.isEmpty()) {
+				schedule();
+			} else {
+				mailboxes.computeIfPresent(key, (k, current) -> (current == this && queue.isEmpty() &&
+						!scheduled.get()) ? null : current);
+			}
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException ex) {
+					// nothing would process queued items, so they are dropped instead of being kept in queue forever
+					int dropped = 0;
+
+					while (queue.poll() != null) {
+						queueSize.decrementAndGet();
+						++dropped;
+					}
+					rejectedItems.addAndGet(dropped);
+					scheduled.set(false);
+					mailboxes.computeIfPresent(key, (k, current) -> (current == this && queue.isEmpty() &&
+							!scheduled.get()) ? null : current);
+					log.log(Level.WARNING, "{0} could not schedule processing of queued items, dropped {1} items, " +
+							"executor: {2}", new Object[]{getName(), dropped, executor});
+				}
+			}
+		}
+	}
+}
@@ -52,6 +52,42 @@ public class ProcessingThreads<E extends WorkerThread> {
 	private int numWorkerThreads = 1;
 	private ArrayList<E> workerThreads = null;
 
+	/**
+	 * Returns key used to select queue for the packet, so all packets of the same user end up in the same queue.
+	 *
+	 * @param packet packet to process
+	 * @param conn user session or <code>null</code>
+	 *
+	 * @return key of the queue
+	 */
+	protected static Object getQueueKey(Packet packet, XMPPResourceConnection conn) {
+		try {
+			if ((conn != null) && conn.isAuthorized()) {
+
+				// Queueing packets per user...
+				return conn.getJID().getBareJID();
+			} else {
+				if (packet.getPacketFrom() != null) {
+
+					// Queueing packets per user's connection...
+					return packet.getPacketFrom();
+				}
+			}
+		} catch (Exception e) {
+
+			// This should not happen, but just in case until we are sure all
+			// cases are catched.
+		}
+
+		// Otherwise per destination address
+		// If the packet elemTo is set then used it, otherwise just packetTo:
+		if (packet.getStanzaTo() != null) {
+			return packet.getStanzaTo().getBareJID();
+		} else {
+			return packet.getTo();
+		}
+	}
+
 	@SuppressWarnings({"unchecked"})
 	public ProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name)
 			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
@@ -80,56 +116,18 @@ public class ProcessingThreads<E extends WorkerThread> {
 //  }
 	}
 
+	/**
+	 * Creates instance without worker threads, for subclasses which process queued items in a different way.
+	 *
+	 * @param name name of the instance
+	 */
+	protected ProcessingThreads(String name) {
+		this.name = name;
+	}
+
 	public boolean addItem(XMPPProcessorIfc processor, Packet packet, XMPPResourceConnection conn) {
-		boolean ret = false;
 		QueueItem item = new QueueItem(processor, packet, conn);
-
-		try {
-			if ((item.getConn() != null) && item.getConn().isAuthorized()) {
-
-				// Queueing packets per user...
-				ret = workerThreads.get(Math.abs(conn.getJID().getBareJID().hashCode()) % numWorkerThreads).offer(item);
-
-//      ret = queues.get(Math.abs(conn.getJID().getBareJID().hashCode()
-//          % numQueues)).offer(item, packet.getPriority().ordinal());
-			} else {
-				if (packet.getPacketFrom() != null) {
-
-					// Queueing packets per user's connection...
-					ret = workerThreads.get(Math.abs(packet.getPacketFrom().hashCode()) % numWorkerThreads).offer(item);
-				} else {
-
-					// Otherwise per destination address
-					// If the packet elemTo is set then used it, otherwise just packetTo:
-					if (packet.getStanzaTo() != null) {
-						ret = workerThreads.get(
-								Math.abs(packet.getStanzaTo().getBareJID().hashCode()) % numWorkerThreads).offer(item);
-
-//          ret = queues.get(Math.abs(packet.getStanzaTo().hashCode() % numQueues)).offer(item,
-//              packet.getPriority().ordinal());
-					} else {
-						ret = workerThreads.get(Math.abs(packet.getTo().hashCode())).offer(item);
-
-//          ret = queues.get(Math.abs(packet.getTo().hashCode() % numQueues)).offer(item,
-//              packet.getPriority().ordinal());
-					}
-				}
-			}
-		} catch (Exception e) {
-
-			// This should not happen, but just in case until we are sure all
-			// cases are catched.
-			// Otherwise per destination address
-			// If the packet elemTo is set then used it, otherwise just packetTo:
-			if (packet.getStanzaTo() != null) {
-				ret = workerThreads.get(Math.abs(packet.getStanzaTo().getBareJID().hashCode()) % numWorkerThreads)
-						.offer(item);
-			} else {
-				ret = workerThreads.get(Math.abs(packet.getTo().hashCode()) % numWorkerThreads).offer(item);
-			}
-
-			// ret = nullQueue.offer(item, packet.getPriority().ordinal());
-		}
+		boolean ret = offer(getQueueKey(packet, conn), item);
 
 		if (!ret) {
 			++droppedPackets;
@@ -193,5 +191,8 @@ public class ProcessingThreads<E extends WorkerThread> {
 			workerThread.shutdown();
 		}
 	}
-}
 
+	protected boolean offer(Object key, QueueItem item) {
+		return workerThreads.get(Math.abs(key.hashCode() % numWorkerThreads)).offer(item);
+	}
+}
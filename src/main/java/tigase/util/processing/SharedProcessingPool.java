@@ -0,0 +1,122 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of threads shared by many {@link ProcessingMailboxes} instances.
+ * <br>
+ * Items which do not block are executed by a work-stealing {@link ForkJoinPool}, so idle threads take over work
+ * queued by busy ones and a single slow processor no longer needs a set of dedicated threads. Items which may block
+ * for a long time (ie. waiting for a database) are executed by virtual threads if the JVM supports them, or by a
+ * separate bounded pool of platform threads otherwise, so they never occupy threads of the work-stealing pool.
+ */
+public class SharedProcessingPool {
+
+	private static final Logger log = Logger.getLogger(SharedProcessingPool.class.getName());
+
+	private final ExecutorService blockingExecutor;
+	private final ForkJoinPool pool;
+	private final boolean virtualThreads;
+
+	private static ExecutorService createVirtualThreadsExecutor() {
+		try {
+			// virtual threads are available since Java 21 and this code has to run on older versions as well
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception ex) {
+			log.log(Level.FINEST, "Virtual threads are not supported by JVM", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param name name used as a prefix of names of threads
+	 * @param parallelism number of threads of the work-stealing pool
+	 * @param blockingThreads number of platform threads used for blocking items if virtual threads are not available
+	 */
+	public SharedProcessingPool(String name, int parallelism, int blockingThreads) {
+		pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+
+			thread.setName(name + " Shared Worker " + thread.getPoolIndex());
+			return thread;
+		}, null, true);
+
+		ExecutorService executor = createVirtualThreadsExecutor();
+
+		virtualThreads = executor != null;
+		if (executor == null) {
+			AtomicInteger counter = new AtomicInteger();
+			ThreadPoolExecutor threadPool = new ThreadPoolExecutor(blockingThreads, blockingThreads, 60,
+																   TimeUnit.SECONDS,
+																   new LinkedBlockingQueue<Runnable>(), runnable -> {
+				Thread thread = new Thread(runnable, name + " Blocking Worker " + counter.incrementAndGet());
+
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			threadPool.allowCoreThreadTimeOut(true);
+			executor = threadPool;
+		}
+		blockingExecutor = executor;
+		log.log(Level.CONFIG, "Created shared processing pool: {0}, threads: {1}, virtual threads: {2}",
+				new Object[]{name, parallelism, virtualThreads});
+	}
+
+	public int getActiveThreadCount() {
+		return pool.getActiveThreadCount();
+	}
+
+	/**
+	 * Returns executor for processing items.
+	 *
+	 * @param blocking <code>true</code> if processing of items may block
+	 *
+	 * @return executor
+	 */
+	public Executor getExecutor(boolean blocking) {
+		return blocking ? blockingExecutor : pool;
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	public long getStealCount() {
+		return pool.getStealCount();
+	}
+
+	public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+		blockingExecutor.shutdown();
+	}
+}
@@ -17,6 +17,7 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -40,6 +41,13 @@ public class NonpriorityQueue<E>
 		init(0, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(queue.take());
+
+		return 1 + queue.drainTo(c, maxElements - 1);
+	}
+
 	@Override
 	public final void init(int maxPriority, int maxSize) {
 		queue = new LinkedBlockingQueue<E>(maxSize);
@@ -20,6 +20,7 @@ package tigase.util.workqueue;
 import tigase.annotations.TigaseDeprecated;
 import tigase.sys.TigaseRuntime;
 
+import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -86,6 +87,23 @@ public abstract class PriorityQueueAbstract<E> {
 		return null;
 	}
 
+	/**
+	 * Method waits until at least one element is available and then moves it, together with up to
+	 * <code>maxElements - 1</code> elements which are already waiting in the queue, to the given collection. Elements
+	 * are added in the same order in which they would be returned by subsequent {@link #take()} calls, so priority
+	 * order is preserved. <br> Default implementation moves only a single element, implementations should override it
+	 * to move more elements at once.
+	 *
+	 * @param c collection to which elements will be added
+	 * @param maxElements maximal number of elements to move
+	 *
+	 * @return number of elements added to the collection
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(take());
+		return 1;
+	}
+
 	public abstract void init(int maxPriority, int maxSize);
 
 	public abstract boolean offer(E element, int priority);
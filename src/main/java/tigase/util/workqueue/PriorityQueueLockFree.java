@@ -0,0 +1,363 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Priority queue implementation which does not use any monitor on the hot path. Each priority has own bounded
+ * multi-producer single-consumer ring buffer, non empty priorities are tracked in a bitmap and waiting consumer is
+ * woken up with {@link LockSupport#unpark(Thread)}.
+ * <br>
+ * Queue has the same overflow semantics as {@link PriorityQueueRelaxed}: if {@link #offer(Object, int)} finds queue for
+ * the priority full, element is added to the next (lower) priority queue. <br> Please note, that this queue supports
+ * only a <strong>single consumer</strong> thread calling {@link #take()} at the same time, which is how queues are
+ * used by {@link tigase.server.AbstractMessageReceiver}. Any number of threads may add elements concurrently.
+ *
+ * @param <E>
+ */
+public class PriorityQueueLockFree<E>
+		extends PriorityQueueAbstract<E> {
+
+	/**
+	 * Initial size of ring buffer allocated for each priority. Ring is doubled on demand up to the configured
+	 * maximal size, so mostly idle queues do not preallocate memory for the maximal size.
+	 */
+	protected static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * Time for which thread blocked in {@link #put(Object, int)} waits before retrying to add element to a full queue.
+	 */
+	private static final long PUT_BACKOFF_NANOS = 50_000;
+
+	private final AtomicLong nonEmpty = new AtomicLong(0);
+	private Ring<E>[] readRings = null;
+	private AtomicReferenceArray<Ring<E>> rings = null;
+	private volatile Thread waiter = null;
+
+	private static int capacityFor(int size) {
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		return capacity <= 0 ? (1 << 30) : capacity;
+	}
+
+	public PriorityQueueLockFree() {
+	}
+
+	protected PriorityQueueLockFree(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(take());
+
+		int count = 1;
+		E e;
+
+		while ((count < maxElements) && ((e = poll()) != null)) {
+			c.add(e);
+			++count;
+		}
+
+		return count;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public final void init(int maxPriority, int maxSize) {
+		if (maxPriority < 1 || maxPriority > Long.SIZE) {
+			throw new IllegalArgumentException("parameter maxPriority must be between 1 and " + Long.SIZE);
+		}
+		rings = new AtomicReferenceArray<>(maxPriority);
+		readRings = new Ring[maxPriority];
+		for (int i = 0; i < maxPriority; i++) {
+			Ring<E> ring = newRing(maxSize, 0);
+			rings.set(i, ring);
+			readRings[i] = ring;
+		}
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		try {
+			return add(element, priority, false);
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		add(element, priority, true);
+	}
+
+	@Override
+	public synchronized void setMaxSize(int maxSize) {
+		for (int i = 0; i < rings.length(); i++) {
+			Ring<E> oldRing = rings.get(i);
+
+			// We don't want to lose any data so the new size must
+			// be enough to keep all existing elements
+			replaceRing(i, oldRing, newRing(Math.max(oldRing.size(), maxSize), 0));
+		}
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[rings.length()];
+
+		for (int i = 0; i < result.length; i++) {
+			result[i] = rings.get(i).size();
+		}
+
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+
+		while ((e = poll()) == null) {
+			waiter = Thread.currentThread();
+			// Producer sets bit in the bitmap before checking waiter, so if we see no bits set
+			// after publishing ourselves as waiter, producer will see us and unpark this thread.
+			if (nonEmpty.get() == 0) {
+				LockSupport.park(this);
+			}
+			waiter = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+		return e;
+	}
+
+	@Override
+	public int totalSize() {
+		int result = 0;
+
+		for (int i = 0; i < rings.length(); i++) {
+			result += rings.get(i).size();
+		}
+
+		return result;
+	}
+
+	private boolean add(E element, int priority, boolean blocking) throws InterruptedException {
+		if ((priority < 0) || (rings.length() <= priority)) {
+			throw new IllegalArgumentException(
+					"parameter priority must be " + "between 0 and " + (rings.length() - 1));
+		}
+
+		while (true) {
+			Ring<E> ring = rings.get(priority);
+
+			switch (ring.offer(element)) {
+				case Ring.OK:
+					markNonEmpty(priority);
+					Thread w = waiter;
+					if (w != null) {
+						LockSupport.unpark(w);
+					}
+					return true;
+				case Ring.CLOSED:
+					// ring was replaced concurrently, retrying with a new one
+					break;
+				case Ring.FULL:
+					if (ring.capacity() < ring.limit) {
+						grow(priority, ring);
+					} else if (blocking) {
+						if (Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+						LockSupport.parkNanos(this, PUT_BACKOFF_NANOS);
+					} else if (priority < rings.length() - 1) {
+						return add(element, priority + 1, false);
+					} else {
+						return false;
+					}
+					break;
+			}
+		}
+	}
+
+	private void clearNonEmpty(int priority) {
+		long bit = 1L << priority;
+		long current;
+
+		while (((current = nonEmpty.get()) & bit) != 0 && !nonEmpty.compareAndSet(current, current & ~bit)) {
+		}
+	}
+
+	private synchronized void grow(int priority, Ring<E> ring) {
+		if (rings.get(priority) != ring) {
+			// somebody else already replaced this ring
+			return;
+		}
+		replaceRing(priority, ring, newRing(ring.limit, ring.capacity() << 1));
+	}
+
+	private void markNonEmpty(int priority) {
+		long bit = 1L << priority;
+		long current;
+
+		while (((current = nonEmpty.get()) & bit) == 0 && !nonEmpty.compareAndSet(current, current | bit)) {
+		}
+	}
+
+	private Ring<E> newRing(int limit, int minCapacity) {
+		int capacity = capacityFor(Math.max(Math.min(limit, INITIAL_CAPACITY), minCapacity));
+		return new Ring<>(capacity, limit);
+	}
+
+	private E poll() {
+		long bits = nonEmpty.get();
+
+		while (bits != 0) {
+			int priority = Long.numberOfTrailingZeros(bits);
+			E e = pollPriority(priority);
+
+			if (e == null) {
+				// Clearing bit and checking once more, as producer might have added element in the meantime
+				// without setting a bit as it was already set.
+				clearNonEmpty(priority);
+				e = pollPriority(priority);
+				if (e != null) {
+					markNonEmpty(priority);
+				}
+			}
+			if (e != null) {
+				return e;
+			}
+			bits &= ~(1L << priority);
+		}
+
+		return null;
+	}
+
+	private E pollPriority(int priority) {
+		Ring<E> ring = readRings[priority];
+
+		while (true) {
+			E e = ring.poll();
+
+			if (e != null) {
+				return e;
+			}
+
+			Ring<E> next = ring.next;
+
+			if (next == null || !ring.isDrained()) {
+				return null;
+			}
+			readRings[priority] = ring = next;
+		}
+	}
+
+	private void replaceRing(int priority, Ring<E> oldRing, Ring<E> newRing) {
+		// consumer will switch to a new ring only after the old one is closed and fully drained,
+		// so elements are never reordered within the same priority
+		oldRing.next = newRing;
+		rings.set(priority, newRing);
+		oldRing.close();
+	}
+
+	/**
+	 * Bounded multi-producer single-consumer ring. Producers claim slots by CAS on <code>tail</code>, the highest bit
+	 * of the <code>tail</code> marks the ring as closed so no new elements may be added after it was replaced.
+	 */
+	private static final class Ring<E> {
+
+		private static final int CLOSED = 2;
+		private static final long CLOSED_FLAG = Long.MIN_VALUE;
+		private static final int FULL = 1;
+		private static final int OK = 0;
+
+		private final AtomicReferenceArray<E> buffer;
+		private final AtomicLong head = new AtomicLong(0);
+		private final int limit;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong(0);
+		private volatile Ring<E> next = null;
+
+		private Ring(int capacity, int limit) {
+			this.buffer = new AtomicReferenceArray<>(capacity);
+			this.mask = capacity - 1;
+			this.limit = limit;
+		}
+
+		private int capacity() {
+			return mask + 1;
+		}
+
+		private void close() {
+			long t;
+
+			do {
+				t = tail.get();
+			} while ((t & CLOSED_FLAG) == 0 && !tail.compareAndSet(t, t | CLOSED_FLAG));
+		}
+
+		private boolean isDrained() {
+			long t = tail.get();
+			return (t & CLOSED_FLAG) != 0 && (t & ~CLOSED_FLAG) == head.get();
+		}
+
+		private int offer(E element) {
+			long t;
+
+			do {
+				t = tail.get();
+				if ((t & CLOSED_FLAG) != 0) {
+					return CLOSED;
+				}
+				if (t - head.get() >= Math.min(limit, buffer.length())) {
+					return FULL;
+				}
+			} while (!tail.compareAndSet(t, t + 1));
+
+			// volatile write, so it is visible before producer checks consumer waiting state
+			buffer.set((int) t & mask, element);
+			return OK;
+		}
+
+		private E poll() {
+			long h = head.get();
+			int idx = (int) h & mask;
+			E e = buffer.get(idx);
+
+			if (e == null) {
+				// empty or slot claimed by producer which has not published the element yet
+				return null;
+			}
+			buffer.lazySet(idx, null);
+			head.lazySet(h + 1);
+
+			return e;
+		}
+
+		private int size() {
+			long size = (tail.get() & ~CLOSED_FLAG) - head.get();
+			return size < 0 ? 0 : (int) size;
+		}
+	}
+}
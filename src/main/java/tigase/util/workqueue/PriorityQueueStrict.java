@@ -17,6 +17,7 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
@@ -45,6 +46,31 @@ public class PriorityQueueStrict<E>
 		init(maxPriority, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(take());
+
+		int count = 1;
+
+		// Taking remaining elements under a single lock
+		synchronized (this) {
+			while ((count < maxElements) && (lowestNonEmpty != Integer.MAX_VALUE)) {
+				LinkedBlockingQueue<E> q = qs[lowestNonEmpty];
+				E e = q.poll();
+
+				if ((e == null) || q.isEmpty()) {
+					lowestNonEmpty = findNextNonEmpty();
+				}
+				if (e != null) {
+					c.add(e);
+					++count;
+				}
+			}
+		}
+
+		return count;
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public final void init(int maxPriority, int maxSize) {
@@ -0,0 +1,179 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import java.util.*;
+
+/**
+ * Compact, immutable index of names of virtual hosts.
+ * <br>
+ * Names are kept in a sorted array and are compared without case sensitivity. Array is preceded by a Bloom filter, so
+ * most lookups of domains which are not local are rejected after checking a few bits, without searching the array.
+ * Hash used by the filter is calculated from lower cased characters of the domain, so no new strings are created
+ * during lookups.
+ */
+public class VHostDomainIndex {
+
+	private static final int BITS_PER_DOMAIN = 10;
+	private static final int HASH_FUNCTIONS = 7;
+
+	private final long[] bits;
+	private final String[] domains;
+	private final int mask;
+
+	public static VHostDomainIndex create(Collection<String> domains) {
+		return new VHostDomainIndex(sorted(domains));
+	}
+
+	private static int hash(String domain) {
+		int h = 0;
+
+		for (int i = 0; i < domain.length(); i++) {
+			h = 31 * h + Character.toLowerCase(domain.charAt(i));
+		}
+		return h;
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static String[] sorted(Collection<String> domains) {
+		TreeSet<String> result = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+		for (String domain : domains) {
+			result.add(domain.toLowerCase());
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	private VHostDomainIndex(String[] domains) {
+		this.domains = domains;
+
+		int size = 64;
+
+		while (size < domains.length * BITS_PER_DOMAIN && size < (1 << 30)) {
+			size <<= 1;
+		}
+		this.bits = new long[size >>> 6];
+		this.mask = size - 1;
+		for (String domain : domains) {
+			int h = hash(domain);
+			int h1 = mix(h);
+			int h2 = mix(h ^ 0x9e3779b9) | 1;
+
+			for (int i = 0; i < HASH_FUNCTIONS; i++) {
+				int bit = (h1 + i * h2) & mask;
+				bits[bit >>> 6] |= 1L << bit;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether domain is in the index.
+	 *
+	 * @param domain name of the domain
+	 *
+	 * @return <code>true</code> if domain is in the index
+	 */
+	public boolean contains(String domain) {
+		return mightContain(domain) && Arrays.binarySearch(domains, domain, String.CASE_INSENSITIVE_ORDER) >= 0;
+	}
+
+	/**
+	 * Returns names of all domains, in lower case and sorted.
+	 *
+	 * @return list of domains
+	 */
+	public List<String> getDomains() {
+		return Collections.unmodifiableList(Arrays.asList(domains));
+	}
+
+	/**
+	 * Checks only Bloom filter of the index, so result may be a false positive, but never a false negative.
+	 *
+	 * @param domain name of the domain
+	 *
+	 * @return <code>false</code> if domain is surely not in the index
+	 */
+	public boolean mightContain(String domain) {
+		int h = hash(domain);
+		int h1 = mix(h);
+		int h2 = mix(h ^ 0x9e3779b9) | 1;
+
+		for (int i = 0; i < HASH_FUNCTIONS; i++) {
+			int bit = (h1 + i * h2) & mask;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		return domains.length;
+	}
+
+	/**
+	 * Creates new index containing domains of this index with changes applied. Index is not modified.
+	 *
+	 * @param added domains to add
+	 * @param removed domains to remove
+	 *
+	 * @return new index
+	 */
+	public VHostDomainIndex withChanges(Collection<String> added, Collection<String> removed) {
+		Set<String> toRemove = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+		toRemove.addAll(removed);
+
+		String[] toAdd = sorted(added);
+		List<String> result = new ArrayList<>(domains.length + toAdd.length);
+		int i = 0;
+		int j = 0;
+
+		// both arrays are sorted, so they are merged in a single pass
+		while (i < domains.length || j < toAdd.length) {
+			String domain;
+			if (j >= toAdd.length) {
+				domain = domains[i++];
+			} else if (i >= domains.length) {
+				domain = toAdd[j++];
+			} else {
+				int cmp = String.CASE_INSENSITIVE_ORDER.compare(domains[i], toAdd[j]);
+				if (cmp < 0) {
+					domain = domains[i++];
+				} else if (cmp > 0) {
+					domain = toAdd[j++];
+				} else {
+					domain = domains[i++];
+					j++;
+				}
+			}
+			if (!toRemove.contains(domain)) {
+				result.add(domain);
+			}
+		}
+		return new VHostDomainIndex(result.toArray(new String[result.size()]));
+	}
+}
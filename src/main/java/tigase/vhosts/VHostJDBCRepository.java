@@ -294,10 +294,14 @@ public class VHostJDBCRepository
 			this.pendingItemsToSetOld = items_arr;
 		} else {
 			super.setItemsOld(items_arr);
-			super.reload();
+			reload();
 		}
 	}
 
+	public VHostItemDefaults getVhostDefaults() {
+		return vhostDefaults;
+	}
+
 	public void setVhostDefaults(VHostItemDefaults vhostDefaults) {
 		this.vhostDefaults = vhostDefaults;
 		if (pendingItemsToSetOld != null) {
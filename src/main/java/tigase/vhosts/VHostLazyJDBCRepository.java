@@ -0,0 +1,572 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
+import tigase.db.comp.RepositoryChangeListenerIfc;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of VHost repository for installations with very large number of virtual hosts.
+ * <br>
+ * Each virtual host is stored under a separate key in the UserRepository instead of a single list of all items, so on
+ * startup only names of virtual hosts are loaded into {@link VHostDomainIndex}, which is used by {@link
+ * #contains(String)}. Items are loaded on demand and kept in a cache of limited size. Domains which are not in the
+ * index are not looked up in the database, as it would be done while processing packets, so virtual hosts added on
+ * other cluster nodes are found after the next reload.
+ * <br>
+ * Every change of an item is recorded with its timestamp in hourly buckets, so periodic reload reads only changes made
+ * since the previous reload. If the previous reload was done earlier than changes are retained, index is rebuilt from
+ * names of all items. Items stored by {@link VHostJDBCRepository} are imported on first start.
+ * <br>
+ * To use this implementation <code>repo-class</code> of <code>vhostRepository</code> bean of <code>vhost-man</code>
+ * needs to be set to the name of this class.
+ */
+public class VHostLazyJDBCRepository
+		extends VHostJDBCRepository {
+
+	private static final long CHANGES_BUCKET = 60 * 60 * 1000;
+	private static final String CHANGES_NODE = "vhosts-changes";
+	// changes are read again for this time, as they may be stored by other nodes with a bit different clock
+	private static final long CLOCK_SKEW = 10 * 1000;
+	private static final String ITEMS_NODE = "vhosts-items";
+	private static final Logger log = Logger.getLogger(VHostLazyJDBCRepository.class.getName());
+
+	private final ConcurrentHashMap<String, CachedItem> cache = new ConcurrentHashMap<>();
+	@ConfigField(desc = "Maximal number of cached VHost items", alias = "items-cache-size")
+	private int cacheSize = 10000;
+	@ConfigField(desc = "Time for which changes of VHost items are kept", alias = "changes-retention")
+	private Duration changesRetention = Duration.ofDays(1);
+	private volatile VHostDomainIndex index = VHostDomainIndex.create(Collections.<String>emptyList());
+	private boolean indexLoaded = false;
+	private long lastReloadTime = 0;
+	// items added before the database was available, stored when the index is loaded
+	private final Map<String, VHostItem> pendingItems = new ConcurrentHashMap<>();
+	private final Map<String, Long> recentChanges = new HashMap<>();
+	private final Object reloadLock = new Object();
+
+	@Override
+	public void addItem(VHostItem item) {
+		String domain = item.getKey().toLowerCase();
+		UserRepository repo = getRepo();
+
+		if (repo == null) {
+			pendingItems.put(domain, item);
+		} else {
+			storeItem(repo, domain, item);
+		}
+		addItemNoStore(item);
+	}
+
+	@Override
+	public void addItemNoStore(VHostItem item) {
+		applyChanges(Collections.singletonList(item), Collections.<String>emptyList());
+	}
+
+	/**
+	 * Returns all items. Data of all items which are not cached are loaded with a single query when iteration starts
+	 * and they are not added to the cache, but iterating over items of a very large installation is still expensive,
+	 * so {@link #getItem(String)} or {@link #contains(String)} should be used whenever possible.
+	 *
+	 * @return collection of all items
+	 */
+	@Override
+	public Collection<VHostItem> allItems() {
+		final List<String> domains = index.getDomains();
+
+		return new AbstractCollection<VHostItem>() {
+			@Override
+			public Iterator<VHostItem> iterator() {
+				return new ItemsIterator(domains.iterator(), loadItemsData());
+			}
+
+			@Override
+			public int size() {
+				return domains.size();
+			}
+		};
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return index.contains(key);
+	}
+
+	public int getCachedItemsCount() {
+		return cache.size();
+	}
+
+	@Override
+	public VHostItem getItem(String key) {
+		String domain = key.toLowerCase();
+		CachedItem cached = cache.get(domain);
+
+		if (cached != null) {
+			cached.lastAccess = System.currentTimeMillis();
+			return cached.item;
+		}
+		if (!index.contains(domain)) {
+			return null;
+		}
+
+		VHostItem item = loadItem(domain);
+
+		if (item != null) {
+			cacheItem(domain, item);
+		}
+		return item;
+	}
+
+	@Override
+	public Iterator<VHostItem> iterator() {
+		return allItems().iterator();
+	}
+
+	@Override
+	public void reload() {
+		UserRepository repo = getRepo();
+
+		if (getVhostDefaults() == null || repo == null) {
+			return;
+		}
+		synchronized (reloadLock) {
+			long now = System.currentTimeMillis();
+
+			try {
+				String[] buckets = repo.getSubnodes(getRepoUser(), CHANGES_NODE);
+
+				if (!indexLoaded || now - lastReloadTime > changesRetention.toMillis()) {
+					loadIndex(repo);
+				} else {
+					loadChanges(repo, buckets);
+				}
+				lastReloadTime = now;
+				removeOutdatedChanges(repo, buckets, now);
+			} catch (TigaseDBException ex) {
+				log.log(Level.SEVERE, "Problem with loading VHost items from the database.", ex);
+			}
+		}
+	}
+
+	@Override
+	public void removeItem(String key) {
+		String domain = key.toLowerCase();
+		UserRepository repo = getRepo();
+
+		pendingItems.remove(domain);
+		if (repo != null) {
+			try {
+				repo.removeData(getRepoUser(), ITEMS_NODE, domain);
+				markChanged(repo, domain);
+			} catch (TigaseDBException ex) {
+				log.log(Level.SEVERE, "Error removing VHost item " + domain + " from the repository", ex);
+			}
+		}
+		removeItemNoStore(domain);
+	}
+
+	@Override
+	public void removeItemNoStore(String key) {
+		applyChanges(Collections.<VHostItem>emptyList(), Collections.singletonList(key.toLowerCase()));
+	}
+
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public void store() {
+		// items are stored separately when they are added
+	}
+
+	/**
+	 * Applies added or updated items and removed domains to the index with a single rebuild of the index, updates the
+	 * cache and notifies the listener.
+	 *
+	 * @param items added or updated items
+	 * @param removedDomains lower case names of removed domains
+	 */
+	private void applyChanges(Collection<VHostItem> items, Collection<String> removedDomains) {
+		Set<String> added = new HashSet<>();
+		Set<String> removed = new HashSet<>();
+
+		synchronized (this) {
+			for (VHostItem item : items) {
+				String domain = item.getKey().toLowerCase();
+
+				if (!index.contains(domain)) {
+					added.add(domain);
+				}
+			}
+			for (String domain : removedDomains) {
+				if (index.contains(domain)) {
+					removed.add(domain);
+				}
+			}
+			if (!added.isEmpty() || !removed.isEmpty()) {
+				index = index.withChanges(added, removed);
+			}
+		}
+
+		RepositoryChangeListenerIfc<VHostItem> listener = getRepoChangeListener();
+
+		for (VHostItem item : items) {
+			String domain = item.getKey().toLowerCase();
+			CachedItem old = cacheItem(domain, item);
+
+			if (listener != null) {
+				if (added.remove(domain)) {
+					log.log(Level.FINE, "Calling itemAdded for: {0}", item);
+					listener.itemAdded(item);
+				} else if (old == null || itemChanged(old.item, item)) {
+					log.log(Level.FINE, "Calling itemUpdated for: {0}", item);
+					listener.itemUpdated(item);
+				}
+			}
+		}
+		for (String domain : removedDomains) {
+			CachedItem cached = cache.remove(domain);
+
+			if (listener != null && removed.remove(domain)) {
+				VHostItem item = cached != null ? cached.item : getItemInstance();
+
+				if (cached == null) {
+					item.setKey(domain);
+				}
+				listener.itemRemoved(item);
+			}
+		}
+	}
+
+	private CachedItem cacheItem(String domain, VHostItem item) {
+		CachedItem old = cache.put(domain, new CachedItem(item));
+
+		if (cache.size() > cacheSize) {
+			evictItems();
+		}
+		return old;
+	}
+
+	private synchronized void evictItems() {
+		long[] times = cache.values().stream().mapToLong(cached -> cached.lastAccess).sorted().toArray();
+
+		if (times.length <= cacheSize) {
+			return;
+		}
+
+		// least recently used tenth of items is removed at once, so cache is not scanned after every load
+		int toRemove = Math.max(times.length - cacheSize, times.length / 10);
+		long threshold = times[toRemove - 1];
+		Iterator<CachedItem> it = cache.values().iterator();
+
+		while (toRemove > 0 && it.hasNext()) {
+			if (it.next().lastAccess <= threshold) {
+				it.remove();
+				toRemove--;
+			}
+		}
+	}
+
+	private String[] importItems(UserRepository repo) throws TigaseDBException {
+		String itemsList = repo.getData(getRepoUser(), getItemsListPKey());
+
+		if (itemsList == null || itemsList.isEmpty()) {
+			return new String[0];
+		}
+
+		List<String> domains = new ArrayList<>();
+
+		for (Element elem : parse(itemsList)) {
+			VHostItem item = getItemInstance();
+
+			item.initFromElement(elem);
+
+			String domain = item.getKey().toLowerCase();
+
+			repo.setData(getRepoUser(), ITEMS_NODE, domain, item.toElement().toString());
+			domains.add(domain);
+		}
+		log.log(Level.INFO, "Imported {0} VHost items from the list of items", domains.size());
+
+		return domains.toArray(new String[domains.size()]);
+	}
+
+	private void loadChanges(UserRepository repo, String[] buckets) throws TigaseDBException {
+		if (buckets == null) {
+			return;
+		}
+
+		long since = lastReloadTime - CLOCK_SKEW;
+		List<String> changed = new ArrayList<>();
+
+		for (String bucket : buckets) {
+			long idx;
+			try {
+				idx = Long.parseLong(bucket);
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			if ((idx + 1) * CHANGES_BUCKET <= since) {
+				continue;
+			}
+
+			Map<String, String> changes = repo.getDataMap(getRepoUser(), CHANGES_NODE + "/" + bucket);
+
+			synchronized (recentChanges) {
+				for (Map.Entry<String, String> change : changes.entrySet()) {
+					long time = Long.parseLong(change.getValue());
+					Long seen = recentChanges.get(change.getKey());
+
+					if (time <= since || (seen != null && seen >= time)) {
+						continue;
+					}
+					recentChanges.put(change.getKey(), time);
+					changed.add(change.getKey());
+				}
+			}
+		}
+		synchronized (recentChanges) {
+			recentChanges.values().removeIf(time -> time <= since);
+		}
+
+		List<VHostItem> items = new ArrayList<>();
+		List<String> removed = new ArrayList<>();
+
+		for (String domain : changed) {
+			VHostItem item = loadItem(domain);
+
+			if (item == null) {
+				removed.add(domain);
+			} else {
+				items.add(item);
+			}
+		}
+		applyChanges(items, removed);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded {0} changed VHost items", changed.size());
+		}
+	}
+
+	private void loadIndex(UserRepository repo) throws TigaseDBException {
+		String[] keys = repo.getKeys(getRepoUser(), ITEMS_NODE);
+
+		if (keys == null || keys.length == 0) {
+			keys = importItems(repo);
+		}
+
+		Set<String> domains = new HashSet<>(Arrays.asList(keys));
+		Map<String, VHostItem> pending = new HashMap<>(pendingItems);
+
+		pendingItems.clear();
+		for (Map.Entry<String, VHostItem> entry : pending.entrySet()) {
+			if (domains.add(entry.getKey())) {
+				storeItem(repo, entry.getKey(), entry.getValue());
+			}
+		}
+		synchronized (this) {
+			index = VHostDomainIndex.create(domains);
+			indexLoaded = true;
+		}
+		cache.clear();
+		log.log(Level.CONFIG, "Loaded index of {0} VHosts", domains.size());
+	}
+
+	private VHostItem loadItem(String domain) {
+		VHostItem pending = pendingItems.get(domain);
+
+		if (pending != null) {
+			return pending;
+		}
+
+		UserRepository repo = getRepo();
+
+		if (repo == null) {
+			return null;
+		}
+		try {
+			return parseItem(repo, domain, repo.getData(getRepoUser(), ITEMS_NODE, domain));
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Problem with loading VHost item " + domain + " from the database.", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads serialized data of all items with a single query.
+	 *
+	 * @return map of lower case domain names and items data
+	 */
+	private Map<String, String> loadItemsData() {
+		UserRepository repo = getRepo();
+
+		if (repo == null) {
+			return Collections.emptyMap();
+		}
+		try {
+			return repo.getDataMap(getRepoUser(), ITEMS_NODE);
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Problem with loading VHost items from the database.", ex);
+			return Collections.emptyMap();
+		}
+	}
+
+	private VHostItem parseItem(UserRepository repo, String domain, String data) {
+		if (data == null) {
+			return null;
+		}
+
+		List<Element> elems = parse(data);
+
+		if (elems.isEmpty()) {
+			return null;
+		}
+
+		VHostItem item = getItemInstance();
+
+		item.initFromElement(elems.get(0));
+		if (item.getS2sSecret() == null) {
+			// VHostManager generates missing secrets only when all items are loaded
+			item.setS2sSecret(UUID.randomUUID().toString());
+			storeItem(repo, domain, item);
+		}
+		return item;
+	}
+
+	private void markChanged(UserRepository repo, String domain) throws TigaseDBException {
+		long now = System.currentTimeMillis();
+
+		synchronized (recentChanges) {
+			recentChanges.put(domain, now);
+		}
+		repo.setData(getRepoUser(), CHANGES_NODE + "/" + (now / CHANGES_BUCKET), domain, String.valueOf(now));
+	}
+
+	private List<Element> parse(String data) {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		SimpleParser parser = SingletonFactory.getParserInstance();
+
+		parser.parse(domHandler, data.toCharArray(), 0, data.length());
+
+		Queue<Element> elems = domHandler.getParsedElements();
+
+		return elems == null ? Collections.<Element>emptyList() : new ArrayList<>(elems);
+	}
+
+	private void removeOutdatedChanges(UserRepository repo, String[] buckets, long now) throws TigaseDBException {
+		if (buckets == null) {
+			return;
+		}
+
+		long oldest = (now - changesRetention.toMillis()) / CHANGES_BUCKET;
+
+		for (String bucket : buckets) {
+			try {
+				if (Long.parseLong(bucket) < oldest) {
+					repo.removeSubnode(getRepoUser(), CHANGES_NODE + "/" + bucket);
+				}
+			} catch (NumberFormatException ex) {
+				// not a bucket of changes
+			}
+		}
+	}
+
+	private void storeItem(UserRepository repo, String domain, VHostItem item) {
+		try {
+			repo.setData(getRepoUser(), ITEMS_NODE, domain, item.toElement().toString());
+			markChanged(repo, domain);
+		} catch (TigaseDBException ex) {
+			log.log(Level.SEVERE, "Error storing VHost item " + domain + " in the repository", ex);
+		}
+	}
+
+	private static class CachedItem {
+
+		private final VHostItem item;
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		private CachedItem(VHostItem item) {
+			this.item = item;
+		}
+	}
+
+	private class ItemsIterator
+			implements Iterator<VHostItem> {
+
+		private final Iterator<String> domains;
+		private final Map<String, String> itemsData;
+		private VHostItem next = null;
+
+		private ItemsIterator(Iterator<String> domains, Map<String, String> itemsData) {
+			this.domains = domains;
+			this.itemsData = itemsData;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && domains.hasNext()) {
+				String domain = domains.next();
+				CachedItem cached = cache.get(domain);
+
+				// items which are not cached are not added to the cache, so iterating does not replace it
+				next = cached != null ? cached.item : loadIteratedItem(domain);
+			}
+			return next != null;
+		}
+
+		private VHostItem loadIteratedItem(String domain) {
+			VHostItem pending = pendingItems.get(domain);
+
+			if (pending != null) {
+				return pending;
+			}
+
+			String data = itemsData.get(domain);
+
+			// item added after data were loaded
+			return data != null ? parseItem(getRepo(), domain, data) : loadItem(domain);
+		}
+
+		@Override
+		public VHostItem next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			VHostItem result = next;
+
+			next = null;
+			return result;
+		}
+	}
+}
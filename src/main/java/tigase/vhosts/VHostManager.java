@@ -24,6 +24,7 @@ import tigase.db.TigaseDBException;
 import tigase.db.comp.AbstractSDComponentRepositoryBean;
 import tigase.db.comp.ComponentRepository;
 import tigase.db.comp.ComponentRepositoryDataSourceAware;
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.RegistrarBean;
@@ -42,6 +43,7 @@ import javax.script.Bindings;
 import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,6 +76,31 @@ public class VHostManager
 	private LinkedHashSet<VHostListener> nameSubdomainsHandlers = new LinkedHashSet<VHostListener>(10);
 	private LinkedHashSet<VHostListener> nonLocalDomainsHandlers = new LinkedHashSet<VHostListener>(10);
 	private ConcurrentSkipListSet<String> registeredComponentDomains = new ConcurrentSkipListSet<String>();
+	private final CopyOnWriteArrayList<RepositoryChangeListenerIfc<VHostItem>> vhostChangeListeners =
+			new CopyOnWriteArrayList<>();
+	private final RepositoryChangeListenerIfc<VHostItem> repoChangeListener =
+			new RepositoryChangeListenerIfc<VHostItem>() {
+		@Override
+		public void itemAdded(VHostItem item) {
+			for (RepositoryChangeListenerIfc<VHostItem> listener : vhostChangeListeners) {
+				listener.itemAdded(item);
+			}
+		}
+
+		@Override
+		public void itemUpdated(VHostItem item) {
+			for (RepositoryChangeListenerIfc<VHostItem> listener : vhostChangeListeners) {
+				listener.itemUpdated(item);
+			}
+		}
+
+		@Override
+		public void itemRemoved(VHostItem item) {
+			for (RepositoryChangeListenerIfc<VHostItem> listener : vhostChangeListeners) {
+				listener.itemRemoved(item);
+			}
+		}
+	};
 
 	/**
 	 * Creates a new <code>VHostManager</code> instance.
@@ -86,6 +113,11 @@ public class VHostManager
 		registeredComponentDomains.add(domain);
 	}
 
+	@Override
+	public void addVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+		vhostChangeListeners.addIfAbsent(listener);
+	}
+
 	@Override
 	public void componentAdded(VHostListener component) {
 		component.setVHostManager(this);
@@ -119,6 +151,11 @@ public class VHostManager
 		registeredComponentDomains.remove(domain);
 	}
 
+	@Override
+	public void removeVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener) {
+		vhostChangeListeners.remove(listener);
+	}
+
 	@Override
 	public void register(Kernel kernel) {
 		this.kernel = kernel;
@@ -325,6 +362,11 @@ public class VHostManager
 		// loading all items
 		repo.reload();
 
+		if (repo instanceof DefVHostRepositoryBean && ((DefVHostRepositoryBean) repo).isLoadingItemsOnDemand()) {
+			// items are not loaded at once, missing secrets are generated when items are loaded
+			return;
+		}
+
 		List<VHostItem> items = new ArrayList<VHostItem>(repo.allItems());
 		for (VHostItem item : items) {
 			// if there is no S2S secret set for vhost, then we need to generate it
@@ -345,6 +387,16 @@ public class VHostManager
 		return repo;
 	}
 
+	public void setRepo(ComponentRepository<VHostItem> repo) {
+		if (this.repo != null) {
+			this.repo.removeRepoChangeListener(repoChangeListener);
+		}
+		this.repo = repo;
+		if (repo != null) {
+			repo.addRepoChangeListener(repoChangeListener);
+		}
+	}
+
 	@Bean(name = "vhostRepository", parent = VHostManager.class, active = true)
 	public static class DefVHostRepositoryBean
 			extends AbstractSDComponentRepositoryBean<VHostItem> {
@@ -355,6 +407,10 @@ public class VHostManager
 		};
 		private ComponentRepository<VHostItem> repo = null;
 
+		public boolean isLoadingItemsOnDemand() {
+			return getRepository() instanceof VHostLazyJDBCRepository;
+		}
+
 		@Override
 		protected Class<? extends ComponentRepositoryDataSourceAware<VHostItem, DataSource>> findClassForDataSource(
 				DataSource dataSource) throws DBInitException {
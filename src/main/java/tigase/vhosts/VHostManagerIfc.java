@@ -17,6 +17,7 @@
  */
 package tigase.vhosts;
 
+import tigase.db.comp.RepositoryChangeListenerIfc;
 import tigase.server.ServerComponent;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
@@ -141,5 +142,20 @@ public interface VHostManagerIfc {
 	 * @return
 	 */
 	List<JID> getAllVHosts();
+
+	/**
+	 * Registers listener which will be notified about every VHost added, updated or removed from the VHosts
+	 * repository. It allows components to keep caches dependent on the list of local domains.
+	 *
+	 * @param listener to notify about VHost changes
+	 */
+	void addVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener);
+
+	/**
+	 * Removes listener registered by {@link #addVHostChangeListener(RepositoryChangeListenerIfc)}.
+	 *
+	 * @param listener to remove
+	 */
+	void removeVHostChangeListener(RepositoryChangeListenerIfc<VHostItem> listener);
 }
 
@@ -555,6 +555,35 @@ public abstract class RepositoryAccess {
 		// return null;
 	}
 
+	/**
+	 * This method returns all data keys with associated values stored in permanent storage in given node. It allows to
+	 * retrieve many entries kept under separate keys with a single call to the repository.
+	 *
+	 * @param subnode a <code>String</code> value pointing to specific subnode in user reposiotry where data is stored.
+	 *
+	 * @return a <code>Map</code> of keys and values found in given subnode, <code>null</code> for anonymous session.
+	 *
+	 * @throws NotAuthorizedException is thrown when session has not been authorized yet and there is no access to
+	 * permanent storage.
+	 * @throws TigaseDBException
+	 * @see #setData(String, String, String)
+	 */
+	public Map<String, String> getDataMap(String subnode) throws NotAuthorizedException, TigaseDBException {
+		if (is_anonymous) {
+			return null;
+		}
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+		try {
+			return repo.getDataMap(getBareJID(), subnode);
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		}    // end of try-catch
+	}
+
 	public VHostItem getDomain() {
 		return domain;
 	}
@@ -0,0 +1,141 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.server.Packet;
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Limits of data waiting to be sent over connections of a single connection manager and counters of back-pressure
+ * applied to these connections.
+ * <br>
+ * Connection is congested when number of packets waiting to be serialized or number of bytes waiting to be written to
+ * the socket reaches the high watermark. Reading from a congested connection is paused and presences sent to it are
+ * deferred, so only the latest presence between the same sender and recipient is kept. Connection is no longer
+ * congested when both values drop to the low watermarks. Watermark set to <code>0</code> is not checked.
+ */
+public class WriteBackpressure {
+
+	private final AtomicInteger congested = new AtomicInteger(0);
+	private final AtomicLong congestions = new AtomicLong(0);
+	private final AtomicLong deferred = new AtomicLong(0);
+	private final long highBytes;
+	private final int highPackets;
+	private final long lowBytes;
+	private final int lowPackets;
+	private final AtomicLong shed = new AtomicLong(0);
+
+	/**
+	 * Checks if packet may be deferred while connection is congested. Only presences announcing availability can be
+	 * deferred, as newer presence from the same sender replaces previous one.
+	 *
+	 * @param packet packet to send
+	 *
+	 * @return <code>true</code> if packet may be deferred
+	 */
+	public static boolean isDeferrable(Packet packet) {
+		if (packet.getElemName() != "presence") {
+			return false;
+		}
+
+		StanzaType type = packet.getType();
+
+		return type == null || type == StanzaType.available || type == StanzaType.unavailable;
+	}
+
+	/**
+	 * Creates limits for connections.
+	 *
+	 * @param highPackets number of packets waiting to be sent at which connection becomes congested
+	 * @param lowPackets number of packets waiting to be sent at which connection is no longer congested
+	 * @param highBytes number of bytes waiting to be sent at which connection becomes congested
+	 * @param lowBytes number of bytes waiting to be sent at which connection is no longer congested
+	 */
+	public WriteBackpressure(int highPackets, int lowPackets, long highBytes, long lowBytes) {
+		this.highPackets = highPackets;
+		this.lowPackets = Math.min(lowPackets, highPackets);
+		this.highBytes = highBytes;
+		this.lowBytes = Math.min(lowBytes, highBytes);
+	}
+
+	public void congestionChanged(boolean congested) {
+		if (congested) {
+			this.congested.incrementAndGet();
+			congestions.incrementAndGet();
+		} else {
+			this.congested.decrementAndGet();
+		}
+	}
+
+	public int getCongested() {
+		return congested.get();
+	}
+
+	public long getCongestions() {
+		return congestions.get();
+	}
+
+	public long getDeferred() {
+		return deferred.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Write congested connections", getCongested(), Level.FINE);
+		list.add(compName, "Write congestions", getCongestions(), Level.FINE);
+		list.add(compName, "Write deferred packets", getDeferred(), Level.FINE);
+		list.add(compName, "Write shed packets", getShed(), Level.FINE);
+	}
+
+	public boolean isAboveHighMark(int packets, long bytes) {
+		return (highPackets > 0 && packets >= highPackets) || (highBytes > 0 && bytes >= highBytes);
+	}
+
+	public boolean isBelowLowMark(int packets, long bytes) {
+		return (highPackets <= 0 || packets <= lowPackets) && (highBytes <= 0 || bytes <= lowBytes);
+	}
+
+	/**
+	 * Checks if any watermark is set.
+	 *
+	 * @return <code>true</code> if back-pressure is enabled
+	 */
+	public boolean isEnabled() {
+		return highPackets > 0 || highBytes > 0;
+	}
+
+	public void packetDeferred() {
+		deferred.incrementAndGet();
+	}
+
+	public void packetShed() {
+		shed.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "packets: " + lowPackets + "-" + highPackets + ", bytes: " + lowBytes + "-" + highBytes;
+	}
+}
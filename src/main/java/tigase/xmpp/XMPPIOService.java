@@ -25,13 +25,13 @@ import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
+import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Map;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -69,9 +69,18 @@ public class XMPPIOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(XMPPIOService.class.getName());
 
+	/**
+	 * Maximal number of packets written to the socket in a single batch.
+	 */
+	private static final int WRITE_BATCH_MAX_PACKETS = 100;
+
 	public ReentrantLock writeInProgress = new ReentrantLock();
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
 	protected XMPPIOProcessor[] processors = null;
+	/**
+	 * Presences deferred while connection is congested, only the latest presence between sender and recipient is kept.
+	 */
+	private final Map<List<JID>, Packet> deferredPackets = new LinkedHashMap<List<JID>, Packet>();
 	private XMPPDomBuilderHandler<RefObject> domHandler = null;
 	private boolean firstPacket = true;
 	private String jid = null;
@@ -97,7 +106,10 @@ public class XMPPIOService<RefObject>
 	 * The <code>waitingPackets</code> queue keeps data which have to be processed.
 	 */
 	private ConcurrentLinkedQueue<Packet> waitingPackets = new ConcurrentLinkedQueue<Packet>();
+	private final AtomicInteger waitingPacketsSize = new AtomicInteger(0);
 	private boolean white_char_ack = false;
+	private volatile WriteBackpressure writeBackpressure = null;
+	private volatile boolean writeCongested = false;
 	private String xmlns = null;
 	private boolean xmpp_ack = false;
 
@@ -117,27 +129,13 @@ public class XMPPIOService<RefObject>
 	 * @param packet a <code>Packet</code> value of data to process.
 	 */
 	public void addPacketToSend(Packet packet) {
-
-		// processing packet using io level processors
-		if (processors != null) {
-			for (XMPPIOProcessor processor : processors) {
-				if (processor.processOutgoing(this, packet)) {
-					return;
-				}
-			}
+		if (writeCongested && deferPacket(packet)) {
+			return;
 		}
-		if (xmpp_ack) {
-			String req = "" + (++req_idx);
-
-			packet.getElement().addChild(new Element(REQ_NAME, new String[]{ID_ATT}, new String[]{req}));
-			waitingForAck.put(req, packet);
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "{0}, Added req {1} for packet: {2}", new Object[]{toString(), req, packet});
-			}
+		queuePacketToSend(packet);
+		if (!writeCongested && writeBackpressure != null) {
+			updateWriteCongestion();
 		}
-		++packetsSent;
-		++totalPacketsSent;
-		waitingPackets.offer(packet);
 	}
 
 	@Override
@@ -147,7 +145,8 @@ public class XMPPIOService<RefObject>
 		// to acquire lock for write as when this packet would not be followed by
 		// next packet then it would stay in waitingPackets queue, however this
 		// may slow down processing packets in SocketThread thread.
-		if (isConnected() && !waitingPackets.isEmpty() && writeInProgress.tryLock()) {
+		// congested connection is also checked here, after data were written to the socket
+		if (isConnected() && (!waitingPackets.isEmpty() || writeCongested) && writeInProgress.tryLock()) {
 			try {
 				processWaitingPackets();
 			} finally {
@@ -193,6 +192,7 @@ public class XMPPIOService<RefObject>
 	 */
 	public void clearWaitingPackets() {
 		this.waitingPackets.clear();
+		this.waitingPacketsSize.set(0);
 	}
 
 	/**
@@ -221,27 +221,19 @@ public class XMPPIOService<RefObject>
 
 	@Override
 	public void processWaitingPackets() throws IOException {
-		Packet packet = null;
-
-		// int cnt = 0;
-		// while ((packet = waitingPackets.poll()) != null && (cnt < 1000)) {
-
-		// we should only peek for packet now, and poll it after sending it
-		while ((packet = waitingPackets.peek()) != null) {
-
-			// ++cnt;
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
-			}
-			writeRawData(packet.getElement().toString());
-
-			// and after sending it we should remove it to minimalize chances of lost packets
-			waitingPackets.poll();
-
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[]{toString(), packet.getElement().toString()});
+		if (writeCongested) {
+			// connection may be no longer congested after data were written to the socket
+			updateWriteCongestion();
+		}
+		writeAllWaitingPackets();
+		if (writeCongested) {
+			// write may have drained the queue and the socket, so there would be no other event to clear congestion
+			updateWriteCongestion();
+			if (!writeCongested && !waitingPackets.isEmpty()) {
+				// deferred packets were queued when congestion was cleared
+				writeAllWaitingPackets();
 			}
-		}    // end of while (packet = waitingPackets.poll() != null)
+		}
 
 		// notify io processors that all waiting packets were sent
 		if (processors != null) {
@@ -266,6 +258,17 @@ public class XMPPIOService<RefObject>
 		return super.toString() + ", jid: " + jid;
 	}
 
+	/**
+	 * Reading from the connection is paused while it is congested, until data waiting to be sent drops to the low
+	 * watermark.
+	 *
+	 * @return <code>false</code> if connection is congested
+	 */
+	@Override
+	public boolean waitingToRead() {
+		return !writeCongested && super.waitingToRead();
+	}
+
 	public void writeRawData(String data) throws IOException {
 
 		// We change state of this object in this method
@@ -378,6 +381,33 @@ public class XMPPIOService<RefObject>
 		this.processors = processors;
 	}
 
+	public int getWaitingPacketsSize() {
+		return waitingPacketsSize.get();
+	}
+
+	public boolean isWriteCongested() {
+		return writeCongested;
+	}
+
+	/**
+	 * Sets limits of data waiting to be sent over the connection. If connection was congested, it is detached from the
+	 * counters of previous limits and presences deferred so far are dropped.
+	 *
+	 * @param writeBackpressure limits or <code>null</code> to disable back-pressure
+	 */
+	public void setWriteBackpressure(WriteBackpressure writeBackpressure) {
+		synchronized (deferredPackets) {
+			if (writeCongested) {
+				writeCongested = false;
+				deferredPackets.clear();
+				this.writeBackpressure.congestionChanged(false);
+			}
+			this.writeBackpressure = (writeBackpressure != null && writeBackpressure.isEnabled())
+									 ? writeBackpressure
+									 : null;
+		}
+	}
+
 	/**
 	 * This method returns the time when the last XMPP packet was received, it is used to help detect dead connections.
 	 *
@@ -436,6 +466,16 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	/**
+	 * Method returns <code>true</code> if many waiting packets may be written to the socket at once. Services which
+	 * need to frame or wrap each written stanza separately, should return <code>false</code>.
+	 *
+	 * @return <code>true</code> if waiting packets may be written in batches
+	 */
+	protected boolean isBatchWriteSupported() {
+		return true;
+	}
+
 	protected String prepareStreamClose() {
 		return "</stream:stream>";
 	}
@@ -687,6 +727,176 @@ public class XMPPIOService<RefObject>
 		}    // end of while ((elem = elems.poll()) != null)
 	}
 
+	private boolean deferPacket(Packet packet) {
+		if (!WriteBackpressure.isDeferrable(packet)) {
+			return false;
+		}
+
+		Packet previous;
+		WriteBackpressure limits;
+
+		synchronized (deferredPackets) {
+			// state is checked again as deferred packets are released while holding the lock
+			if (!writeCongested) {
+				return false;
+			}
+			limits = writeBackpressure;
+
+			List<JID> key = Arrays.asList(packet.getStanzaFrom(), packet.getStanzaTo());
+
+			// newer presence replaces the previous one and is moved to the end to keep order of senders
+			previous = deferredPackets.remove(key);
+			deferredPackets.put(key, packet);
+		}
+		if (previous == null) {
+			limits.packetDeferred();
+		} else {
+			limits.packetShed();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Dropped deferred packet replaced by newer one: {1}",
+						new Object[]{toString(), previous});
+			}
+		}
+		return true;
+	}
+
+	private void queuePacketToSend(Packet packet) {
+
+		// processing packet using io level processors
+		if (processors != null) {
+			for (XMPPIOProcessor processor : processors) {
+				if (processor.processOutgoing(this, packet)) {
+					return;
+				}
+			}
+		}
+		if (xmpp_ack) {
+			String req = "" + (++req_idx);
+
+			packet.getElement().addChild(new Element(REQ_NAME, new String[]{ID_ATT}, new String[]{req}));
+			waitingForAck.put(req, packet);
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Added req {1} for packet: {2}", new Object[]{toString(), req, packet});
+			}
+		}
+		++packetsSent;
+		++totalPacketsSent;
+		waitingPackets.offer(packet);
+		waitingPacketsSize.incrementAndGet();
+	}
+
+	private void updateWriteCongestion() {
+		WriteBackpressure limits = writeBackpressure;
+
+		if (limits == null) {
+			return;
+		}
+
+		int packets = waitingPacketsSize.get();
+		long bytes = waitingToSendBytes();
+		boolean congested = writeCongested
+							? !limits.isBelowLowMark(packets, bytes)
+							: limits.isAboveHighMark(packets, bytes);
+
+		if (congested == writeCongested) {
+			return;
+		}
+		synchronized (deferredPackets) {
+			if (congested == writeCongested || limits != writeBackpressure) {
+				return;
+			}
+			writeCongested = congested;
+			if (!congested) {
+				// deferred packets are queued while holding the lock, so newer presences are not queued before them
+				for (Packet packet : deferredPackets.values()) {
+					queuePacketToSend(packet);
+				}
+				deferredPackets.clear();
+			}
+		}
+		limits.congestionChanged(congested);
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "{0}, Connection {1}, waiting packets: {2}, waiting bytes: {3}",
+					new Object[]{toString(), congested ? "congested" : "no longer congested", packets, bytes});
+		}
+		if (serviceListener != null) {
+			serviceListener.writeBackpressureChanged(this, congested);
+		}
+	}
+
+	private void writeAllWaitingPackets() throws IOException {
+		if (isBatchWriteSupported()) {
+			writeWaitingPacketsInBatches();
+		} else {
+			writeWaitingPackets();
+		}
+	}
+
+	/**
+	 * Writes waiting packets to the socket one by one, removing each of them from the queue after it was written.
+	 */
+	private void writeWaitingPackets() throws IOException {
+		Packet packet = null;
+
+		// we should only peek for packet now, and poll it after sending it
+		while ((packet = waitingPackets.peek()) != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
+			}
+			writeRawData(packet.getElement().toString());
+
+			// and after sending it we should remove it to minimalize chances of lost packets
+			waitingPackets.poll();
+			waitingPacketsSize.decrementAndGet();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, SENT: {1}", new Object[]{toString(), packet.getElement().toString()});
+			}
+		}    // end of while (packet = waitingPackets.poll() != null)
+	}
+
+	/**
+	 * Writes waiting packets to the socket in batches of serialized packets, removing them from the queue after the
+	 * batch was written.
+	 */
+	private void writeWaitingPacketsInBatches() {
+		List<Element> batch = null;
+
+		while (!waitingPackets.isEmpty()) {
+			if (batch == null) {
+				batch = new ArrayList<>();
+			} else {
+				batch.clear();
+			}
+
+			Iterator<Packet> it = waitingPackets.iterator();
+
+			// we should only peek for packets now, and poll them after sending them
+			while (it.hasNext() && batch.size() < WRITE_BATCH_MAX_PACKETS) {
+				Packet packet = it.next();
+
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "{0}, Sending packet: {1}", new Object[]{toString(), packet});
+				}
+				batch.add(packet.getElement());
+			}
+			if (batch.isEmpty()) {
+				break;
+			}
+			writeElements(batch);
+
+			// and after sending them we should remove them to minimalize chances of lost packets
+			for (int i = 0; i < batch.size(); i++) {
+				waitingPackets.poll();
+			}
+			waitingPacketsSize.addAndGet(-batch.size());
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0}, SENT {1} packets: {2}", new Object[]{toString(), batch.size(), batch});
+			}
+		}
+	}
+
 	/**
 	 * This method sets the time of last received XMPP packet, it is used to help detect dead connections.
 	 */
@@ -40,4 +40,12 @@ public interface XMPPIOServiceListener<IO extends XMPPIOService<?>>
 	String[] xmppStreamOpened(IO serv, Map<String, String> attribs);
 
 	String xmppStreamError(IO serv, List<Element> err_el);
+
+	/**
+	 * Method called when connection becomes congested or is no longer congested.
+	 *
+	 * @param serv connection
+	 * @param congested <code>true</code> if connection is congested
+	 */
+	void writeBackpressureChanged(IO serv, boolean congested);
 }    // XMPPIOServiceListener
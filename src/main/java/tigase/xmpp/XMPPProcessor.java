@@ -53,9 +53,11 @@ public abstract class XMPPProcessor
 
 	protected static final String ALL_NAMES = "*";
 
-	protected static final String[][] ALL_PATHS = {{"*"}};
+	public static final String[][] ALL_PATHS = {{"*"}};
 	private static final Logger log = Logger.getLogger(XMPPProcessor.class.getName());
 	protected static ComponentInfo cmpInfo = null;
+	@ConfigField(desc = "Processing by processor may block and should not use threads of shared pool")
+	private boolean blocking = false;
 	@ConfigField(desc = "Queue size which should be used by processor")
 	private Integer queueSize = null;
 	@ConfigField(desc = "Numbers of threads which should be used by processor")
@@ -198,6 +200,11 @@ public abstract class XMPPProcessor
 		return queueSize;
 	}
 
+	@Override
+	public boolean isBlocking() {
+		return blocking;
+	}
+
 	private Authorization checkPacket(Packet packet, String[][] elemPaths, String[] elemXMLNS, Set<StanzaType> types) {
 		Authorization result = null;
 		boolean names_ok = elemPaths == ALL_PATHS;
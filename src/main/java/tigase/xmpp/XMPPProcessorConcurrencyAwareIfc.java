@@ -26,4 +26,14 @@ public interface XMPPProcessorConcurrencyAwareIfc {
 
 	Integer getQueueSize();
 
+	/**
+	 * Returns <code>true</code> if processing of packets may block (ie. waiting for a database) and, when session manager
+	 * uses a shared pool of threads, it should be done by virtual threads instead of threads of the shared pool.
+	 *
+	 * @return <code>true</code> if processing may block
+	 */
+	default boolean isBlocking() {
+		return false;
+	}
+
 }
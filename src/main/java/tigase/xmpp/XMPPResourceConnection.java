@@ -69,6 +69,12 @@ public class XMPPResourceConnection
 	 */
 	public static final String PRESENCE_KEY = "user-presence";
 
+	/**
+	 * Constant <code>WRITE_CONGESTED_KEY</code> is a key in temporary session data which is set while the client
+	 * connection is congested, as the client does not read data sent to it.
+	 */
+	public static final String WRITE_CONGESTED_KEY = "write-congested";
+
 	private static final Logger log = Logger.getLogger(XMPPResourceConnection.class.getName());
 
 	private long authenticationTime = 0;
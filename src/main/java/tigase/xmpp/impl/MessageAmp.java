@@ -222,7 +222,7 @@ public class MessageAmp
 			case "presence":
 				if ((offlineProcessor != null) && offlineProcessor.loadOfflineMessages(packet, session)) {
 					try {
-						Queue<Packet> packets = offlineProcessor.restorePacketForOffLineUser(session, msg_repo);
+						Queue<Packet> packets = offlineProcessor.restorePacketsPageForOffLineUser(session, msg_repo);
 
 						if (packets != null) {
 							if (log.isLoggable(Level.FINER)) {
@@ -22,7 +22,9 @@ import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.osgi.ModulesManagerImpl;
 import tigase.server.Iq;
@@ -40,6 +42,10 @@ import tigase.xmpp.jid.JID;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -58,7 +64,7 @@ import static tigase.server.Message.ELEM_NAME;
 @Bean(name = OfflineMessages.ID, parent = SessionManager.class, active = false)
 public class OfflineMessages
 		extends XMPPProcessor
-		implements XMPPPostprocessorIfc, XMPPProcessorIfc {
+		implements XMPPPostprocessorIfc, XMPPProcessorIfc, Initializable, UnregisterAware {
 
 	/**
 	 * Field holds an array for element paths for which the plugin offers message saving capabilities. In case of {@code
@@ -102,6 +108,7 @@ public class OfflineMessages
 	 */
 	private static final Element[] DISCO_FEATURES = {
 			new Element("feature", new String[]{"var"}, new String[]{"msgoffline"})};
+	private static final String MSG_LOAD_PAGE_SIZE = "msg-load-page-size";
 	private static final String MSG_OFFLINE_STORAGE_PATHS = "msg-store-offline-paths";
 	private static final String MSG_REPO_CLASS_KEY = "msg-repo-class";
 	private static final String MSG_PUBSUB_JID = "msg-pubsub-jid";
@@ -114,6 +121,10 @@ public class OfflineMessages
 	 * Field holds class for formatting and parsing dates in a locale-sensitive manner
 	 */
 	private final SimpleDateFormat formatter;
+	@ConfigField(desc = "Delay in ms of loading next page for congested connection", alias = "msg-load-congested-delay")
+	private long loadCongestedDelay = 100;
+	@ConfigField(desc = "Number of offline messages loaded at once, 0 to load all", alias = MSG_LOAD_PAGE_SIZE)
+	private int loadPageSize = 100;
 	@Inject
 	private Message message;
 	@ConfigField(desc = "Offline message implementation repository class", alias = MSG_REPO_CLASS_KEY)
@@ -122,17 +133,40 @@ public class OfflineMessages
 	private List<Notifier> notifiers;
 	@ConfigField(desc = "Store offline messages with mathing paths", alias = MSG_OFFLINE_STORAGE_PATHS)
 	private ElementMatcher[] offlineStorageMatchers = new ElementMatcher[0];
+	private volatile ScheduledExecutorService pagesExecutor = null;
+	@Inject(nullAllowed = true)
+	private SessionManager sessionManager;
 
 	{
 		this.formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 		this.formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
 	}
 
+	@Override
+	public void beforeUnregister() {
+		if (pagesExecutor != null) {
+			pagesExecutor.shutdownNow();
+			pagesExecutor = null;
+		}
+	}
+
 	@Override
 	public String id() {
 		return ID;
 	}
 
+	@Override
+	public void initialize() {
+		if (pagesExecutor == null) {
+			pagesExecutor = Executors.newScheduledThreadPool(2, runnable -> {
+				Thread thread = new Thread(runnable, "offline-msgs-pages");
+
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <br>
@@ -199,7 +233,7 @@ public class OfflineMessages
 				if (loadOfflineMessages(packet, conn)) {
 					try {
 						OfflineMsgRepositoryIfc msg_repo = getMsgRepoImpl(repo, conn);
-						Queue<Packet> packets = restorePacketForOffLineUser(conn, msg_repo);
+						Queue<Packet> packets = restorePacketsPageForOffLineUser(conn, msg_repo);
 
 						if (packets != null) {
 							if (log.isLoggable(Level.FINER)) {
@@ -301,37 +335,39 @@ public class OfflineMessages
 	public Queue<Packet> restorePacketForOffLineUser(XMPPResourceConnection conn,
 													 tigase.db.OfflineMsgRepositoryIfc repo)
 			throws UserNotFoundException, NotAuthorizedException {
-		Queue<Element> elems = repo.loadMessagesToJID(conn, true);
-
-		if (elems != null) {
-			LinkedList<Packet> pacs = new LinkedList<Packet>();
-			Element elem = null;
+		return createPackets(conn, repo.loadMessagesToJID(conn, true));
+	}
 
-			while ((elem = elems.poll()) != null) {
-				try {
-					Packet p = Packet.packetInstance(elem);
-					if (p.getElemName() == Iq.ELEM_NAME) {
-						p.initVars(p.getStanzaFrom(), conn.getJID());
-					}
-					pacs.offer(p);
-				} catch (TigaseStringprepException ex) {
-					log.warning("Packet addressing problem, stringprep failed: " + elem);
-				}
-			}    // end of while (elem = elems.poll() != null)
-			try {
-				Collections.sort(pacs, new StampComparator());
-			} catch (NullPointerException e) {
-				try {
-					log.warning("Can not sort off line messages: " + pacs + ",\n" + e);
-				} catch (Exception exc) {
-					log.log(Level.WARNING, "Can not print log message.", exc);
-				}
-			}
+	/**
+	 * Method restores messages from repository for the JID of the current session in pages of {@code
+	 * msg-load-page-size} messages, so a user with a lot of offline messages does not block the processing thread and
+	 * all messages are not kept in memory at once. All pages, including the first one, are loaded and sent to the user
+	 * in the background, one after another and only while the user connection is not congested. Messages of each page
+	 * are removed from repository after they are sent and the next page is loaded only after that, so messages are
+	 * delivered in the order in which they were stored.
+	 *
+	 * @param conn user session which keeps all the user session data and also gives an access to the user's repository
+	 * data.
+	 * @param repo an implementation of {@link MsgRepositoryIfc} interface
+	 *
+	 * @return a {@link Queue} of {@link Packet} objects based on all stored payloads for the JID of the current session
+	 * if messages cannot be loaded in pages, empty queue otherwise.
+	 *
+	 * @throws UserNotFoundException
+	 * @throws NotAuthorizedException
+	 */
+	public Queue<Packet> restorePacketsPageForOffLineUser(XMPPResourceConnection conn,
+														  tigase.db.OfflineMsgRepositoryIfc repo)
+			throws UserNotFoundException, NotAuthorizedException {
+		ScheduledExecutorService executor = pagesExecutor;
 
-			return pacs;
+		if (loadPageSize <= 0 || executor == null || !isPagesLoadingSupported()) {
+			return restorePacketForOffLineUser(conn, repo);
 		}
 
-		return null;
+		// first page is sent by the loader as well, so it is removed only after it is handed over
+		executor.execute(new PagesLoader(conn, repo));
+		return new ArrayDeque<Packet>();
 	}
 
 	/**
@@ -575,6 +611,54 @@ public class OfflineMessages
 		}
 	}
 
+	/**
+	 * Passes packet with a message loaded from a page of offline messages for delivery.
+	 *
+	 * @param packet packet to send
+	 *
+	 * @return <code>true</code> if packet was accepted
+	 */
+	protected boolean addOutPacket(Packet packet) {
+		return sessionManager.addOutPacket(packet);
+	}
+
+	protected boolean isPagesLoadingSupported() {
+		return sessionManager != null;
+	}
+
+	private Queue<Packet> createPackets(XMPPResourceConnection conn, Queue<Element> elems)
+			throws NotAuthorizedException {
+		if (elems != null) {
+			LinkedList<Packet> pacs = new LinkedList<Packet>();
+			Element elem = null;
+
+			while ((elem = elems.poll()) != null) {
+				try {
+					Packet p = Packet.packetInstance(elem);
+					if (p.getElemName() == Iq.ELEM_NAME) {
+						p.initVars(p.getStanzaFrom(), conn.getJID());
+					}
+					pacs.offer(p);
+				} catch (TigaseStringprepException ex) {
+					log.warning("Packet addressing problem, stringprep failed: " + elem);
+				}
+			}    // end of while (elem = elems.poll() != null)
+			try {
+				Collections.sort(pacs, new StampComparator());
+			} catch (NullPointerException e) {
+				try {
+					log.warning("Can not sort off line messages: " + pacs + ",\n" + e);
+				} catch (Exception exc) {
+					log.log(Level.WARNING, "Can not print log message.", exc);
+				}
+			}
+
+			return pacs;
+		}
+
+		return null;
+	}
+
 	public interface Notifier {
 
 		void notifyNewOfflineMessage(Packet packet, XMPPResourceConnection conn, Queue<Packet> queue,
@@ -707,6 +791,85 @@ public class OfflineMessages
 		}
 	}
 
+	/**
+	 * Loads pages of offline messages of a single user session, one page at a time. Next page is loaded only after
+	 * messages of the previous page were sent and removed from repository.
+	 */
+	private class PagesLoader
+			implements Runnable {
+
+		private final XMPPResourceConnection conn;
+		private final tigase.db.OfflineMsgRepositoryIfc repo;
+		private long afterId = 0;
+		private long lastId = -1;
+
+		private PagesLoader(XMPPResourceConnection conn, tigase.db.OfflineMsgRepositoryIfc repo) {
+			this.conn = conn;
+			this.repo = repo;
+		}
+
+		@Override
+		public void run() {
+			ScheduledExecutorService executor = pagesExecutor;
+
+			if (executor == null || !conn.isAuthorized() ||
+					conn.getSessionData(XMPPResourceConnection.CLOSING_KEY) != null) {
+				// remaining messages are kept in repository for the next session
+				return;
+			}
+			try {
+				if (conn.getSessionData(XMPPResourceConnection.WRITE_CONGESTED_KEY) != null) {
+					executor.schedule(this, loadCongestedDelay, TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				Queue<Packet> packets = loadPage();
+
+				if (packets != null && !packets.isEmpty()) {
+					if (log.isLoggable(Level.FINER)) {
+						log.log(Level.FINER, "Sending page of {0} off-line messages to {1}",
+								new Object[]{packets.size(), conn});
+					}
+					notifyOfflineMessagesRetrieved(conn, packets);
+					for (Packet packet : packets) {
+						if (!addOutPacket(packet)) {
+							// page is not acknowledged, so it will be loaded again in the next session
+							return;
+						}
+					}
+				}
+				if (acknowledgePage()) {
+					executor.execute(this);
+				}
+			} catch (UserNotFoundException | NotAuthorizedException ex) {
+				log.log(Level.FINE, "Could not load offline messages for " + conn, ex);
+			} catch (RejectedExecutionException ex) {
+				log.log(Level.FINEST, "Loading of offline messages stopped for {0}", conn);
+			}
+		}
+
+		/**
+		 * Removes messages of the last loaded page from repository.
+		 *
+		 * @return <code>true</code> if there may be more messages to load
+		 */
+		private boolean acknowledgePage() throws UserNotFoundException {
+			if (lastId < 0) {
+				return false;
+			}
+			repo.deleteMessagesPage(conn, afterId, lastId);
+			afterId = lastId;
+			return true;
+		}
+
+		private Queue<Packet> loadPage() throws UserNotFoundException, NotAuthorizedException {
+			Queue<Element> elems = new ArrayDeque<Element>();
+
+			lastId = repo.loadMessagesPage(conn, afterId, loadPageSize, elems);
+			return createPackets(conn, elems);
+		}
+	}
+
 	/**
 	 * Implementation of {@code MsgRepositoryIfc} interface providing basic support for storing and loading of Elements
 	 * from repository.
@@ -339,7 +339,9 @@ public class PresenceOffline
 		if (roster == null) {
 			String rosterString = null;
 			try {
-				rosterString = userRepository.getData(owner, ROSTER);
+				rosterString = (roster_util instanceof RosterFlat)
+							   ? ((RosterFlat) roster_util).getRosterData(userRepository, owner)
+							   : userRepository.getData(owner, ROSTER);
 			} catch (TigaseDBException ex) {
 				log.log(Level.WARNING, "Problem reading roster from DB: ", ex);
 			}
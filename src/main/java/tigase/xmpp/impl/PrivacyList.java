@@ -34,17 +34,28 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Privacy list with items sorted by their order.
+ * <br>
+ * To evaluate the list in constant time regardless of its size, items are indexed by the full JID, bare JID, domain,
+ * roster group and subscription they match. For each key and stanza type the index keeps position of the first item
+ * which matches it, so the first matching item is the one with the lowest position found for the checked JID, exactly
+ * as if items were checked one by one. Roster of the user is checked only if a group or subscription item may be the
+ * first matching item.
+ */
 public class PrivacyList {
 
 	public static final PrivacyList ALLOW_ALL = new PrivacyList(null, new Element("list"));
 	private static final Logger log = Logger.getLogger(PrivacyList.class.getCanonicalName());
 	private static final Set<Item.Type> ALL_TYPES = EnumSet.allOf(Item.Type.class);
+	private static final int NOT_FOUND = Integer.MAX_VALUE;
 	private static final PrivacyList DENY_ALL = new PrivacyList(null, new Element("list")) {
 		@Override
 		public boolean isAllowed(JID jid, Item.Type type) {
 			return false;
 		}
 	};
+	private final ItemsIndex index;
 	private final Item[] items;
 	private final String name;
 	private final Function<JID, RosterElement> rosterElementGetter;
@@ -81,6 +92,7 @@ public class PrivacyList {
 				.map(this::elemToItem)
 				.filter(it -> it != null)
 				.toArray(x -> new Item[x]);
+		this.index = new ItemsIndex(items);
 	}
 
 	public String getName() {
@@ -92,13 +104,37 @@ public class PrivacyList {
 	}
 
 	public boolean isAllowed(JID jid, Item.Type type) {
-		for (Item item : items) {
-			if (item.matches(jid, type)) {
-				return item.isAllowed();
+		if (jid == null) {
+			return isAllowedByScan(jid, type);
+		}
+
+		int t = type.ordinal();
+		int first = index.all[t];
+
+		first = Math.min(first, ItemsIndex.get(index.fullJids, jid, t));
+		first = Math.min(first, ItemsIndex.get(index.bareJids, jid.getBareJID(), t));
+		first = Math.min(first, ItemsIndex.get(index.domains, jid.getDomain(), t));
+		if (index.roster[t] < first) {
+			RosterElement rosterElement = rosterElementGetter.apply(jid);
+			String[] groups = rosterElement == null ? null : rosterElement.getGroups();
+
+			if (groups != null) {
+				for (String group : groups) {
+					first = Math.min(first, ItemsIndex.get(index.groups, group, t));
+				}
+			}
+
+			RosterAbstract.SubscriptionType subscription =
+					rosterElement == null ? null : rosterElement.getSubscription();
+
+			for (Map.Entry<RosterAbstract.SubscriptionType, int[]> e : index.subscriptions.entrySet()) {
+				if (e.getValue()[t] < first && matchesSubscription(e.getKey(), subscription)) {
+					first = e.getValue()[t];
+				}
 			}
 		}
 
-		return true;
+		return first == NOT_FOUND || items[first].isAllowed();
 	}
 
 	public boolean isEmpty() {
@@ -115,6 +151,42 @@ public class PrivacyList {
 		return sb.toString();
 	}
 
+	/**
+	 * Checks items one by one until the first matching item is found. Result is always the same as of {@link
+	 * #isAllowed(JID, Item.Type)}.
+	 *
+	 * @param jid address of the other entity
+	 * @param type type of the stanza
+	 *
+	 * @return <code>true</code> if stanza is allowed
+	 */
+	boolean isAllowedByScan(JID jid, Item.Type type) {
+		for (Item item : items) {
+			if (item.matches(jid, type)) {
+				return item.isAllowed();
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean matchesSubscription(RosterAbstract.SubscriptionType itemSubscription,
+											   RosterAbstract.SubscriptionType subscription) {
+		switch (itemSubscription) {
+			case none:
+				return subscription == null || (!RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
+						!RosterAbstract.FROM_SUBSCRIBED.contains(subscription));
+			case to:
+				return RosterAbstract.TO_SUBSCRIBED.contains(subscription);
+			case from:
+				return RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
+			case both:
+				return RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
+						RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
+		}
+		return false;
+	}
+
 	private PrivacyList getSingletonIfPossible() {
 		if (isEmpty()) {
 			return ALLOW_ALL;
@@ -333,20 +405,84 @@ public class PrivacyList {
 				return false;
 			}
 
-			RosterAbstract.SubscriptionType subscription = getSubscriptionForJID(jid);
-			switch (this.subscription) {
-				case none:
-					return subscription == null || (!RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
-							!RosterAbstract.FROM_SUBSCRIBED.contains(subscription));
-				case to:
-					return RosterAbstract.TO_SUBSCRIBED.contains(subscription);
-				case from:
-					return RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
-				case both:
-					return RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
-							RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
+			return matchesSubscription(this.subscription, getSubscriptionForJID(jid));
+		}
+	}
+
+	/**
+	 * Positions of the first items matching a key, for each stanza type.
+	 */
+	private static class ItemsIndex {
+
+		private final int[] all = positions();
+		private final Map<BareJID, int[]> bareJids = new HashMap<>();
+		private final Map<String, int[]> domains = new HashMap<>();
+		private final Map<JID, int[]> fullJids = new HashMap<>();
+		private final Map<String, int[]> groups = new HashMap<>();
+		private final int[] roster = positions();
+		private final Map<RosterAbstract.SubscriptionType, int[]> subscriptions = new EnumMap<>(
+				RosterAbstract.SubscriptionType.class);
+
+		private static <K> int get(Map<K, int[]> map, K key, int type) {
+			if (map.isEmpty()) {
+				return NOT_FOUND;
+			}
+
+			int[] positions = map.get(key);
+
+			return positions == null ? NOT_FOUND : positions[type];
+		}
+
+		private static int[] positions() {
+			int[] positions = new int[Item.Type.values().length];
+
+			Arrays.fill(positions, NOT_FOUND);
+			return positions;
+		}
+
+		private static void put(int[] positions, int position, Set<Item.Type> types) {
+			for (Item.Type type : types) {
+				if (positions[type.ordinal()] > position) {
+					positions[type.ordinal()] = position;
+				}
+			}
+		}
+
+		private static <K> void put(Map<K, int[]> map, K key, int position, Set<Item.Type> types) {
+			put(map.computeIfAbsent(key, k -> positions()), position, types);
+		}
+
+		private ItemsIndex(Item[] items) {
+			for (int i = 0; i < items.length; i++) {
+				Item item = items[i];
+
+				if (item instanceof ItemAll) {
+					put(all, i, ALL_TYPES);
+					// items after this one are never checked
+					break;
+				} else if (item instanceof ItemJid) {
+					ItemJid itemJid = (ItemJid) item;
+					JID jid = itemJid.jid;
+
+					if (jid.getResource() != null) {
+						put(fullJids, jid, i, itemJid.types);
+					} else if (jid.getLocalpart() != null) {
+						put(bareJids, jid.getBareJID(), i, itemJid.types);
+					} else {
+						put(domains, jid.getDomain(), i, itemJid.types);
+					}
+				} else if (item instanceof ItemGroup) {
+					ItemGroup itemGroup = (ItemGroup) item;
+
+					put(groups, itemGroup.group, i, itemGroup.types);
+					put(roster, i, itemGroup.types);
+				} else if (item instanceof ItemSubscription) {
+					ItemSubscription itemSubscription = (ItemSubscription) item;
+
+					put(subscriptions, itemSubscription.subscription, i, itemSubscription.types);
+					put(roster, i, itemSubscription.types);
+				}
 			}
-			return false;
 		}
 	}
 }
@@ -18,6 +18,7 @@
 package tigase.xmpp.impl.roster;
 
 import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
 import tigase.server.PolicyViolationException;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -286,6 +287,21 @@ public class RosterFlat
 		// return SubscriptionType.both;
 	}
 
+	/**
+	 * Reads stored roster of the user, who does not need to be logged in, in the format accepted by {@link
+	 * #parseRosterUtil(String, Map, XMPPResourceConnection)}.
+	 *
+	 * @param repo user repository
+	 * @param user owner of the roster
+	 *
+	 * @return roster data or <code>null</code> if there is no roster stored
+	 *
+	 * @throws TigaseDBException if roster could not be loaded
+	 */
+	public String getRosterData(UserRepository repo, BareJID user) throws TigaseDBException {
+		return repo.getData(user, ROSTER);
+	}
+
 	public RosterElement getRosterElementInstance(JID buddy, String name, String[] groups,
 												  XMPPResourceConnection session) {
 		return new RosterElement(buddy.copyWithoutResource(), name, groups);
@@ -417,6 +433,25 @@ public class RosterFlat
 		relem.setPresence_sent(sent);
 	}
 
+	/**
+	 * Stores roster of the user, who does not need to be logged in, replacing roster stored previously.
+	 *
+	 * @param repo user repository
+	 * @param user owner of the roster
+	 * @param items all items of the roster
+	 *
+	 * @throws TigaseDBException if roster could not be stored
+	 */
+	public void setRosterData(UserRepository repo, BareJID user, Collection<RosterElement> items)
+			throws TigaseDBException {
+		StringBuilder sb = new StringBuilder(200 * items.size());
+
+		for (RosterElement relem : items) {
+			sb.append(relem.getRosterElement().toString());
+		}
+		repo.setData(user, ROSTER, sb.toString());
+	}
+
 	@Override
 	public RosterElement getRosterElement(XMPPResourceConnection session, JID buddy)
 			throws NotAuthorizedException, TigaseDBException {
@@ -0,0 +1,203 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roster implementation storing each roster item separately, instead of storing whole roster as a single XML string
+ * like {@link RosterFlat} does. Items are stored in <code>roster-items</code> subnode of the user repository with the
+ * buddy bare JID as a key and only modified items are written when roster changes, so the cost of a change does not
+ * depend on the roster size.
+ * <br>
+ * Rosters stored by {@link RosterFlat} are migrated when they are loaded for the first time, after which the old roster
+ * data is removed and <code>roster-items-migrated</code> marker is stored. Until the marker exists, items from the old
+ * roster data are merged with separately stored items, so an interrupted migration does not lose any item. To enable
+ * it set <code>roster-implementation</code> to the name of this class.
+ */
+public class RosterPerItem
+		extends RosterFlat {
+
+	public static final String ROSTER_ITEMS = "roster-items";
+
+	public static final String ROSTER_ITEMS_MIGRATED = "roster-items-migrated";
+
+	private static final Logger log = Logger.getLogger(RosterPerItem.class.getName());
+
+	private static String joinItems(Map<String, String> items) {
+		StringBuilder sb = new StringBuilder(items.size() * 200);
+
+		for (String item : items.values()) {
+			sb.append(item);
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public String getRosterData(UserRepository repo, BareJID user) throws TigaseDBException {
+		Map<String, String> items = repo.getDataMap(user, ROSTER_ITEMS);
+
+		if (repo.getData(user, ROSTER_ITEMS_MIGRATED) != null) {
+			return (items == null) ? "" : joinItems(items);
+		}
+
+		String roster_str = super.getRosterData(repo, user);
+
+		if ((items == null) || items.isEmpty()) {
+			return roster_str;
+		}
+		if ((roster_str == null) || roster_str.isEmpty()) {
+			return joinItems(items);
+		}
+
+		// migration was not completed, items stored separately are newer than the ones in the old roster
+		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>();
+		StringBuilder sb = new StringBuilder(joinItems(items));
+
+		parseRosterUtil(roster_str, roster, null);
+		for (RosterElement relem : roster.values()) {
+			if (!items.containsKey(relem.getJid().getBareJID().toString())) {
+				sb.append(relem.getRosterElement().toString());
+			}
+		}
+
+		return sb.toString();
+	}
+
+	@Override
+	public Map<BareJID, RosterElement> loadUserRoster(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<String, String> items = session.getDataMap(ROSTER_ITEMS);
+
+		if (session.getData(null, ROSTER_ITEMS_MIGRATED, null) == null) {
+			// roster was not migrated yet or migration was interrupted, so old roster may contain items which are not
+			// stored separately
+			Map<BareJID, RosterElement> roster = super.loadUserRoster(session);
+
+			if ((items != null) && !items.isEmpty()) {
+				parseRoster(joinItems(items), roster, session);
+			}
+			migrateUserRoster(session, roster);
+
+			return roster;
+		}
+
+		if (items == null) {
+			items = Collections.emptyMap();
+		}
+
+		Map<BareJID, RosterElement> roster = new ConcurrentHashMap<BareJID, RosterElement>(
+				Math.max(100, items.size() * 2), 0.25f, 1);
+
+		session.putCommonSessionData(ROSTER, roster);
+
+		String roster_str = joinItems(items);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded user {1} roster items: {0}", new Object[]{roster_str, session.getjid()});
+		}
+		updateRosterHash(roster_str, session);
+		if (!roster_str.isEmpty() && parseRoster(roster_str, roster, session)) {
+			saveUserRoster(session);
+		}
+
+		return roster;
+	}
+
+	@Override
+	public boolean removeBuddy(XMPPResourceConnection session, JID jid)
+			throws NotAuthorizedException, TigaseDBException {
+		boolean result = super.removeBuddy(session, jid);
+
+		session.removeData(ROSTER_ITEMS, jid.getBareJID().toString());
+
+		return result;
+	}
+
+	@Override
+	public void setRosterData(UserRepository repo, BareJID user, Collection<RosterElement> items)
+			throws TigaseDBException {
+		Map<String, String> stored = repo.getDataMap(user, ROSTER_ITEMS);
+		Set<String> keys = new HashSet<String>();
+
+		for (RosterElement relem : items) {
+			String key = relem.getJid().getBareJID().toString();
+
+			keys.add(key);
+			repo.setData(user, ROSTER_ITEMS, key, relem.getRosterElement().toString());
+		}
+		if (stored != null) {
+			for (String key : stored.keySet()) {
+				if (!keys.contains(key)) {
+					repo.removeData(user, ROSTER_ITEMS, key);
+				}
+			}
+		}
+		// all items are stored now, so old roster is not needed any more
+		repo.removeData(user, ROSTER);
+		repo.setData(user, ROSTER_ITEMS_MIGRATED, "true");
+	}
+
+	@Override
+	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent() && relem.isModified()) {
+				saveRosterItem(session, relem);
+			}
+		}
+	}
+
+	private void migrateUserRoster(XMPPResourceConnection session, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Migrating roster of user {0} with {1} items to per item storage",
+					new Object[]{session.getBareJID(), roster.size()});
+		}
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent()) {
+				saveRosterItem(session, relem);
+			}
+		}
+		// removing old roster and marking migration as completed only after all items are stored
+		session.removeData(null, ROSTER);
+		session.setData(null, ROSTER_ITEMS_MIGRATED, "true");
+	}
+
+	private void saveRosterItem(XMPPResourceConnection session, RosterElement relem)
+			throws NotAuthorizedException, TigaseDBException {
+		String item = relem.getRosterElement().toString();
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Saving roster item: {1}", new Object[]{session.getBareJID(), item});
+		}
+		session.setData(ROSTER_ITEMS, relem.getJid().getBareJID().toString(), item);
+	}
+}
@@ -24,8 +24,6 @@ import tigase.kernel.DefaultTypesConverter;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 
-import java.util.HashMap;
-
 public class BruteForceLockerBeanTest {
 
 	@Test
@@ -158,7 +156,6 @@ public class BruteForceLockerBeanTest {
 	@Test
 	public void test3InvalidLoginsAndWait() {
 		BruteForceLockerBean bean = new BruteForceLockerBean();
-		bean.setMap(new HashMap<>());
 		bean.clearAll();
 
 		bean.addInvalidLogin(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 100000);
@@ -219,7 +216,6 @@ public class BruteForceLockerBeanTest {
 	@Test
 	public void test4InvalidLogins() {
 		BruteForceLockerBean bean = new BruteForceLockerBean();
-		bean.setMap(new HashMap<>());
 		bean.clearAll();
 
 		Assert.assertTrue(bean.isLoginAllowed(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 99999));
@@ -243,4 +239,105 @@ public class BruteForceLockerBeanTest {
 
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testClearOutdated() {
+		final BareJID jid = BareJID.bareJIDInstanceNS("a@bc.d");
+		BruteForceLockerBean bean = new BruteForceLockerBean();
+
+		bean.addInvalidLogin(null, "1.2.3.4", jid, 100000);
+		bean.addInvalidLogin(null, "1.2.3.5", jid, 105000);
+		Assert.assertNotNull(bean.getCounters().get(bean.createKey(null, "1.2.3.4", jid)));
+
+		bean.clearOutdated(111000);
+		Assert.assertNull(bean.getCounters().get(bean.createKey(null, "1.2.3.4", jid)));
+		Assert.assertEquals(1, bean.getCounters().size());
+
+		// counter extended by later invalid login must not be removed
+		bean.addInvalidLogin(null, "1.2.3.5", jid, 110002);
+		bean.clearOutdated(116000);
+		Assert.assertEquals(1, bean.getCounters().size());
+		bean.clearOutdated(121000);
+		Assert.assertEquals(0, bean.getCounters().size());
+	}
+
+	@Test
+	public void testDeltaSynchronization() {
+		final BareJID jid = BareJID.bareJIDInstanceNS("a@bc.d");
+		BruteForceLockerBean node1 = new BruteForceLockerBean();
+		BruteForceLockerBean node2 = new BruteForceLockerBean();
+
+		node1.addInvalidLogin(null, "1.2.3.4", jid, 100000);
+		node1.addInvalidLogin(null, "1.2.3.5", jid, 100000);
+		node1.addInvalidLogin(null, "1.2.3.5", jid, 100001);
+
+		// counters below threshold are not sent
+		BruteForceCounters.Deltas deltas = node1.getCounters().collectDeltas(2);
+		Assert.assertEquals(1, deltas.getDeltas().size());
+		Assert.assertEquals(2, deltas.getDeltas().get(0).getDelta());
+
+		BruteForceCounters.Deltas received = new BruteForceCounters.Deltas();
+		received.fillFromString(deltas.encodeToStrings());
+		node2.applyDeltas(received, 100002);
+
+		node2.addInvalidLogin(null, "1.2.3.5", jid, 100003);
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.5", jid, 100004));
+		node2.addInvalidLogin(null, "1.2.3.5", jid, 100005);
+		Assert.assertFalse(node2.isLoginAllowed(null, "1.2.3.5", jid, 100006));
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.4", jid, 100006));
+
+		// only changes made after last synchronization are sent
+		node1.addInvalidLogin(null, "1.2.3.5", jid, 100007);
+		deltas = node1.getCounters().collectDeltas(2);
+		Assert.assertEquals(1, deltas.getDeltas().size());
+		Assert.assertEquals(1, deltas.getDeltas().get(0).getDelta());
+		Assert.assertTrue(node1.getCounters().collectDeltas(2).isEmpty());
+	}
+
+	@Test
+	public void testDeltaSynchronizationLocksMergedCounter() {
+		final BareJID jid = BareJID.bareJIDInstanceNS("a@bc.d");
+		BruteForceLockerBean node1 = new BruteForceLockerBean();
+		BruteForceLockerBean node2 = new BruteForceLockerBean();
+
+		// neither node exceeded the limit of 3 invalid logins on its own
+		node1.addInvalidLogin(null, "1.2.3.5", jid, 100000);
+		node1.addInvalidLogin(null, "1.2.3.5", jid, 100001);
+		node2.addInvalidLogin(null, "1.2.3.5", jid, 100000);
+		node2.addInvalidLogin(null, "1.2.3.5", jid, 100001);
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.5", jid, 100002));
+
+		BruteForceCounters.Deltas received = new BruteForceCounters.Deltas();
+		received.fillFromString(node1.getCounters().collectDeltas(2).encodeToStrings());
+		node2.applyDeltas(received, 105000);
+
+		// merged counter is locked for the lock time counted from the time deltas were applied
+		BruteForceLockerBean.Value value = node2.getCounters()
+				.get(node2.createKey(BruteForceLockerBean.Mode.IpJid, null, "1.2.3.5", jid));
+		Assert.assertEquals(4, value.getBadLoginCounter());
+		Assert.assertEquals(115000, value.getInvalidateAtTime());
+		Assert.assertFalse(node2.isLoginAllowed(null, "1.2.3.5", jid, 112000));
+		Assert.assertTrue(node2.isLoginAllowed(null, "1.2.3.5", jid, 115001));
+	}
+
+	@Test
+	public void testInvalidLoginsChangedEventSerialization() {
+		BruteForceLockerBean bean = new BruteForceLockerBean();
+		bean.addInvalidLogin(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 100000);
+		bean.addInvalidLogin(null, "1.2.3.4", BareJID.bareJIDInstanceNS("a@bc.d"), 100001);
+
+		BruteForceLockerBean.InvalidLoginsChangedEvent event1 = new BruteForceLockerBean.InvalidLoginsChangedEvent(
+				"node-1", bean.getCounters().collectDeltas(1));
+
+		final EventBusSerializer serializer = new EventBusSerializer();
+		BruteForceLockerBean.InvalidLoginsChangedEvent event2 = serializer.deserialize(serializer.serialize(event1));
+
+		Assert.assertEquals("node-1", event2.getNodeName());
+		Assert.assertEquals(1, event2.getDeltas().getDeltas().size());
+
+		BruteForceCounters.Delta delta = event2.getDeltas().getDeltas().get(0);
+		Assert.assertEquals(new BruteForceLockerBean.Key("1.2.3.4", "a@bc.d", "*"), delta.getKey());
+		Assert.assertEquals(2, delta.getDelta());
+		Assert.assertEquals(110001, delta.getInvalidateAtTime());
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.auth.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.auth.credentials.entries.PlainCredentialsEntry;
+import tigase.auth.credentials.entries.ScramCredentialsEntry;
+import tigase.xmpp.jid.BareJID;
+
+public class ScramPlainCredentialsCacheTest {
+
+	private final BareJID user1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+	private final BareJID user2 = BareJID.bareJIDInstanceNS("user-2@example.com");
+	private final BareJID user3 = BareJID.bareJIDInstanceNS("user-3@example.com");
+
+	@Test
+	public void testCache() throws Exception {
+		ScramPlainCredentialsCache cache = new ScramPlainCredentialsCache(10, 1000);
+		ScramCredentialsEntry entry = cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 0);
+
+		Assert.assertTrue(entry.verifyPlainPassword("password"));
+		Assert.assertSame(entry, cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 999));
+		Assert.assertNotSame(entry, cache.get(user1, null, "SHA-256", new PlainCredentialsEntry("password"), 0));
+		Assert.assertNotSame(entry, cache.get(user2, null, "SHA-1", new PlainCredentialsEntry("password"), 0));
+		Assert.assertEquals(3, cache.size());
+
+		// expired
+		ScramCredentialsEntry renewed = cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 1000);
+		Assert.assertNotSame(entry, renewed);
+
+		// password changed
+		ScramCredentialsEntry changed = cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password2"), 1000);
+		Assert.assertNotSame(renewed, changed);
+		Assert.assertTrue(changed.verifyPlainPassword("password2"));
+		Assert.assertFalse(changed.verifyPlainPassword("password"));
+
+		cache.invalidate(user1);
+		Assert.assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testMaxSize() throws Exception {
+		ScramPlainCredentialsCache cache = new ScramPlainCredentialsCache(2, 1000);
+		ScramCredentialsEntry entry1 = cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 0);
+		ScramCredentialsEntry entry2 = cache.get(user2, null, "SHA-1", new PlainCredentialsEntry("password"), 0);
+
+		// user-1 is used recently, so user-2 is evicted when the cache is full
+		Assert.assertSame(entry1, cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 0));
+		cache.get(user3, null, "SHA-1", new PlainCredentialsEntry("password"), 0);
+		Assert.assertEquals(2, cache.size());
+		Assert.assertSame(entry1, cache.get(user1, null, "SHA-1", new PlainCredentialsEntry("password"), 0));
+		Assert.assertNotSame(entry2, cache.get(user2, null, "SHA-1", new PlainCredentialsEntry("password"), 0));
+		Assert.assertEquals(2, cache.size());
+	}
+}
@@ -25,6 +25,8 @@ import tigase.TestLogger;
 import tigase.auth.callbacks.*;
 import tigase.util.Base64;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
@@ -99,6 +101,35 @@ public class SaslSCRAMTest
 		}
 	}
 
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testHiThroughput() throws Exception {
+		final int logins = 100;
+		final byte[] password = "password".getBytes();
+		final byte[] salt = "salt".getBytes();
+
+		// warm-up of both implementations
+		for (int i = 0; i < 10; i++) {
+			Assert.assertArrayEquals(hiWithoutMacReuse(password, salt, 4096),
+									 AbstractSaslSCRAM.hi("SHA1", password, salt, 4096));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < logins; i++) {
+			hiWithoutMacReuse(password, salt, 4096);
+		}
+		long before = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < logins; i++) {
+			AbstractSaslSCRAM.hi("SHA1", password, salt, 4096);
+		}
+		long after = System.nanoTime() - start;
+
+		log.log(Level.INFO, "SCRAM-SHA-1 key derivations per second on a single core, before: {0}, after: {1}",
+				new Object[]{logins * 1000000000L / before, logins * 1000000000L / after});
+	}
+
 	@Test
 	public void testHmac() {
 		SaslSCRAM m = create("QSXCR+Q6sek8bf92", "3rfcNHYJY1ZVvWVs7j", "pencil");
@@ -198,6 +229,29 @@ public class SaslSCRAMTest
 	 *
 	 * @return
 	 */
+	private static byte[] hiWithoutMacReuse(byte[] password, byte[] salt, int iterations) throws Exception {
+		final SecretKeySpec k = new SecretKeySpec(password, "HmacSHA1");
+		byte[] z = new byte[salt.length + 4];
+		System.arraycopy(salt, 0, z, 0, salt.length);
+		z[salt.length + 3] = 1;
+
+		byte[] u = hmacWithoutMacReuse(k, z);
+		byte[] result = u.clone();
+		for (int i = 1; i < iterations; i++) {
+			u = hmacWithoutMacReuse(k, u);
+			for (int j = 0; j < u.length; j++) {
+				result[j] ^= u[j];
+			}
+		}
+		return result;
+	}
+
+	private static byte[] hmacWithoutMacReuse(SecretKeySpec key, byte[] data) throws Exception {
+		Mac mac = Mac.getInstance(key.getAlgorithm());
+		mac.init(key);
+		return mac.doFinal(data);
+	}
+
 	private SaslSCRAM create(String salt, String snonce, String password) {
 		TestCallbackHandler h = new TestCallbackHandler();
 		h.setSalt(salt);
@@ -0,0 +1,160 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+public class JidLocationDirectoryTest {
+
+	private static final JID NODE_1 = JID.jidInstanceNS("sess-man@node1.example.com");
+	private static final JID NODE_2 = JID.jidInstanceNS("sess-man@node2.example.com");
+	private static final JID NODE_3 = JID.jidInstanceNS("sess-man@node3.example.com");
+
+	@Test
+	public void testLocations() {
+		JidLocationDirectory directory = new JidLocationDirectory(64, 1000, 10);
+		BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
+
+		Assert.assertTrue(directory.getLocations(user).isEmpty());
+
+		directory.addLocation(user, JID.jidInstanceNS("c2s@node1.example.com/1"), NODE_1);
+		directory.addLocation(user, JID.jidInstanceNS("c2s@node2.example.com/2"), NODE_2);
+		directory.addLocation(user, JID.jidInstanceNS("c2s@node2.example.com/3"), NODE_2);
+		Assert.assertEquals(new HashSet<JID>(Arrays.asList(NODE_1, NODE_2)), directory.getLocations(user));
+
+		// removing the same connection twice must not break anything
+		directory.removeLocation(user, JID.jidInstanceNS("c2s@node2.example.com/2"));
+		directory.removeLocation(user, JID.jidInstanceNS("c2s@node2.example.com/2"));
+		Assert.assertEquals(new HashSet<JID>(Arrays.asList(NODE_1, NODE_2)), directory.getLocations(user));
+
+		directory.removeNode(NODE_2);
+		Assert.assertEquals(Collections.singleton(NODE_1), directory.getLocations(user));
+
+		directory.removeLocation(user, JID.jidInstanceNS("c2s@node1.example.com/1"));
+		Assert.assertTrue(directory.getLocations(user).isEmpty());
+		Assert.assertEquals(0, directory.getLocationsSize());
+	}
+
+	@Test
+	public void testOwnership() {
+		JidLocationDirectory directory = new JidLocationDirectory(64, 1000, 10);
+		JidLocationDirectory other = new JidLocationDirectory(64, 1000, 10);
+
+		Assert.assertNull(directory.getOwner(BareJID.bareJIDInstanceNS("user@example.com")));
+
+		directory.setNodes(Arrays.asList(NODE_1, NODE_2, NODE_3));
+		// order of nodes must not change the owner
+		other.setNodes(Arrays.asList(NODE_3, NODE_1, NODE_2));
+
+		Map<JID, Integer> owned = new HashMap<JID, Integer>();
+		List<BareJID> users = new ArrayList<BareJID>();
+
+		for (int i = 0; i < 3000; i++) {
+			BareJID user = BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+			JID owner = directory.getOwner(user);
+
+			users.add(user);
+			Assert.assertEquals(owner, other.getOwner(user));
+			owned.merge(owner, 1, Integer::sum);
+		}
+		for (JID node : Arrays.asList(NODE_1, NODE_2, NODE_3)) {
+			Assert.assertTrue("node " + node + " owns " + owned.get(node), owned.get(node) > 500);
+		}
+
+		// only users owned by removed node should change owner
+		JidLocationDirectory.HashRing previous = directory.setNodes(Arrays.asList(NODE_1, NODE_2));
+		for (BareJID user : users) {
+			JID oldOwner = previous.getOwner(user);
+			if (!NODE_3.equals(oldOwner)) {
+				Assert.assertEquals(oldOwner, directory.getOwner(user));
+			} else {
+				Assert.assertNotEquals(NODE_3, directory.getOwner(user));
+			}
+		}
+	}
+
+	@Test
+	public void testRetainOwned() {
+		JidLocationDirectory directory = new JidLocationDirectory(64, 1000, 10);
+
+		directory.setNodes(Arrays.asList(NODE_1, NODE_2));
+		for (int i = 0; i < 100; i++) {
+			BareJID user = BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+			directory.addLocation(user, JID.jidInstanceNS("c2s@node1.example.com/" + i), NODE_1);
+		}
+		directory.retainOwned(NODE_1);
+		Assert.assertTrue(directory.getLocationsSize() > 0);
+		Assert.assertTrue(directory.getLocationsSize() < 100);
+		for (int i = 0; i < 100; i++) {
+			BareJID user = BareJID.bareJIDInstanceNS("user-" + i + "@example.com");
+			Assert.assertEquals(NODE_1.equals(directory.getOwner(user)), !directory.getLocations(user).isEmpty());
+		}
+	}
+
+	@Test
+	public void testCache() {
+		JidLocationDirectory directory = new JidLocationDirectory(64, 1000, 2);
+		BareJID user1 = BareJID.bareJIDInstanceNS("user-1@example.com");
+		BareJID user2 = BareJID.bareJIDInstanceNS("user-2@example.com");
+		BareJID user3 = BareJID.bareJIDInstanceNS("user-3@example.com");
+
+		Assert.assertFalse(directory.cacheLocations(user1, Collections.<JID>emptySet(), 0));
+		Assert.assertTrue(directory.cacheLocations(user1, Collections.singleton(NODE_1), 0));
+		Assert.assertTrue(directory.cacheLocations(user2, Collections.singleton(NODE_2), 500));
+		// cache is full
+		Assert.assertFalse(directory.cacheLocations(user3, Collections.singleton(NODE_3), 500));
+
+		Assert.assertEquals(Collections.singleton(NODE_1), directory.getCachedLocations(user1, 999));
+		Assert.assertNull(directory.getCachedLocations(user1, 1000));
+
+		// expired entry of user1 is removed to make space
+		Assert.assertTrue(directory.cacheLocations(user3, Collections.singleton(NODE_3), 1200));
+		Assert.assertEquals(Collections.singleton(NODE_3), directory.getCachedLocations(user3, 1200));
+
+		directory.removeNode(NODE_2);
+		Assert.assertNull(directory.getCachedLocations(user2, 1200));
+
+		directory.invalidateCache(user3);
+		Assert.assertNull(directory.getCachedLocations(user3, 1200));
+	}
+
+	@Test
+	public void testSubscribers() {
+		JidLocationDirectory directory = new JidLocationDirectory(64, 1000, 10);
+		BareJID user = BareJID.bareJIDInstanceNS("user@example.com");
+
+		Assert.assertTrue(directory.removeSubscribers(user, 0).isEmpty());
+
+		directory.addSubscriber(user, NODE_2, 0);
+		directory.addSubscriber(user, NODE_3, 500);
+		// entry cached by NODE_2 already expired
+		Assert.assertEquals(Collections.singleton(NODE_3), directory.removeSubscribers(user, 1200));
+		// nodes are returned only once, until locations are cached again
+		Assert.assertTrue(directory.removeSubscribers(user, 1200).isEmpty());
+
+		directory.addSubscriber(user, NODE_2, 0);
+		directory.addSubscriber(user, NODE_3, 0);
+		directory.removeNode(NODE_2);
+		Assert.assertEquals(Collections.singleton(NODE_3), directory.removeSubscribers(user, 500));
+	}
+}
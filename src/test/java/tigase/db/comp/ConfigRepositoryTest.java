@@ -0,0 +1,182 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.comp;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+public class ConfigRepositoryTest {
+
+	private final List<String> events = new ArrayList<>();
+	private TestRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new TestRepository();
+		repository.addRepoChangeListener(new RepositoryChangeListenerIfc<TestItem>() {
+			@Override
+			public void itemAdded(TestItem item) {
+				events.add("added:" + item.getKey());
+			}
+
+			@Override
+			public void itemUpdated(TestItem item) {
+				events.add("updated:" + item.getKey());
+			}
+
+			@Override
+			public void itemRemoved(TestItem item) {
+				events.add("removed:" + item.getKey());
+			}
+		});
+	}
+
+	@Test
+	public void testReloadOfChanges() {
+		repository.storage.put("a", "1");
+		repository.storage.put("b", "1");
+		repository.reload();
+		Assert.assertEquals(Arrays.asList("added:a", "added:b"), events);
+		Assert.assertEquals(2, repository.size());
+		Assert.assertEquals(2, repository.loadedItems);
+
+		events.clear();
+		repository.reload();
+		Assert.assertTrue(events.isEmpty());
+		Assert.assertEquals(2, repository.loadedItems);
+
+		repository.storage.put("b", "2");
+		repository.storage.put("c", "1");
+		repository.storage.remove("a");
+		repository.reload();
+		Assert.assertEquals(Arrays.asList("updated:b", "added:c", "removed:a"), events);
+		Assert.assertEquals(4, repository.loadedItems);
+		Assert.assertEquals("2", repository.getItem("b").value);
+		Assert.assertNull(repository.getItem("a"));
+	}
+
+	private static class TestItem
+			extends RepositoryItemAbstract {
+
+		private String key;
+		private String value;
+
+		@Override
+		public String getElemName() {
+			return "item";
+		}
+
+		@Override
+		public String getKey() {
+			return key;
+		}
+
+		@Override
+		protected void setKey(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void initFromPropertyString(String propString) {
+			String[] parts = propString.split("=");
+			key = parts[0];
+			value = parts[1];
+		}
+
+		@Override
+		public String toPropertyString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * Repository loading changes from a map of values with versions, in the same way as repositories do using
+	 * timestamps of rows.
+	 */
+	private static class TestRepository
+			extends ConfigRepository<TestItem> {
+
+		private final Map<String, String> storage = new HashMap<String, String>() {
+			@Override
+			public String put(String key, String value) {
+				versions.put(key, ++version);
+				return super.put(key, value);
+			}
+
+			@Override
+			public String remove(Object key) {
+				versions.put((String) key, ++version);
+				return super.remove(key);
+			}
+		};
+		private final Map<String, Long> versions = new HashMap<>();
+		private int loadedItems = 0;
+		private long version = 0;
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public String getConfigKey() {
+			return "test-items";
+		}
+
+		@Override
+		public TestItem getItemInstance() {
+			return new TestItem();
+		}
+
+		@Override
+		public String getPropertyKey() {
+			return null;
+		}
+
+		@Override
+		public boolean itemChanged(TestItem oldItem, TestItem newItem) {
+			return !oldItem.value.equals(newItem.value);
+		}
+
+		@Override
+		protected RepositoryChanges<TestItem> loadChanges(long watermark) {
+			RepositoryChanges<TestItem> changes = new RepositoryChanges<>(version);
+
+			for (Map.Entry<String, Long> entry : versions.entrySet()) {
+				if (entry.getValue() <= watermark) {
+					continue;
+				}
+
+				String value = storage.get(entry.getKey());
+
+				if (value == null) {
+					changes.addRemoved(entry.getKey());
+				} else {
+					TestItem item = getItemInstance();
+
+					item.initFromPropertyString(entry.getKey() + "=" + value);
+					changes.addChanged(item);
+					loadedItems++;
+				}
+			}
+			return changes;
+		}
+	}
+}
@@ -27,8 +27,10 @@ import tigase.eventbus.RouteEvent;
 import tigase.eventbus.component.stores.Subscription;
 import tigase.xml.Element;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import static org.junit.Assert.assertNotNull;
@@ -123,6 +125,53 @@ public class EventBusImplementationTest {
 		Assert.assertNotNull(resp[4]);
 	}
 
+	@Test
+	public void testDispatchTaskPerEvent() {
+		final List<Runnable> tasks = new ArrayList<>();
+		final Object resp[] = new Object[]{null, null, null};
+
+		eventBus.setExecutor(tasks::add);
+		eventBus.setDispatchMode(EventBusImplementation.DispatchMode.taskPerEvent);
+		eventBus.addListener(Event1.class, e -> resp[0] = e);
+		eventBus.addListener(Event1.class.getPackage().getName(), Event1.class.getSimpleName(), e -> resp[1] = e);
+		eventBus.registerAll(new SynchronousConsumer(resp));
+		tasks.clear();
+
+		eventBus.fire(new Event1());
+		// synchronous handler is called immediately, others by a single task
+		Assert.assertTrue(resp[2] instanceof Event1);
+		Assert.assertNull(resp[0]);
+		Assert.assertNull(resp[1]);
+		Assert.assertEquals(1, tasks.size());
+
+		tasks.get(0).run();
+		Assert.assertTrue(resp[0] instanceof Event1);
+		Assert.assertTrue(resp[1] instanceof Element);
+		Assert.assertEquals(1, eventBus.getEventFiredCount(Event1.class.getName()));
+	}
+
+	@Test
+	public void testResolvedHandlersInvalidation() {
+		final Object resp[] = new Object[]{null, null};
+		final EventListener<Event1> listener = e -> resp[1] = e;
+
+		eventBus.addListener(Event1.class, e -> resp[0] = e);
+		Assert.assertEquals(1, eventBus.getResolvedHandlers(Event12.class).length);
+		eventBus.fire(new Event12());
+		Assert.assertNotNull(resp[0]);
+		Assert.assertNull(resp[1]);
+
+		eventBus.addListener(Event1.class, listener);
+		Assert.assertEquals(2, eventBus.getResolvedHandlers(Event12.class).length);
+		Assert.assertSame(eventBus.getResolvedHandlers(Event12.class), eventBus.getResolvedHandlers(Event12.class));
+		eventBus.fire(new Event12());
+		Assert.assertNotNull(resp[1]);
+
+		eventBus.removeListener(listener);
+		Assert.assertEquals(1, eventBus.getResolvedHandlers(Event12.class).length);
+		Assert.assertEquals(2, eventBus.getEventFiredCount(Event12.class.getName()));
+	}
+
 	@Test
 	public void testFire() throws Exception {
 		Object resp[] = new Object[]{null, null, null, null, null};
@@ -581,4 +630,18 @@ public class EventBusImplementationTest {
 		}
 
 	}
-}
\ No newline at end of file
+
+	public static class SynchronousConsumer {
+
+		private final Object[] resp;
+
+		public SynchronousConsumer(Object[] resp) {
+			this.resp = resp;
+		}
+
+		@HandleEvent(synchronous = true)
+		public void onEvent(Event1 event) {
+			resp[2] = event;
+		}
+	}
+}
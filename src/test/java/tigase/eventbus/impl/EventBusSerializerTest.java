@@ -19,14 +19,84 @@ package tigase.eventbus.impl;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.eventbus.events.ShutdownEvent;
+import tigase.eventbus.events.StartupFinishedEvent;
+import tigase.kernel.BeanUtils;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.kernel.TypesConverter;
+import tigase.server.xmppsession.UserSessionEvent;
 import tigase.xml.Element;
+import tigase.xml.XMLUtils;
+import tigase.xmpp.impl.MessageCarbons;
 import tigase.xmpp.jid.JID;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class EventBusSerializerTest {
 
+	private static final Logger log = Logger.getLogger(EventBusSerializerTest.class.getName());
+
+	@Test
+	public void testCompact() {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		Event1 eo = new Event1();
+		eo.setJid(JID.jidInstanceNS("a@b.c/d"));
+		eo.setTransientField("123");
+		eo.setV1(" message <&> ");
+		eo.setV2(9898);
+		eo.setElementField(new Element("x", "v", new String[]{"a"}, new String[]{"b"}));
+		eo.setStrArrField(new String[]{"ala", "m,a", "kota"});
+		eo.setSetField(new HashSet<>(Arrays.asList("test123")));
+
+		Element ex = serializer.serialize(eo, true);
+
+		Assert.assertTrue(EventBusSerializer.isCompact(ex));
+		Assert.assertFalse(EventBusSerializer.isCompact(serializer.serialize(eo)));
+		// only fields of Element type are kept as child elements
+		Assert.assertEquals(1, ex.getChildren().size());
+		Assert.assertEquals("v", ex.getCData(new String[]{"tigase.eventbus.impl.Event1", "elementField", "x"}));
+
+		Event1 ed = new EventBusSerializer().deserialize(ex);
+
+		Assert.assertNotNull(ed);
+		Assert.assertEquals(JID.jidInstanceNS("a@b.c/d"), ed.getJid());
+		Assert.assertNull(ed.getTransientField());
+		Assert.assertNull(ed.getEmptyField());
+		// strings are trimmed as in XML form
+		Assert.assertEquals("message <&>", ed.getV1());
+		Assert.assertEquals(9898, ed.getV2());
+		Assert.assertEquals(new Element("x", "v", new String[]{"a"}, new String[]{"b"}), ed.getElementField());
+		Assert.assertArrayEquals(new String[]{"ala", "m,a", "kota"}, ed.getStrArrField());
+		Assert.assertEquals(new HashSet<>(Arrays.asList("test123")), ed.getSetField());
+	}
+
+	@Test
+	public void testCompactMatchesXml() {
+		EventBusSerializer serializer = new EventBusSerializer();
+
+		for (String v1 : new String[]{" message <&> ", "null", "message"}) {
+			Event1 eo = new Event1();
+			eo.setJid(JID.jidInstanceNS("a@b.c/d"));
+			eo.setV1(v1);
+			eo.setV2(9898);
+			eo.setStrArrField(new String[]{" ala ", "m,a", "kota"});
+			eo.setSetField(new HashSet<>(Arrays.asList("test123")));
+
+			Event1 fromXml = serializer.deserialize(serializer.serialize(eo));
+			Event1 fromCompact = serializer.deserialize(serializer.serialize(eo, true));
+
+			Assert.assertEquals(v1, fromXml.getV1(), fromCompact.getV1());
+			Assert.assertEquals(v1, serializer.serialize(fromXml), serializer.serialize(fromCompact));
+		}
+	}
+
 	@Test
 	public void testDeserialize() {
 		EventBusSerializer serializer = new EventBusSerializer();
@@ -78,4 +148,75 @@ public class EventBusSerializerTest {
 		Assert.assertNotEquals("ala,m,a,kota", ex.getCData(new String[]{"tigase.eventbus.impl.Event1", "strArrField"}));
 	}
 
-}
\ No newline at end of file
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testSerializationThroughput() throws Exception {
+		final int iterations = 200000;
+		final EventBusSerializer serializer = new EventBusSerializer();
+		final TypesConverter typesConverter = new DefaultTypesConverter();
+
+		JID sessMan = JID.jidInstanceNS("sess-man@node1.example.com");
+		JID userJid = JID.jidInstanceNS("user@example.com/res");
+		MessageCarbons.MessageCarbonsStateChangedEvent carbonsEvent;
+		carbonsEvent = new MessageCarbons.MessageCarbonsStateChangedEvent(sessMan, userJid, null);
+		carbonsEvent.add(JID.jidInstanceNS("user@example.com/res-2"), true);
+		Object[] events = new Object[]{new ShutdownEvent("node1.example.com", 1000, "Restarting"),
+									   new StartupFinishedEvent("node1.example.com"),
+									   new UserSessionEvent(sessMan, userJid, null), carbonsEvent};
+
+		for (Object event : events) {
+			Assert.assertEquals(serializeReflective(typesConverter, event), serializer.serialize(event));
+			Object deserialized = serializer.deserialize(serializer.serialize(event, true));
+			Assert.assertEquals(serializer.serialize(event), serializer.serialize(deserialized));
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serializeReflective(typesConverter, events[i % events.length]);
+		}
+		long reflective = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serializer.deserialize(serializer.serialize(events[i % events.length]));
+		}
+		long xml = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			serializer.deserialize(serializer.serialize(events[i % events.length], true));
+		}
+		long compact = System.nanoTime() - start;
+
+		log.log(Level.INFO,
+				"Events per second, reflective serialization: {0}, serialization and deserialization: {1}, " +
+						"in compact form: {2}",
+				new Object[]{iterations * 1000000000L / reflective, iterations * 1000000000L / xml,
+							 iterations * 1000000000L / compact});
+	}
+
+	// serialization as done before accessors of fields were cached
+	private static Element serializeReflective(TypesConverter typesConverter, Object object) throws Exception {
+		final Class<?> cls = object.getClass();
+		Element e = new Element(cls.getName());
+
+		for (final Field f : BeanUtils.getAllFields(cls)) {
+			if (Modifier.isTransient(f.getModifiers()) || Modifier.isFinal(f.getModifiers()) ||
+					Modifier.isStatic(f.getModifiers())) {
+				continue;
+			}
+			final Object value = BeanUtils.getValue(object, f);
+			if (value == null) {
+				continue;
+			}
+			Element v = new Element(f.getName());
+			if (Element.class.isAssignableFrom(f.getType())) {
+				v.addChild((Element) value);
+			} else {
+				v.setCData(XMLUtils.escape(typesConverter.toString(value)));
+			}
+			e.addChild(v);
+		}
+		return e;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testCapacityFor() {
+		Assert.assertEquals(512, ByteBufferPool.capacityFor(1));
+		Assert.assertEquals(512, ByteBufferPool.capacityFor(512));
+		Assert.assertEquals(1024, ByteBufferPool.capacityFor(513));
+		Assert.assertEquals(65536, ByteBufferPool.capacityFor(65536));
+		Assert.assertEquals(131072, ByteBufferPool.capacityFor(87380));
+	}
+
+	@Test
+	public void testReuse() {
+		ByteBufferPool pool = new ByteBufferPool(2, 64 * 1024);
+
+		ByteBuffer buffer = pool.acquire(2000);
+		Assert.assertEquals(2048, buffer.capacity());
+		Assert.assertEquals(1, pool.getBorrowed());
+		Assert.assertEquals(1, pool.getAllocated());
+
+		buffer.put((byte) 1).flip();
+		Assert.assertTrue(pool.release(buffer));
+		Assert.assertEquals(0, pool.getBorrowed());
+		Assert.assertEquals(1, pool.getIdle());
+
+		ByteBuffer reused = pool.acquire(1500);
+		Assert.assertSame(buffer, reused);
+		Assert.assertEquals(0, reused.position());
+		Assert.assertEquals(reused.capacity(), reused.limit());
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(0, pool.getIdle());
+
+		// different capacity is not served from the same bucket
+		Assert.assertNotSame(buffer, pool.acquire(4096));
+	}
+
+	@Test
+	public void testLimits() {
+		ByteBufferPool pool = new ByteBufferPool(2, 64 * 1024);
+
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(1024);
+		}
+		Assert.assertTrue(pool.release(buffers[0]));
+		Assert.assertTrue(pool.release(buffers[1]));
+		Assert.assertFalse(pool.release(buffers[2]));
+		Assert.assertEquals(2, pool.getIdle());
+
+		ByteBuffer big = pool.acquire(100 * 1024);
+		Assert.assertEquals(128 * 1024, big.capacity());
+		Assert.assertFalse(pool.release(big));
+		Assert.assertFalse(pool.release(ByteBuffer.allocate(1000)));
+		Assert.assertEquals(2, pool.getIdle());
+	}
+}
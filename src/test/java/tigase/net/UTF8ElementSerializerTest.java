@@ -0,0 +1,164 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class UTF8ElementSerializerTest {
+
+	private static final Logger log = Logger.getLogger(UTF8ElementSerializerTest.class.getName());
+
+	private static final String MESSAGE = "<message from='juliet@example.com/balcony' id='ktx72v49' " +
+			"to='romeo@example.net' type='chat' xml:lang='en'><body>Art thou not Romeo, &amp; a Montague? " +
+			"Zażółć gęślą jaźń 中文 😀</body><active xmlns='http://jabber.org/protocol/chatstates'/>" +
+			"</message>";
+
+	private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'>" +
+			"<show>away</show><status>Wooing Juliet</status><priority>5</priority><c xmlns='http://jabber.org/protocol/caps' " +
+			"hash='sha-1' node='http://tigase.org' ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>";
+
+	private static final String ROSTER_RESULT;
+
+	private final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	static {
+		StringBuilder sb = new StringBuilder(
+				"<iq id='bv1bs71f' to='juliet@example.com/chamber' type='result'><query xmlns='jabber:iq:roster' " +
+						"ver='ver11'>");
+		for (int i = 0; i < 50; i++) {
+			sb.append("<item jid='contact-")
+					.append(i)
+					.append("@example.net' name='Contact é ")
+					.append(i)
+					.append("' subscription='both'><group>Friends</group></item>");
+		}
+		sb.append("</query></iq>");
+		ROSTER_RESULT = sb.toString();
+	}
+
+	@Test
+	public void testSerializeStanzas() {
+		for (String stanza : new String[]{MESSAGE, PRESENCE, ROSTER_RESULT}) {
+			Element element = parse(stanza);
+			assertSerializedAsToString(element, ByteBuffer.allocate(16));
+			assertSerializedAsToString(element, ByteBuffer.allocateDirect(16));
+		}
+	}
+
+	@Test
+	public void testSerializeMixedContent() {
+		Element element = parse("<message><html xmlns='http://jabber.org/protocol/xhtml-im'><body " +
+										"xmlns='http://www.w3.org/1999/xhtml'><p>Wherefore <em>art</em> thou, " +
+										"<strong>Romeo</strong>?</p></body></html></message>");
+		assertSerializedAsToString(element, ByteBuffer.allocate(1024));
+	}
+
+	@Test
+	public void testSerializeCreatedElement() {
+		Element element = new Element("message", new String[]{"to", "type"},
+									  new String[]{"romeo@example.net", "chat"});
+		element.addChild(new Element("body", "O Romeo, &lt;Romeo&gt; ¿dónde estás?"));
+		element.addChild(new Element("thread"));
+		assertSerializedAsToString(element, ByteBuffer.allocate(8));
+	}
+
+	@Test
+	public void testSerializeEmptyCData() {
+		assertSerializedAsToString(new Element("a", ""), ByteBuffer.allocate(8));
+		assertSerializedAsToString(new Element("a", "", new String[]{"xmlns"}, new String[]{"urn:test"}),
+								   ByteBuffer.allocate(8));
+		assertSerializedAsToString(new Element("a"), ByteBuffer.allocate(8));
+	}
+
+	@Test
+	public void testWriteString() {
+		String data = "aé中😀\ud83d";
+		ByteBuffer buffer = UTF8ElementSerializer.write(data, ByteBuffer.allocate(1));
+		buffer.flip();
+
+		byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+		Assert.assertArrayEquals(data.getBytes(StandardCharsets.UTF_8), result);
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testSerializationPerformance() throws Exception {
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		int iterations = 200000;
+
+		for (String stanza : new String[]{MESSAGE, PRESENCE, ROSTER_RESULT}) {
+			Element element = parse(stanza);
+			long result = 0;
+
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					encoder.reset();
+					ByteBuffer encoded = encoder.encode(CharBuffer.wrap(element.toString()));
+					result += encoded.remaining();
+				}
+				long stringTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					buffer.clear();
+					buffer = UTF8ElementSerializer.serialize(element, buffer);
+					result += buffer.position();
+				}
+				long directTime = System.nanoTime() - start;
+
+				if (round > 0) {
+					log.log(Level.INFO, "{0}: toString() + encoder: {1} ns/op, direct serializer: {2} ns/op ({3})",
+							new Object[]{element.getName(), stringTime / iterations, directTime / iterations, result});
+				}
+			}
+		}
+	}
+
+	private void assertSerializedAsToString(Element element, ByteBuffer buffer) {
+		buffer = UTF8ElementSerializer.serialize(element, buffer);
+		buffer.flip();
+
+		byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+		Assert.assertEquals(element.toString(), new String(result, StandardCharsets.UTF_8));
+		Assert.assertArrayEquals(element.toString().getBytes(StandardCharsets.UTF_8), result);
+	}
+
+	private Element parse(String data) {
+		DomBuilderHandler handler = new DomBuilderHandler();
+		char[] chars = data.toCharArray();
+		parser.parse(handler, chars, 0, chars.length);
+		return handler.getParsedElements().poll();
+	}
+}
@@ -228,6 +228,11 @@ public class ConnectionManagerTest {
 				return waitingToSend;
 			}
 
+			@Override
+			public long waitingToSendBytes() {
+				return 0;
+			}
+
 			@Override
 			public int waitingToSendSize() {
 				return 0;
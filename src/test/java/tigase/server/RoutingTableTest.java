@@ -0,0 +1,268 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Pattern;
+
+public class RoutingTableTest {
+
+	private final TestReceiver muc = new TestReceiver("muc");
+	private final TestReceiver sessMan = new TestReceiver("sess-man");
+	private final TestResolver resolver = new TestResolver();
+	private final RoutingTable.RoutingStatistics stats = new RoutingTable.RoutingStatistics();
+
+	@Test
+	public void testComponentsByIdAndName() {
+		RoutingTable table = createTable(100);
+
+		Assert.assertSame(sessMan, table.getComponentById(sessMan.getComponentId()));
+		Assert.assertSame(muc, table.getComponentByName("muc"));
+		Assert.assertNull(table.getComponentById(JID.jidInstanceNS("unknown@example.com")));
+		Assert.assertNull(table.getComponentByName("unknown"));
+	}
+
+	@Test
+	public void testDomainRoutes() {
+		RoutingTable table = createTable(100);
+		RoutingTable.DomainRoute route = table.getDomainRoute("example.com", stats);
+
+		Assert.assertTrue(route.localDomain);
+		Assert.assertTrue(route.localOrDefaultDomain);
+		Assert.assertNull(route.subdomainComponent);
+		Assert.assertArrayEquals(new ServerComponent[]{sessMan}, route.localDomainComponents);
+		Assert.assertNull(route.nonLocalDomainComponents);
+
+		route = table.getDomainRoute("muc.example.com", stats);
+		Assert.assertFalse(route.localDomain);
+		Assert.assertSame(muc, route.subdomainComponent);
+
+		route = table.getDomainRoute("remote.org", stats);
+		Assert.assertFalse(route.localDomain);
+		Assert.assertFalse(route.localOrDefaultDomain);
+		Assert.assertNull(route.subdomainComponent);
+		Assert.assertArrayEquals(new ServerComponent[]{muc}, route.nonLocalDomainComponents);
+		Assert.assertEquals(3, stats.domainMisses);
+
+		// routes are cached, so resolver is not asked again
+		int calls = resolver.calls;
+
+		Assert.assertSame(route, table.getDomainRoute("remote.org", stats));
+		Assert.assertEquals(calls, resolver.calls);
+		Assert.assertEquals(1, stats.domainHits);
+	}
+
+	@Test
+	public void testRegexRoutes() {
+		muc.regex.add(Pattern.compile(".*@muc\\..*"));
+
+		RoutingTable table = createTable(100);
+
+		Assert.assertArrayEquals(new ServerComponent[]{muc}, table.getComponentsForRegex("room@muc.remote.org", stats));
+		Assert.assertNull(table.getComponentsForRegex("user@remote.org", stats));
+		Assert.assertEquals(2, stats.regexMisses);
+
+		Assert.assertArrayEquals(new ServerComponent[]{muc}, table.getComponentsForRegex("room@muc.remote.org", stats));
+		Assert.assertNull(table.getComponentsForRegex("user@remote.org", stats));
+		Assert.assertEquals(2, stats.regexHits);
+		Assert.assertEquals(2, muc.regexChecks);
+	}
+
+	@Test
+	public void testCacheEviction() {
+		RoutingTable table = createTable(3);
+
+		for (int i = 0; i < 10; i++) {
+			table.getDomainRoute("remote-" + i + ".org", stats);
+		}
+
+		// only a single entry is evicted when the cache is full
+		Assert.assertEquals(3, table.getCachedRoutesCount());
+		Assert.assertEquals(7, stats.cacheEvictions);
+
+		table.getDomainRoute("remote-9.org", stats);
+		Assert.assertEquals(1, stats.domainHits);
+	}
+
+	@Test
+	public void testRebuild() {
+		RoutingTable table = createTable(100);
+
+		Assert.assertFalse(table.getDomainRoute("new.example.com", stats).localDomain);
+
+		// virtual host added, new table resolves routes again
+		resolver.localDomains.add("new.example.com");
+		Assert.assertFalse(table.getDomainRoute("new.example.com", stats).localDomain);
+		table = createTable(100);
+		Assert.assertTrue(table.getDomainRoute("new.example.com", stats).localDomain);
+
+		// component added
+		TestReceiver pubsub = new TestReceiver("pubsub");
+		Map<JID, ServerComponent> byId = new HashMap<>();
+		Map<String, ServerComponent> byName = new HashMap<>();
+
+		for (TestReceiver receiver : Arrays.asList(sessMan, muc, pubsub)) {
+			byId.put(receiver.getComponentId(), receiver);
+			byName.put(receiver.getName(), receiver);
+		}
+		Assert.assertNull(table.getComponentByName("pubsub"));
+		table = new RoutingTable(byId, byName, Arrays.<MessageReceiver>asList(sessMan, muc, pubsub), "example.com",
+								 resolver, 100);
+		Assert.assertSame(pubsub, table.getComponentByName("pubsub"));
+		Assert.assertSame(pubsub, table.getDomainRoute("pubsub.example.com", stats).subdomainComponent);
+
+		// regex routing changed
+		Assert.assertFalse(table.isOutdated());
+		RoutingTable.regexRoutingsChanged();
+		Assert.assertTrue(table.isOutdated());
+		Assert.assertFalse(createTable(100).isOutdated());
+	}
+
+	private RoutingTable createTable(int maxCacheSize) {
+		Map<JID, ServerComponent> byId = new HashMap<>();
+		Map<String, ServerComponent> byName = new HashMap<>();
+
+		for (TestReceiver receiver : Arrays.asList(sessMan, muc)) {
+			byId.put(receiver.getComponentId(), receiver);
+			byName.put(receiver.getName(), receiver);
+		}
+		return new RoutingTable(byId, byName, Arrays.<MessageReceiver>asList(sessMan, muc), "example.com", resolver,
+								maxCacheSize);
+	}
+
+	private class TestResolver
+			implements RoutingTable.RouteResolver {
+
+		private final Set<String> localDomains = new HashSet<>(Collections.singleton("example.com"));
+		private int calls = 0;
+
+		@Override
+		public ServerComponent[] getComponentsForLocalDomain(String domain) {
+			++calls;
+			return localDomains.contains(domain) ? new ServerComponent[]{sessMan} : null;
+		}
+
+		@Override
+		public ServerComponent[] getComponentsForNonLocalDomain(String domain) {
+			++calls;
+			return new ServerComponent[]{muc};
+		}
+
+		@Override
+		public boolean isLocalDomain(String domain) {
+			++calls;
+			return localDomains.contains(domain);
+		}
+	}
+
+	private static class TestReceiver
+			implements MessageReceiver {
+
+		private final Set<Pattern> regex = new CopyOnWriteArraySet<>();
+		private final JID id;
+		private String name;
+		private int regexChecks = 0;
+
+		private TestReceiver(String name) {
+			this.name = name;
+			this.id = JID.jidInstanceNS(name + "@example.com");
+		}
+
+		@Override
+		public boolean addPacket(Packet packet) {
+			return true;
+		}
+
+		@Override
+		public boolean addPacketNB(Packet packet) {
+			return true;
+		}
+
+		@Override
+		public boolean addPackets(Queue<Packet> packets) {
+			return true;
+		}
+
+		@Override
+		public BareJID getDefHostName() {
+			return null;
+		}
+
+		@Override
+		public boolean isInRegexRoutings(String address) {
+			++regexChecks;
+			for (Pattern pattern : regex) {
+				if (pattern.matcher(address).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void setParent(MessageReceiver msg_rec) {
+		}
+
+		@Override
+		public void start() {
+		}
+
+		@Override
+		public void initializationCompleted() {
+		}
+
+		@Override
+		public void processPacket(Packet packet, Queue<Packet> results) {
+		}
+
+		@Override
+		public void release() {
+		}
+
+		@Override
+		public JID getComponentId() {
+			return id;
+		}
+
+		@Override
+		public ComponentInfo getComponentInfo() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public boolean isInitializationComplete() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.amp.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitQueueTest {
+
+	@Test
+	public void testBatching() throws Exception {
+		List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+		GroupCommitQueue<Integer> queue = new GroupCommitQueue<Integer>("test-writer", 100, 10, 50, items -> {
+			boolean[] results = new boolean[items.size()];
+
+			for (int i = 0; i < results.length; i++) {
+				written.add(items.get(i));
+				results[i] = items.get(i) % 2 == 0;
+			}
+			return results;
+		});
+		queue.start();
+
+		ExecutorService executor = Executors.newFixedThreadPool(20);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+		try {
+			for (int i = 0; i < 200; i++) {
+				final int item = i;
+				results.add(executor.submit(() -> queue.submit(item, 1000)));
+			}
+			for (int i = 0; i < 200; i++) {
+				Assert.assertEquals(i % 2 == 0, results.get(i).get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdown();
+			queue.stop();
+		}
+
+		Assert.assertEquals(200, written.size());
+		Assert.assertEquals(200, queue.getItemsCount());
+		Assert.assertTrue("batches: " + queue.getBatchesCount(), queue.getBatchesCount() < 200);
+		Assert.assertTrue("batches: " + queue.getBatchesCount(), queue.getBatchesCount() >= 20);
+	}
+
+	@Test
+	public void testFullQueue() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		GroupCommitQueue<Integer> queue = new GroupCommitQueue<Integer>("test-writer", 1, 1, 0, items -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return new boolean[]{true};
+		});
+		queue.start();
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			Future<Boolean> first = executor.submit(() -> queue.submit(1, 1000));
+			Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+			Future<Boolean> second = executor.submit(() -> queue.submit(2, 1000));
+			while (queue.size() == 0) {
+				Thread.sleep(1);
+			}
+
+			// writer is busy and the queue is full
+			Assert.assertNull(queue.submit(3, 10));
+			Assert.assertEquals(1, queue.getRejectedCount());
+
+			release.countDown();
+			Assert.assertTrue(first.get(10, TimeUnit.SECONDS));
+			Assert.assertTrue(second.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+			queue.stop();
+		}
+		Assert.assertNull(queue.submit(4, 10));
+	}
+}
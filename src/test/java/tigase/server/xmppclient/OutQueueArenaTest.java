@@ -0,0 +1,59 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class OutQueueArenaTest {
+
+	@Test
+	public void testStoreAndRelease() {
+		OutQueueArena arena = new OutQueueArena(16, 64, 128);
+		byte[] small = "<message/>".getBytes(StandardCharsets.UTF_8);
+		byte[] large = ("<message><body>za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144</body>" +
+				"</message>").getBytes(StandardCharsets.UTF_8);
+
+		int[] smallBlocks = arena.store(small, 0, small.length);
+		int[] largeBlocks = arena.store(large, 0, large.length);
+
+		Assert.assertEquals(1, smallBlocks.length);
+		Assert.assertEquals(4, largeBlocks.length);
+		Assert.assertArrayEquals(small, arena.read(smallBlocks, small.length));
+		Assert.assertArrayEquals(large, arena.read(largeBlocks, large.length));
+		Assert.assertEquals(2, arena.getSegments());
+		Assert.assertEquals(small.length + large.length, arena.getUsedBytes());
+		Assert.assertEquals(128, arena.getAllocatedBytes());
+
+		// only 3 blocks are left free
+		Assert.assertNull(arena.store(large, 0, large.length));
+		Assert.assertEquals(1, arena.getRejected());
+
+		arena.release(largeBlocks, large.length);
+		Assert.assertEquals(1, arena.getSegments());
+		Assert.assertEquals(small.length, arena.getUsedBytes());
+
+		largeBlocks = arena.store(large, 0, large.length);
+		Assert.assertNotNull(largeBlocks);
+		Assert.assertArrayEquals(large, arena.read(largeBlocks, large.length));
+		Assert.assertArrayEquals(small, arena.read(smallBlocks, small.length));
+		Assert.assertEquals(128, arena.getAllocatedBytes());
+	}
+}
@@ -114,6 +114,43 @@ public class StreamManagementIOProcessorTest
 						e.getPacketWithStamp().isXMLNSStaticStr(DELAY_PATH, DELAY_XMLNS)));
 	}
 
+	@Test
+	public void testCompactOutQueue() {
+		OutQueueArena arena = new OutQueueArena(64, 1024, 1024 * 1024);
+		OutQueue queue = new StreamManagementIOProcessor.CompactOutQueue(arena);
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				Packet p = Packet.packetInstance(new Element("message", new Element[]{new Element("body", "test " + i)},
+															 new String[]{"id", "from", "to"},
+															 new String[]{String.valueOf(i), "from@example.com",
+																		  "to@example.com"}));
+				queue.append(p);
+			} catch (TigaseStringprepException ex) {
+				log.log(Level.SEVERE, null, ex);
+			}
+		}
+
+		assertEquals(10, arena.getSegments());
+
+		queue.ack(5);
+
+		assertEquals(5, queue.waitingForAck());
+		assertEquals(5, arena.getSegments());
+
+		Packet packet = queue.getQueue().peek().getPacketWithStamp();
+		assertEquals("5", packet.getElement().getAttributeStaticStr("id"));
+		assertEquals("test 5", packet.getElement().getChildCDataStaticStr(new String[]{"message", "body"}));
+		assertEquals("to@example.com", packet.getStanzaTo().toString());
+		assertTrue(packet.isXMLNSStaticStr(DELAY_PATH, DELAY_XMLNS));
+		// packet resent after resumption must not be added to the queue again
+		assertTrue(packet.wasProcessedBy(StreamManagementIOProcessor.XMLNS));
+
+		queue.ack(10);
+		assertEquals(0, arena.getSegments());
+		assertEquals(0, arena.getUsedBytes());
+	}
+
 	@Test
 	public void testNoDelayForIq() {
 		OutQueue queue = new OutQueue();
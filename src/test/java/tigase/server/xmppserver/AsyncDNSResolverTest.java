@@ -0,0 +1,141 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppserver;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.util.dns.DNSEntry;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncDNSResolverTest {
+
+	private final AtomicInteger lookups = new AtomicInteger();
+	private AsyncDNSResolver resolver;
+
+	@Before
+	public void setUp() {
+		resolver = new AsyncDNSResolver(4);
+		resolver.setMinTtl(0);
+	}
+
+	@After
+	public void tearDown() {
+		resolver.shutdown();
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		resolver.setLookup(hostname -> {
+			lookups.incrementAndGet();
+			try {
+				latch.await();
+			} catch (InterruptedException ex) {
+				throw new UnknownHostException(hostname);
+			}
+			return new DNSEntry[]{entry(hostname, "10.0.0.1", 60000)};
+		});
+
+		CompletableFuture<DNSEntry[]> first = resolver.resolve("example.com");
+		CompletableFuture<DNSEntry[]> second = resolver.resolve("example.com");
+
+		Assert.assertSame(first, second);
+		Assert.assertFalse(first.isDone());
+		Assert.assertEquals(1, resolver.getCoalescedCount());
+
+		latch.countDown();
+		Assert.assertEquals("10.0.0.1", first.get(5, TimeUnit.SECONDS)[0].getIp());
+
+		CompletableFuture<DNSEntry[]> cached = resolver.resolve("example.com");
+		Assert.assertTrue(cached.isDone());
+		Assert.assertEquals("10.0.0.1", cached.join()[0].getIp());
+		Assert.assertEquals(1, lookups.get());
+		Assert.assertEquals(1, resolver.getHitsCount());
+		Assert.assertEquals(1, resolver.getMissesCount());
+	}
+
+	@Test
+	public void testNegativeCacheBackoff() throws Exception {
+		resolver.setNegativeTtl(200);
+		resolver.setMaxNegativeTtl(10000);
+		resolver.setLookup(hostname -> {
+			lookups.incrementAndGet();
+			throw new UnknownHostException(hostname);
+		});
+
+		assertUnknownHost(resolver.resolve("missing.example.com"));
+		assertUnknownHost(resolver.resolve("missing.example.com"));
+		Assert.assertEquals(1, lookups.get());
+
+		// first failure is cached for 200ms
+		Thread.sleep(300);
+		assertUnknownHost(resolver.resolve("missing.example.com"));
+		Assert.assertEquals(2, lookups.get());
+
+		// second failure is cached for 400ms
+		Thread.sleep(300);
+		assertUnknownHost(resolver.resolve("missing.example.com"));
+		Assert.assertEquals(2, lookups.get());
+		Thread.sleep(200);
+		assertUnknownHost(resolver.resolve("missing.example.com"));
+		Assert.assertEquals(3, lookups.get());
+		Assert.assertEquals(3, resolver.getFailuresCount());
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		resolver.setLookup(hostname -> {
+			lookups.incrementAndGet();
+			return new DNSEntry[]{entry(hostname, "10.0.0.1", 60000), entry(hostname, "10.0.0.2", 200)};
+		});
+
+		resolver.resolve("example.com").get(5, TimeUnit.SECONDS);
+		resolver.resolve("example.com").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, lookups.get());
+
+		// the lowest TTL of returned records is used
+		Thread.sleep(300);
+		resolver.resolve("example.com").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(2, lookups.get());
+
+		resolver.invalidate("example.com");
+		resolver.resolve("example.com").get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(3, lookups.get());
+	}
+
+	private void assertUnknownHost(CompletableFuture<DNSEntry[]> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("Domain should not be resolved");
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof UnknownHostException);
+		}
+	}
+
+	private DNSEntry entry(String hostname, String ip, long ttl) {
+		return new DNSEntry(hostname, hostname, ip, 5269, ttl, 0, 0);
+	}
+}
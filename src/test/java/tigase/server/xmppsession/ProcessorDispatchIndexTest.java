@@ -0,0 +1,211 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.*;
+
+import java.util.*;
+
+public class ProcessorDispatchIndexTest {
+
+	private final List<XMPPProcessorIfc> processors = Arrays.asList(new MessageBodyProcessor(),
+																	new RosterProcessor(), new AllProcessor(),
+																	new LegacyProcessor(), new CustomProcessor(),
+																	new PubSubProcessor());
+
+	@Test
+	public void testIndexedCount() {
+		ProcessorDispatchIndex index = new ProcessorDispatchIndex(processors);
+
+		Assert.assertEquals(4, index.getIndexedCount());
+		index.getProcessors(message(), null);
+		Assert.assertEquals(4, index.getSavedChecks());
+	}
+
+	@Test
+	public void testSameResultAsCanHandle() throws Exception {
+		ProcessorDispatchIndex index = new ProcessorDispatchIndex(processors);
+		List<Packet> packets = new ArrayList<Packet>();
+
+		packets.add(message());
+		packets.add(Packet.packetInstance(new Element("message", new Element[]{new Element("thread", "t1")},
+													  new String[]{"xmlns", "from", "to"},
+													  new String[]{"jabber:client", "a@example.com/r",
+																   "b@example.com"})));
+		for (String type : new String[]{"get", "set", "result"}) {
+			packets.add(Packet.packetInstance(
+					new Element("iq", new Element[]{new Element("query", new String[]{"xmlns"},
+																 new String[]{"jabber:iq:roster"})},
+								new String[]{"xmlns", "type", "id", "from"},
+								new String[]{"jabber:client", type, "1", "a@example.com/r"})));
+		}
+		packets.add(Packet.packetInstance(
+				new Element("iq", new Element[]{new Element("query", new String[]{"xmlns"},
+															 new String[]{"jabber:iq:version"})},
+							new String[]{"xmlns", "type", "id", "from"},
+							new String[]{"jabber:client", "get", "2", "a@example.com/r"})));
+		packets.add(Packet.packetInstance(new Element("iq", new Element[]{
+				new Element("pubsub", new Element[]{new Element("items")}, new String[]{"xmlns"},
+							new String[]{"http://jabber.org/protocol/pubsub"})}, new String[]{"xmlns", "type", "id"},
+																			 new String[]{"jabber:client", "get",
+																						  "3"})));
+		packets.add(Packet.packetInstance(new Element("presence", new String[]{"xmlns", "from"},
+													  new String[]{"jabber:client", "a@example.com/r"})));
+
+		for (Packet packet : packets) {
+			List<XMPPProcessorIfc> expected = new ArrayList<XMPPProcessorIfc>();
+
+			for (XMPPProcessorIfc proc : processors) {
+				if (proc.canHandle(packet, null) == Authorization.AUTHORIZED) {
+					expected.add(proc);
+				}
+			}
+			Assert.assertEquals(packet.toString(), expected, index.getProcessors(packet, null));
+		}
+	}
+
+	private Packet message() throws Exception {
+		return Packet.packetInstance(new Element("message", new Element[]{new Element("body", "test")},
+												 new String[]{"xmlns", "from", "to"},
+												 new String[]{"jabber:client", "a@example.com/r", "b@example.com"}));
+	}
+
+	private static abstract class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+	}
+
+	private static class AllProcessor
+			extends TestProcessor {
+
+		@Override
+		public String id() {
+			return "all";
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return ALL_PATHS;
+		}
+	}
+
+	private static class CustomProcessor
+			extends TestProcessor {
+
+		@Override
+		public Authorization canHandle(Packet packet, XMPPResourceConnection conn) {
+			return packet.getElemName() == "presence" ? Authorization.AUTHORIZED : null;
+		}
+
+		@Override
+		public String id() {
+			return "custom";
+		}
+	}
+
+	private static class LegacyProcessor
+			extends TestProcessor {
+
+		@Override
+		public String id() {
+			return "legacy";
+		}
+
+		@Override
+		public String[] supElements() {
+			return new String[]{"thread"};
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return new String[]{"jabber:client"};
+		}
+	}
+
+	private static class MessageBodyProcessor
+			extends TestProcessor {
+
+		@Override
+		public String id() {
+			return "message-body";
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return new String[][]{{"message", "body"}, {"message"}};
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return new String[]{"jabber:client", "some:other:ns"};
+		}
+	}
+
+	private static class PubSubProcessor
+			extends TestProcessor {
+
+		@Override
+		public String id() {
+			return "pubsub";
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return new String[][]{{"iq", "pubsub", "items"}};
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return new String[]{"http://jabber.org/protocol/pubsub"};
+		}
+	}
+
+	private static class RosterProcessor
+			extends TestProcessor {
+
+		@Override
+		public String id() {
+			return "roster";
+		}
+
+		@Override
+		public String[][] supElementNamePaths() {
+			return new String[][]{{"iq", "query"}};
+		}
+
+		@Override
+		public String[] supNamespaces() {
+			return new String[]{"jabber:iq:roster"};
+		}
+
+		@Override
+		public Set<StanzaType> supTypes() {
+			return EnumSet.of(StanzaType.get, StanzaType.set);
+		}
+	}
+}
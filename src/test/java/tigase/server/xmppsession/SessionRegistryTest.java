@@ -0,0 +1,94 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppsession;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+public class SessionRegistryTest {
+
+	@Test
+	public void testMapOperations() {
+		SessionRegistry<String, Integer> registry = new SessionRegistry<String, Integer>(8, 100);
+
+		Assert.assertTrue(registry.isEmpty());
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertNull(registry.put("user-" + i + "@example.com", i));
+		}
+		Assert.assertEquals(1000, registry.size());
+		Assert.assertFalse(registry.isEmpty());
+		Assert.assertEquals(Integer.valueOf(5), registry.get("user-5@example.com"));
+		Assert.assertTrue(registry.containsKey("user-999@example.com"));
+		Assert.assertFalse(registry.containsKey("user-1000@example.com"));
+		Assert.assertEquals(Integer.valueOf(7), registry.putIfAbsent("user-7@example.com", 70));
+		Assert.assertFalse(registry.remove("user-7@example.com", 70));
+		Assert.assertTrue(registry.remove("user-7@example.com", 7));
+		Assert.assertNull(registry.remove("user-7@example.com"));
+		Assert.assertEquals(999, registry.size());
+		Assert.assertEquals(999, registry.values().size());
+
+		Set<String> keys = new HashSet<String>(registry.keySet());
+		Assert.assertEquals(999, keys.size());
+		Assert.assertFalse(keys.contains("user-7@example.com"));
+	}
+
+	@Test
+	public void testShards() {
+		SessionRegistry<String, Integer> registry = new SessionRegistry<String, Integer>(8, 100);
+
+		for (int i = 0; i < 1000; i++) {
+			registry.put("user-" + i + "@example.com", i);
+		}
+
+		int total = 0;
+		int[] sizes = registry.getShardsSizes();
+		Assert.assertEquals(8, sizes.length);
+		for (int i = 0; i < registry.getShardsCount(); i++) {
+			Assert.assertEquals(sizes[i], registry.getShard(i).size());
+			for (String key : registry.getShard(i).keySet()) {
+				// the same assignment as for packets to processing threads
+				Assert.assertEquals(Math.abs(key.hashCode() % 8), i);
+			}
+			total += sizes[i];
+		}
+		Assert.assertEquals(1000, total);
+	}
+
+	@Test
+	public void testIteratorRemove() {
+		SessionRegistry<String, Integer> registry = new SessionRegistry<String, Integer>(4, 100);
+
+		for (int i = 0; i < 100; i++) {
+			registry.put("user-" + i + "@example.com", i);
+		}
+		for (Iterator<Map.Entry<String, Integer>> it = registry.entrySet().iterator(); it.hasNext(); ) {
+			if (it.next().getValue() % 2 == 0) {
+				it.remove();
+			}
+		}
+		Assert.assertEquals(50, registry.size());
+		for (Integer value : registry.values()) {
+			Assert.assertTrue(value % 2 == 1);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util;
+
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+import tigase.util.historyCache.ColumnarHistoryCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ColumnarHistoryCacheTest {
+
+	private static final String[] KEYS = {"sess-man/Long[L]", "sess-man/Int[I]", "sess-man/Float[F]",
+										  "c2s/String[S]", "c2s/Sometimes[L]", "c2s/Changing type[I]",
+										  "c2s/Changing type[L]", "c2s/Changing type[S]", "c2s/Long[S]",
+										  "c2s/Collection[C]", "c2s/Missing[L]", "c2s/Missing[S]"};
+
+	private boolean highMemory = false;
+
+	@Test
+	public void testSameValuesAsStatisticsList() {
+		int limit = 100;
+		List<StatisticsList> entries = new ArrayList<>();
+		ColumnarHistoryCache cache = newCache(limit);
+		Random random = new Random(1);
+		long counter = 0;
+
+		for (int i = 0; i < 250; i++) {
+			StatisticsList stats = new StatisticsList(Level.ALL);
+
+			counter += random.nextInt(1000);
+			stats.add("sess-man", "Long", counter, Level.FINE);
+			stats.add("sess-man", "Int", random.nextInt(100) - 10, Level.FINE);
+			stats.add("sess-man", "Float", random.nextFloat() * 100 - 10, Level.FINE);
+			stats.add("c2s", "String", "value-" + random.nextInt(5), Level.FINE);
+			stats.add("c2s", "Long", -random.nextInt(3), Level.FINE);
+			if (i % 7 == 0) {
+				stats.add("c2s", "Sometimes", (long) i, Level.FINE);
+			}
+			if (i % 3 == 0) {
+				stats.add("c2s", "Changing type", (long) i, Level.FINE);
+			} else {
+				stats.add("c2s", "Changing type", i, Level.FINE);
+			}
+			stats.add("c2s", "Collection", Arrays.asList(i, i + 1), Level.FINE);
+			cache.addItem(stats);
+			entries.add(stats);
+
+			assertHistory(entries.subList(Math.max(0, entries.size() - limit), entries.size()), cache);
+		}
+	}
+
+	@Test
+	public void testReductionOnHighMemoryUsage() {
+		int limit = 200;
+		List<StatisticsList> entries = new ArrayList<>();
+		ColumnarHistoryCache cache = newCache(limit);
+
+		for (int i = 0; i < 150; i++) {
+			StatisticsList stats = new StatisticsList(Level.ALL);
+
+			stats.add("sess-man", "Long", (long) i, Level.FINE);
+			cache.addItem(stats);
+			entries.add(stats);
+		}
+
+		highMemory = true;
+		StatisticsList stats = new StatisticsList(Level.ALL);
+		stats.add("sess-man", "Long", 150L, Level.FINE);
+		cache.addItem(stats);
+		entries.add(stats);
+		assertEquals(75, cache.getSize());
+		assertHistory(entries.subList(entries.size() - 75, entries.size()), cache);
+
+		highMemory = false;
+		stats = new StatisticsList(Level.ALL);
+		stats.add("sess-man", "Long", 151L, Level.FINE);
+		cache.addItem(stats);
+		entries.add(stats);
+		assertEquals(76, cache.getSize());
+		assertHistory(entries.subList(entries.size() - 76, entries.size()), cache);
+	}
+
+	private void assertHistory(List<StatisticsList> entries, ColumnarHistoryCache cache) {
+		assertEquals(entries.size(), cache.getSize());
+		for (String key : KEYS) {
+			Object[] expected = new Object[entries.size()];
+
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = entries.get(i).getValue(key);
+			}
+			assertArrayEquals(key, expected, cache.getHistory(key));
+		}
+	}
+
+	private ColumnarHistoryCache newCache(int limit) {
+		return new ColumnarHistoryCache(limit, 95) {
+			@Override
+			protected boolean isHighMemoryUsage() {
+				return highMemory;
+			}
+		};
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TimingWheelTest {
+
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void testExpiration() {
+		TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 8, 0);
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.schedule(() -> fired.add(1), TICK * 2, 0);
+		wheel.schedule(() -> fired.add(2), TICK / 2, 0);
+		wheel.schedule(() -> fired.add(3), TICK * 5, 0);
+		Assert.assertEquals(3, wheel.pending());
+
+		Assert.assertEquals(0, wheel.advance(TICK / 2, Runnable::run));
+		Assert.assertEquals(1, wheel.advance(TICK, Runnable::run));
+		Assert.assertEquals(Arrays.asList(2), fired);
+		Assert.assertEquals(1, wheel.advance(TICK * 4, Runnable::run));
+		Assert.assertEquals(Arrays.asList(2, 1), fired);
+		Assert.assertEquals(1, wheel.advance(TICK * 5, Runnable::run));
+		Assert.assertEquals(Arrays.asList(2, 1, 3), fired);
+		Assert.assertEquals(0, wheel.pending());
+	}
+
+	@Test
+	public void testTimeoutLongerThanWheel() {
+		TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 8, 0);
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.schedule(() -> fired.add(1), TICK * 19, 0);
+		for (long tick = 0; tick < 19; tick++) {
+			Assert.assertEquals(0, wheel.advance(tick * TICK, Runnable::run));
+		}
+		Assert.assertEquals(1, wheel.advance(19 * TICK, Runnable::run));
+		Assert.assertEquals(Arrays.asList(1), fired);
+	}
+
+	@Test
+	public void testScheduleAfterDeadlinePassed() {
+		TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 8, 0);
+		List<Integer> fired = new ArrayList<>();
+
+		wheel.advance(TICK * 10, Runnable::run);
+		// delay was computed from a time which already passed
+		wheel.schedule(() -> fired.add(1), TICK, TICK * 3);
+		Assert.assertEquals(1, wheel.advance(TICK * 11, Runnable::run));
+		Assert.assertEquals(Arrays.asList(1), fired);
+	}
+
+	@Test
+	public void testCancel() {
+		TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 8, 0);
+		List<Integer> fired = new ArrayList<>();
+
+		TimingWheel.Timeout timeout1 = wheel.schedule(() -> fired.add(1), TICK, 0);
+		TimingWheel.Timeout timeout2 = wheel.schedule(() -> fired.add(2), TICK, 0);
+
+		Assert.assertTrue(timeout1.cancel());
+		Assert.assertFalse(timeout1.cancel());
+		Assert.assertTrue(timeout1.isCancelled());
+		Assert.assertEquals(1, wheel.pending());
+
+		Assert.assertEquals(1, wheel.advance(TICK, Runnable::run));
+		Assert.assertEquals(Arrays.asList(2), fired);
+		Assert.assertTrue(timeout2.isExpired());
+		Assert.assertFalse(timeout2.cancel());
+		Assert.assertEquals(0, wheel.pending());
+	}
+
+	@Test
+	public void testManyTimeouts() {
+		TimingWheel wheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 512, 0);
+		int[] fired = new int[1];
+		List<TimingWheel.Timeout> timeouts = new ArrayList<>();
+
+		for (int i = 0; i < 200000; i++) {
+			timeouts.add(wheel.schedule(() -> fired[0]++, TICK * (i % 1000), 0));
+		}
+		for (int i = 0; i < timeouts.size(); i += 2) {
+			timeouts.get(i).cancel();
+		}
+		Assert.assertEquals(100000, wheel.pending());
+		wheel.advance(TICK * 1000, Runnable::run);
+		Assert.assertEquals(100000, fired[0]);
+		Assert.assertEquals(0, wheel.pending());
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPException;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class ProcessingMailboxesTest {
+
+	private final XMPPProcessorIfc processor = new TestProcessor();
+
+	@Test
+	public void testOrderPerUser() throws Exception {
+		int users = 8;
+		int packets = 200;
+		ConcurrentHashMap<String, List<String>> processed = new ConcurrentHashMap<String, List<String>>();
+		ConcurrentHashMap<String, AtomicInteger> inProgress = new ConcurrentHashMap<String, AtomicInteger>();
+		AtomicInteger concurrentUserProcessing = new AtomicInteger();
+		CountDownLatch latch = new CountDownLatch(users * packets);
+		ForkJoinPool pool = new ForkJoinPool(4, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+
+		ProcessingMailboxes<TestWorker> mailboxes = new ProcessingMailboxes<TestWorker>(new TestWorker(item -> {
+			String user = item.getPacket().getStanzaTo().getBareJID().toString();
+
+			if (inProgress.computeIfAbsent(user, key -> new AtomicInteger()).incrementAndGet() > 1) {
+				concurrentUserProcessing.incrementAndGet();
+			}
+			processed.computeIfAbsent(user, key -> Collections.synchronizedList(new ArrayList<String>()))
+					.add(item.getPacket().getStanzaId());
+			inProgress.get(user).decrementAndGet();
+			latch.countDown();
+		}), users * packets, "test", pool);
+
+		try {
+			for (int i = 0; i < packets; i++) {
+				for (int j = 0; j < users; j++) {
+					Assert.assertTrue(mailboxes.addItem(processor, message("user-" + j, String.valueOf(i)), null));
+				}
+			}
+			Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdown();
+		}
+
+		Assert.assertEquals(0, concurrentUserProcessing.get());
+		Assert.assertEquals(users, processed.size());
+		for (List<String> ids : processed.values()) {
+			Assert.assertEquals(packets, ids.size());
+			for (int i = 0; i < packets; i++) {
+				Assert.assertEquals(String.valueOf(i), ids.get(i));
+			}
+		}
+		Assert.assertEquals(users * packets, mailboxes.getTotalRuns());
+		Assert.assertEquals(0, mailboxes.getTotalQueueSize());
+	}
+
+	@Test
+	public void testQueueOverflow() throws Exception {
+		List<Runnable> scheduled = new ArrayList<Runnable>();
+		List<QueueItem> processed = new ArrayList<QueueItem>();
+		ProcessingMailboxes<TestWorker> mailboxes = new ProcessingMailboxes<TestWorker>(
+				new TestWorker(processed::add), 2, "test", scheduled::add);
+
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "1"), null));
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "2"), null));
+		Assert.assertFalse(mailboxes.addItem(processor, message("user-2", "3"), null));
+
+		// mailbox of the user is scheduled only once
+		Assert.assertEquals(1, scheduled.size());
+		Assert.assertEquals(2, mailboxes.getTotalQueueSize());
+		Assert.assertEquals(1, mailboxes.getDroppedPackets());
+		Assert.assertEquals(1, mailboxes.getMailboxesCount());
+
+		scheduled.remove(0).run();
+		Assert.assertEquals(2, processed.size());
+		Assert.assertEquals(0, mailboxes.getTotalQueueSize());
+		Assert.assertEquals(0, mailboxes.getMailboxesCount());
+		Assert.assertTrue(scheduled.isEmpty());
+
+		mailboxes.shutdown();
+		Assert.assertFalse(mailboxes.addItem(processor, message("user-1", "4"), null));
+	}
+
+	@Test
+	public void testRejectedExecution() throws Exception {
+		List<QueueItem> processed = new ArrayList<QueueItem>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+															 new LinkedBlockingQueue<Runnable>());
+		ProcessingMailboxes<TestWorker> mailboxes = new ProcessingMailboxes<TestWorker>(
+				new TestWorker(processed::add), 10, "test", executor);
+
+		executor.shutdown();
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "1"), null));
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "2"), null));
+
+		// items which could not be scheduled are dropped and do not count against the queue size
+		Assert.assertTrue(processed.isEmpty());
+		Assert.assertEquals(0, mailboxes.getTotalQueueSize());
+		Assert.assertEquals(0, mailboxes.getMailboxesCount());
+		Assert.assertEquals(2, mailboxes.getDroppedPackets());
+	}
+
+	@Test
+	public void testShutdownDropsQueuedItems() throws Exception {
+		List<Runnable> scheduled = new ArrayList<Runnable>();
+		List<QueueItem> processed = new ArrayList<QueueItem>();
+		ProcessingMailboxes<TestWorker> mailboxes = new ProcessingMailboxes<TestWorker>(
+				new TestWorker(processed::add), 10, "test", scheduled::add);
+
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "1"), null));
+		Assert.assertTrue(mailboxes.addItem(processor, message("user-1", "2"), null));
+		mailboxes.shutdown();
+
+		scheduled.remove(0).run();
+		Assert.assertTrue(processed.isEmpty());
+		Assert.assertEquals(0, mailboxes.getTotalQueueSize());
+		Assert.assertEquals(0, mailboxes.getMailboxesCount());
+		Assert.assertEquals(2, mailboxes.getDroppedPackets());
+	}
+
+	private Packet message(String user, String id) throws Exception {
+		return Packet.packetInstance(new Element("message", new Element[]{new Element("body", "test")},
+												 new String[]{"xmlns", "to", "id"},
+												 new String[]{"jabber:client", user + "@example.com", id}));
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		@Override
+		public String id() {
+			return "test";
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
+		}
+	}
+
+	private static class TestWorker
+			extends WorkerThread {
+
+		private final Consumer<QueueItem> consumer;
+
+		private TestWorker(Consumer<QueueItem> consumer) {
+			this.consumer = consumer;
+		}
+
+		@Override
+		public WorkerThread getNewInstance() {
+			return new TestWorker(consumer);
+		}
+
+		@Override
+		public void process(QueueItem item) {
+			consumer.accept(item);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class PriorityQueueLockFreeTest {
+
+	private static final Logger log = Logger.getLogger(PriorityQueueLockFreeTest.class.getName());
+
+	private static final int PRIORITIES = 7;
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(PRIORITIES, 100);
+
+		queue.offer(1, 3);
+		queue.offer(2, 5);
+		queue.offer(3, 0);
+		queue.offer(4, 3);
+
+		Assert.assertEquals(4, queue.totalSize());
+		Assert.assertArrayEquals(new int[]{1, 0, 0, 2, 0, 1, 0}, queue.size());
+		Assert.assertEquals(3, queue.take().intValue());
+		Assert.assertEquals(1, queue.take().intValue());
+		Assert.assertEquals(4, queue.take().intValue());
+		Assert.assertEquals(2, queue.take().intValue());
+		Assert.assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testDrainToKeepsPriorityOrder() throws InterruptedException {
+		Class[] implementations = new Class[]{PriorityQueueLockFree.class, PriorityQueueRelaxed.class,
+											  PriorityQueueStrict.class};
+		for (Class<? extends PriorityQueueAbstract> cls : implementations) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(PRIORITIES, 100, cls);
+
+			queue.offer(4, 2);
+			queue.offer(1, 0);
+			queue.offer(5, 2);
+			queue.offer(2, 1);
+			queue.offer(3, 1);
+
+			List<Integer> batch = new ArrayList<>();
+			Assert.assertEquals(3, queue.drainTo(batch, 3));
+			Assert.assertEquals(Arrays.asList(1, 2, 3), batch);
+			Assert.assertEquals(2, queue.drainTo(batch, 10));
+			Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), batch);
+			Assert.assertEquals(0, queue.totalSize());
+		}
+	}
+
+	@Test
+	public void testOverflowToLowerPriority() {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(2, 2);
+
+		Assert.assertTrue(queue.offer(1, 0));
+		Assert.assertTrue(queue.offer(2, 0));
+		Assert.assertTrue(queue.offer(3, 0));
+		Assert.assertTrue(queue.offer(4, 1));
+		Assert.assertFalse(queue.offer(5, 0));
+		Assert.assertArrayEquals(new int[]{2, 2}, queue.size());
+	}
+
+	@Test
+	public void testGrowAndSetMaxSizeKeepOrder() throws InterruptedException {
+		int items = PriorityQueueLockFree.INITIAL_CAPACITY * 5;
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(PRIORITIES, items);
+
+		for (int i = 0; i < items / 2; i++) {
+			Assert.assertTrue(queue.offer(i, 4));
+		}
+		queue.setMaxSize(10);
+		for (int i = items / 2; i < items; i++) {
+			Assert.assertTrue(queue.offer(i, 4));
+		}
+		for (int i = 0; i < items; i++) {
+			Assert.assertEquals(i, queue.take().intValue());
+		}
+	}
+
+	@Test
+	public void testMultipleProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 50000;
+		final PriorityQueueLockFree<int[]> queue = new PriorityQueueLockFree<>(PRIORITIES, 1000);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < perProducer; i++) {
+					try {
+						queue.put(new int[]{producer, i}, i % PRIORITIES);
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		int[][] lastByPriority = new int[producers][PRIORITIES];
+		for (int[] row : lastByPriority) {
+			Arrays.fill(row, -1);
+		}
+		for (int i = 0; i < producers * perProducer; i++) {
+			int[] item = queue.take();
+			int priority = item[1] % PRIORITIES;
+			// items from the same producer with the same priority must not be reordered
+			Assert.assertTrue(lastByPriority[item[0]][priority] < item[1]);
+			lastByPriority[item[0]][priority] = item[1];
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, queue.totalSize());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughputComparison() throws Exception {
+		Class[] implementations = new Class[]{PriorityQueueLockFree.class, PriorityQueueRelaxed.class,
+											  PriorityQueueStrict.class, NonpriorityQueue.class};
+		for (int producers : new int[]{1, 4, 16}) {
+			for (Class<? extends PriorityQueueAbstract> cls : implementations) {
+				// warm up
+				measure(cls, producers, 200000);
+				long time = measure(cls, producers, 1000000);
+				log.log(Level.INFO, "{0} with {1} producers: {2} items/ms",
+						new Object[]{cls.getSimpleName(), producers, 1000000 / Math.max(time, 1)});
+			}
+		}
+	}
+
+	private long measure(Class<? extends PriorityQueueAbstract> cls, int producers, int items) throws Exception {
+		final PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(PRIORITIES, 10000, cls);
+		final int perProducer = items / producers;
+		final CountDownLatch start = new CountDownLatch(1);
+		final Integer item = 1;
+
+		for (int p = 0; p < producers; p++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < perProducer; i++) {
+						queue.put(item, i % 4 + 2);
+					}
+				} catch (InterruptedException ex) {
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		long startTime = System.currentTimeMillis();
+		start.countDown();
+		for (int i = 0; i < perProducer * producers; i++) {
+			queue.take();
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+}
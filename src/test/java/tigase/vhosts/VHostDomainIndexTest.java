@@ -0,0 +1,75 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class VHostDomainIndexTest {
+
+	@Test
+	public void testContains() {
+		List<String> domains = new ArrayList<>();
+
+		for (int i = 0; i < 10000; i++) {
+			domains.add("domain-" + i + ".example.com");
+		}
+
+		VHostDomainIndex index = VHostDomainIndex.create(domains);
+
+		Assert.assertEquals(10000, index.size());
+		for (String domain : domains) {
+			Assert.assertTrue(domain, index.contains(domain));
+			Assert.assertTrue(domain, index.contains(domain.toUpperCase()));
+		}
+
+		int falsePositives = 0;
+
+		for (int i = 0; i < 10000; i++) {
+			String domain = "other-" + i + ".example.com";
+
+			Assert.assertFalse(domain, index.contains(domain));
+			if (index.mightContain(domain)) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 200);
+	}
+
+	@Test
+	public void testWithChanges() {
+		VHostDomainIndex index = VHostDomainIndex.create(Arrays.asList("b.com", "D.com", "f.com"));
+
+		Assert.assertEquals(Arrays.asList("b.com", "d.com", "f.com"), index.getDomains());
+
+		VHostDomainIndex changed = index.withChanges(Arrays.asList("a.com", "E.com", "b.com", "g.com"),
+													 Arrays.asList("D.COM", "g.com", "x.com"));
+
+		Assert.assertEquals(Arrays.asList("a.com", "b.com", "e.com", "f.com"), changed.getDomains());
+		Assert.assertTrue(changed.contains("e.com"));
+		Assert.assertFalse(changed.contains("d.com"));
+		// index is immutable
+		Assert.assertTrue(index.contains("d.com"));
+		Assert.assertFalse(index.contains("a.com"));
+
+		Assert.assertEquals(0, VHostDomainIndex.create(Collections.<String>emptyList()).size());
+		Assert.assertFalse(VHostDomainIndex.create(Collections.<String>emptyList()).contains("a.com"));
+	}
+}
@@ -0,0 +1,221 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.vhosts;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+import tigase.db.UserNotFoundException;
+import tigase.db.comp.RepositoryChangeListenerIfc;
+import tigase.db.xml.XMLRepository;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class VHostLazyJDBCRepositoryTest {
+
+	private final List<String> events = new ArrayList<>();
+	private CountingXMLRepository userRepository;
+
+	@Before
+	public void setUp() throws Exception {
+		userRepository = new CountingXMLRepository();
+		userRepository.initRepository("memory://xmlRepo?autoCreateUser=true", null);
+	}
+
+	@After
+	public void tearDown() {
+		events.clear();
+	}
+
+	@Test
+	public void testImportOfItemsList() throws Exception {
+		VHostJDBCRepository old = new VHostJDBCRepository();
+
+		old.setDefaultVHost("default.com");
+		old.setVhostDefaults(new VHostItemDefaults());
+		old.setRepo(userRepository);
+		old.initialize();
+		old.setAutoReloadInterval(0);
+		old.addItem(new VHostItem("a.com"));
+		old.addItem(new VHostItem("b.com"));
+
+		VHostLazyJDBCRepository repo = createRepository();
+
+		Assert.assertEquals(3, repo.size());
+		Assert.assertTrue(repo.contains("default.com"));
+		Assert.assertTrue(repo.contains("A.com"));
+		Assert.assertEquals("b.com", repo.getItem("b.com").getKey());
+		Assert.assertEquals(3, repo.allItems().size());
+	}
+
+	@Test
+	public void testItemsLoadedOnDemand() throws Exception {
+		VHostLazyJDBCRepository repo1 = createRepository();
+
+		for (int i = 0; i < 20; i++) {
+			repo1.addItem(new VHostItem("domain-" + i + ".com"));
+		}
+
+		VHostLazyJDBCRepository repo2 = createRepository();
+
+		Assert.assertEquals(21, repo2.size());
+		Assert.assertEquals(0, repo2.getCachedItemsCount());
+		Assert.assertTrue(repo2.contains("domain-5.com"));
+		Assert.assertEquals(0, repo2.getCachedItemsCount());
+
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals("domain-" + i + ".com", repo2.getItem("domain-" + i + ".com").getKey());
+			Assert.assertNotNull(repo2.getItem("domain-" + i + ".com").getS2sSecret());
+		}
+		Assert.assertTrue(repo2.getCachedItemsCount() <= 10);
+
+		Assert.assertFalse(repo2.contains("missing.com"));
+		Assert.assertNull(repo2.getItem("missing.com"));
+
+		int count = 0;
+		for (VHostItem item : repo2) {
+			Assert.assertNotNull(item);
+			count++;
+		}
+		Assert.assertEquals(21, count);
+	}
+
+	@Test
+	public void testIterationLoadsItemsAtOnce() throws Exception {
+		VHostLazyJDBCRepository repo1 = createRepository();
+
+		for (int i = 0; i < 20; i++) {
+			repo1.addItem(new VHostItem("domain-" + i + ".com"));
+		}
+
+		VHostLazyJDBCRepository repo2 = createRepository();
+
+		userRepository.itemsQueries = 0;
+
+		int count = 0;
+		for (VHostItem item : repo2) {
+			Assert.assertNotNull(item.getS2sSecret());
+			count++;
+		}
+		Assert.assertEquals(21, count);
+		Assert.assertEquals(1, userRepository.itemsQueries);
+		Assert.assertEquals(0, repo2.getCachedItemsCount());
+	}
+
+	@Test
+	public void testChangesFromOtherNode() throws Exception {
+		VHostLazyJDBCRepository repo1 = createRepository();
+		VHostLazyJDBCRepository repo2 = createRepository();
+
+		repo2.addRepoChangeListener(new RepositoryChangeListenerIfc<VHostItem>() {
+			@Override
+			public void itemAdded(VHostItem item) {
+				events.add("added:" + item.getKey());
+			}
+
+			@Override
+			public void itemUpdated(VHostItem item) {
+				events.add("updated:" + item.getKey());
+			}
+
+			@Override
+			public void itemRemoved(VHostItem item) {
+				events.add("removed:" + item.getKey());
+			}
+		});
+
+		repo1.addItem(new VHostItem("a.com"));
+		repo1.addItem(new VHostItem("b.com"));
+		// items added on other node are not looked up in the database until they are reloaded
+		Assert.assertFalse(repo2.contains("a.com"));
+		Assert.assertNull(repo2.getItem("a.com"));
+		Assert.assertTrue(events.isEmpty());
+
+		repo2.reload();
+		Assert.assertTrue(repo2.contains("a.com"));
+		Assert.assertTrue(repo2.contains("b.com"));
+		Assert.assertEquals(3, repo2.size());
+
+		VHostItem item = repo1.getItem("a.com");
+		item.setRegisterEnabled(false);
+		repo1.addItem(item);
+		repo1.removeItem("b.com");
+		repo2.reload();
+
+		Assert.assertFalse(repo2.contains("b.com"));
+		Assert.assertFalse(repo2.getItem("a.com").isRegisterEnabled());
+		Assert.assertTrue(events.contains("added:a.com"));
+		Assert.assertTrue(events.contains("added:b.com"));
+		Assert.assertTrue(events.contains("updated:a.com"));
+		Assert.assertTrue(events.contains("removed:b.com"));
+
+		// changes which were already loaded are not reported again
+		int size = events.size();
+		repo2.reload();
+		Assert.assertEquals(size, events.size());
+	}
+
+	private VHostLazyJDBCRepository createRepository() {
+		VHostLazyJDBCRepository repo = new VHostLazyJDBCRepository();
+
+		repo.setCacheSize(10);
+		repo.setDefaultVHost("default.com");
+		repo.setVhostDefaults(new VHostItemDefaults());
+		repo.setRepo(userRepository);
+		repo.initialize();
+		repo.setAutoReloadInterval(0);
+		return repo;
+	}
+
+	private static class CountingXMLRepository
+			extends XMLRepository {
+
+		private static final String ITEMS_NODE = "vhosts-items";
+
+		private boolean inDataMap = false;
+		private int itemsQueries = 0;
+
+		@Override
+		public String getData(BareJID user, String subnode, String key)
+				throws UserNotFoundException, TigaseDBException {
+			if (!inDataMap && ITEMS_NODE.equals(subnode)) {
+				itemsQueries++;
+			}
+			return super.getData(user, subnode, key);
+		}
+
+		@Override
+		public Map<String, String> getDataMap(BareJID user, String subnode)
+				throws UserNotFoundException, TigaseDBException {
+			if (ITEMS_NODE.equals(subnode)) {
+				itemsQueries++;
+			}
+			inDataMap = true;
+			try {
+				return super.getDataMap(user, subnode);
+			} finally {
+				inDataMap = false;
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WriteBackpressureTest {
+
+	@Test
+	public void testDeferPresences() throws Exception {
+		WriteBackpressure limits = new WriteBackpressure(3, 1, 0, 0);
+		TestIOService service = new TestIOService();
+
+		service.setWriteBackpressure(limits);
+		service.addPacketToSend(presence("a@example.com/r", null));
+		service.addPacketToSend(message("m1"));
+		Assert.assertFalse(service.isWriteCongested());
+		Assert.assertTrue(service.waitingToRead());
+
+		service.addPacketToSend(message("m2"));
+		Assert.assertTrue(service.isWriteCongested());
+		Assert.assertFalse(service.waitingToRead());
+		Assert.assertEquals(1, limits.getCongested());
+
+		// presences are deferred and only the latest one from the sender is kept, messages are still queued
+		service.addPacketToSend(presence("b@example.com/r", null));
+		service.addPacketToSend(presence("a@example.com/r", "unavailable"));
+		service.addPacketToSend(presence("b@example.com/r", "away"));
+		service.addPacketToSend(presence("a@example.com/r", "subscribe"));
+		service.addPacketToSend(message("m3"));
+		Assert.assertEquals(5, service.getWaitingPacketsSize());
+		Assert.assertEquals(2, limits.getDeferred());
+		Assert.assertEquals(1, limits.getShed());
+
+		// connection is no longer congested after data were written and deferred presences are written as well
+		service.processWaitingPackets();
+		Assert.assertFalse(service.isWriteCongested());
+		Assert.assertEquals(0, service.getWaitingPacketsSize());
+		Assert.assertTrue(service.waitingToRead());
+		Assert.assertEquals(0, limits.getCongested());
+		Assert.assertEquals(1, limits.getCongestions());
+
+		List<String> written = service.written;
+
+		Assert.assertEquals(7, written.size());
+		Assert.assertTrue(written.get(5), written.get(5).contains("unavailable"));
+		Assert.assertTrue(written.get(6), written.get(6).contains("away"));
+
+		service.addPacketToSend(presence("c@example.com/r", null));
+		Assert.assertEquals(1, service.getWaitingPacketsSize());
+	}
+
+	@Test
+	public void testDrainInSingleWriteResumesReads() throws Exception {
+		WriteBackpressure limits = new WriteBackpressure(2, 0, 0, 0);
+		TestIOService service = new TestIOService();
+
+		service.setWriteBackpressure(limits);
+		service.addPacketToSend(message("m1"));
+		service.addPacketToSend(message("m2"));
+		Assert.assertTrue(service.isWriteCongested());
+		Assert.assertFalse(service.waitingToRead());
+
+		// single write drains the queue below the low mark, no other socket event would clear congestion
+		service.processWaitingPackets();
+		Assert.assertEquals(2, service.written.size());
+		Assert.assertEquals(0, service.getWaitingPacketsSize());
+		Assert.assertFalse(service.isWriteCongested());
+		Assert.assertTrue(service.waitingToRead());
+		Assert.assertEquals(0, limits.getCongested());
+	}
+
+	@Test
+	public void testDetach() throws Exception {
+		WriteBackpressure limits = new WriteBackpressure(1, 0, 0, 0);
+		TestIOService service = new TestIOService();
+
+		service.setWriteBackpressure(limits);
+		service.addPacketToSend(message("m1"));
+		Assert.assertTrue(service.isWriteCongested());
+		Assert.assertEquals(1, limits.getCongested());
+
+		service.setWriteBackpressure(null);
+		Assert.assertFalse(service.isWriteCongested());
+		Assert.assertEquals(0, limits.getCongested());
+	}
+
+	@Test
+	public void testIsDeferrable() throws Exception {
+		Assert.assertTrue(WriteBackpressure.isDeferrable(presence("a@example.com/r", null)));
+		Assert.assertTrue(WriteBackpressure.isDeferrable(presence("a@example.com/r", "unavailable")));
+		Assert.assertFalse(WriteBackpressure.isDeferrable(presence("a@example.com/r", "subscribe")));
+		Assert.assertFalse(WriteBackpressure.isDeferrable(message("test")));
+	}
+
+	@Test
+	public void testWatermarks() {
+		WriteBackpressure limits = new WriteBackpressure(100, 10, 1000, 100);
+
+		Assert.assertTrue(limits.isEnabled());
+		Assert.assertFalse(limits.isAboveHighMark(99, 999));
+		Assert.assertTrue(limits.isAboveHighMark(100, 0));
+		Assert.assertTrue(limits.isAboveHighMark(0, 1000));
+		Assert.assertFalse(limits.isBelowLowMark(10, 101));
+		Assert.assertFalse(limits.isBelowLowMark(11, 100));
+		Assert.assertTrue(limits.isBelowLowMark(10, 100));
+
+		limits = new WriteBackpressure(0, 0, 1000, 100);
+		Assert.assertFalse(limits.isAboveHighMark(Integer.MAX_VALUE, 999));
+		Assert.assertTrue(limits.isBelowLowMark(Integer.MAX_VALUE, 100));
+
+		Assert.assertFalse(new WriteBackpressure(0, 0, 0, 0).isEnabled());
+	}
+
+	private Packet message(String body) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("message", new Element[]{new Element("body", body)},
+												 new String[]{"xmlns", "from", "to"},
+												 new String[]{"jabber:client", "x@example.com/r", "y@example.com/r"}));
+	}
+
+	private Packet presence(String from, String type) throws TigaseStringprepException {
+		Element presence = new Element("presence", new String[]{"xmlns", "from", "to"},
+									   new String[]{"jabber:client", from, "y@example.com/r"});
+
+		if (type != null) {
+			if ("away".equals(type)) {
+				presence.addChild(new Element("show", type));
+			} else {
+				presence.setAttribute("type", type);
+			}
+		}
+		return Packet.packetInstance(presence);
+	}
+
+	private static class TestIOService
+			extends XMPPIOService<Object> {
+
+		private final List<String> written = new ArrayList<String>();
+
+		@Override
+		public void writeRawData(String data) {
+			written.add(data);
+		}
+
+		@Override
+		protected boolean isBatchWriteSupported() {
+			return false;
+		}
+	}
+}
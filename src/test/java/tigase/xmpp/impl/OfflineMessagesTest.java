@@ -31,6 +31,12 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 import static org.junit.Assert.*;
 
@@ -175,6 +181,90 @@ public class OfflineMessagesTest
 		msgRepo.getStored().clear();
 	}
 
+	@Test
+	public void testRestorePacketsPageForOffLineUser() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 res1);
+
+		for (int i = 0; i < 3; i++) {
+			Element packetEl = new Element("message", new String[]{"type", "from", "to"},
+										   new String[]{"chat", "dip1@test.com/res1", userJid.toString()});
+			packetEl.addChild(new Element("body", "body-" + i));
+			Packet packet = Packet.packetInstance(packetEl);
+			msgRepo.storeMessage(packet.getFrom(), packet.getTo(), null, packet.getElement(), null);
+		}
+
+		// repository without support for paging returns all messages at once
+		Queue<Packet> restored = offlineProcessor.restorePacketsPageForOffLineUser(session1, msgRepo);
+
+		assertEquals("number of restored messages differ!", 3, restored.size());
+
+		msgRepo.getStored().clear();
+	}
+
+	@Test
+	public void testRestorePacketsInPages() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 JID.jidInstance(userJid, "res1"));
+		PagingMsgRepository pagingRepo = new PagingMsgRepository(userJid, 250);
+
+		offlineProcessor.pagesLoading = true;
+		Queue<Packet> restored = offlineProcessor.restorePacketsPageForOffLineUser(session1, pagingRepo);
+		assertTrue("messages should be sent by the pages loader", restored.isEmpty());
+
+		for (int i = 1; i <= 250; i++) {
+			Packet packet = offlineProcessor.sent.poll(10, TimeUnit.SECONDS);
+			assertNotNull("message " + i + " was not sent", packet);
+			assertEquals("messages sent in wrong order", "body-" + i, packet.getElement().getChild("body").getCData());
+		}
+		waitFor(() -> pagingRepo.deleted.size() == 3);
+		assertEquals(Arrays.asList("0-100", "100-200", "200-250"), pagingRepo.deleted);
+		assertTrue("page removed before it was sent", pagingRepo.errors.isEmpty());
+		assertEquals(Arrays.asList(100, 100, 50), offlineProcessor.retrievedPages);
+	}
+
+	@Test
+	public void testRestorePacketsInPagesStopsWhenSessionClosed() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 JID.jidInstance(userJid, "res1"));
+		PagingMsgRepository pagingRepo = new PagingMsgRepository(userJid, 250);
+
+		pagingRepo.closeAfterDelete = session1;
+		offlineProcessor.pagesLoading = true;
+		offlineProcessor.restorePacketsPageForOffLineUser(session1, pagingRepo);
+
+		waitFor(() -> pagingRepo.deleted.size() == 1);
+		Thread.sleep(300);
+		assertEquals(Collections.singletonList("0-100"), pagingRepo.deleted);
+		assertEquals("only the first page should be loaded", 1, pagingRepo.loaded.get());
+		assertEquals(100, offlineProcessor.sent.size());
+	}
+
+	@Test
+	public void testRestorePacketsInPagesPostponedWhenCongested() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+													 JID.jidInstance(userJid, "res1"));
+		PagingMsgRepository pagingRepo = new PagingMsgRepository(userJid, 150);
+
+		session1.putSessionData(XMPPResourceConnection.WRITE_CONGESTED_KEY, Boolean.TRUE);
+		offlineProcessor.pagesLoading = true;
+		offlineProcessor.restorePacketsPageForOffLineUser(session1, pagingRepo);
+
+		Thread.sleep(300);
+		assertEquals("messages loaded for congested connection", 0, pagingRepo.loaded.get());
+		assertTrue(offlineProcessor.sent.isEmpty());
+
+		session1.removeSessionData(XMPPResourceConnection.WRITE_CONGESTED_KEY);
+		waitFor(() -> pagingRepo.deleted.size() == 2);
+		assertEquals(Arrays.asList("0-100", "100-150"), pagingRepo.deleted);
+		assertEquals(150, offlineProcessor.sent.size());
+	}
+
 	@Test
 	public void testLoadOfflineMessages() throws Exception {
 		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
@@ -258,6 +348,61 @@ public class OfflineMessagesTest
 		kernel.registerBean(OfflineMessagesTestImpl.class).setActive(true).exec();
 	}
 
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 10000;
+
+		while (!condition.getAsBoolean()) {
+			assertTrue("condition not met in time", System.currentTimeMillis() < timeout);
+			Thread.sleep(10);
+		}
+	}
+
+	private class PagingMsgRepository
+			extends MsgRepositoryIfcImpl {
+
+		private final List<String> deleted = new CopyOnWriteArrayList<String>();
+		private final List<String> errors = new CopyOnWriteArrayList<String>();
+		private final AtomicInteger loaded = new AtomicInteger();
+		private final int size;
+		private final BareJID userJid;
+		private volatile XMPPResourceConnection closeAfterDelete = null;
+
+		private PagingMsgRepository(BareJID userJid, int size) {
+			this.userJid = userJid;
+			this.size = size;
+		}
+
+		@Override
+		public void deleteMessagesPage(XMPPResourceConnection session, long afterId, long lastId) {
+			// messages are sent in the order of ids, so all messages of the page must be sent already
+			if (offlineProcessor.sentCount.get() < lastId) {
+				errors.add(afterId + "-" + lastId);
+			}
+			deleted.add(afterId + "-" + lastId);
+			if (closeAfterDelete != null) {
+				closeAfterDelete.putSessionData(XMPPResourceConnection.CLOSING_KEY, Boolean.TRUE);
+			}
+		}
+
+		@Override
+		public long loadMessagesPage(XMPPResourceConnection session, long afterId, int limit, Queue<Element> result) {
+			if (afterId >= size) {
+				return -1;
+			}
+			loaded.incrementAndGet();
+
+			long lastId = Math.min(afterId + limit, size);
+
+			for (long id = afterId + 1; id <= lastId; id++) {
+				Element msg = new Element("message", new String[]{"type", "from", "to"},
+										  new String[]{"chat", "dip1@test.com/res1", userJid.toString()});
+				msg.addChild(new Element("body", "body-" + id));
+				result.offer(msg);
+			}
+			return lastId;
+		}
+	}
+
 	private static class MsgRepositoryIfcImpl
 			implements OfflineMessages.OfflineMsgRepositoryIfc {
 
@@ -306,6 +451,10 @@ public class OfflineMessagesTest
 			extends OfflineMessages {
 
 		private MsgRepositoryIfcImpl msgRepo;
+		private volatile boolean pagesLoading = false;
+		private final List<Integer> retrievedPages = new CopyOnWriteArrayList<Integer>();
+		private final BlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+		private final AtomicInteger sentCount = new AtomicInteger();
 
 		@Override
 		protected OfflineMessages.OfflineMsgRepositoryIfc getMsgRepoImpl(NonAuthUserRepository repo,
@@ -313,6 +462,23 @@ public class OfflineMessagesTest
 			return msgRepo;
 		}
 
+		@Override
+		protected boolean addOutPacket(Packet packet) {
+			sentCount.incrementAndGet();
+			return sent.offer(packet);
+		}
+
+		@Override
+		protected boolean isPagesLoadingSupported() {
+			return pagesLoading;
+		}
+
+		@Override
+		protected void notifyOfflineMessagesRetrieved(XMPPResourceConnection conn, Queue<Packet> queue) {
+			retrievedPages.add(queue.size());
+			super.notifyOfflineMessagesRetrieved(conn, queue);
+		}
+
 	}
 
 }
@@ -0,0 +1,160 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+public class PrivacyListTest {
+
+	private static final String[] DOMAINS = {"example.com", "example.net", "muc.example.com"};
+	private static final String[] GROUPS = {"Friends", "Work", "Family", "Blocked"};
+	private static final String[] LOCALPARTS = {null, "alice", "bob", "carol", "dave"};
+	private static final String[] RESOURCES = {null, "mobile", "desktop"};
+	private static final String[] SUBSCRIPTIONS = {"none", "to", "from", "both", "none_pending_in", "remove"};
+	private static final String[] TYPES = {"message", "iq", "presence-in", "presence-out"};
+
+	@Test
+	public void testFirstMatchingItem() {
+		Element list = new Element("list", new String[]{"name"}, new String[]{"test"});
+
+		list.addChild(item("jid", "alice@example.com/mobile", "allow", 1));
+		list.addChild(item("jid", "example.com", "deny", 2));
+		list.addChild(item("jid", "bob@example.net", "deny", 3, "message"));
+		list.addChild(item("group", "Friends", "allow", 4));
+		list.addChild(item("subscription", "none", "deny", 5, "presence-in"));
+
+		Map<BareJID, RosterElement> roster = new HashMap<>();
+		RosterElement friend = new RosterElement(JID.jidInstanceNS("carol@example.net"), null, new String[]{"Friends"});
+
+		friend.setSubscription(RosterAbstract.SubscriptionType.none);
+		roster.put(friend.getJid().getBareJID(), friend);
+
+		PrivacyList privacyList = PrivacyList.create(roster, list);
+
+		Assert.assertTrue(privacyList.isAllowed(JID.jidInstanceNS("alice@example.com/mobile"),
+												PrivacyList.Item.Type.iq));
+		Assert.assertFalse(privacyList.isAllowed(JID.jidInstanceNS("alice@example.com/desktop"),
+												 PrivacyList.Item.Type.iq));
+		Assert.assertFalse(privacyList.isAllowed(JID.jidInstanceNS("bob@example.net/r"),
+												 PrivacyList.Item.Type.message));
+		Assert.assertTrue(privacyList.isAllowed(JID.jidInstanceNS("bob@example.net/r"), PrivacyList.Item.Type.iq));
+		Assert.assertFalse(privacyList.isAllowed(JID.jidInstanceNS("bob@example.net/r"),
+												 PrivacyList.Item.Type.presenceIn));
+		Assert.assertTrue(privacyList.isAllowed(JID.jidInstanceNS("carol@example.net/r"),
+												PrivacyList.Item.Type.presenceIn));
+	}
+
+	@Test
+	public void testSameResultAsScan() {
+		Random random = new Random(7);
+		List<JID> jids = new ArrayList<>();
+
+		for (String domain : DOMAINS) {
+			for (String localpart : LOCALPARTS) {
+				for (String resource : RESOURCES) {
+					jids.add(JID.jidInstanceNS(localpart, domain, resource));
+				}
+			}
+		}
+
+		for (int run = 0; run < 300; run++) {
+			Map<BareJID, RosterElement> roster = new HashMap<>();
+
+			for (JID jid : jids) {
+				if (jid.getLocalpart() != null && jid.getResource() == null && random.nextInt(3) > 0) {
+					List<String> groups = new ArrayList<>();
+
+					for (String group : GROUPS) {
+						if (random.nextInt(3) == 0) {
+							groups.add(group);
+						}
+					}
+
+					RosterElement item = new RosterElement(jid, null, groups.toArray(new String[groups.size()]));
+
+					item.setSubscription(RosterAbstract.SubscriptionType.valueOf(
+							SUBSCRIPTIONS[random.nextInt(SUBSCRIPTIONS.length)]));
+					roster.put(jid.getBareJID(), item);
+				}
+			}
+
+			Element list = new Element("list", new String[]{"name"}, new String[]{"list-" + run});
+			int size = 1 + random.nextInt(run < 200 ? 12 : 400);
+
+			for (int i = 0; i < size; i++) {
+				list.addChild(randomItem(random, jids, i));
+			}
+
+			PrivacyList privacyList = new PrivacyList(jid -> roster.get(jid.getBareJID()), list);
+
+			for (JID jid : jids) {
+				for (PrivacyList.Item.Type type : PrivacyList.Item.Type.values()) {
+					Assert.assertEquals(list + ", " + jid + ", " + type, privacyList.isAllowedByScan(jid, type),
+										privacyList.isAllowed(jid, type));
+				}
+			}
+		}
+	}
+
+	private Element item(String type, String value, String action, int order, String... types) {
+		Element item = new Element("item", new String[]{"action", "order"},
+								   new String[]{action, String.valueOf(order)});
+
+		if (type != null) {
+			item.setAttribute("type", type);
+			item.setAttribute("value", value);
+		}
+		for (String stanza : types) {
+			item.addChild(new Element(stanza));
+		}
+		return item;
+	}
+
+	private Element randomItem(Random random, List<JID> jids, int order) {
+		String action = random.nextBoolean() ? "allow" : "deny";
+		List<String> types = new ArrayList<>();
+
+		for (String type : TYPES) {
+			if (random.nextInt(4) == 0) {
+				types.add(type);
+			}
+		}
+
+		String[] stanzas = types.toArray(new String[types.size()]);
+		int kind = random.nextInt(100);
+
+		if (kind < 60) {
+			return item("jid", jids.get(random.nextInt(jids.size())).toString(), action, order, stanzas);
+		} else if (kind < 80) {
+			return item("group", GROUPS[random.nextInt(GROUPS.length)], action, order, stanzas);
+		} else if (kind < 98) {
+			return item("subscription", SUBSCRIPTIONS[random.nextInt(SUBSCRIPTIONS.length)], action, order,
+						stanzas);
+		} else {
+			return item(null, null, action, order);
+		}
+	}
+}
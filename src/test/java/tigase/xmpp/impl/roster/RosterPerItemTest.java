@@ -0,0 +1,125 @@
+/**
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.Test;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RosterPerItemTest
+		extends ProcessorTestCase {
+
+	private final RosterPerItem roster = new RosterPerItem();
+
+	@Test
+	public void testItemsStoredSeparately() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-1@example.com/res-1");
+		getUserRepository().addUser(userJid.getBareJID());
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/test-1"), userJid);
+
+		roster.addBuddy(session, JID.jidInstanceNS("buddy-1@example.com"), "Buddy 1", new String[]{"Friends"},
+						RosterAbstract.SubscriptionType.both, null);
+		roster.addBuddy(session, JID.jidInstanceNS("buddy-2@example.com"), "Buddy 2", null,
+						RosterAbstract.SubscriptionType.to, null);
+
+		Map<String, String> items = getUserRepository().getDataMap(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS);
+		assertEquals(2, items.size());
+		assertTrue(items.get("buddy-1@example.com").contains("Friends"));
+		assertNull(getUserRepository().getData(userJid.getBareJID(), RosterAbstract.ROSTER));
+
+		// only modified item is written
+		getUserRepository().setData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS, "buddy-1@example.com",
+									items.get("buddy-1@example.com").replace("Friends", "Marker"));
+		roster.setBuddySubscription(session, RosterAbstract.SubscriptionType.both,
+									JID.jidInstanceNS("buddy-2@example.com"));
+		items = getUserRepository().getDataMap(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS);
+		assertTrue(items.get("buddy-1@example.com").contains("Marker"));
+		assertTrue(items.get("buddy-2@example.com").contains("both"));
+
+		roster.removeBuddy(session, JID.jidInstanceNS("buddy-2@example.com"));
+		items = getUserRepository().getDataMap(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS);
+		assertEquals(1, items.size());
+		assertFalse(items.containsKey("buddy-2@example.com"));
+	}
+
+	@Test
+	public void testInterruptedMigration() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-3@example.com/res-1");
+		BareJID user = userJid.getBareJID();
+
+		getUserRepository().addUser(user);
+		getUserRepository().setData(user, RosterAbstract.ROSTER,
+									"<contact jid=\"buddy-1@example.com\" subs=\"from\" preped=\"simple\" " +
+											"name=\"Buddy 1\"/><contact jid=\"buddy-2@example.com\" subs=\"from\" " +
+											"preped=\"simple\" name=\"Buddy 2\"/>");
+		// only first item was stored before migration was interrupted, and it was modified later
+		getUserRepository().setData(user, RosterPerItem.ROSTER_ITEMS, "buddy-1@example.com",
+									"<contact jid=\"buddy-1@example.com\" subs=\"both\" preped=\"simple\" " +
+											"name=\"Buddy 1\"/>");
+
+		Map<BareJID, RosterElement> loaded = new HashMap<BareJID, RosterElement>();
+		RosterFlat.parseRosterUtil(roster.getRosterData(getUserRepository(), user), loaded, null);
+		assertEquals(2, loaded.size());
+		assertEquals(RosterAbstract.SubscriptionType.both,
+					 loaded.get(BareJID.bareJIDInstanceNS("buddy-1@example.com")).getSubscription());
+
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/test-3"), userJid);
+
+		assertEquals(RosterAbstract.SubscriptionType.both,
+					 roster.getBuddySubscription(session, JID.jidInstanceNS("buddy-1@example.com")));
+		assertEquals(RosterAbstract.SubscriptionType.from,
+					 roster.getBuddySubscription(session, JID.jidInstanceNS("buddy-2@example.com")));
+		assertEquals(2, getUserRepository().getDataMap(user, RosterPerItem.ROSTER_ITEMS).size());
+		assertNull(getUserRepository().getData(user, RosterAbstract.ROSTER));
+		assertNotNull(getUserRepository().getData(user, RosterPerItem.ROSTER_ITEMS_MIGRATED));
+	}
+
+	@Test
+	public void testMigration() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-2@example.com/res-1");
+		BareJID user = userJid.getBareJID();
+
+		getUserRepository().addUser(user);
+		getUserRepository().setData(user, RosterAbstract.ROSTER,
+									"<contact jid=\"buddy-1@example.com\" subs=\"both\" preped=\"simple\" " +
+											"name=\"Buddy 1\"/><contact jid=\"buddy-2@example.com\" subs=\"from\" " +
+											"preped=\"simple\" name=\"Buddy 2\"/>");
+
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/test-2"), userJid);
+
+		assertEquals(RosterAbstract.SubscriptionType.both,
+					 roster.getBuddySubscription(session, JID.jidInstanceNS("buddy-1@example.com")));
+		assertEquals(RosterAbstract.SubscriptionType.from,
+					 roster.getBuddySubscription(session, JID.jidInstanceNS("buddy-2@example.com")));
+
+		Map<String, String> items = getUserRepository().getDataMap(user, RosterPerItem.ROSTER_ITEMS);
+		assertEquals(2, items.size());
+		assertNull(getUserRepository().getData(user, RosterAbstract.ROSTER));
+
+		Map<BareJID, RosterElement> loaded = new HashMap<BareJID, RosterElement>();
+		RosterFlat.parseRosterUtil(roster.getRosterData(getUserRepository(), user), loaded, null);
+		assertEquals(2, loaded.size());
+	}
+}